@@ -0,0 +1,275 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+
+import antlr.ExprLexer;
+
+import compiler.ClosureCompiler;
+import compiler.CompiledProgram;
+import expression.ExpressionProcessor;
+import expression.GlyphLexer;
+import expression.Program;
+import jit.JvmCompiler;
+import jit.JvmProgram;
+import vm.Module;
+import vm.VirtualMachine;
+import vm.VmCompiler;
+
+/**
+ * Times every execution engine on the given scripts (by default the prime and
+ * fizzbuzz examples), then compares parsing the source with loading the
+ * script's compiled bytecode, parsing it in LL mode with parsing it in SLL
+ * mode first, building the program from ANTLR's parse tree with building it
+ * with GlyphParser, and tokenizing it with ExprLexer with tokenizing it with
+ * GlyphLexer, after checking that both give the same tokens. It also reports
+ * how many function calls per second the tree interpreter makes and how much
+ * inlining them, hoisting loop invariants and caching results of pure
+ * functions saves it.
+ * The tree interpreter is timed on its own and with tiering. Program output is
+ * discarded while timing.
+ */
+public class Benchmark {
+	static final int WARMUP_RUNS = 200;
+	static final int TIMED_RUNS = 1000;
+	// Calls isPrime once per candidate number
+	static final String CALLS_FILE = "examples/primes-2.gly";
+	// Computes n ✖️ n in the body of a loop
+	static final String INVARIANT_FILE = "examples/invariant.gly";
+	// Calls a pure function with 50 different arguments
+	static final String MEMO_FILE = "examples/collatz.gly";
+
+	public static void main(String[] args) throws IOException {
+		String[] files = args.length > 0 ? args : new String[] { "examples/primes-2.gly", "examples/fizzbuzz.gly" };
+		PrintStream out = System.out;
+		PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+		for (String fileName : files) {
+			Program prog = ExpressionApp.getProgram(fileName);
+
+			if (prog == null) {
+				continue;
+			}
+
+			Map<String, Runnable> engines = getEngines(prog);
+			double baseline = 0;
+
+			out.println(fileName);
+
+			for (Map.Entry<String, Runnable> engine : engines.entrySet()) {
+				Runnable run = engine.getValue();
+
+				System.setOut(discard);
+				for (int i = 0; i < WARMUP_RUNS; i++) {
+					run.run();
+				}
+
+				long start = System.nanoTime();
+				for (int i = 0; i < TIMED_RUNS; i++) {
+					run.run();
+				}
+				double millis = (System.nanoTime() - start) / 1e6 / TIMED_RUNS;
+				System.setOut(out);
+
+				if (baseline == 0) {
+					baseline = millis;
+				}
+
+				out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", engine.getKey(), millis, baseline / millis));
+			}
+
+			File bytecode = File.createTempFile("benchmark", Module.EXTENSION);
+			bytecode.deleteOnExit();
+			new VmCompiler().compile(prog).write(bytecode.getPath());
+
+			double llParse = time(() -> ExpressionApp.parse(fileName, false));
+			double sllParse = time(() -> ExpressionApp.parse(fileName, true));
+			double antlrBuild = time(() -> ExpressionApp.parseProgram(fileName, false));
+			double fastBuild = time(() -> ExpressionApp.parseProgram(fileName, true));
+			double parse = time(() -> ExpressionApp.getProgram(fileName));
+			double load = time(() -> {
+				try {
+					Module.read(bytecode.getPath());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "parse", parse, 1.0));
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "load", load, parse / load));
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "parse LL", llParse, 1.0));
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "parse SLL", sllParse, llParse / sllParse));
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "AST ANTLR", antlrBuild, 1.0));
+			out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "AST Pratt", fastBuild, antlrBuild / fastBuild));
+			printLexing(out, fileName);
+		}
+
+		out.println("parses: " + ExpressionApp.parseStats);
+
+		printCallRate(out, discard);
+		printHoisting(out, discard);
+		printMemoization(out, discard);
+	}
+
+	static void printLexing(PrintStream out, String fileName) throws IOException {
+		CharStream input = CharStreams.fromFileName(fileName);
+		List<String> expected = tokens(new ExprLexer(input));
+		input.seek(0);
+		List<String> actual = tokens(new GlyphLexer(input));
+
+		for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+			String want = i < expected.size() ? expected.get(i) : "nothing";
+			String got = i < actual.size() ? actual.get(i) : "nothing";
+
+			if (!want.equals(got)) {
+				out.println(String.format("  tokens differ: ExprLexer gave %s, GlyphLexer gave %s", want, got));
+				return;
+			}
+		}
+
+		double antlr = time(() -> {
+			input.seek(0);
+			tokens(new ExprLexer(input));
+		});
+		double trie = time(() -> {
+			input.seek(0);
+			tokens(new GlyphLexer(input));
+		});
+
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "lex ANTLR", antlr, 1.0));
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "lex trie", trie, antlr / trie));
+	}
+
+	// Every token with its type, text and position, up to the end of file
+	static List<String> tokens(TokenSource lexer) {
+		List<String> tokens = new ArrayList<>();
+		Token token;
+
+		do {
+			token = lexer.nextToken();
+			tokens.add(String.format("%s '%s' at %d:%d [%d..%d]", ExprLexer.VOCABULARY.getSymbolicName(token.getType()),
+					token.getText(), token.getLine(), token.getCharPositionInLine(), token.getStartIndex(),
+					token.getStopIndex()));
+		} while (token.getType() != Token.EOF);
+
+		return tokens;
+	}
+
+	static void printCallRate(PrintStream out, PrintStream discard) {
+		// Inlined calls would not be counted
+		Program prog = ExpressionApp.getProgram(CALLS_FILE, true, false);
+		Program inlined = ExpressionApp.getProgram(CALLS_FILE, true, true);
+
+		if (prog == null || inlined == null) {
+			return;
+		}
+
+		System.setOut(discard);
+		ExpressionProcessor counter = interpreter(prog);
+		counter.proccessExpressions();
+		double millis = time(() -> interpreter(prog).proccessExpressions());
+		double inlinedMillis = time(() -> interpreter(inlined).proccessExpressions());
+		System.setOut(out);
+
+		out.println(CALLS_FILE + " calls");
+		out.println(String.format("  %-10s %10.0f calls/s", "tree", counter.calls / millis * 1000));
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "called", millis, 1.0));
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "inlined", inlinedMillis, millis / inlinedMillis));
+	}
+
+	static void printHoisting(PrintStream out, PrintStream discard) {
+		Program plain = ExpressionApp.getProgram(INVARIANT_FILE, false, true);
+		Program hoisted = ExpressionApp.getProgram(INVARIANT_FILE, true, true);
+
+		if (plain == null || hoisted == null) {
+			return;
+		}
+
+		System.setOut(discard);
+		double before = time(() -> interpreter(plain).proccessExpressions());
+		double after = time(() -> interpreter(hoisted).proccessExpressions());
+		System.setOut(out);
+
+		out.println(INVARIANT_FILE + " loop invariants");
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "unhoisted", before, 1.0));
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "hoisted", after, before / after));
+	}
+
+	static void printMemoization(PrintStream out, PrintStream discard) {
+		Program prog = ExpressionApp.getProgram(MEMO_FILE);
+
+		if (prog == null) {
+			return;
+		}
+
+		System.setOut(discard);
+		double uncached = time(() -> {
+			ExpressionProcessor ep = interpreter(prog);
+			ep.memo.capacity = 0;
+			ep.proccessExpressions();
+		});
+		double cached = time(() -> interpreter(prog).proccessExpressions());
+		System.setOut(out);
+
+		out.println(MEMO_FILE + " pure calls");
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "uncached", uncached, 1.0));
+		out.println(String.format("  %-10s %10.4f ms/run  %6.2fx", "cached", cached, uncached / cached));
+	}
+
+	// The tree interpreter without tiering
+	static ExpressionProcessor interpreter(Program prog) {
+		ExpressionProcessor ep = new ExpressionProcessor(prog.expressions);
+		ep.tiers.compileThreshold = 0;
+		return ep;
+	}
+
+	static double time(Runnable run) {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			run.run();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < TIMED_RUNS; i++) {
+			run.run();
+		}
+
+		return (System.nanoTime() - start) / 1e6 / TIMED_RUNS;
+	}
+
+	static Map<String, Runnable> getEngines(Program prog) {
+		Map<String, Runnable> engines = new LinkedHashMap<>();
+
+		engines.put("tree", () -> interpreter(prog).proccessExpressions());
+		// Hot functions stay compiled across runs, as in a long-running program
+		engines.put("tiered", () -> new ExpressionProcessor(prog.expressions).proccessExpressions());
+
+		CompiledProgram compiled = new ClosureCompiler().compile(prog);
+		engines.put("closure", compiled::run);
+
+		VirtualMachine vm = new VirtualMachine(new VmCompiler().compile(prog));
+		engines.put("vm", vm::run);
+
+		VirtualMachine ir = new VirtualMachine(ExpressionApp.lowerThroughIr(prog));
+		engines.put("ir", ir::run);
+
+		try {
+			JvmProgram jvm = new JvmCompiler().compile(prog);
+			engines.put("jvm", jvm::run);
+		} catch (UnsupportedOperationException e) {
+			System.out.println("  jvm: " + e.getMessage());
+		}
+
+		return engines;
+	}
+}
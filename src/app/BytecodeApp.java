@@ -0,0 +1,27 @@
+package app;
+
+import java.io.IOException;
+
+import vm.Module;
+import vm.VirtualMachine;
+
+/**
+ * Runs a program precompiled with {@code ExpressionApp --compile}. Nothing here
+ * touches the parser, so the ANTLR runtime is not needed on the class path.
+ */
+public class BytecodeApp {
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Error: no input file provided");
+		} else {
+			try {
+				new VirtualMachine(Module.read(args[0])).run();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			} catch (Error e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+}
@@ -1,61 +1,324 @@
 package app;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import antlr.ExprLexer;
 import antlr.ExprParser;
-import expression.AntlrToProgram;
+import compiler.ClosureCompiler;
+import compiler.CompiledProgram;
+import expression.ConstantFolder;
+import expression.DeadCodeEliminator;
 import expression.ExpressionProcessor;
+import expression.FunctionInliner;
+import expression.GlyphLexer;
+import expression.GlyphParser;
+import expression.LoopInvariantMotion;
 import expression.Program;
+import expression.ProgramBuilder;
+import expression.Resolver;
 import expression.SyntaxErrorListener;
+import expression.TypeChecker;
+import expression.ValueNumbering;
+import ir.IrBuilder;
+import ir.IrProgram;
+import ir.PassManager;
+import ir.VmLowering;
+import jit.JavaClassCache;
+import jit.JvmCompiler;
+import jit.JvmProgram;
+import vm.Module;
+import vm.VirtualMachine;
+import vm.VmCompiler;
 
 public class ExpressionApp {
+	static final String ENGINE_OPTION = "--engine=";
+	static final String COMPILE_OPTION = "--compile";
+	// System property that reports what the optimizer did to the program
+	static final String OPTIMIZER_TRACE = "glyph.opt.trace";
+	// Set to "antlr" to tokenize with the generated lexer instead of GlyphLexer
+	static final String LEXER = "glyph.lexer";
+	// Set to "antlr" to build every program from an ANTLR parse tree
+	static final String PARSER = "glyph.parser";
+	// How often parsing needed the LL fallback, and the time spent in each mode
+	static ParseStats parseStats = new ParseStats();
 
 	public static void main(String[] args) {
-		if (args.length != 1) {
+		String fileName = null;
+		String engine = "tree";
+		boolean compileOnly = false;
+
+		for (String arg : args) {
+			if (arg.startsWith(ENGINE_OPTION)) {
+				engine = arg.substring(ENGINE_OPTION.length());
+			} else if (arg.equals(COMPILE_OPTION)) {
+				compileOnly = true;
+			} else {
+				fileName = arg;
+			}
+		}
+
+		if (fileName == null) {
 			System.err.println("Error: no input file provided");
+		} else if (fileName.endsWith(Module.EXTENSION)) {
+			// Precompiled bytecode runs without parsing
+			BytecodeApp.main(new String[] { fileName });
 		} else {
 			try {
-				String fileName = args[0];
-				ExprParser parser = getParser(fileName);
+				if (engine.equals("java") && !compileOnly) {
+					runJava(fileName);
+					return;
+				}
+
+				Program prog = getProgram(fileName);
 
-				ParseTree antlrAST = parser.prog();
+				if (prog == null) {
+					return;
+				}
 
-				if (SyntaxErrorListener.hasError) {
+				if (compileOnly) {
+					String baseName = fileName.replaceFirst("\\.[^.\\/]*$", "");
+					new VmCompiler().compile(prog).write(baseName + Module.EXTENSION);
 					return;
 				}
 
-				AntlrToProgram progVisitor = new AntlrToProgram();
-				Program prog = progVisitor.visit(antlrAST);
-				ExpressionProcessor ep = new ExpressionProcessor(prog.expressions);
+				switch (engine) {
+					case "tree":
+						ExpressionProcessor ep = new ExpressionProcessor(prog.expressions);
+						ep.proccessExpressions();
+						ep.memo.printCounters();
+						ep.branches.printCounters();
+						break;
+					case "closure":
+						CompiledProgram compiled = new ClosureCompiler().compile(prog);
+						compiled.run();
+						compiled.memo.printCounters();
+						compiled.branches.printCounters();
+						break;
+					case "vm":
+						Module module = new VmCompiler().compile(prog);
+						new VirtualMachine(module).run();
+						break;
+					case "ir":
+						new VirtualMachine(lowerThroughIr(prog)).run();
+						break;
+					case "jvm":
+						JvmProgram jvmProgram = null;
 
-				ep.proccessExpressions();
+						try {
+							jvmProgram = new JvmCompiler().compile(prog);
+						} catch (UnsupportedOperationException e) {
+							// Not every program can be compiled ahead of time
+						}
+
+						if (jvmProgram != null) {
+							jvmProgram.run();
+						} else {
+							new ClosureCompiler().compile(prog).run();
+						}
+						break;
+					default:
+						System.err.println(String.format("Error: unknown engine '%s'", engine));
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
 			} catch (Error e) {
 				System.err.println(e.getMessage());
 			}
 		}
 	}
 
-	private static ExprParser getParser(String fileName) {
-		ExprParser parser = null;
-
+	// Programs the SSA builder rejects are compiled straight from the tree
+	static Module lowerThroughIr(Program prog) {
 		try {
-			CharStream input = CharStreams.fromFileName(fileName);
-			ExprLexer lexer = new ExprLexer(input);
-			CommonTokenStream tokens = new CommonTokenStream(lexer);
-			parser = new ExprParser(tokens);
+			IrProgram ir = new IrBuilder().build(prog);
+			PassManager.configured().run(ir);
+			return new VmLowering().lower(ir);
+		} catch (UnsupportedOperationException e) {
+			return new VmCompiler().compile(prog);
+		}
+	}
+
+	// Scripts compiled before start from their cached classes, without parsing
+	private static void runJava(String fileName) throws IOException {
+		JavaClassCache cache = new JavaClassCache(Paths.get(JavaClassCache.DEFAULT_DIRECTORY));
+		String key = JavaClassCache.key(Files.readAllBytes(Paths.get(fileName)));
+		JvmProgram program = cache.load(key);
+
+		if (program == null) {
+			Program prog = getProgram(fileName);
+
+			if (prog == null) {
+				return;
+			}
+
+			try {
+				program = cache.compile(key, prog);
+			} catch (UnsupportedOperationException e) {
+				new ClosureCompiler().compile(prog).run();
+				return;
+			}
+		}
+
+		program.run();
+	}
+
+	static Program getProgram(String fileName) {
+		return getProgram(fileName, true, true);
+	}
+
+	// Loop-invariant code motion and inlining can be left out to measure what
+	// they save
+	static Program getProgram(String fileName, boolean hoist, boolean inline) {
+		Program prog = parseProgram(fileName, !"antlr".equals(System.getProperty(PARSER)));
+
+		if (prog == null) {
+			return null;
+		}
+
+		// Errors are reported for the program as written, before the optimizer
+		// can remove the code they are in
+		new Resolver().resolve(prog.expressions);
+		new TypeChecker().check(prog.expressions);
+
+		ConstantFolder folder = new ConstantFolder();
+		folder.fold(prog);
+		DeadCodeEliminator eliminator = new DeadCodeEliminator();
+		eliminator.eliminate(prog);
+		FunctionInliner inliner = new FunctionInliner();
+		if (inline) {
+			inliner.inline(prog);
+		}
+		ValueNumbering numbering = new ValueNumbering();
+		numbering.number(prog);
+		LoopInvariantMotion motion = new LoopInvariantMotion();
+		if (hoist) {
+			motion.hoist(prog);
+		}
+
+		if (Boolean.getBoolean(OPTIMIZER_TRACE)) {
+			System.err.println(String.format("optimizer: %d operations folded, %d reads propagated, "
+					+ "%d nodes removed, %d calls inlined, %d values reused, %d expressions hoisted", folder.folded,
+					folder.propagated, eliminator.removed, inliner.inlined, numbering.reused, motion.hoisted));
+		}
 
-			parser.removeErrorListeners();
-			parser.addErrorListener(new SyntaxErrorListener());
+		return prog;
+	}
+
+	/**
+	 * Builds the program with GlyphParser, and only when it rejects the tokens
+	 * from an ANTLR parse tree, which also reports the syntax errors. With fast
+	 * false the parse tree is always used, to compare the two.
+	 */
+	static Program parseProgram(String fileName, boolean fast) {
+		CommonTokenStream tokens = getTokens(fileName);
+
+		if (tokens == null) {
+			return null;
+		}
+
+		if (fast) {
+			long start = System.nanoTime();
+
+			try {
+				Program prog = new GlyphParser(tokens).parseProgram();
+				parseStats.recordFast(fileName, System.nanoTime() - start);
+				return prog;
+			} catch (ParseCancellationException e) {
+				parseStats.recordRejection(fileName, System.nanoTime() - start, e.getMessage());
+				tokens.seek(0);
+			}
+		}
+
+		ProgramBuilder builder = new ProgramBuilder();
+		parse(fileName, tokens, true, builder);
+
+		return SyntaxErrorListener.hasError ? null : builder.prog;
+	}
+
+	static ParseTree parse(String fileName, boolean sllFirst) {
+		CommonTokenStream tokens = getTokens(fileName);
+		return tokens != null ? parse(fileName, tokens, sllFirst, null) : null;
+	}
+
+	/**
+	 * Parses the tokens in SLL mode, which almost every program needs, and only
+	 * when that fails parses them again in full LL mode, which also reports the
+	 * syntax errors. With sllFirst false they are parsed in LL mode alone, to
+	 * compare the two. With a builder the program is built during the parse and
+	 * the returned tree is left empty.
+	 */
+	static ParseTree parse(String fileName, CommonTokenStream tokens, boolean sllFirst, ProgramBuilder builder) {
+		ExprParser parser = getParser(tokens);
+
+		if (builder != null) {
+			parser.addParseListener(builder);
+		}
+
+		long start = System.nanoTime();
+		long sllTime = 0;
+
+		if (sllFirst) {
+			try {
+				ParseTree tree = parser.prog();
+				parseStats.recordSll(fileName, System.nanoTime() - start);
+				return tree;
+			} catch (ParseCancellationException e) {
+				// A syntax error, or a decision SLL cannot make; the tokens are kept
+				sllTime = System.nanoTime() - start;
+				parser.reset();
+				if (builder != null) {
+					builder.reset();
+				}
+			}
+		}
+
+		start = System.nanoTime();
+		parser.setErrorHandler(new DefaultErrorStrategy());
+		parser.addErrorListener(new SyntaxErrorListener());
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		ParseTree tree = parser.prog();
+
+		if (sllFirst) {
+			parseStats.recordFallback(fileName, sllTime, System.nanoTime() - start);
+		}
+		return tree;
+	}
+
+	// The parser starts in SLL mode and gives up at the first error, without
+	// reporting it
+	private static ExprParser getParser(CommonTokenStream tokens) {
+		ExprParser parser = new ExprParser(tokens);
+
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+
+		return parser;
+	}
+
+	// The tokens are buffered, so a parser that gives up leaves them for the next
+	private static CommonTokenStream getTokens(String fileName) {
+		try {
+			CharStream input = Utf8CharStream.fromFileName(fileName);
+			return new CommonTokenStream(getLexer(input));
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
 		}
+	}
 
-		return parser;
+	static TokenSource getLexer(CharStream input) {
+		return "antlr".equals(System.getProperty(LEXER)) ? new ExprLexer(input) : new GlyphLexer(input);
 	}
 }
@@ -0,0 +1,71 @@
+package app;
+
+/**
+ * Counts how files were parsed. Every file is first parsed by GlyphParser,
+ * which builds the program straight from the tokens but reports no errors.
+ * Files it rejects are parsed by ANTLR, first in SLL prediction mode, which
+ * is cheaper but gives up on some inputs; those are parsed again in full LL
+ * mode. The time spent in each stage is kept so the cost of the fallbacks can
+ * be compared with what the faster stages save.
+ *
+ * glyph.parse.trace prints how each file was parsed to standard error.
+ */
+public class ParseStats {
+	public boolean trace = Boolean.getBoolean("glyph.parse.trace");
+	// Files GlyphParser built, and files it left to ANTLR
+	public long fastParses;
+	public long fastRejections;
+	public long fastNanos;
+	// Files parsed in SLL mode alone, and files parsed again in LL mode
+	public long sllParses;
+	public long llFallbacks;
+	// Time spent in each stage, including failed SLL attempts
+	public long sllNanos;
+	public long llNanos;
+
+	void recordFast(String fileName, long nanos) {
+		fastParses++;
+		fastNanos += nanos;
+
+		if (trace) {
+			System.err.println(String.format("parse: %s by GlyphParser, %.3f ms", fileName, nanos / 1e6));
+		}
+	}
+
+	void recordRejection(String fileName, long nanos, String reason) {
+		fastRejections++;
+		fastNanos += nanos;
+
+		if (trace) {
+			System.err.println(String.format("parse: %s rejected by GlyphParser after %.3f ms: %s", fileName,
+					nanos / 1e6, reason));
+		}
+	}
+
+	void recordSll(String fileName, long nanos) {
+		sllParses++;
+		sllNanos += nanos;
+
+		if (trace) {
+			System.err.println(String.format("parse: %s in SLL mode, %.3f ms", fileName, nanos / 1e6));
+		}
+	}
+
+	void recordFallback(String fileName, long sllTime, long llTime) {
+		llFallbacks++;
+		sllNanos += sllTime;
+		llNanos += llTime;
+
+		if (trace) {
+			System.err.println(String.format("parse: %s failed in SLL mode after %.3f ms, LL mode took %.3f ms",
+					fileName, sllTime / 1e6, llTime / 1e6));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d parsed by GlyphParser, %d rejected; %d parsed in SLL mode, %d fell back to LL mode; "
+				+ "%.3f ms in GlyphParser, %.3f ms in SLL, %.3f ms in LL", fastParses, fastRejections, sllParses,
+				llFallbacks, fastNanos / 1e6, sllNanos / 1e6, llNanos / 1e6);
+	}
+}
@@ -0,0 +1,265 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A CharStream over the UTF-8 bytes of a memory-mapped file. Every script has
+ * emoji outside the BMP, so CharStreams.fromFileName always stores 4 bytes per
+ * code point, after reading the whole file into a copy; this stream keeps a
+ * sparse index with the byte offset of every 64th code point, and decodes a
+ * small window of code points around the current position as it moves.
+ *
+ * Indexes count code points, as in ANTLR's own streams.
+ */
+public class Utf8CharStream implements CharStream {
+	private static final int INDEX_SHIFT = 6;
+	private static final int WINDOW = 1024;
+	// Code points kept before a refilled position, for rewinding to the start
+	// of a token and for reading the text of recent ones
+	private static final int BEHIND = 64;
+
+	private final ByteBuffer bytes;
+	private final String sourceName;
+	private final int size;
+	// Byte offset of code point i << INDEX_SHIFT
+	private final int[] offsets;
+	private int position;
+	// Decoded code points from windowStart on, with the byte offset of each and
+	// of the one after the last
+	private int[] window = new int[WINDOW];
+	private int[] windowOffsets = new int[WINDOW + 1];
+	private int windowStart;
+	private int windowEnd;
+	private byte[] buffer = new byte[WINDOW * 4];
+
+	private Utf8CharStream(ByteBuffer bytes, String sourceName, int size, int[] offsets) {
+		this.bytes = bytes;
+		this.sourceName = sourceName;
+		this.size = size;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Maps a source file, or reads it with CharStreams.fromFileName when it is
+	 * not valid UTF-8, so malformed bytes are replaced the usual way.
+	 */
+	public static CharStream fromFileName(String fileName) throws IOException {
+		ByteBuffer bytes;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return CharStreams.fromFileName(fileName);
+			}
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		int limit = bytes.limit();
+		int[] offsets = new int[limit / (1 << INDEX_SHIFT) + 1];
+		int count = 0;
+
+		for (int at = 0; at < limit; count++) {
+			if ((count & ((1 << INDEX_SHIFT) - 1)) == 0) {
+				offsets[count >> INDEX_SHIFT] = at;
+			}
+
+			int length = validLength(bytes, at);
+			if (length < 0) {
+				return CharStreams.fromFileName(fileName);
+			}
+			at += length;
+		}
+		// The end of the file can be looked up too
+		if ((count & ((1 << INDEX_SHIFT) - 1)) == 0) {
+			offsets[count >> INDEX_SHIFT] = limit;
+		}
+
+		return new Utf8CharStream(bytes, fileName, count, offsets);
+	}
+
+	// Length of the well-formed sequence at a byte offset, or -1
+	private static int validLength(ByteBuffer bytes, int at) {
+		int lead = bytes.get(at) & 0xFF;
+		int length = sequenceLength(lead);
+
+		if (length == 1) {
+			return 1;
+		}
+		if (length == 0 || at + length > bytes.limit()) {
+			return -1;
+		}
+
+		// The second byte's range rules out overlong forms, surrogates and code
+		// points past U+10FFFF
+		int second = bytes.get(at + 1) & 0xFF;
+		int low = lead == 0xE0 ? 0xA0 : lead == 0xF0 ? 0x90 : 0x80;
+		int high = lead == 0xED ? 0x9F : lead == 0xF4 ? 0x8F : 0xBF;
+
+		if (second < low || second > high) {
+			return -1;
+		}
+		for (int i = 2; i < length; i++) {
+			if ((bytes.get(at + i) & 0xC0) != 0x80) {
+				return -1;
+			}
+		}
+		return length;
+	}
+
+	private static int sequenceLength(int lead) {
+		if (lead < 0x80) {
+			return 1;
+		} else if (lead < 0xC2) {
+			return 0;
+		} else if (lead < 0xE0) {
+			return 2;
+		} else if (lead < 0xF0) {
+			return 3;
+		} else if (lead < 0xF5) {
+			return 4;
+		}
+		return 0;
+	}
+
+	// Decodes the window around a code point that is outside it
+	private void fill(int index) {
+		int start = Math.max(index - BEHIND, 0);
+		int from = offsetOf(start);
+		int length = Math.min(bytes.limit() - from, buffer.length);
+		int at = 0;
+		int count = 0;
+
+		bytes.get(from, buffer, 0, length);
+
+		while (count < WINDOW && start + count < size) {
+			int lead = buffer[at] & 0xFF;
+			int sequence = sequenceLength(lead);
+
+			if (at + sequence > length) {
+				break;
+			}
+
+			windowOffsets[count] = from + at;
+			switch (sequence) {
+				case 1:
+					window[count] = lead;
+					break;
+				case 2:
+					window[count] = (lead & 0x1F) << 6 | buffer[at + 1] & 0x3F;
+					break;
+				case 3:
+					window[count] = (lead & 0x0F) << 12 | (buffer[at + 1] & 0x3F) << 6 | buffer[at + 2] & 0x3F;
+					break;
+				default:
+					window[count] = (lead & 0x07) << 18 | (buffer[at + 1] & 0x3F) << 12
+							| (buffer[at + 2] & 0x3F) << 6 | buffer[at + 3] & 0x3F;
+			}
+			at += sequence;
+			count++;
+		}
+
+		windowOffsets[count] = from + at;
+		windowStart = start;
+		windowEnd = start + count;
+	}
+
+	// Byte offset of a code point index, up to size
+	private int offsetOf(int index) {
+		if (index >= windowStart && index <= windowEnd) {
+			return windowOffsets[index - windowStart];
+		}
+
+		int at = offsets[index >> INDEX_SHIFT];
+		for (int i = index >> INDEX_SHIFT << INDEX_SHIFT; i < index; i++) {
+			at += sequenceLength(bytes.get(at) & 0xFF);
+		}
+		return at;
+	}
+
+	@Override
+	public void consume() {
+		if (position >= size) {
+			throw new IllegalStateException("cannot consume EOF");
+		}
+		position++;
+	}
+
+	@Override
+	public int LA(int i) {
+		int index;
+
+		if (i > 0) {
+			index = position + i - 1;
+		} else if (i < 0) {
+			index = position + i;
+		} else {
+			return 0;
+		}
+
+		if (index < 0 || index >= size) {
+			return IntStream.EOF;
+		}
+		if (index < windowStart || index >= windowEnd) {
+			fill(index);
+		}
+		return window[index - windowStart];
+	}
+
+	@Override
+	public int mark() {
+		return -1;
+	}
+
+	@Override
+	public void release(int marker) {
+	}
+
+	@Override
+	public int index() {
+		return position;
+	}
+
+	@Override
+	public void seek(int index) {
+		position = Math.min(Math.max(index, 0), size);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String getSourceName() {
+		return sourceName;
+	}
+
+	@Override
+	public String getText(Interval interval) {
+		int start = Math.min(interval.a, size);
+		int stop = Math.min(interval.b + 1, size);
+
+		if (stop <= start) {
+			return "";
+		}
+
+		int from = offsetOf(start);
+		byte[] text = new byte[offsetOf(stop) - from];
+		bytes.get(from, text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return getText(Interval.of(0, size - 1));
+	}
+}
@@ -0,0 +1,107 @@
+package compiler;
+
+/**
+ * A binary operator that specializes itself to the operand types it sees.
+ * Nodes start uninitialized, settle on int, float or string operands on the
+ * first evaluation and from then on only pay a class check per operand. If a
+ * later evaluation sees different types the node rewrites itself to the
+ * generic version for good.
+ */
+public class BinaryNode implements Evaluator {
+	static final int UNINITIALIZED = 0;
+	static final int INT = 1;
+	static final int DOUBLE = 2;
+	static final int STRING = 3;
+	static final int GENERIC = 4;
+
+	@FunctionalInterface
+	public interface IntOp {
+		Object apply(int left, int right);
+	}
+
+	@FunctionalInterface
+	public interface DoubleOp {
+		Object apply(double left, double right);
+	}
+
+	@FunctionalInterface
+	public interface StringOp {
+		Object apply(String left, String right);
+	}
+
+	@FunctionalInterface
+	public interface GenericOp {
+		Object apply(Object left, Object right);
+	}
+
+	final Evaluator left;
+	final Evaluator right;
+	final IntOp intOp;
+	final DoubleOp doubleOp;
+	final StringOp stringOp;
+	final GenericOp genericOp;
+	int state = UNINITIALIZED;
+
+	/**
+	 * Any of the specialized operations may be null when the operator does not
+	 * support those operands; the generic operation must handle every case,
+	 * including raising the interpreter's errors.
+	 */
+	public BinaryNode(Evaluator left, Evaluator right, IntOp intOp, DoubleOp doubleOp, StringOp stringOp,
+			GenericOp genericOp) {
+		this.left = left;
+		this.right = right;
+		this.intOp = intOp;
+		this.doubleOp = doubleOp;
+		this.stringOp = stringOp;
+		this.genericOp = genericOp;
+	}
+
+	@Override
+	public Object eval(Object[] frame) {
+		Object l = left.eval(frame);
+		Object r = right.eval(frame);
+
+		switch (state) {
+			case INT:
+				if (l.getClass() == Integer.class && r.getClass() == Integer.class) {
+					return intOp.apply((Integer) l, (Integer) r);
+				}
+				break;
+			case DOUBLE:
+				if (l.getClass() == Double.class && r.getClass() == Double.class) {
+					return doubleOp.apply((Double) l, (Double) r);
+				}
+				break;
+			case STRING:
+				if (l.getClass() == String.class && r.getClass() == String.class) {
+					return stringOp.apply((String) l, (String) r);
+				}
+				break;
+			case GENERIC:
+				return genericOp.apply(l, r);
+		}
+
+		return specialize(l, r);
+	}
+
+	private Object specialize(Object l, Object r) {
+		if (state != UNINITIALIZED) {
+			// Operand types changed: stop specializing
+			state = GENERIC;
+		} else if (intOp != null && l instanceof Integer && r instanceof Integer) {
+			state = INT;
+			return intOp.apply((Integer) l, (Integer) r);
+		} else if (doubleOp != null && l instanceof Double && r instanceof Double) {
+			state = DOUBLE;
+			return doubleOp.apply((Double) l, (Double) r);
+		} else if (stringOp != null && l instanceof String && r instanceof String) {
+			state = STRING;
+			return stringOp.apply((String) l, (String) r);
+		} else {
+			state = GENERIC;
+		}
+
+		return genericOp.apply(l, r);
+	}
+}
@@ -0,0 +1,556 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.BranchProfile;
+import expression.Comparison;
+import expression.Conditional;
+import expression.EffectAnalyzer;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.Memoizer;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Return;
+import expression.StatementRules;
+import expression.Str;
+import expression.TailCalls;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Compiles a {@link Program} into a tree of closures. Node kinds, operators,
+ * variable slots and callees are resolved once here, so running the result
+ * only makes direct calls.
+ */
+public class ClosureCompiler {
+	private Map<String, CompiledFunction[]> funcs;
+	private List<CompiledFunction[]> functionCells;
+	// Caches results of calls to pure functions
+	private Memoizer memo;
+	// Counts the outcomes of conditions when profiling is on
+	private BranchProfile branches;
+	private Set<String> pureFunctions;
+	// Function whose body is being compiled, for self tail calls
+	private CompiledFunction currentFunction;
+
+	// Layout of the frame being compiled: every name gets one slot
+	private Map<String, Integer> slots;
+	private Map<String, String> types;
+	private boolean inFunction;
+
+	public CompiledProgram compile(Program prog) {
+		funcs = new HashMap<>();
+		functionCells = new ArrayList<>();
+		memo = new Memoizer();
+		branches = new BranchProfile();
+		pureFunctions = EffectAnalyzer.pureFunctions(prog.expressions);
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				cellOf(((Function) e).id);
+			}
+		}
+
+		slots = new HashMap<>();
+		types = new HashMap<>();
+		inFunction = false;
+
+		Executor[] statements = compileStatements(prog.expressions, true);
+
+		return new CompiledProgram(statements, slots.size(), functionCells, memo, branches);
+	}
+
+	private CompiledFunction[] cellOf(String id) {
+		CompiledFunction[] cell = funcs.get(id);
+
+		if (cell == null) {
+			cell = new CompiledFunction[1];
+			funcs.put(id, cell);
+			functionCells.add(cell);
+		}
+
+		return cell;
+	}
+
+	private int slotOf(String id) {
+		Integer slot = slots.get(id);
+
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(id, slot);
+		}
+
+		return slot;
+	}
+
+	private Executor[] compileStatements(List<Expression> list, boolean topLevel) {
+		List<Executor> statements = new ArrayList<>();
+
+		for (Expression e : list) {
+			if (StatementRules.runs(e, inFunction)) {
+				statements.add(compileStatement(e, topLevel));
+			}
+		}
+
+		return statements.toArray(new Executor[0]);
+	}
+
+	private Executor compileBlock(Expression e) {
+		Executor[] statements = compileStatements(((Block) e).getStatements(), false);
+
+		if (statements.length == 0) {
+			return frame -> null;
+		} else if (statements.length == 1) {
+			return statements[0];
+		}
+
+		return frame -> {
+			for (Executor statement : statements) {
+				Object result = statement.exec(frame);
+
+				if (result != null) {
+					return result;
+				}
+			}
+
+			return null;
+		};
+	}
+
+	private Executor compileStatement(Expression e, boolean topLevel) {
+		if (e instanceof VariableDeclaration) {
+			return compileDeclaration((VariableDeclaration) e, topLevel);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			return compileAssignment(assign.id, compileExpression(assign.expr));
+		} else if (e instanceof Print) {
+			Evaluator expr = compileExpression(((Print) e).expr);
+
+			return frame -> {
+				System.out.println(expr.eval(frame).toString());
+				return null;
+			};
+		} else if (e instanceof Conditional) {
+			return compileConditional((Conditional) e);
+		} else if (e instanceof WhileLoop) {
+			return compileWhileLoop((WhileLoop) e);
+		} else if (e instanceof ForLoop) {
+			return compileForLoop((ForLoop) e);
+		} else if (e instanceof Return) {
+			if (((Return) e).tailCall) {
+				return compileTailCall((FunctionCall) ((Return) e).expr);
+			}
+
+			Evaluator expr = compileExpression(((Return) e).expr);
+			return frame -> expr.eval(frame);
+		}
+
+		return compileFunction((Function) e);
+	}
+
+	private Executor compileDeclaration(VariableDeclaration decl, boolean topLevel) {
+		String id = decl.id;
+		int slot = slotOf(id);
+		types.putIfAbsent(id, decl.type);
+		Evaluator expr = compileExpression(decl.expr);
+
+		Class<?> declClass = Operators.classOf(decl.type);
+		String textType = Keyword.translated.get(decl.type);
+		Executor assign = compileAssignment(id, expr);
+		boolean fails = StatementRules.redeclarationFails(topLevel, inFunction);
+		// Functions report it the way the interpreter does
+		String redeclared = inFunction ? "Error: variable '%s' already declared" : "variable '%s' already declared";
+
+		return frame -> {
+			if (frame[slot] != null) {
+				if (fails) {
+					String error = String.format(redeclared, id);
+					throw new Error(error);
+				}
+
+				// In the blocks of top-level code a redeclaration reassigns the
+				// variable
+				return assign.exec(frame);
+			}
+
+			Object result = expr.eval(frame);
+
+			if (declClass == null || !declClass.isInstance(result)) {
+				String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", result, id, textType);
+				throw new Error(error);
+			}
+
+			frame[slot] = result;
+			return null;
+		};
+	}
+
+	private Executor compileAssignment(String id, Evaluator expr) {
+		int slot = slotOf(id);
+		String type = types.get(id);
+		Class<?> varClass = type == null ? null : Operators.classOf(type);
+		String textType = type == null ? null : Keyword.translated.get(type);
+
+		return frame -> {
+			if (frame[slot] == null) {
+				String error = String.format("variable '%s' not declared", id);
+				throw new Error(error);
+			}
+
+			Object result = expr.eval(frame);
+
+			if (varClass == null || !varClass.isInstance(result)) {
+				String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", result, id, textType);
+				throw new Error(error);
+			}
+
+			frame[slot] = result;
+			return null;
+		};
+	}
+
+	private Executor compileConditional(Conditional cond) {
+		Condition condition = profiled(cond, compileCondition(cond.condition));
+		Executor ifBlock = compileBlock(cond.ifBlock);
+
+		if (cond.elseBlock == null) {
+			return frame -> condition.test(frame) ? ifBlock.exec(frame) : null;
+		}
+
+		Executor elseBlock = compileBlock(cond.elseBlock);
+		return frame -> condition.test(frame) ? ifBlock.exec(frame) : elseBlock.exec(frame);
+	}
+
+	private Executor compileWhileLoop(WhileLoop whileLoop) {
+		Condition condition = profiled(whileLoop, compileCondition(whileLoop.condition));
+		Executor block = compileBlock(whileLoop.block);
+
+		return frame -> {
+			while (condition.test(frame)) {
+				// A return only ends the loop, and the function carries on
+				if (block.exec(frame) != null) {
+					return null;
+				}
+			}
+
+			return null;
+		};
+	}
+
+	// Counters are only compiled in when profiling is on, and registered when
+	// the condition first runs, as in the interpreter, so code that never runs
+	// has none
+	private Condition profiled(Expression site, Condition condition) {
+		if (!branches.trace) {
+			return condition;
+		}
+
+		long[][] cell = new long[1][];
+		return frame -> {
+			boolean taken = condition.test(frame);
+
+			if (cell[0] == null) {
+				cell[0] = branches.counters(site);
+			}
+			cell[0][taken ? 0 : 1]++;
+			return taken;
+		};
+	}
+
+	// Logical operators branch on their operands directly, so '&&' and '||'
+	// skip the right one once the left one decides the result
+	private Condition compileCondition(Expression e) {
+		if (e instanceof Parens) {
+			return compileCondition(((Parens) e).expr);
+		} else if (e instanceof And) {
+			Condition left = compileOperand(((And) e).left, "&&");
+			Condition right = compileOperand(((And) e).right, "&&");
+			return frame -> left.test(frame) && right.test(frame);
+		} else if (e instanceof Or) {
+			Condition left = compileOperand(((Or) e).left, "||");
+			Condition right = compileOperand(((Or) e).right, "||");
+			return frame -> left.test(frame) || right.test(frame);
+		} else if (e instanceof Not) {
+			Condition expr = compileOperand(((Not) e).expr, "!");
+			return frame -> !expr.test(frame);
+		}
+
+		Evaluator value = compileExpression(e);
+		return frame -> (boolean) value.eval(frame);
+	}
+
+	private Condition compileOperand(Expression e, String operator) {
+		while (e instanceof Parens) {
+			e = ((Parens) e).expr;
+		}
+
+		if (e instanceof And || e instanceof Or || e instanceof Not) {
+			return compileCondition(e);
+		}
+
+		Evaluator value = compileExpression(e);
+		return frame -> Operators.logicalOperand(value.eval(frame), operator);
+	}
+
+	private Executor compileForLoop(ForLoop forLoop) {
+		String id = forLoop.id;
+		int slot = slotOf(id);
+		types.putIfAbsent(id, Keyword.INT_TYPE);
+
+		Evaluator start = compileExpression(forLoop.start);
+		Evaluator end = compileExpression(forLoop.end);
+		Evaluator step = compileExpression(forLoop.step);
+		Executor block = compileBlock(forLoop.block);
+
+		return frame -> {
+			if (frame[slot] != null) {
+				String error = String.format("Error: variable '%s' already declared", id);
+				throw new Error(error);
+			}
+
+			int from = (int) start.eval(frame);
+			int to = (int) end.eval(frame);
+			int by = (int) step.eval(frame);
+			long iterations = ForLoop.iterations(id, from, to, by);
+			int i = from;
+
+			for (long n = 0; n < iterations; n++, i += by) {
+				frame[slot] = i;
+				Object result = block.exec(frame);
+				frame[slot] = null;
+
+				if (result != null) {
+					return result;
+				}
+			}
+
+			return null;
+		};
+	}
+
+	private Executor compileFunction(Function function) {
+		int count = function.paramIds.size();
+		String[] paramIds = function.paramIds.toArray(new String[count]);
+		Class<?>[] paramClasses = new Class<?>[count];
+
+		for (int i = 0; i < count; i++) {
+			paramClasses[i] = Operators.classOf(function.paramTypes.get(i));
+		}
+
+		CompiledFunction compiled = new CompiledFunction(function.id, paramIds, paramClasses);
+
+		// Functions only see their own parameters and locals
+		Map<String, Integer> outerSlots = slots;
+		Map<String, String> outerTypes = types;
+		slots = new HashMap<>();
+		types = new HashMap<>();
+		inFunction = true;
+
+		for (int i = 0; i < count; i++) {
+			slotOf(paramIds[i]);
+			types.put(paramIds[i], function.paramTypes.get(i));
+		}
+
+		currentFunction = compiled;
+		TailCalls.mark(function);
+		compiled.body = compileBlock(function.block);
+		compiled.frameSize = slots.size();
+
+		slots = outerSlots;
+		types = outerTypes;
+		inFunction = false;
+
+		CompiledFunction[] cell = cellOf(function.id);
+		boolean pure = pureFunctions.contains(function.id);
+		// Only a global declared before the function can be set when it runs
+		Integer global = slots.get(function.id);
+		int slot = global == null ? -1 : global;
+
+		return frame -> {
+			if (slot >= 0 && frame[slot] != null) {
+				String error = String.format("Error: function '%s' already declared", function.id);
+				throw new Error(error);
+			}
+
+			// A redeclared function starts with an empty cache
+			compiled.results = pure ? memo.newCache() : null;
+			cell[0] = compiled;
+			return null;
+		};
+	}
+
+	private Evaluator compileExpression(Expression e) {
+		if (e instanceof Int) {
+			Object value = ((Int) e).value;
+			return frame -> value;
+		} else if (e instanceof Real) {
+			Object value = ((Real) e).value;
+			return frame -> value;
+		} else if (e instanceof Str) {
+			Object value = ((Str) e).value;
+			return frame -> value;
+		} else if (e instanceof Bool) {
+			Object value = ((Bool) e).value;
+			return frame -> value;
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+			int slot = slotOf(id);
+
+			return frame -> {
+				Object value = frame[slot];
+
+				if (value == null) {
+					String error = String.format("variable '%s' not declared", id);
+					throw new Error(error);
+				}
+
+				return value;
+			};
+		} else if (e instanceof Parens) {
+			return compileExpression(((Parens) e).expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			Evaluator left = compileExpression(add.left);
+			Evaluator right = compileExpression(add.right);
+
+			switch (add.operator) {
+				case Keyword.PLUS:
+					return new BinaryNode(left, right, (a, b) -> a + b, (a, b) -> a + b, (a, b) -> a + b,
+							Operators::add);
+				case Keyword.MINUS:
+					return new BinaryNode(left, right, (a, b) -> a - b, (a, b) -> a - b, null, Operators::sub);
+			}
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			Evaluator left = compileExpression(mult.left);
+			Evaluator right = compileExpression(mult.right);
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return new BinaryNode(left, right, (a, b) -> a * b, (a, b) -> a * b, null, Operators::mul);
+				case Keyword.DIVIDE:
+					return new BinaryNode(left, right, (a, b) -> a / nonZero(b), (a, b) -> a / nonZero(b), null,
+							Operators::div);
+				case Keyword.MOD:
+					return new BinaryNode(left, right, (a, b) -> a % b, (a, b) -> a % b, null, Operators::mod);
+			}
+		} else if (e instanceof UnaryMinus) {
+			Evaluator expr = compileExpression(((UnaryMinus) e).expr);
+			return frame -> Operators.negate(expr.eval(frame));
+		} else if (e instanceof And || e instanceof Or || e instanceof Not) {
+			Condition condition = compileCondition(e);
+			return frame -> condition.test(frame);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			Evaluator left = compileExpression(eq.left);
+			Evaluator right = compileExpression(eq.right);
+
+			switch (eq.operator) {
+				case Keyword.EQ:
+					return new BinaryNode(left, right, (a, b) -> a == b, (a, b) -> Double.compare(a, b) == 0,
+							(a, b) -> a.equals(b), (a, b) -> a.equals(b));
+				case Keyword.NEQ:
+					return new BinaryNode(left, right, (a, b) -> a != b, (a, b) -> Double.compare(a, b) != 0,
+							(a, b) -> !a.equals(b), (a, b) -> !a.equals(b));
+			}
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			Evaluator left = compileExpression(comp.left);
+			Evaluator right = compileExpression(comp.right);
+
+			switch (comp.operator) {
+				case Keyword.LT:
+					return new BinaryNode(left, right, (a, b) -> a < b, (a, b) -> a < b, null, Operators::lt);
+				case Keyword.GT:
+					return new BinaryNode(left, right, (a, b) -> a > b, (a, b) -> a > b, null, Operators::gt);
+				case Keyword.LTE:
+					return new BinaryNode(left, right, (a, b) -> a <= b, (a, b) -> a <= b, null, Operators::lte);
+				case Keyword.GTE:
+					return new BinaryNode(left, right, (a, b) -> a >= b, (a, b) -> a >= b, null, Operators::gte);
+			}
+		} else if (e instanceof FunctionCall) {
+			return compileFunctionCall((FunctionCall) e);
+		}
+
+		String error = String.format("cannot compile '%s'", e);
+		throw new Error(error);
+	}
+
+	private static int nonZero(int divisor) {
+		if (divisor == 0) {
+			throw new IllegalArgumentException("division by zero");
+		}
+		return divisor;
+	}
+
+	private static double nonZero(double divisor) {
+		if (divisor == 0) {
+			throw new IllegalArgumentException("division by zero");
+		}
+		return divisor;
+	}
+
+	private Executor compileTailCall(FunctionCall call) {
+		Evaluator callee = compileFunctionCall(call);
+		CompiledFunction[] cell = cellOf(call.id);
+		CompiledFunction self = currentFunction;
+		Evaluator[] args = new Evaluator[call.args.size()];
+
+		for (int i = 0; i < args.length; i++) {
+			args[i] = compileExpression(call.args.get(i));
+		}
+
+		return frame -> {
+			// A redeclared function is a different callee
+			if (cell[0] != self) {
+				return callee.eval(frame);
+			}
+
+			self.rebind(frame, args);
+			return CompiledFunction.TAIL_CALL;
+		};
+	}
+
+	private Evaluator compileFunctionCall(FunctionCall call) {
+		String id = call.id;
+		CompiledFunction[] cell = cellOf(id);
+		Evaluator[] args = new Evaluator[call.args.size()];
+
+		for (int i = 0; i < args.length; i++) {
+			args[i] = compileExpression(call.args.get(i));
+		}
+
+		return frame -> {
+			CompiledFunction function = cell[0];
+
+			if (function == null) {
+				String error = String.format("Error: function '%s' not declared", id);
+				throw new Error(error);
+			}
+
+			return function.invoke(frame, args);
+		};
+	}
+}
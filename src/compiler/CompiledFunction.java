@@ -0,0 +1,88 @@
+package compiler;
+
+import java.util.Arrays;
+
+import expression.ResultCache;
+
+public class CompiledFunction {
+	// Returned by the body once a self tail call rebound the parameters, to
+	// run it again in the same frame
+	static final Object TAIL_CALL = new Object();
+
+	public String id;
+	public String[] paramIds;
+	public Class<?>[] paramClasses;
+	public int frameSize;
+	public Executor body;
+	// Results of earlier calls, when the function is pure
+	public ResultCache results;
+
+	public CompiledFunction(String id, String[] paramIds, Class<?>[] paramClasses) {
+		this.id = id;
+		this.paramIds = paramIds;
+		this.paramClasses = paramClasses;
+	}
+
+	public Object invoke(Object[] caller, Evaluator[] args) {
+		if (args.length != paramIds.length) {
+			String error = String.format("Error: wrong number of arguments for function '%s'", id);
+			throw new Error(error);
+		}
+
+		Object[] frame = new Object[frameSize];
+		bind(caller, args, frame);
+
+		if (results != null && results.active) {
+			Object[] key = Arrays.copyOf(frame, args.length);
+			Object cached = results.lookup(key);
+
+			if (cached != ResultCache.MISSING) {
+				return cached;
+			}
+
+			Object result = run(frame);
+			results.store(key, result);
+			return result;
+		}
+
+		return run(frame);
+	}
+
+	/** Replaces the frame's parameters and locals for a self tail call. */
+	public void rebind(Object[] frame, Evaluator[] args) {
+		if (args.length != paramIds.length) {
+			String error = String.format("Error: wrong number of arguments for function '%s'", id);
+			throw new Error(error);
+		}
+
+		// The arguments may read the old parameters
+		Object[] next = new Object[args.length];
+		bind(frame, args, next);
+
+		Arrays.fill(frame, null);
+		System.arraycopy(next, 0, frame, 0, next.length);
+	}
+
+	private Object run(Object[] frame) {
+		Object result;
+
+		do {
+			result = body.exec(frame);
+		} while (result == TAIL_CALL);
+
+		return result;
+	}
+
+	private void bind(Object[] caller, Evaluator[] args, Object[] frame) {
+		for (int i = 0; i < args.length; i++) {
+			Object result = args[i].eval(caller);
+
+			if (paramClasses[i] == null || !paramClasses[i].isInstance(result)) {
+				String error = String.format("Error: wrong type for argument '%s' of function '%s'", paramIds[i], id);
+				throw new Error(error);
+			}
+
+			frame[i] = result;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package compiler;
+
+import java.util.List;
+
+import expression.BranchProfile;
+import expression.Memoizer;
+
+public class CompiledProgram {
+	Executor[] statements;
+	int frameSize;
+	List<CompiledFunction[]> functionCells;
+	// Counts the calls to pure functions answered from a cache
+	public Memoizer memo;
+	// Counts the outcomes of conditions when profiling is on
+	public BranchProfile branches;
+
+	public CompiledProgram(Executor[] statements, int frameSize, List<CompiledFunction[]> functionCells,
+			Memoizer memo, BranchProfile branches) {
+		this.statements = statements;
+		this.frameSize = frameSize;
+		this.functionCells = functionCells;
+		this.memo = memo;
+		this.branches = branches;
+	}
+
+	public void run() {
+		// Functions become callable only once their declaration is reached
+		for (CompiledFunction[] cell : functionCells) {
+			cell[0] = null;
+		}
+
+		Object[] frame = new Object[frameSize];
+
+		for (Executor statement : statements) {
+			statement.exec(frame);
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package compiler;
+
+/**
+ * A compiled condition. Branches on a primitive boolean, so conditions of
+ * conditionals and loops never go through a Boolean object.
+ */
+@FunctionalInterface
+public interface Condition {
+	boolean test(Object[] frame);
+}
@@ -0,0 +1,10 @@
+package compiler;
+
+/**
+ * A compiled expression. Evaluates against the frame of the function (or
+ * program) it was compiled in.
+ */
+@FunctionalInterface
+public interface Evaluator {
+	Object eval(Object[] frame);
+}
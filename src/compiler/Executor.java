@@ -0,0 +1,10 @@
+package compiler;
+
+/**
+ * A compiled statement. Returns the value of a reached return statement, or
+ * null when control falls through to the next statement.
+ */
+@FunctionalInterface
+public interface Executor {
+	Object exec(Object[] frame);
+}
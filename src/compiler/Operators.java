@@ -0,0 +1,177 @@
+package compiler;
+
+import expression.Keyword;
+
+/**
+ * Operator semantics of the tree interpreter, split per operator so that the
+ * operator switch happens once at compile time instead of on every evaluation.
+ */
+public abstract class Operators {
+
+	public static Object add(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left + (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left + (int) right;
+		} else if ((left instanceof String && (right instanceof String || right instanceof Double
+				|| right instanceof Integer)) || (right instanceof String && (left instanceof Double
+						|| left instanceof Integer))) {
+			return left.toString() + right.toString();
+		}
+
+		throw nonNumbers(Keyword.PLUS);
+	}
+
+	public static Object sub(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left - (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left - (int) right;
+		}
+
+		throw nonNumbers(Keyword.MINUS);
+	}
+
+	public static Object mul(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left * (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left * (int) right;
+		}
+
+		throw nonNumbers(Keyword.TIMES);
+	}
+
+	public static Object div(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			if ((double) right == 0) {
+				throw new IllegalArgumentException("division by zero");
+			}
+			return (double) left / (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			if ((int) right == 0) {
+				throw new IllegalArgumentException("division by zero");
+			}
+			return (int) left / (int) right;
+		}
+
+		throw nonNumbers(Keyword.DIVIDE);
+	}
+
+	public static Object mod(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left % (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left % (int) right;
+		}
+
+		throw nonNumbers(Keyword.MOD);
+	}
+
+	public static Object negate(Object expr) {
+		if (expr instanceof Double) {
+			return -((double) expr);
+		} else if (expr instanceof Integer) {
+			return -((int) expr);
+		}
+
+		throw new Error("cannot apply '-' to non-number");
+	}
+
+	public static Object and(Object left, Object right) {
+		if (left instanceof Boolean && right instanceof Boolean) {
+			return (boolean) left && (boolean) right;
+		}
+
+		throw new Error("cannot apply '&&' to non-boolean");
+	}
+
+	public static Object or(Object left, Object right) {
+		if (left instanceof Boolean && right instanceof Boolean) {
+			return (boolean) left || (boolean) right;
+		}
+
+		throw new Error("cannot apply '||' to non-boolean");
+	}
+
+	/** Unboxes an operand of '&&', '||' or '!', which has to be a boolean. */
+	public static boolean logicalOperand(Object operand, String operator) {
+		if (operand instanceof Boolean) {
+			return (boolean) operand;
+		}
+
+		throw new Error(String.format("cannot apply '%s' to non-boolean", operator));
+	}
+
+	public static Object not(Object expr) {
+		if (expr instanceof Boolean) {
+			return !((boolean) expr);
+		}
+
+		throw new Error("cannot apply '!' to non-boolean");
+	}
+
+	public static Object lt(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left < (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left < (int) right;
+		}
+
+		throw nonNumbers(Keyword.LT);
+	}
+
+	public static Object gt(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left > (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left > (int) right;
+		}
+
+		throw nonNumbers(Keyword.GT);
+	}
+
+	public static Object lte(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left <= (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left <= (int) right;
+		}
+
+		throw nonNumbers(Keyword.LTE);
+	}
+
+	public static Object gte(Object left, Object right) {
+		if (left instanceof Double && right instanceof Double) {
+			return (double) left >= (double) right;
+		} else if (left instanceof Integer && right instanceof Integer) {
+			return (int) left >= (int) right;
+		}
+
+		throw nonNumbers(Keyword.GTE);
+	}
+
+	public static Error nonNumbers(String operator) {
+		String error = String.format("cannot apply '%s' to non-numbers", operator);
+		return new Error(error);
+	}
+
+	/**
+	 * Java class of the values a variable of the given type keyword may hold, or
+	 * null when the keyword is not a known type.
+	 */
+	public static Class<?> classOf(String type) {
+		switch (type) {
+			case Keyword.INT_TYPE:
+				return Integer.class;
+			case Keyword.FLOAT_TYPE:
+				return Double.class;
+			case Keyword.STRING_TYPE:
+				return String.class;
+			case Keyword.BOOL_TYPE:
+				return Boolean.class;
+			default:
+				return null;
+		}
+	}
+}
@@ -1,8 +1,8 @@
 package expression;
 
 public class And extends Expression {
-    Expression left;
-    Expression right;
+    public Expression left;
+    public Expression right;
 
     public And(Expression left, Expression right) {
         this.left = left;
@@ -302,7 +302,7 @@ public class AntlrToExpression extends ExprBaseVisitor<Expression> {
 		List<String> paramIds = new ArrayList<>();
 		List<String> paramTypes = new ArrayList<>();
 
-		for (int i = 0; i < ctx.getChildCount() / 2; i++) {
+		for (int i = 0; i < ctx.ID().size(); i++) {
 			String id = ctx.ID(i).getText();
 			String type = ctx.type(i).getText();
 
@@ -1,8 +1,10 @@
 package expression;
 
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 import antlr.ExprBaseVisitor;
+import antlr.ExprParser;
 import antlr.ExprParser.ProgramContext;
 
 public class AntlrToProgram extends ExprBaseVisitor<Program> {
@@ -16,7 +18,8 @@ public class AntlrToProgram extends ExprBaseVisitor<Program> {
 		for (int i = 0; i < ctx.getChildCount() - 1; i++) {
 			ParseTree child = ctx.getChild(i);
 
-			if (child.getText().equals(Keyword.SEMICOLON)) {
+			// getText() would build the text of the whole statement
+			if (child instanceof TerminalNode && ((TerminalNode) child).getSymbol().getType() == ExprParser.SEMICOLON) {
 				continue;
 			}
 
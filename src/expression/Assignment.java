@@ -3,6 +3,10 @@ package expression;
 public class Assignment extends Expression {
     public String id;
     public Expression expr;
+    // Frame slot, set by Resolver
+    public int slot = -1;
+    // Declared type of a function's variable, set by Resolver
+    public String type;
 
     public Assignment(String id, Expression expr) {
         this.id = id;
@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Block extends Expression {
-    List<Expression> statements;
+    public List<Expression> statements;
 
     public Block() {
         this.statements = new ArrayList<>();
@@ -0,0 +1,55 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often the condition of each conditional and while loop was true
+ * (the branch was taken) or false, so a profile shows which side is hot.
+ *
+ * Counting is turned on by the glyph.branch.trace system property, which also
+ * prints the counters to standard error after a run, busiest branch first.
+ */
+public class BranchProfile {
+	public boolean trace = Boolean.getBoolean("glyph.branch.trace");
+	// Taken and not taken counts of each conditional and while loop, in the
+	// order they were first reached
+	private Map<Expression, long[]> counters = new LinkedHashMap<>();
+
+	/** Returns the taken and not taken counts of a conditional or while loop. */
+	public long[] counters(Expression site) {
+		return counters.computeIfAbsent(site, key -> new long[2]);
+	}
+
+	public void count(Expression site, boolean taken) {
+		counters(site)[taken ? 0 : 1]++;
+	}
+
+	public void printCounters() {
+		if (!trace) {
+			return;
+		}
+
+		List<Map.Entry<Expression, long[]>> sites = new ArrayList<>(counters.entrySet());
+		sites.sort((a, b) -> Long.compare(total(b.getValue()), total(a.getValue())));
+
+		for (Map.Entry<Expression, long[]> site : sites) {
+			long[] counts = site.getValue();
+			System.err.println(String.format("branch: %s: %d taken, %d not taken", describe(site.getKey()),
+					counts[0], counts[1]));
+		}
+	}
+
+	private static long total(long[] counts) {
+		return counts[0] + counts[1];
+	}
+
+	private static String describe(Expression site) {
+		if (site instanceof WhileLoop) {
+			return "while " + ((WhileLoop) site).condition;
+		}
+		return "if " + ((Conditional) site).condition;
+	}
+}
@@ -1,9 +1,9 @@
 package expression;
 
 public class Comparison extends Expression {
-    Expression left;
-    Expression right;
-    String operator;
+    public Expression left;
+    public Expression right;
+    public String operator;
 
     public Comparison(Expression left, Expression right, String operator) {
         this.left = left;
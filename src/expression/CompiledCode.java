@@ -0,0 +1,40 @@
+package expression;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Code compiled for a hot function, with the functions it calls directly.
+ * The code is only valid while the interpreter still binds every callee's
+ * name to the function it was compiled against.
+ */
+public class CompiledCode {
+	private final MethodHandle handle;
+	private final Function[] callees;
+	private final int[] calleeSlots;
+
+	public CompiledCode(MethodHandle handle, Function[] callees, int[] calleeSlots) {
+		this.handle = handle;
+		this.callees = callees;
+		this.calleeSlots = calleeSlots;
+	}
+
+	/** Whether the callees are still the ones the code was compiled against. */
+	public boolean isValid(Function[] funcs) {
+		for (int i = 0; i < callees.length; i++) {
+			if (funcs[calleeSlots[i]] != callees[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Object invoke(Object[] args) {
+		try {
+			return (Object) handle.invokeExact(args);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package expression;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Folds arithmetic, comparisons and logic on literals into a single literal
+ * before a program runs, and replaces reads of variables that always hold the
+ * same literal with that literal.
+ *
+ * A variable is propagated when its frame declares it exactly once, in a
+ * statement of the frame's outermost block, with a literal of the declared
+ * type, and never assigns it or uses it as a loop variable. Only reads in
+ * later statements are replaced, so reading it before the declaration still
+ * fails. Operations that fail at run time, such as a division by zero or
+ * adding a bool, are left for the interpreter to report.
+ */
+public class ConstantFolder {
+	// Number of operations and variable reads replaced by literals
+	public int folded;
+	public int propagated;
+
+	// Literal values of the propagated variables of the frame being folded
+	private Map<String, Expression> constants;
+
+	public void fold(Program prog) {
+		foldFrame(prog.expressions, Set.of());
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				foldFrame(((Block) function.block).getStatements(), new HashSet<>(function.paramIds));
+			}
+		}
+	}
+
+	private void foldFrame(List<Expression> statements, Set<String> params) {
+		Map<String, Integer> writes = new HashMap<>();
+
+		for (Expression e : statements) {
+			countWrites(e, writes);
+		}
+
+		constants = new HashMap<>();
+
+		for (Expression e : statements) {
+			foldStatement(e);
+
+			if (e instanceof VariableDeclaration) {
+				VariableDeclaration decl = (VariableDeclaration) e;
+
+				if (writes.get(decl.id) == 1 && !params.contains(decl.id) && hasType(decl.expr, decl.type)) {
+					constants.put(decl.id, decl.expr);
+				}
+			}
+		}
+	}
+
+	// Declarations, assignments and loops that write each name of a frame
+	static void countWrites(Expression e, Map<String, Integer> writes) {
+		if (e instanceof VariableDeclaration) {
+			writes.merge(((VariableDeclaration) e).id, 1, Integer::sum);
+		} else if (e instanceof Assignment) {
+			// Never propagated, however many declarations there are
+			writes.merge(((Assignment) e).id, 2, Integer::sum);
+		} else if (e instanceof ForLoop) {
+			writes.merge(((ForLoop) e).id, 2, Integer::sum);
+			countWrites(((ForLoop) e).block, writes);
+		} else if (e instanceof WhileLoop) {
+			countWrites(((WhileLoop) e).block, writes);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			countWrites(cond.ifBlock, writes);
+			if (cond.elseBlock != null) {
+				countWrites(cond.elseBlock, writes);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				countWrites(statement, writes);
+			}
+		}
+	}
+
+	static boolean hasType(Expression e, String type) {
+		switch (type) {
+			case Keyword.INT_TYPE:
+				return e instanceof Int;
+			case Keyword.FLOAT_TYPE:
+				return e instanceof Real;
+			case Keyword.STRING_TYPE:
+				return e instanceof Str;
+			case Keyword.BOOL_TYPE:
+				return e instanceof Bool;
+			default:
+				return false;
+		}
+	}
+
+	private void foldStatement(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			decl.expr = foldExpression(decl.expr);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			assign.expr = foldExpression(assign.expr);
+		} else if (e instanceof Print) {
+			Print print = (Print) e;
+			print.expr = foldExpression(print.expr);
+		} else if (e instanceof Return) {
+			Return ret = (Return) e;
+			ret.expr = foldExpression(ret.expr);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			cond.condition = foldExpression(cond.condition);
+			foldStatement(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				foldStatement(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			whileLoop.condition = foldExpression(whileLoop.condition);
+			foldStatement(whileLoop.block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			forLoop.start = foldExpression(forLoop.start);
+			forLoop.end = foldExpression(forLoop.end);
+			forLoop.step = foldExpression(forLoop.step);
+			foldStatement(forLoop.block);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				foldStatement(statement);
+			}
+		}
+	}
+
+	private static boolean isLiteral(Expression e) {
+		return e instanceof Int || e instanceof Real || e instanceof Str || e instanceof Bool;
+	}
+
+	private static Expression copy(Expression literal) {
+		if (literal instanceof Int) {
+			return new Int(((Int) literal).value);
+		} else if (literal instanceof Real) {
+			return new Real(((Real) literal).value);
+		} else if (literal instanceof Str) {
+			return new Str(((Str) literal).value);
+		}
+		return new Bool(((Bool) literal).value);
+	}
+
+	// Text of a literal when concatenated, as the interpreter prints it
+	private static String text(Expression literal) {
+		if (literal instanceof Int) {
+			return Integer.toString(((Int) literal).value);
+		} else if (literal instanceof Real) {
+			return Double.toString(((Real) literal).value);
+		}
+		return ((Str) literal).value;
+	}
+
+	/** Returns the expression with its constant parts folded. */
+	private Expression foldExpression(Expression e) {
+		Expression result = e;
+
+		if (e instanceof Variable) {
+			Expression value = constants.get(((Variable) e).id);
+
+			if (value != null) {
+				propagated++;
+				return copy(value);
+			}
+		} else if (e instanceof Parens) {
+			Parens parens = (Parens) e;
+			parens.expr = foldExpression(parens.expr);
+			result = isLiteral(parens.expr) ? parens.expr : parens;
+		} else if (e instanceof UnaryMinus) {
+			UnaryMinus unary = (UnaryMinus) e;
+			unary.expr = foldExpression(unary.expr);
+
+			if (unary.expr instanceof Int) {
+				result = new Int(-((Int) unary.expr).value);
+			} else if (unary.expr instanceof Real) {
+				result = new Real(-((Real) unary.expr).value);
+			}
+		} else if (e instanceof Not) {
+			Not not = (Not) e;
+			not.expr = foldExpression(not.expr);
+
+			if (not.expr instanceof Bool) {
+				result = new Bool(!((Bool) not.expr).value);
+			}
+		} else if (e instanceof And) {
+			And and = (And) e;
+			and.left = foldExpression(and.left);
+			and.right = foldExpression(and.right);
+
+			if (and.left instanceof Bool && and.right instanceof Bool) {
+				result = new Bool(((Bool) and.left).value && ((Bool) and.right).value);
+			} else if (and.left instanceof Bool && !((Bool) and.left).value) {
+				// The right operand never runs
+				result = and.left;
+			}
+		} else if (e instanceof Or) {
+			Or or = (Or) e;
+			or.left = foldExpression(or.left);
+			or.right = foldExpression(or.right);
+
+			if (or.left instanceof Bool && or.right instanceof Bool) {
+				result = new Bool(((Bool) or.left).value || ((Bool) or.right).value);
+			} else if (or.left instanceof Bool && ((Bool) or.left).value) {
+				// The right operand never runs
+				result = or.left;
+			}
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			add.left = foldExpression(add.left);
+			add.right = foldExpression(add.right);
+			result = foldAddSub(add);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			mult.left = foldExpression(mult.left);
+			mult.right = foldExpression(mult.right);
+			result = foldMultDivMod(mult);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			comp.left = foldExpression(comp.left);
+			comp.right = foldExpression(comp.right);
+			result = foldComparison(comp);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			eq.left = foldExpression(eq.left);
+			eq.right = foldExpression(eq.right);
+			result = foldEquality(eq);
+		} else if (e instanceof FunctionCall) {
+			List<Expression> args = ((FunctionCall) e).args;
+
+			for (int i = 0; i < args.size(); i++) {
+				args.set(i, foldExpression(args.get(i)));
+			}
+		}
+
+		if (result != e) {
+			folded++;
+		}
+		return result;
+	}
+
+	private static Expression foldAddSub(AddSub add) {
+		Expression left = add.left;
+		Expression right = add.right;
+		boolean plus = add.operator.equals(Keyword.PLUS);
+
+		if (left instanceof Int && right instanceof Int) {
+			int l = ((Int) left).value;
+			int r = ((Int) right).value;
+			return new Int(plus ? l + r : l - r);
+		} else if (left instanceof Real && right instanceof Real) {
+			double l = ((Real) left).value;
+			double r = ((Real) right).value;
+			return new Real(plus ? l + r : l - r);
+		} else if (plus && (left instanceof Str && (right instanceof Str || right instanceof Int
+				|| right instanceof Real) || right instanceof Str && (left instanceof Int || left instanceof Real))) {
+			return new Str(text(left) + text(right));
+		}
+		return add;
+	}
+
+	private static Expression foldMultDivMod(MultDivMod mult) {
+		Expression left = mult.left;
+		Expression right = mult.right;
+
+		if (left instanceof Int && right instanceof Int) {
+			int l = ((Int) left).value;
+			int r = ((Int) right).value;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return new Int(l * r);
+				case Keyword.DIVIDE:
+					// Dividing by zero must still fail when it runs
+					return r == 0 ? mult : new Int(l / r);
+				case Keyword.MOD:
+					return r == 0 ? mult : new Int(l % r);
+			}
+		} else if (left instanceof Real && right instanceof Real) {
+			double l = ((Real) left).value;
+			double r = ((Real) right).value;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return new Real(l * r);
+				case Keyword.DIVIDE:
+					return r == 0 ? mult : new Real(l / r);
+				case Keyword.MOD:
+					return r == 0 ? mult : new Real(l % r);
+			}
+		}
+		return mult;
+	}
+
+	private static Expression foldComparison(Comparison comp) {
+		double l;
+		double r;
+
+		// Ints compare exactly as doubles
+		if (comp.left instanceof Int && comp.right instanceof Int) {
+			l = ((Int) comp.left).value;
+			r = ((Int) comp.right).value;
+		} else if (comp.left instanceof Real && comp.right instanceof Real) {
+			l = ((Real) comp.left).value;
+			r = ((Real) comp.right).value;
+		} else {
+			return comp;
+		}
+
+		switch (comp.operator) {
+			case Keyword.LT:
+				return new Bool(l < r);
+			case Keyword.GT:
+				return new Bool(l > r);
+			case Keyword.LTE:
+				return new Bool(l <= r);
+			case Keyword.GTE:
+				return new Bool(l >= r);
+		}
+		return comp;
+	}
+
+	private static Expression foldEquality(Equality eq) {
+		Expression left = eq.left;
+		Expression right = eq.right;
+		boolean equal;
+
+		// Values of different types are left to the engines, which disagree
+		if (left instanceof Int && right instanceof Int) {
+			equal = ((Int) left).value == ((Int) right).value;
+		} else if (left instanceof Real && right instanceof Real) {
+			equal = Double.compare(((Real) left).value, ((Real) right).value) == 0;
+		} else if (left instanceof Str && right instanceof Str) {
+			equal = ((Str) left).value.equals(((Str) right).value);
+		} else if (left instanceof Bool && right instanceof Bool) {
+			equal = ((Bool) left).value == ((Bool) right).value;
+		} else {
+			return eq;
+		}
+
+		return new Bool(eq.operator.equals(Keyword.EQ) ? equal : !equal);
+	}
+}
@@ -0,0 +1,296 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes code that can never run or whose result is never used, so the
+ * engines execute a smaller tree: the branch of a conditional whose condition
+ * is a literal and cannot be taken, while loops whose condition is
+ * {@code 👎}, statements after a return in a function, declarations of
+ * variables that are never read, and functions no running code calls.
+ *
+ * Nothing the interpreter would report is removed: only declarations of a
+ * literal of the declared type that is never redeclared or assigned are
+ * dropped, and a taken branch is only merged into the enclosing block when
+ * that does not change how its declarations and returns behave.
+ */
+public class DeadCodeEliminator {
+	// Number of nodes removed from the program
+	public int removed;
+
+	public void eliminate(Program prog) {
+		int before = count(prog.expressions);
+		List<Function> functions = new ArrayList<>();
+
+		prune(prog.expressions, false, true);
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				prune(((Block) function.block).getStatements(), true, false);
+				functions.add(function);
+			}
+		}
+
+		Map<String, Integer> globalWrites = new HashMap<>();
+		Set<String> globalReads = new HashSet<>();
+
+		for (Expression e : prog.expressions) {
+			if (!(e instanceof Function)) {
+				ConstantFolder.countWrites(e, globalWrites);
+				collect(e, null, globalReads);
+			}
+		}
+
+		removeUncalledFunctions(prog, functions, globalWrites.keySet());
+
+		Set<String> functionIds = new HashSet<>();
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				functionIds.add(((Function) e).id);
+			}
+		}
+
+		removeUnreadDeclarations(prog.expressions, globalWrites, globalReads, functionIds, false, false);
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				List<Expression> body = ((Block) ((Function) e).block).getStatements();
+				Map<String, Integer> writes = new HashMap<>();
+				Set<String> reads = new HashSet<>();
+
+				for (Expression statement : body) {
+					ConstantFolder.countWrites(statement, writes);
+					collect(statement, null, reads);
+				}
+				// Parameters are written by every call
+				for (String id : ((Function) e).paramIds) {
+					writes.merge(id, 1, Integer::sum);
+				}
+
+				removeUnreadDeclarations(body, writes, reads, Set.of(), true, false);
+			}
+		}
+
+		removed = before - count(prog.expressions);
+	}
+
+	/**
+	 * Drops branches that cannot be taken and statements after a return, in a
+	 * list of statements and every block nested in it.
+	 */
+	private void prune(List<Expression> statements, boolean inFunction, boolean topLevel) {
+		List<Expression> kept = new ArrayList<>();
+
+		for (Expression e : statements) {
+			if (e instanceof Conditional) {
+				Conditional cond = (Conditional) e;
+				prune(((Block) cond.ifBlock).getStatements(), inFunction, false);
+				if (cond.elseBlock != null) {
+					prune(((Block) cond.elseBlock).getStatements(), inFunction, false);
+				}
+
+				if (cond.condition instanceof Bool) {
+					Block taken = (Block) (((Bool) cond.condition).value ? cond.ifBlock : cond.elseBlock);
+
+					if (taken == null) {
+						continue;
+					} else if (canMerge(taken, inFunction, topLevel)) {
+						kept.addAll(taken.getStatements());
+					} else {
+						kept.add(new Conditional(new Bool(true), taken, null));
+					}
+					continue;
+				}
+			} else if (e instanceof WhileLoop) {
+				WhileLoop whileLoop = (WhileLoop) e;
+
+				if (whileLoop.condition instanceof Bool && !((Bool) whileLoop.condition).value) {
+					continue;
+				}
+				prune(((Block) whileLoop.block).getStatements(), inFunction, false);
+			} else if (e instanceof ForLoop) {
+				prune(((Block) ((ForLoop) e).block).getStatements(), inFunction, false);
+			}
+
+			kept.add(e);
+
+			// Outside of functions a return statement has no effect
+			if (inFunction && e instanceof Return) {
+				break;
+			}
+		}
+
+		statements.clear();
+		statements.addAll(kept);
+	}
+
+	// A return inside a conditional only ends the function with a non-null
+	// result, and top-level declarations and loops are checked for
+	// redeclaration before the program runs
+	private static boolean canMerge(Block block, boolean inFunction, boolean topLevel) {
+		for (Expression e : block.getStatements()) {
+			if (inFunction && e instanceof Return
+					|| topLevel && (e instanceof VariableDeclaration || e instanceof ForLoop)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Removes the functions that no code reachable from the top level calls. */
+	private void removeUncalledFunctions(Program prog, List<Function> functions, Set<String> globals) {
+		Set<String> called = new HashSet<>();
+
+		for (Expression e : prog.expressions) {
+			if (!(e instanceof Function)) {
+				collect(e, called, null);
+			}
+		}
+
+		int size = -1;
+		while (size != called.size()) {
+			size = called.size();
+
+			for (Function function : functions) {
+				if (called.contains(function.id)) {
+					collect(function.block, called, null);
+				}
+			}
+		}
+
+		// Declaring a function over a global variable fails, so keep those
+		prog.expressions.removeIf(e -> e instanceof Function && !called.contains(((Function) e).id)
+				&& !globals.contains(((Function) e).id));
+	}
+
+	/**
+	 * Removes declarations of variables nobody reads. Inside functions a
+	 * declaration in a loop fails on its second run, so those are kept.
+	 */
+	private void removeUnreadDeclarations(List<Expression> statements, Map<String, Integer> writes,
+			Set<String> reads, Set<String> functionIds, boolean inFunction, boolean inLoop) {
+		statements.removeIf(e -> {
+			if (!(e instanceof VariableDeclaration) || inFunction && inLoop) {
+				return false;
+			}
+
+			VariableDeclaration decl = (VariableDeclaration) e;
+			return writes.get(decl.id) == 1 && !reads.contains(decl.id) && !functionIds.contains(decl.id)
+					&& ConstantFolder.hasType(decl.expr, decl.type);
+		});
+
+		for (Expression e : statements) {
+			if (e instanceof Conditional) {
+				Conditional cond = (Conditional) e;
+				removeUnreadDeclarations(((Block) cond.ifBlock).getStatements(), writes, reads, functionIds,
+						inFunction, inLoop);
+				if (cond.elseBlock != null) {
+					removeUnreadDeclarations(((Block) cond.elseBlock).getStatements(), writes, reads,
+							functionIds, inFunction, inLoop);
+				}
+			} else if (e instanceof WhileLoop) {
+				removeUnreadDeclarations(((Block) ((WhileLoop) e).block).getStatements(), writes, reads,
+						functionIds, inFunction, true);
+			} else if (e instanceof ForLoop) {
+				removeUnreadDeclarations(((Block) ((ForLoop) e).block).getStatements(), writes, reads,
+						functionIds, inFunction, true);
+			}
+		}
+	}
+
+	/**
+	 * Adds the functions called and the variables read by a statement to the
+	 * given sets, either of which may be null.
+	 */
+	private static void collect(Expression e, Set<String> calls, Set<String> reads) {
+		for (Expression child : children(e)) {
+			collect(child, calls, reads);
+		}
+
+		if (e instanceof FunctionCall && calls != null) {
+			calls.add(((FunctionCall) e).id);
+		} else if (e instanceof Variable && reads != null) {
+			reads.add(((Variable) e).id);
+		}
+	}
+
+	private static List<Expression> children(Expression e) {
+		List<Expression> children = new ArrayList<>();
+
+		if (e instanceof VariableDeclaration) {
+			children.add(((VariableDeclaration) e).expr);
+		} else if (e instanceof Assignment) {
+			children.add(((Assignment) e).expr);
+		} else if (e instanceof Print) {
+			children.add(((Print) e).expr);
+		} else if (e instanceof Return) {
+			children.add(((Return) e).expr);
+		} else if (e instanceof Parens) {
+			children.add(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			children.add(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			children.add(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			children.add(((AddSub) e).left);
+			children.add(((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			children.add(((MultDivMod) e).left);
+			children.add(((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			children.add(((Comparison) e).left);
+			children.add(((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			children.add(((Equality) e).left);
+			children.add(((Equality) e).right);
+		} else if (e instanceof And) {
+			children.add(((And) e).left);
+			children.add(((And) e).right);
+		} else if (e instanceof Or) {
+			children.add(((Or) e).left);
+			children.add(((Or) e).right);
+		} else if (e instanceof FunctionCall) {
+			children.addAll(((FunctionCall) e).args);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			children.add(cond.condition);
+			children.add(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				children.add(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			children.add(((WhileLoop) e).condition);
+			children.add(((WhileLoop) e).block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			children.add(forLoop.start);
+			children.add(forLoop.end);
+			children.add(forLoop.step);
+			children.add(forLoop.block);
+		} else if (e instanceof Block) {
+			children.addAll(((Block) e).getStatements());
+		} else if (e instanceof Function) {
+			children.add(((Function) e).block);
+		}
+		return children;
+	}
+
+	private static int count(List<Expression> statements) {
+		int nodes = 0;
+
+		for (Expression e : statements) {
+			nodes += count(e);
+		}
+		return nodes;
+	}
+
+	private static int count(Expression e) {
+		return 1 + count(children(e));
+	}
+}
@@ -0,0 +1,119 @@
+package expression;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the functions whose calls have no effect other than their result, so
+ * a call can be answered from an earlier one with the same arguments.
+ *
+ * Functions only see their own parameters and locals, so the only effects a
+ * body can have are printing and calling a function that has one. A function
+ * is pure when every declaration of its name never prints and only calls pure
+ * functions declared exactly once, since a callee redeclared later could
+ * return something else for the same arguments. Recursion alone does not make
+ * a function impure.
+ */
+public class EffectAnalyzer {
+	/** Returns the names of the program's pure functions. */
+	public static Set<String> pureFunctions(List<Expression> list) {
+		Map<String, Integer> declarations = new HashMap<>();
+
+		for (Expression e : list) {
+			if (e instanceof Function) {
+				declarations.merge(((Function) e).id, 1, Integer::sum);
+			}
+		}
+
+		// Every function starts out pure until one of its effects is found
+		Set<String> pure = new HashSet<>(declarations.keySet());
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+
+			for (Expression e : list) {
+				if (e instanceof Function) {
+					Function function = (Function) e;
+
+					if (pure.contains(function.id) && hasEffects(function.block, pure, declarations)) {
+						pure.remove(function.id);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		return pure;
+	}
+
+	private static boolean hasEffects(Expression e, Set<String> pure, Map<String, Integer> declarations) {
+		if (e instanceof Print) {
+			return true;
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+
+			if (!pure.contains(call.id) || declarations.get(call.id) != 1) {
+				return true;
+			}
+
+			for (Expression arg : call.args) {
+				if (hasEffects(arg, pure, declarations)) {
+					return true;
+				}
+			}
+			return false;
+		} else if (e instanceof VariableDeclaration) {
+			return hasEffects(((VariableDeclaration) e).expr, pure, declarations);
+		} else if (e instanceof Assignment) {
+			return hasEffects(((Assignment) e).expr, pure, declarations);
+		} else if (e instanceof Return) {
+			return hasEffects(((Return) e).expr, pure, declarations);
+		} else if (e instanceof Parens) {
+			return hasEffects(((Parens) e).expr, pure, declarations);
+		} else if (e instanceof UnaryMinus) {
+			return hasEffects(((UnaryMinus) e).expr, pure, declarations);
+		} else if (e instanceof Not) {
+			return hasEffects(((Not) e).expr, pure, declarations);
+		} else if (e instanceof AddSub) {
+			return hasEffects(((AddSub) e).left, pure, declarations)
+					|| hasEffects(((AddSub) e).right, pure, declarations);
+		} else if (e instanceof MultDivMod) {
+			return hasEffects(((MultDivMod) e).left, pure, declarations)
+					|| hasEffects(((MultDivMod) e).right, pure, declarations);
+		} else if (e instanceof Comparison) {
+			return hasEffects(((Comparison) e).left, pure, declarations)
+					|| hasEffects(((Comparison) e).right, pure, declarations);
+		} else if (e instanceof Equality) {
+			return hasEffects(((Equality) e).left, pure, declarations)
+					|| hasEffects(((Equality) e).right, pure, declarations);
+		} else if (e instanceof And) {
+			return hasEffects(((And) e).left, pure, declarations)
+					|| hasEffects(((And) e).right, pure, declarations);
+		} else if (e instanceof Or) {
+			return hasEffects(((Or) e).left, pure, declarations)
+					|| hasEffects(((Or) e).right, pure, declarations);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return hasEffects(cond.condition, pure, declarations) || hasEffects(cond.ifBlock, pure, declarations)
+					|| cond.elseBlock != null && hasEffects(cond.elseBlock, pure, declarations);
+		} else if (e instanceof WhileLoop) {
+			return hasEffects(((WhileLoop) e).condition, pure, declarations)
+					|| hasEffects(((WhileLoop) e).block, pure, declarations);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			return hasEffects(forLoop.start, pure, declarations) || hasEffects(forLoop.end, pure, declarations)
+					|| hasEffects(forLoop.step, pure, declarations) || hasEffects(forLoop.block, pure, declarations);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (hasEffects(statement, pure, declarations)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -1,5 +1,6 @@
 package expression;
 
 public abstract class Expression {
-
+	// Type of the value, set by TypeChecker; null for statements
+	public Type staticType;
 }
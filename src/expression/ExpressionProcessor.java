@@ -1,15 +1,38 @@
 package expression;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import expression.Frame.Tag;
 
 public class ExpressionProcessor {
 	List<Expression> list;
-	public Map<String, Object> values;
-	public Map<String, String> types;
-	public Map<String, Function> funcs;
+	// Global variables and their declared types, indexed by Resolver slots
+	public Frame values;
+	public String[] types;
+	public Map<String, Integer> globalSlots;
+	// Declared functions, indexed by Resolver slots
+	public Function[] funcs;
+	public Map<String, Integer> funcSlots;
+	public FrameStack frames;
+	// Number of function calls made so far
+	public long calls;
+	// When hot functions are handed to the JVM bytecode compiler
+	public TierPolicy tiers = new TierPolicy();
+	// Caches results of calls to pure functions, one cache per declared
+	// function slot
+	public Memoizer memo = new Memoizer();
+	// Counts the outcomes of conditions when profiling is on
+	public BranchProfile branches = new BranchProfile();
+	private Set<String> pureFunctions;
+	private ResultCache[] results;
+
+	// Bits of the last int, float or bool returned by eval
+	private long bits;
+	// Returned by a function body whose parameters a self tail call rebound,
+	// to run the body again
+	private static final Object TAIL_CALL = new Object();
 
 	public Map<String, String> textTypes = Map.of(
 			Keyword.INT_TYPE, "int",
@@ -19,67 +42,77 @@ public class ExpressionProcessor {
 
 	public ExpressionProcessor(List<Expression> list) {
 		this.list = list;
-		values = new HashMap<>();
-		types = new HashMap<>();
-		funcs = new HashMap<>();
+		Resolver resolver = new Resolver();
+		globalSlots = resolver.resolve(list);
+		new TypeChecker().check(list);
+		values = new Frame(globalSlots.size());
+		types = new String[globalSlots.size()];
+		funcSlots = resolver.getFunctionSlots();
+		funcs = new Function[funcSlots.size()];
+		frames = new FrameStack();
+		pureFunctions = EffectAnalyzer.pureFunctions(list);
+		results = new ResultCache[funcSlots.size()];
 	}
 
 	private void addDeclaration(Expression e) {
 		VariableDeclaration decl = (VariableDeclaration) e;
 
-		if (values.containsKey(decl.id)) {
+		if (values.refs[decl.slot] != null) {
 			String error = String.format("variable '%s' already declared", decl.id);
 			throw new Error(error);
 		}
 
-		Object result = getEvalResult(decl.expr, this.values);
+		Object result = eval(decl.expr, this.values);
+		long resultBits = bits;
 
-		if (!checkTypes(result, decl.type)) {
+		if (!isTyped(decl.expr) && !checkTypes(result, decl.type)) {
 			String textType = textTypes.get(decl.type);
-			String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", result, decl.id, textType);
+			String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", box(result, resultBits),
+					decl.id, textType);
 			throw new Error(error);
 		}
 
-		if (result instanceof Double) {
-			boolean isInt = ((double) result) % 1 == 0;
+		if (result == Tag.FLOAT) {
+			boolean isInt = toDouble(resultBits) % 1 == 0;
 
 			if (decl.type.equals(Keyword.INT_TYPE) && !isInt) {
 				throw new IllegalArgumentException("cannot assign float to an int variable");
 			}
 		}
 
-		values.put(decl.id, result);
-		types.put(decl.id, decl.type);
+		values.set(decl.slot, result, resultBits);
+		types[decl.slot] = decl.type;
 	}
 
 	private void addAssignment(Expression e) {
 		Assignment assign = (Assignment) e;
 
-		if (!values.containsKey(assign.id)) {
+		if (values.refs[assign.slot] == null) {
 			String error = String.format("variable '%s' not declared", assign.id);
 			throw new Error(error);
 		}
 
-		Object result = getEvalResult(assign.expr, this.values);
-		String type = types.get(assign.id);
+		Object result = eval(assign.expr, this.values);
+		long resultBits = bits;
+		String type = types[assign.slot];
 
-		if (!checkTypes(result, type)) {
+		if (!isTyped(assign.expr) && !checkTypes(result, type)) {
 			String textType = textTypes.get(type);
-			String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", result, assign.id,
-					textType);
+			String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", box(result, resultBits),
+					assign.id, textType);
 			throw new Error(error);
 		}
 
-		if (result instanceof Double) {
-			boolean isInt = ((double) result) % 1 == 0;
+		if (result == Tag.FLOAT) {
+			boolean isInt = toDouble(resultBits) % 1 == 0;
 
-			if (types.get(assign.id).equals(Keyword.INT_TYPE) && !isInt) {
+			if (type.equals(Keyword.INT_TYPE) && !isInt) {
 				throw new IllegalArgumentException(String.format(
-						"cannot assign float '%s' to int variable '%s'", result, assign.id));
+						"cannot assign float '%s' to int variable '%s'", box(result, resultBits), assign.id));
 			}
 		}
 
-		values.put(assign.id, result);
+		values.set(assign.slot, result, resultBits);
 	}
 
 	public void proccessExpressions() {
@@ -93,9 +126,9 @@ public class ExpressionProcessor {
 				processConditional((Conditional) e, this.values);
 			} else if (e instanceof Print) {
 				Expression expr = ((Print) e).expr;
-				Object result = getEvalResult(expr, this.values);
+				Object result = eval(expr, this.values);
 
-				System.out.println(result.toString());
+				System.out.println(toString(result, bits));
 			} else if (e instanceof ForLoop) {
 				processForLoop((ForLoop) e, this.values);
 			} else if (e instanceof WhileLoop) {
@@ -106,242 +139,374 @@ public class ExpressionProcessor {
 		}
 	}
 
-	private Object getEvalResult(Expression e, Map<String, Object> values) {
+	private static double toDouble(long bits) {
+		return Double.longBitsToDouble(bits);
+	}
+
+	private static long toBits(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+
+	/** Boxes a value returned by eval, for code that needs an Object. */
+	private static Object box(Object value, long bits) {
+		if (value == Tag.INT) {
+			return (int) bits;
+		} else if (value == Tag.FLOAT) {
+			return toDouble(bits);
+		} else if (value == Tag.BOOL) {
+			return bits != 0;
+		}
+		return value;
+	}
+
+	/** Unboxes a value into the form eval returns. */
+	private Object unbox(Object value) {
+		if (value instanceof Integer) {
+			bits = (int) value;
+			return Tag.INT;
+		} else if (value instanceof Double) {
+			bits = toBits((double) value);
+			return Tag.FLOAT;
+		} else if (value instanceof Boolean) {
+			bits = (boolean) value ? 1 : 0;
+			return Tag.BOOL;
+		}
+		return value;
+	}
+
+	private static String toString(Object value, long bits) {
+		if (value == Tag.INT) {
+			return Integer.toString((int) bits);
+		} else if (value == Tag.FLOAT) {
+			return Double.toString(toDouble(bits));
+		} else if (value == Tag.BOOL) {
+			return Boolean.toString(bits != 0);
+		}
+		return value.toString();
+	}
+
+	private Object getEvalResult(Expression e, Frame values) {
+		return box(eval(e, values), bits);
+	}
+
+	// Logical operators branch on their operands directly, so '&&' and '||'
+	// skip the right one once the left one decides the result
+	private boolean evalCondition(Expression e, Frame values) {
+		if (e instanceof Parens) {
+			return evalCondition(((Parens) e).expr, values);
+		} else if (e instanceof And) {
+			And and = (And) e;
+			return evalOperand(and.left, values, "&&") && evalOperand(and.right, values, "&&");
+		} else if (e instanceof Or) {
+			Or or = (Or) e;
+			return evalOperand(or.left, values, "||") || evalOperand(or.right, values, "||");
+		} else if (e instanceof Not) {
+			return !evalOperand(((Not) e).expr, values, "!");
+		}
+
+		Object result = eval(e, values);
+		return result == Tag.BOOL ? bits != 0 : (boolean) box(result, bits);
+	}
+
+	private boolean evalOperand(Expression e, Frame values, String operator) {
+		while (e instanceof Parens) {
+			e = ((Parens) e).expr;
+		}
+
+		if (e instanceof And || e instanceof Or || e instanceof Not) {
+			return evalCondition(e, values);
+		} else if (eval(e, values) != Tag.BOOL) {
+			String error = String.format("cannot apply '%s' to non-boolean", operator);
+			throw new Error(error);
+		}
+		return bits != 0;
+	}
+
+	private int evalInt(Expression e, Frame values) {
+		Object result = eval(e, values);
+		return result == Tag.INT ? (int) bits : (int) box(result, bits);
+	}
+
+	/**
+	 * Evaluates an expression. An int, float or bool result is returned as its
+	 * {@link Tag} with the value in {@link #bits}, so it is never boxed.
+	 */
+	private Object eval(Expression e, Frame values) {
 		Object result = null;
 
 		if (e instanceof Int) {
 			Int num = (Int) e;
-			result = num.value;
+			bits = num.value;
+			result = Tag.INT;
 		} else if (e instanceof Real) {
 			Real num = (Real) e;
-			result = num.value;
+			bits = toBits(num.value);
+			result = Tag.FLOAT;
 		} else if (e instanceof Str) {
 			Str str = (Str) e;
 			result = str.value;
 		} else if (e instanceof Variable) {
 			Variable var = (Variable) e;
+			result = values.refs[var.slot];
 
-			if (!values.containsKey(var.id)) {
+			if (result == null) {
 				String error = String.format("variable '%s' not declared", var.id);
 				throw new Error(error);
 			}
 
-			result = values.get(var.id);
+			bits = values.prims[var.slot];
 		} else if (e instanceof Parens) {
 			Parens parens = (Parens) e;
-			result = getEvalResult(parens.expr, values);
+			result = eval(parens.expr, values);
 		} else if (e instanceof AddSub) {
-			AddSub add = (AddSub) e;
-			Object left = getEvalResult(add.left, values);
-			Object right = getEvalResult(add.right, values);
-			String operator = add.operator;
-
-			if (left instanceof Double && right instanceof Double) {
-				switch (operator) {
-					case Keyword.PLUS:
-						result = (double) left + (double) right;
-						break;
-					case Keyword.MINUS:
-						result = (double) left - (double) right;
-						break;
-				}
-			} else if (left instanceof Integer && right instanceof Integer) {
-				switch (operator) {
-					case Keyword.PLUS:
-						result = (int) left + (int) right;
-						break;
-					case Keyword.MINUS:
-						result = (int) left - (int) right;
-						break;
-				}
-			} else if (operator.equals(Keyword.PLUS) && ((left instanceof String && right instanceof String) ||
-					(left instanceof Double && right instanceof String) ||
-					(left instanceof String && right instanceof Double))) {
-				result = left.toString() + right.toString();
-			} else if (operator.equals(Keyword.PLUS) && ((left instanceof String && right instanceof String) ||
-					(left instanceof Integer && right instanceof String) ||
-					(left instanceof String && right instanceof Integer))) {
-				result = left.toString() + right.toString();
-			} else {
-				String error = String.format("cannot apply '%s' to non-numbers", operator);
-				throw new Error(error);
-			}
-
+			result = evalAddSub((AddSub) e, values);
 		} else if (e instanceof MultDivMod) {
-			MultDivMod mult = (MultDivMod) e;
-			Object left = getEvalResult(mult.left, values);
-			Object right = getEvalResult(mult.right, values);
-			String operator = mult.operator;
-
-			if (left instanceof Double && right instanceof Double) {
-				switch (operator) {
-					case Keyword.TIMES:
-						result = (double) left * (double) right;
-						break;
-					case Keyword.DIVIDE:
-						if ((double) right == 0) {
-							throw new IllegalArgumentException("division by zero");
-						}
-						result = (double) left / (double) right;
-						break;
-					case Keyword.MOD:
-						result = (double) left % (double) right;
-						break;
-				}
-			} else if (left instanceof Integer && right instanceof Integer) {
-				switch (operator) {
-					case Keyword.TIMES:
-						result = (int) left * (int) right;
-						break;
-					case Keyword.DIVIDE:
-						if ((int) right == 0) {
-							throw new IllegalArgumentException("division by zero");
-						}
-						result = (int) left / (int) right;
-						break;
-					case Keyword.MOD:
-						result = (int) left % (int) right;
-						break;
-				}
-			} else {
-				String error = String.format("cannot apply '%s' to non-numbers", operator);
-				throw new Error(error);
-			}
-			;
-
+			result = evalMultDivMod((MultDivMod) e, values);
 		} else if (e instanceof UnaryMinus) {
 			UnaryMinus unary = (UnaryMinus) e;
-			Object expr = getEvalResult(unary.expr, values);
+			Object expr = eval(unary.expr, values);
 
-			if (expr instanceof Double) {
-				result = -((double) expr);
-			} else if (expr instanceof Integer) {
-				result = -((int) expr);
+			if (expr == Tag.FLOAT) {
+				bits = toBits(-toDouble(bits));
+			} else if (expr == Tag.INT) {
+				bits = -(int) bits;
 			} else {
 				String error = String.format("cannot apply '-' to non-number");
 				throw new Error(error);
 			}
+			result = expr;
 		} else if (e instanceof Bool) {
 			Bool bool = (Bool) e;
-			result = bool.value;
+			bits = bool.value ? 1 : 0;
+			result = Tag.BOOL;
 
-		} else if (e instanceof And) {
-			And and = (And) e;
-			Object left = getEvalResult(and.left, values);
-			Object right = getEvalResult(and.right, values);
+		} else if (e instanceof And || e instanceof Or || e instanceof Not) {
+			bits = evalCondition(e, values) ? 1 : 0;
+			result = Tag.BOOL;
+		} else if (e instanceof Equality) {
+			result = evalEquality((Equality) e, values);
+		} else if (e instanceof Comparison) {
+			result = evalComparison((Comparison) e, values);
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+			result = unbox(processFunctionCall(call, values));
+		}
 
-			if (left instanceof Boolean && right instanceof Boolean) {
-				result = (boolean) left && (boolean) right;
-			} else {
-				String error = String.format("cannot apply '&&' to non-boolean");
-				throw new Error(error);
+		return result;
+	}
+
+	private Object evalAddSub(AddSub add, Frame values) {
+		Object result;
+		Object left = eval(add.left, values);
+		long leftBits = bits;
+		Object right = eval(add.right, values);
+		long rightBits = bits;
+		String operator = add.operator;
+		Type type = add.staticType;
+
+		// Statically typed operands skip the tag checks
+		if (type == Type.FLOAT || left == Tag.FLOAT && right == Tag.FLOAT) {
+			switch (operator) {
+				case Keyword.PLUS:
+					bits = toBits(toDouble(leftBits) + toDouble(rightBits));
+					break;
+				case Keyword.MINUS:
+					bits = toBits(toDouble(leftBits) - toDouble(rightBits));
+					break;
 			}
-		} else if (e instanceof Or) {
-			Or or = (Or) e;
-			Object left = getEvalResult(or.left, values);
-			Object right = getEvalResult(or.right, values);
+			result = Tag.FLOAT;
+		} else if (type == Type.INT || left == Tag.INT && right == Tag.INT) {
+			switch (operator) {
+				case Keyword.PLUS:
+					bits = (int) leftBits + (int) rightBits;
+					break;
+				case Keyword.MINUS:
+					bits = (int) leftBits - (int) rightBits;
+					break;
+			}
+			result = Tag.INT;
+		} else if (type == Type.STRING || operator.equals(Keyword.PLUS) && ((left instanceof String && (right instanceof String
+				|| right == Tag.FLOAT || right == Tag.INT)) || (right instanceof String
+						&& (left == Tag.FLOAT || left == Tag.INT)))) {
+			result = toString(left, leftBits) + toString(right, rightBits);
+		} else {
+			String error = String.format("cannot apply '%s' to non-numbers", operator);
+			throw new Error(error);
+		}
 
-			if (left instanceof Boolean && right instanceof Boolean) {
-				result = (boolean) left || (boolean) right;
-			} else {
-				String error = String.format("cannot apply '||' to non-boolean");
-				throw new Error(error);
+		return result;
+	}
+
+	private Object evalMultDivMod(MultDivMod mult, Frame values) {
+		Object result;
+		Object left = eval(mult.left, values);
+		long leftBits = bits;
+		Object right = eval(mult.right, values);
+		long rightBits = bits;
+		String operator = mult.operator;
+		Type type = mult.staticType;
+
+		if (type == Type.FLOAT || left == Tag.FLOAT && right == Tag.FLOAT) {
+			double l = toDouble(leftBits);
+			double r = toDouble(rightBits);
+
+			switch (operator) {
+				case Keyword.TIMES:
+					bits = toBits(l * r);
+					break;
+				case Keyword.DIVIDE:
+					if (r == 0) {
+						throw new IllegalArgumentException("division by zero");
+					}
+					bits = toBits(l / r);
+					break;
+				case Keyword.MOD:
+					bits = toBits(l % r);
+					break;
 			}
-		} else if (e instanceof Not) {
-			Not not = (Not) e;
-			Object expr = getEvalResult(not.expr, values);
+			result = Tag.FLOAT;
+		} else if (type == Type.INT || left == Tag.INT && right == Tag.INT) {
+			int l = (int) leftBits;
+			int r = (int) rightBits;
 
-			if (expr instanceof Boolean) {
-				result = !((boolean) expr);
-			} else {
-				String error = String.format("cannot apply '!' to non-boolean");
-				throw new Error(error);
+			switch (operator) {
+				case Keyword.TIMES:
+					bits = l * r;
+					break;
+				case Keyword.DIVIDE:
+					if (r == 0) {
+						throw new IllegalArgumentException("division by zero");
+					}
+					bits = l / r;
+					break;
+				case Keyword.MOD:
+					bits = l % r;
+					break;
 			}
-		} else if (e instanceof Equality) {
-			Equality eq = (Equality) e;
-			Object left = getEvalResult(eq.left, values);
-			Object right = getEvalResult(eq.right, values);
-			String operator = eq.operator;
+			result = Tag.INT;
+		} else {
+			String error = String.format("cannot apply '%s' to non-numbers", operator);
+			throw new Error(error);
+		}
+
+		return result;
+	}
+
+	private Object evalEquality(Equality eq, Frame values) {
+		Object result;
+		Object left = eval(eq.left, values);
+		long leftBits = bits;
+		Object right = eval(eq.right, values);
+		long rightBits = bits;
+		boolean equal;
+
+		if (left instanceof Tag && left == right) {
+			// Double.compare agrees with Double.equals on NaN and -0.0
+			equal = left == Tag.FLOAT ? Double.compare(toDouble(leftBits), toDouble(rightBits)) == 0
+					: leftBits == rightBits;
+		} else {
+			equal = box(left, leftBits).equals(box(right, rightBits));
+		}
+
+		switch (eq.operator) {
+			case Keyword.EQ:
+				bits = equal ? 1 : 0;
+				break;
+			case Keyword.NEQ:
+				bits = equal ? 0 : 1;
+				break;
+		}
+		result = Tag.BOOL;
+
+		return result;
+	}
+
+	private Object evalComparison(Comparison comp, Frame values) {
+		Object result;
+		Object left = eval(comp.left, values);
+		long leftBits = bits;
+		Object right = eval(comp.right, values);
+		long rightBits = bits;
+		String operator = comp.operator;
+		boolean compared = false;
+		// Both operands typed means both are numbers of the same type
+		Type type = comp.left.staticType == comp.right.staticType ? comp.left.staticType : Type.ANY;
+
+		if (type == Type.FLOAT || left == Tag.FLOAT && right == Tag.FLOAT) {
+			double l = toDouble(leftBits);
+			double r = toDouble(rightBits);
 
 			switch (operator) {
-				case Keyword.EQ:
-					result = left.equals(right);
+				case Keyword.LT:
+					compared = l < r;
+					break;
+				case Keyword.GT:
+					compared = l > r;
+					break;
+				case Keyword.LTE:
+					compared = l <= r;
 					break;
-				case Keyword.NEQ:
-					result = !left.equals(right);
+				case Keyword.GTE:
+					compared = l >= r;
 					break;
 			}
-		} else if (e instanceof Comparison) {
-			Comparison comp = (Comparison) e;
-			Object left = getEvalResult(comp.left, values);
-			Object right = getEvalResult(comp.right, values);
-			String operator = comp.operator;
-
-			if (left instanceof Double && right instanceof Double) {
-				switch (operator) {
-					case Keyword.LT:
-						result = (double) left < (double) right;
-						break;
-					case Keyword.GT:
-						result = (double) left > (double) right;
-						break;
-					case Keyword.LTE:
-						result = (double) left <= (double) right;
-						break;
-					case Keyword.GTE:
-						result = (double) left >= (double) right;
-						break;
-				}
-			} else if (left instanceof Integer && right instanceof Integer) {
-				switch (operator) {
-					case Keyword.LT:
-						result = (int) left < (int) right;
-						break;
-					case Keyword.GT:
-						result = (int) left > (int) right;
-						break;
-					case Keyword.LTE:
-						result = (int) left <= (int) right;
-						break;
-					case Keyword.GTE:
-						result = (int) left >= (int) right;
-						break;
-				}
-			} else {
-				String error = String.format("cannot apply '%s' to non-numbers", operator);
-				throw new Error(error);
+		} else if (type == Type.INT || left == Tag.INT && right == Tag.INT) {
+			int l = (int) leftBits;
+			int r = (int) rightBits;
+
+			switch (operator) {
+				case Keyword.LT:
+					compared = l < r;
+					break;
+				case Keyword.GT:
+					compared = l > r;
+					break;
+				case Keyword.LTE:
+					compared = l <= r;
+					break;
+				case Keyword.GTE:
+					compared = l >= r;
+					break;
 			}
-		} else if (e instanceof FunctionCall) {
-			FunctionCall call = (FunctionCall) e;
-			result = processFunctionCall(call);
+		} else {
+			String error = String.format("cannot apply '%s' to non-numbers", operator);
+			throw new Error(error);
 		}
 
+		bits = compared ? 1 : 0;
+		result = Tag.BOOL;
+
 		return result;
 	}
 
+	/** Whether TypeChecker proved the value of an expression has the type it needs. */
+	private static boolean isTyped(Expression e) {
+		return e.staticType != null && e.staticType != Type.ANY;
+	}
+
 	private boolean checkTypes(Object obj, String type) {
-		if (obj instanceof Double && type.equals(Keyword.FLOAT_TYPE)) {
+		if (obj == Tag.FLOAT && type.equals(Keyword.FLOAT_TYPE)) {
 			return true;
-		} else if (obj instanceof Integer && type.equals(Keyword.INT_TYPE)) {
+		} else if (obj == Tag.INT && type.equals(Keyword.INT_TYPE)) {
 			return true;
 		} else if (obj instanceof String && type.equals(Keyword.STRING_TYPE)) {
 			return true;
-		} else if (obj instanceof Boolean && type.equals(Keyword.BOOL_TYPE)) {
+		} else if (obj == Tag.BOOL && type.equals(Keyword.BOOL_TYPE)) {
 			return true;
 		}
 
 		return false;
 	}
 
-	private Object processFunctionCall(FunctionCall call) {
+	private Object processFunctionCall(FunctionCall call, Frame values) {
 		String id = call.id;
 
-		if (!funcs.containsKey(id)) {
+		if (call.slot < 0 || funcs[call.slot] == null) {
 			String error = String.format("Error: function '%s' not declared", id);
 			throw new Error(error);
 		}
 
-		Function function = (Function) funcs.get(id);
+		Function function = funcs[call.slot];
 		List<Expression> args = call.args;
 
 		if (args.size() != function.paramIds.size()) {
@@ -349,41 +514,126 @@ public class ExpressionProcessor {
 			throw new Error(error);
 		}
 
+		// Every call gets its own frame, so recursive calls keep their locals
+		Frame frame = frames.push(function.frameSize);
+
+		try {
+			bindArguments(args, function, values, frame);
+
+			calls++;
+			ResultCache cache = results[call.slot];
+			Object[] key = null;
+
+			if (cache != null && cache.active) {
+				key = new Object[args.size()];
+
+				for (int i = 0; i < key.length; i++) {
+					key[i] = box(frame.refs[i], frame.prims[i]);
+				}
+
+				Object cached = cache.lookup(key);
+				if (cached != ResultCache.MISSING) {
+					return cached;
+				}
+			}
+
+			// Compiled code does not count branches, so profiling keeps every
+			// function interpreted
+			CompiledCode code = tiers.compileThreshold > 0 && !branches.trace ? tiers.codeFor(function, funcs) : null;
+			Object result;
+
+			if (code != null) {
+				Object[] compiledArgs = new Object[args.size()];
+
+				for (int i = 0; i < compiledArgs.length; i++) {
+					compiledArgs[i] = box(frame.refs[i], frame.prims[i]);
+				}
+				result = code.invoke(compiledArgs);
+			} else {
+				result = processFunctionBody(function, frame);
+			}
+
+			if (key != null) {
+				cache.store(key, result);
+			}
+			return result;
+		} finally {
+			frames.pop(function.frameSize);
+		}
+	}
+
+	// Evaluates the arguments of a call in the caller's frame into the first
+	// slots of the callee's
+	private void bindArguments(List<Expression> args, Function function, Frame values, Frame frame) {
 		for (int i = 0; i < args.size(); i++) {
-			Object result = getEvalResult(args.get(i), this.values);
+			Object result = eval(args.get(i), values);
 			String paramType = function.paramTypes.get(i);
 			String paramId = function.paramIds.get(i);
 
-			boolean areSameType = checkTypes(result, paramType);
+			boolean areSameType = isTyped(args.get(i)) || checkTypes(result, paramType);
 
 			if (!areSameType) {
-				String error = String.format("Error: wrong type for argument '%s' of function '%s'", paramId, id);
+				String error = String.format("Error: wrong type for argument '%s' of function '%s'", paramId,
+						function.id);
 				throw new Error(error);
 			}
 
-			function.values.put(paramId, result);
+			frame.set(i, result, bits);
 		}
+	}
+
+	// Self tail calls run as a loop in the same frame, so they never deepen
+	// the Java stack
+	private Object processFunctionBody(Function function, Frame frame) {
+		Object result;
 
-		Object result = processFunctionBlock((Block) function.block, function);
-		function.values.clear();
+		do {
+			result = processFunctionBlock((Block) function.block, function, frame);
+		} while (result == TAIL_CALL);
 
 		return result;
 	}
 
-	private Object processFunctionBlock(Block block, Function function) {
+	// Rebinds the parameters for a self tail call. The new arguments are
+	// evaluated into a scratch frame first, since they may read the old ones
+	private void rebindTailCall(FunctionCall call, Function function, Frame frame) {
+		int count = function.paramIds.size();
+
+		if (call.args.size() != count) {
+			String error = String.format("Error: wrong number of arguments for function '%s'", call.id);
+			throw new Error(error);
+		}
+
+		Frame args = frames.push(count);
+
+		try {
+			bindArguments(call.args, function, frame, args);
+			frame.clear(function.frameSize);
+
+			for (int i = 0; i < count; i++) {
+				frame.set(i, args.refs[i], args.prims[i]);
+			}
+		} finally {
+			frames.pop(count);
+		}
+
+		calls++;
+	}
+
+	private Object processFunctionBlock(Block block, Function function, Frame frame) {
 		for (Expression e : block.getStatements()) {
 			if (e instanceof VariableDeclaration) {
 				VariableDeclaration decl = (VariableDeclaration) e;
 
-				if (function.values.containsKey(decl.id)) {
+				if (frame.refs[decl.slot] != null) {
 					String error = String.format("Error: variable '%s' already declared", decl.id);
 					throw new Error(error);
 				}
 
-				Object result = getEvalResult(decl.expr, function.values);
+				Object result = eval(decl.expr, frame);
 
-				if (result instanceof Double) {
-					boolean isInt = ((double) result) % 1 == 0;
+				if (result == Tag.FLOAT) {
+					boolean isInt = toDouble(bits) % 1 == 0;
 
 					if (decl.type.equals(Keyword.INT_TYPE) && !isInt) {
 						String error = String.format("Error: cannot assign float to an int variable");
@@ -391,52 +641,62 @@ public class ExpressionProcessor {
 					}
 				}
 
-				function.values.put(decl.id, result);
+				frame.set(decl.slot, result, bits);
 
 			} else if (e instanceof Assignment) {
 				Assignment assign = (Assignment) e;
 
-				if (!function.values.containsKey(assign.id)) {
+				if (frame.refs[assign.slot] == null) {
 					String error = String.format("Error: variable '%s' not declared", assign.id);
 					throw new Error(error);
 				}
 
-				Object result = getEvalResult(assign.expr, function.values);
+				Object result = eval(assign.expr, frame);
 
-				if (result instanceof Double) {
-					boolean isInt = ((double) result) % 1 == 0;
+				if (result == Tag.FLOAT) {
+					boolean isInt = toDouble(bits) % 1 == 0;
 
-					int index = function.paramIds.indexOf(assign.id);
-					if (function.paramTypes.get(index).equals(Keyword.INT_TYPE) && !isInt) {
+					if (Keyword.INT_TYPE.equals(assign.type) && !isInt) {
 						String error = String.format("Error: cannot assign float to an int variable");
 						throw new Error(error);
 					}
 				}
 
-				function.values.put(assign.id, result);
+				frame.set(assign.slot, result, bits);
 			} else if (e instanceof Print) {
 				Expression expr = ((Print) e).expr;
-				Object result = getEvalResult(expr, function.values);
+				Object result = eval(expr, frame);
 
-				System.out.println(result.toString());
+				System.out.println(toString(result, bits));
 			} else if (e instanceof Conditional) {
-				Object result = processFunctionConditional((Conditional) e, function.values, function);
+				Object result = processFunctionConditional((Conditional) e, frame, function);
 
 				if (result != null) {
 					return result;
 				}
 			} else if (e instanceof ForLoop) {
-				Object result = processFunctionForLoop((ForLoop) e, function.values, function);
+				Object result = processFunctionForLoop((ForLoop) e, frame, function);
 
 				if (result != null) {
 					return result;
 				}
 			} else if (e instanceof WhileLoop) {
-				processFunctionWhileLoop((WhileLoop) e, function.values, function);
+				processFunctionWhileLoop((WhileLoop) e, frame, function);
 			} else if (e instanceof Return) {
 				Return ret = (Return) e;
 				Expression expr = ret.expr;
-				Object result = getEvalResult(expr, function.values);
+
+				if (ret.tailCall) {
+					FunctionCall call = (FunctionCall) expr;
+
+					// A redeclared function is a different callee
+					if (call.slot >= 0 && funcs[call.slot] == function) {
+						rebindTailCall(call, function, frame);
+						return TAIL_CALL;
+					}
+				}
+
+				Object result = getEvalResult(expr, frame);
 
 				return result;
 			}
@@ -446,23 +706,24 @@ public class ExpressionProcessor {
 		return null;
 	}
 
-	private void processBlock(Block block, Map<String, Object> values) {
+	private void processBlock(Block block, Frame values) {
 		for (Expression e : block.getStatements()) {
 			if (e instanceof Assignment) {
 				addAssignment(e);
 			} else if (e instanceof VariableDeclaration) {
 				VariableDeclaration decl = (VariableDeclaration) e;
-				if (values.containsKey(decl.id)) {
+				if (values.refs[decl.slot] != null) {
 					Assignment assign = new Assignment(decl.id, decl.expr);
+					assign.slot = decl.slot;
 					addAssignment(assign);
 				} else {
 					addDeclaration(e);
 				}
 			} else if (e instanceof Print) {
 				Expression expr = ((Print) e).expr;
-				Object result = getEvalResult(expr, values);
+				Object result = eval(expr, values);
 
-				System.out.println(result.toString());
+				System.out.println(toString(result, bits));
 			} else if (e instanceof Conditional) {
 				processConditional((Conditional) e, values);
 			} else if (e instanceof ForLoop) {
@@ -473,19 +734,23 @@ public class ExpressionProcessor {
 		}
 	}
 
-	private Object processFunctionConditional(Conditional cond, Map<String, Object> values, Function function) {
-		boolean condition = (boolean) getEvalResult(cond.condition, values);
+	private Object processFunctionConditional(Conditional cond, Frame values, Function function) {
+		boolean condition = evalCondition(cond.condition, values);
+
+		if (branches.trace) {
+			branches.count(cond, condition);
+		}
 
 		if (condition) {
 			Block ifBlock = (Block) cond.ifBlock;
-			Object result = processFunctionBlock(ifBlock, function);
+			Object result = processFunctionBlock(ifBlock, function, values);
 
 			if (result != null) {
 				return result;
 			}
 		} else if (cond.elseBlock != null) {
 			Block elseBlock = (Block) cond.elseBlock;
-			Object result = processFunctionBlock(elseBlock, function);
+			Object result = processFunctionBlock(elseBlock, function, values);
 
 			if (result != null) {
 				return result;
@@ -495,8 +760,12 @@ public class ExpressionProcessor {
 		return null;
 	}
 
-	private void processConditional(Conditional cond, Map<String, Object> values) {
-		boolean condition = (boolean) getEvalResult(cond.condition, values);
+	private void processConditional(Conditional cond, Frame values) {
+		boolean condition = evalCondition(cond.condition, values);
+
+		if (branches.trace) {
+			branches.count(cond, condition);
+		}
 
 		if (condition) {
 			Block ifBlock = (Block) cond.ifBlock;
@@ -507,55 +776,70 @@ public class ExpressionProcessor {
 		}
 	}
 
-	private Object processFunctionWhileLoop(WhileLoop whileLoop, Map<String, Object> values, Function function) {
-		boolean condition = (boolean) getEvalResult(whileLoop.condition, values);
+	private Object processFunctionWhileLoop(WhileLoop whileLoop, Frame values, Function function) {
+		boolean condition = evalCondition(whileLoop.condition, values);
+
+		if (branches.trace) {
+			branches.count(whileLoop, condition);
+		}
 
 		while (condition) {
 			Block block = (Block) whileLoop.block;
-			Object result = processFunctionBlock(block, function);
+			Object result = processFunctionBlock(block, function, values);
 
 			if (result != null) {
 				return result;
 			}
 
-			condition = (boolean) getEvalResult(whileLoop.condition, values);
+			condition = evalCondition(whileLoop.condition, values);
+
+			if (branches.trace) {
+				branches.count(whileLoop, condition);
+			}
 		}
 
 		return null;
 	}
 
-	private void processWhileLoop(WhileLoop whileLoop, Map<String, Object> values) {
-		boolean condition = (boolean) getEvalResult(whileLoop.condition, values);
+	private void processWhileLoop(WhileLoop whileLoop, Frame values) {
+		boolean condition = evalCondition(whileLoop.condition, values);
+
+		if (branches.trace) {
+			branches.count(whileLoop, condition);
+		}
 
 		while (condition) {
 			Block block = (Block) whileLoop.block;
 			processBlock(block, values);
 
-			condition = (boolean) getEvalResult(whileLoop.condition, values);
+			condition = evalCondition(whileLoop.condition, values);
+
+			if (branches.trace) {
+				branches.count(whileLoop, condition);
+			}
 		}
 	}
 
-	private Object processFunctionForLoop(ForLoop forLoop, Map<String, Object> values, Function function) {
+	private Object processFunctionForLoop(ForLoop forLoop, Frame values, Function function) {
 		String id = forLoop.id;
 
-		if (values.containsKey(id)) {
+		if (values.refs[forLoop.slot] != null) {
 			String error = String.format("Error: variable '%s' already declared", id);
 			throw new Error(error);
 		}
 
-		int start = (int) getEvalResult(forLoop.start, values);
-
-		int end = (int) getEvalResult(forLoop.end, values);
-
-		// TODO: Check if end is less than start, or if step is negative
+		int start = evalInt(forLoop.start, values);
+		int end = evalInt(forLoop.end, values);
+		int step = evalInt(forLoop.step, values);
+		long iterations = ForLoop.iterations(id, start, end, step);
 
 		Block block = (Block) forLoop.block;
-		int step = (int) getEvalResult(forLoop.step, values);
+		int i = start;
 
-		for (int i = start; i <= end; i += step) {
-			values.put(id, i);
-			Object result = processFunctionBlock(block, function);
-			values.remove(id);
+		for (long n = 0; n < iterations; n++, i += step) {
+			values.set(forLoop.slot, Tag.INT, i);
+			Object result = processFunctionBlock(block, function, values);
+			values.refs[forLoop.slot] = null;
 
 			if (result != null) {
 				return result;
@@ -565,38 +849,41 @@ public class ExpressionProcessor {
 		return null;
 	}
 
-	private void processForLoop(ForLoop forLoop, Map<String, Object> values) {
+	private void processForLoop(ForLoop forLoop, Frame values) {
 		String id = forLoop.id;
 
-		if (values.containsKey(id)) {
+		if (values.refs[forLoop.slot] != null) {
 			String error = String.format("Error: variable '%s' already declared", id);
 			throw new Error(error);
 		}
 
-		int start = (int) getEvalResult(forLoop.start, values);
-
-		int end = (int) getEvalResult(forLoop.end, values);
-
-		// TODO: Check if end is less than start, or if step is negative
+		int start = evalInt(forLoop.start, values);
+		int end = evalInt(forLoop.end, values);
+		int step = evalInt(forLoop.step, values);
+		// Bounds and step are checked once; the variable stays an unboxed int
+		long iterations = ForLoop.iterations(id, start, end, step);
 
 		Block block = (Block) forLoop.block;
-		int step = (int) getEvalResult(forLoop.step, values);
+		int i = start;
 
-		for (int i = start; i <= end; i += step) {
-			values.put(id, i);
+		for (long n = 0; n < iterations; n++, i += step) {
+			values.set(forLoop.slot, Tag.INT, i);
 			processBlock(block, values);
-			values.remove(id);
+			values.refs[forLoop.slot] = null;
 		}
 	}
 
 	private void processFunction(Function function) {
 		String id = function.id;
+		Integer slot = globalSlots.get(id);
 
-		if (values.containsKey(id)) {
+		if (slot != null && values.refs[slot] != null) {
 			String error = String.format("Error: function '%s' already declared", id);
 			throw new Error(error);
 		}
 
-		funcs.put(id, function);
+		funcs[funcSlots.get(id)] = function;
+		// A redeclared function starts with an empty cache
+		results[funcSlots.get(id)] = pureFunctions.contains(id) ? memo.newCache() : null;
 	}
 }
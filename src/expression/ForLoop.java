@@ -6,6 +6,8 @@ public class ForLoop extends Expression {
     public Expression end;
     public Expression step;
     public Expression block;
+    // Frame slot, set by Resolver
+    public int slot = -1;
 
     public ForLoop(String id, Expression start, Expression end, Expression step, Expression block) {
         this.id = id;
@@ -15,6 +17,22 @@ public class ForLoop extends Expression {
         this.block = block;
     }
 
+    /**
+     * Returns how many times a loop from start to end runs: upwards while the
+     * variable is at most end when step is positive, downwards while it is at
+     * least end when step is negative. Counting in a long means a loop ending
+     * near the largest or smallest int stops instead of wrapping around.
+     */
+    public static long iterations(String id, int start, int end, int step) {
+        if (step == 0) {
+            String error = String.format("Error: step of loop '%s' cannot be zero", id);
+            throw new Error(error);
+        }
+
+        long distance = step > 0 ? (long) end - start : (long) start - end;
+        return distance < 0 ? 0 : distance / Math.abs((long) step) + 1;
+    }
+
     @Override
     public String toString() {
         return "for (" + id + " = " + start + "; " + id + " < " + end + "; " + id + " += " + step + ") {\n" + block
@@ -0,0 +1,33 @@
+package expression;
+
+import java.util.Arrays;
+
+/**
+ * Variables of the program or of one function call, indexed by Resolver
+ * slots. A slot holding an int, float or bool keeps a {@link Tag} in refs and
+ * the value's bits in prims, so numbers and booleans are never boxed. Any
+ * other value is kept in refs as is, and an empty slot is undeclared.
+ */
+public class Frame {
+	public enum Tag {
+		INT, FLOAT, BOOL
+	}
+
+	public Object[] refs;
+	public long[] prims;
+
+	public Frame(int size) {
+		refs = new Object[size];
+		prims = new long[size];
+	}
+
+	public void set(int slot, Object value, long bits) {
+		refs[slot] = value;
+		prims[slot] = bits;
+	}
+
+	/** Empties the first slots; prims are left as they are. */
+	public void clear(int size) {
+		Arrays.fill(refs, 0, size, null);
+	}
+}
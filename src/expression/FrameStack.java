@@ -0,0 +1,47 @@
+package expression;
+
+import java.util.Arrays;
+
+/**
+ * Call frames of the tree interpreter. A frame is allocated once per call
+ * depth and reused by every later call at that depth, so calls do not
+ * allocate and recursive calls get frames of their own.
+ */
+public class FrameStack {
+	static final int INITIAL_DEPTH = 64;
+	static final int INITIAL_SIZE = 8;
+
+	private Frame[] frames;
+	private int depth;
+
+	public FrameStack() {
+		frames = new Frame[INITIAL_DEPTH];
+
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new Frame(INITIAL_SIZE);
+		}
+	}
+
+	/** Returns an empty frame with at least the given number of slots. */
+	public Frame push(int size) {
+		if (depth == frames.length) {
+			frames = Arrays.copyOf(frames, depth * 2);
+		}
+
+		Frame frame = frames[depth];
+
+		if (frame == null || frame.refs.length < size) {
+			frame = new Frame(Math.max(size, INITIAL_SIZE));
+			frames[depth] = frame;
+		}
+
+		depth++;
+		return frame;
+	}
+
+	/** Releases the top frame, clearing the slots it used. */
+	public void pop(int size) {
+		depth--;
+		frames[depth].clear(size);
+	}
+}
@@ -1,16 +1,22 @@
 package expression;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Function extends Expression {
     public String id;
     public Expression block;
     public List<String> paramIds = new ArrayList<>();
     public List<String> paramTypes = new ArrayList<>();
-    public Map<String, Object> values = new HashMap<>();
+    // Number of slots for parameters and locals, set by Resolver
+    public int frameSize;
+    // Tiering state, kept across runs of the program: interpreted calls so
+    // far, the code compiled once the function got hot, how many times that
+    // code was thrown away, and whether to stop trying
+    public int invocations;
+    public CompiledCode compiled;
+    public int deoptimizations;
+    public boolean interpretOnly;
 
     public Function(String id, Expression block) {
         this.id = id;
@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class FunctionCall extends Expression {
-    String id;
-    List<Expression> args = new ArrayList<>();
+    public String id;
+    public List<Expression> args = new ArrayList<>();
+    // Function table slot, set by Resolver
+    public int slot = -1;
 
     public FunctionCall(String id) {
         this.id = id;
@@ -14,4 +16,14 @@ public class FunctionCall extends Expression {
     public void setArgs(List<Expression> args) {
         this.args = args;
     }
+
+    @Override
+    public String toString() {
+        List<String> texts = new ArrayList<>();
+
+        for (Expression arg : args) {
+            texts.add(arg.toString());
+        }
+        return id + "(" + String.join(", ", texts) + ")";
+    }
 }
@@ -0,0 +1,657 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces calls to small functions with a copy of their body, so the
+ * interpreter does not look the function up, check its arguments and set up
+ * a frame on every call. The parameters and locals of each copy are renamed
+ * to fresh variables ({@code _inl0_n}, {@code _inl1_n}, ...), declared at the
+ * top of the caller's frame, and every {@code ↩️} becomes an assignment to the
+ * variable that replaces the call.
+ *
+ * Only functions declared once, that call no other function, always return a
+ * value and neither return nor declare anything inside a loop are inlined,
+ * and only where their declaration has already run. A call moves ahead of the
+ * rest of its statement, so everything the statement evaluates before it must
+ * be unable to fail. Copies are limited to {@link #maxSize} nodes each, and all of them
+ * together to {@link #maxGrowth} percent of the program, counting the
+ * statements that {@link #lower} copies into more than one branch. Nothing is inlined in
+ * programs with errors the resolver or the type checker would report.
+ */
+public class FunctionInliner {
+	static final String PREFIX = "_inl";
+
+	public int maxSize = Integer.getInteger("glyph.inline.maxSize", 60);
+	public int maxGrowth = Integer.getInteger("glyph.inline.maxGrowth", 100);
+	// Number of calls replaced by the body of the function
+	public int inlined;
+
+	// Functions declared once
+	private Map<String, Function> functions = new HashMap<>();
+	private int budget;
+	private int sites;
+
+	// State of the frame being inlined into
+	private Set<Function> declaredBefore = new HashSet<>();
+	private boolean inFunction;
+	private Set<String> available;
+	private List<Expression> declarations;
+	// Whether everything evaluated so far in the statement is free of effects
+	private boolean safe;
+
+	// State of the copy being made
+	private Map<String, String> names;
+	private String result;
+
+	public void inline(Program prog) {
+		try {
+			new Resolver().resolve(prog.expressions);
+			new TypeChecker().check(prog.expressions);
+		} catch (Error e) {
+			// Left for the engines to report as usual
+			return;
+		}
+
+		Map<String, Integer> declared = new HashMap<>();
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				declared.merge(function.id, 1, Integer::sum);
+				functions.put(function.id, function);
+			}
+		}
+		functions.keySet().removeIf(id -> declared.get(id) > 1);
+
+		budget = count(prog.expressions) * maxGrowth / 100;
+
+		// A function only runs once the functions declared before it are, and
+		// those have their own calls inlined first
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				inlineFrame(((Block) function.block).getStatements(), function.paramIds, true);
+				declaredBefore.add(function);
+			}
+		}
+
+		declaredBefore.clear();
+		inlineFrame(prog.expressions, List.of(), false);
+	}
+
+	private void inlineFrame(List<Expression> statements, List<String> paramIds, boolean inFunction) {
+		this.inFunction = inFunction;
+		available = new HashSet<>(paramIds);
+
+		for (int i = 0; i < statements.size(); i++) {
+			Expression e = statements.get(i);
+
+			if (e instanceof Function) {
+				declaredBefore.add((Function) e);
+				continue;
+			}
+
+			declarations = new ArrayList<>();
+			List<Expression> before = inlineStatement(e);
+			before.addAll(0, declarations);
+			statements.addAll(i, before);
+			i += before.size();
+
+			if (e instanceof VariableDeclaration) {
+				available.add(((VariableDeclaration) e).id);
+			}
+		}
+	}
+
+	private void inlineBlock(Expression block) {
+		List<Expression> statements = ((Block) block).getStatements();
+
+		for (int i = 0; i < statements.size(); i++) {
+			List<Expression> before = inlineStatement(statements.get(i));
+			statements.addAll(i, before);
+			i += before.size();
+		}
+	}
+
+	/**
+	 * Inlines the calls a statement makes, and returns the code that has to
+	 * run before it.
+	 */
+	private List<Expression> inlineStatement(Expression e) {
+		List<Expression> before = new ArrayList<>();
+		safe = true;
+
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			decl.expr = lift(decl.expr, before);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			assign.expr = lift(assign.expr, before);
+		} else if (e instanceof Print) {
+			Print print = (Print) e;
+			print.expr = lift(print.expr, before);
+		} else if (e instanceof Return) {
+			// Top-level returns never evaluate their value
+			if (inFunction) {
+				Return ret = (Return) e;
+				ret.expr = lift(ret.expr, before);
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			cond.condition = lift(cond.condition, before);
+			inlineBlock(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				inlineBlock(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			// The condition runs on every iteration, so its calls stay
+			inlineBlock(((WhileLoop) e).block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			Set<String> outer = available;
+			available = new HashSet<>(available);
+			available.add(forLoop.id);
+			inlineBlock(forLoop.block);
+			available = outer;
+		}
+
+		return before;
+	}
+
+	/**
+	 * Replaces the calls in an expression that can be inlined, in the order
+	 * they are evaluated, by the variables holding their results.
+	 */
+	private Expression lift(Expression e, List<Expression> before) {
+		if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+
+			for (int i = 0; i < call.args.size(); i++) {
+				call.args.set(i, lift(call.args.get(i), before));
+			}
+
+			if (safe && canInline(call)) {
+				return expand(call, before);
+			}
+			safe = false;
+		} else if (e instanceof Variable) {
+			safe &= available.contains(((Variable) e).id);
+		} else if (e instanceof Parens) {
+			Parens parens = (Parens) e;
+			parens.expr = lift(parens.expr, before);
+		} else if (e instanceof UnaryMinus) {
+			UnaryMinus unary = (UnaryMinus) e;
+			unary.expr = lift(unary.expr, before);
+			safe &= isKnown(unary.expr);
+		} else if (e instanceof Not) {
+			Not not = (Not) e;
+			not.expr = lift(not.expr, before);
+			safe &= isKnown(not.expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			add.left = lift(add.left, before);
+			add.right = lift(add.right, before);
+			safe &= isKnown(add.left) && isKnown(add.right);
+		} else if (e instanceof MultDivMod) {
+			// Dividing may fail once both sides are known
+			MultDivMod mult = (MultDivMod) e;
+			mult.left = lift(mult.left, before);
+			mult.right = lift(mult.right, before);
+			safe &= mult.operator.equals(Keyword.TIMES) && isKnown(mult.left) && isKnown(mult.right);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			comp.left = lift(comp.left, before);
+			comp.right = lift(comp.right, before);
+			safe &= isKnown(comp.left) && isKnown(comp.right);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			eq.left = lift(eq.left, before);
+			eq.right = lift(eq.right, before);
+			safe &= isKnown(eq.left) && isKnown(eq.right);
+		} else if (e instanceof And || e instanceof Or) {
+			// Calls in logical operators are left where they are
+			if (hasCall(e)) {
+				safe = false;
+			} else {
+				for (Expression operand : operands(e)) {
+					lift(operand, before);
+					safe &= isKnown(operand);
+				}
+			}
+		}
+
+		return e;
+	}
+
+	private static boolean isKnown(Expression e) {
+		return e.staticType != null && e.staticType.keyword != null;
+	}
+
+	private boolean canInline(FunctionCall call) {
+		Function function = functions.get(call.id);
+
+		if (function == null || !declaredBefore.contains(function) || !isKnown(call)
+				|| call.args.size() != function.paramIds.size()) {
+			return false;
+		}
+
+		for (int i = 0; i < call.args.size(); i++) {
+			if (call.args.get(i).staticType != Type.of(function.paramTypes.get(i))) {
+				return false;
+			}
+		}
+
+		if (!canCopy(function)) {
+			return false;
+		}
+
+		int limit = Math.min(maxSize, budget);
+		int size = loweredSize(((Block) function.block).getStatements(), limit);
+		if (size > limit) {
+			return false;
+		}
+
+		budget -= size;
+		return true;
+	}
+
+	private static boolean canCopy(Function function) {
+		Block body = (Block) function.block;
+		Set<String> seen = new HashSet<>(function.paramIds);
+
+		return !hasCall(body) && alwaysReturns(body) && isScoped(body.getStatements(), seen, seen, false);
+	}
+
+	/**
+	 * Checks that every name a function uses is declared once, before it is
+	 * used and in a block that encloses the use, so renaming it and declaring
+	 * it up front changes nothing. A return inside a loop has nowhere to go
+	 * without leaving the loop, and declarations in loops would fail on their
+	 * second run.
+	 */
+	private static boolean isScoped(List<Expression> statements, Set<String> visible, Set<String> seen,
+			boolean inLoop) {
+		for (Expression e : statements) {
+			if (e instanceof VariableDeclaration) {
+				VariableDeclaration decl = (VariableDeclaration) e;
+
+				if (inLoop || !reads(decl.expr, visible) || !seen.add(decl.id)) {
+					return false;
+				}
+				visible.add(decl.id);
+			} else if (e instanceof Assignment) {
+				Assignment assign = (Assignment) e;
+
+				if (!visible.contains(assign.id) || !reads(assign.expr, visible)) {
+					return false;
+				}
+			} else if (e instanceof Print) {
+				if (!reads(((Print) e).expr, visible)) {
+					return false;
+				}
+			} else if (e instanceof Return) {
+				if (!reads(((Return) e).expr, visible)) {
+					return false;
+				}
+			} else if (e instanceof Conditional) {
+				Conditional cond = (Conditional) e;
+
+				if (!reads(cond.condition, visible)
+						|| !isScoped(((Block) cond.ifBlock).getStatements(), new HashSet<>(visible), seen, inLoop)
+						|| cond.elseBlock != null && !isScoped(((Block) cond.elseBlock).getStatements(),
+								new HashSet<>(visible), seen, inLoop)) {
+					return false;
+				}
+			} else if (e instanceof WhileLoop) {
+				WhileLoop whileLoop = (WhileLoop) e;
+
+				if (hasReturn(whileLoop) || !reads(whileLoop.condition, visible)
+						|| !isScoped(((Block) whileLoop.block).getStatements(), new HashSet<>(visible), seen, true)) {
+					return false;
+				}
+			} else if (e instanceof ForLoop) {
+				ForLoop forLoop = (ForLoop) e;
+				Set<String> inner = new HashSet<>(visible);
+				inner.add(forLoop.id);
+
+				if (hasReturn(forLoop) || !reads(forLoop.start, visible) || !reads(forLoop.end, visible)
+						|| !reads(forLoop.step, visible) || !seen.add(forLoop.id)
+						|| !isScoped(((Block) forLoop.block).getStatements(), inner, seen, true)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean reads(Expression e, Set<String> visible) {
+		if (e instanceof Variable) {
+			return visible.contains(((Variable) e).id);
+		}
+
+		for (Expression child : operands(e)) {
+			if (!reads(child, visible)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Expression> operands(Expression e) {
+		if (e instanceof Parens) {
+			return List.of(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			return List.of(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			return List.of(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			return List.of(((AddSub) e).left, ((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			return List.of(((MultDivMod) e).left, ((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			return List.of(((Comparison) e).left, ((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			return List.of(((Equality) e).left, ((Equality) e).right);
+		} else if (e instanceof And) {
+			return List.of(((And) e).left, ((And) e).right);
+		} else if (e instanceof Or) {
+			return List.of(((Or) e).left, ((Or) e).right);
+		} else if (e instanceof FunctionCall) {
+			return ((FunctionCall) e).args;
+		}
+		return List.of();
+	}
+
+	private static List<Expression> children(Expression e) {
+		List<Expression> children = new ArrayList<>(operands(e));
+
+		if (e instanceof VariableDeclaration) {
+			children.add(((VariableDeclaration) e).expr);
+		} else if (e instanceof Assignment) {
+			children.add(((Assignment) e).expr);
+		} else if (e instanceof Print) {
+			children.add(((Print) e).expr);
+		} else if (e instanceof Return) {
+			children.add(((Return) e).expr);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			children.add(cond.condition);
+			children.add(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				children.add(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			children.add(((WhileLoop) e).condition);
+			children.add(((WhileLoop) e).block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			children.add(forLoop.start);
+			children.add(forLoop.end);
+			children.add(forLoop.step);
+			children.add(forLoop.block);
+		} else if (e instanceof Block) {
+			children.addAll(((Block) e).getStatements());
+		} else if (e instanceof Function) {
+			children.add(((Function) e).block);
+		}
+		return children;
+	}
+
+	private static boolean hasCall(Expression e) {
+		if (e instanceof FunctionCall) {
+			return true;
+		}
+
+		for (Expression child : children(e)) {
+			if (hasCall(child)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasReturn(Expression e) {
+		if (e instanceof Return) {
+			return true;
+		}
+
+		for (Expression child : children(e)) {
+			if (hasReturn(child)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean alwaysReturns(Expression e) {
+		if (e instanceof Return) {
+			return true;
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return cond.elseBlock != null && alwaysReturns(cond.ifBlock) && alwaysReturns(cond.elseBlock);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (alwaysReturns(statement)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int count(List<Expression> statements) {
+		int nodes = 0;
+
+		for (Expression e : statements) {
+			nodes += 1 + count(children(e));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Counts the nodes {@link #lower} makes of the statements, or stops at the
+	 * first count over the limit, since copying the statements after a
+	 * conditional into both branches may double them at every level.
+	 */
+	private static int loweredSize(List<Expression> statements, int limit) {
+		int nodes = 0;
+
+		for (int i = 0; i < statements.size() && nodes <= limit; i++) {
+			Expression e = statements.get(i);
+
+			if (e instanceof Return) {
+				return nodes + count(List.of(e));
+			} else if (!hasReturn(e)) {
+				nodes += count(List.of(e));
+				continue;
+			}
+
+			Conditional cond = (Conditional) e;
+			List<Expression> rest = statements.subList(i + 1, statements.size());
+			List<Expression> elseStatements = branch(cond.elseBlock, rest);
+
+			nodes += 2 + count(List.of(cond.condition));
+			nodes += loweredSize(branch(cond.ifBlock, rest), limit - nodes);
+			if (!elseStatements.isEmpty() && nodes <= limit) {
+				nodes += 1 + loweredSize(elseStatements, limit - nodes);
+			}
+			return nodes;
+		}
+
+		return nodes;
+	}
+
+	/**
+	 * Adds a copy of the function's body to the code that runs before the
+	 * call's statement, and returns the variable that holds its result.
+	 */
+	private Expression expand(FunctionCall call, List<Expression> before) {
+		Function function = functions.get(call.id);
+		String site = PREFIX + sites++;
+
+		names = new HashMap<>();
+		result = site;
+		declare(result, call.staticType.keyword);
+
+		for (int i = 0; i < call.args.size(); i++) {
+			String id = site + "_" + function.paramIds.get(i);
+			names.put(function.paramIds.get(i), id);
+			declare(id, function.paramTypes.get(i));
+			before.add(new Assignment(id, call.args.get(i)));
+		}
+		rename(function.block, site);
+
+		before.addAll(lower(((Block) function.block).getStatements()));
+		inlined++;
+
+		Variable value = new Variable(result);
+		value.staticType = call.staticType;
+		return value;
+	}
+
+	// Gives every local of the copy a fresh name, declared in the caller
+	private void rename(Expression e, String site) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			names.put(decl.id, site + "_" + decl.id);
+			declare(site + "_" + decl.id, decl.type);
+		} else if (e instanceof ForLoop) {
+			// Loops declare their own variable when they start
+			names.put(((ForLoop) e).id, site + "_" + ((ForLoop) e).id);
+		}
+
+		for (Expression child : children(e)) {
+			rename(child, site);
+		}
+	}
+
+	private void declare(String id, String type) {
+		declarations.add(new VariableDeclaration(id, type, LoopInvariantMotion.initialValue(type)));
+	}
+
+	/**
+	 * Copies statements of the function, turning each return into an
+	 * assignment of the result. The statements after a conditional that
+	 * returns move into the branches that may not return.
+	 */
+	private List<Expression> lower(List<Expression> statements) {
+		List<Expression> lowered = new ArrayList<>();
+
+		for (int i = 0; i < statements.size(); i++) {
+			Expression e = statements.get(i);
+
+			if (e instanceof Return) {
+				lowered.add(new Assignment(result, copy(((Return) e).expr)));
+				return lowered;
+			} else if (!hasReturn(e)) {
+				lowered.add(copy(e));
+				continue;
+			}
+
+			// Loops that return are never inlined, so this is a conditional
+			Conditional cond = (Conditional) e;
+			List<Expression> rest = statements.subList(i + 1, statements.size());
+			List<Expression> elseStatements = branch(cond.elseBlock, rest);
+
+			lowered.add(new Conditional(copy(cond.condition), block(lower(branch(cond.ifBlock, rest))),
+					elseStatements.isEmpty() ? null : block(lower(elseStatements))));
+			return lowered;
+		}
+
+		return lowered;
+	}
+
+	// The statements of a branch, followed by the rest when it may not return
+	private static List<Expression> branch(Expression block, List<Expression> rest) {
+		List<Expression> statements = new ArrayList<>();
+
+		if (block != null) {
+			statements.addAll(((Block) block).getStatements());
+		}
+		if (block == null || !alwaysReturns(block)) {
+			statements.addAll(rest);
+		}
+		return statements;
+	}
+
+	private static Block block(List<Expression> statements) {
+		Block block = new Block();
+		block.getStatements().addAll(statements);
+		return block;
+	}
+
+	/** Copies a statement or expression of the function with its locals renamed. */
+	private Expression copy(Expression e) {
+		Expression copy;
+
+		if (e instanceof Int) {
+			copy = new Int(((Int) e).value);
+		} else if (e instanceof Real) {
+			copy = new Real(((Real) e).value);
+		} else if (e instanceof Str) {
+			copy = new Str(((Str) e).value);
+		} else if (e instanceof Bool) {
+			copy = new Bool(((Bool) e).value);
+		} else if (e instanceof Variable) {
+			copy = new Variable(names.get(((Variable) e).id));
+		} else if (e instanceof Parens) {
+			copy = new Parens(copy(((Parens) e).expr));
+		} else if (e instanceof UnaryMinus) {
+			copy = new UnaryMinus(copy(((UnaryMinus) e).expr));
+		} else if (e instanceof Not) {
+			copy = new Not(copy(((Not) e).expr));
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			copy = new AddSub(copy(add.left), copy(add.right), add.operator);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			copy = new MultDivMod(copy(mult.left), copy(mult.right), mult.operator);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			copy = new Comparison(copy(comp.left), copy(comp.right), comp.operator);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			copy = new Equality(copy(eq.left), copy(eq.right), eq.operator);
+		} else if (e instanceof And) {
+			copy = new And(copy(((And) e).left), copy(((And) e).right));
+		} else if (e instanceof Or) {
+			copy = new Or(copy(((Or) e).left), copy(((Or) e).right));
+		} else if (e instanceof VariableDeclaration) {
+			// Declared up front, so running it again is not an error
+			VariableDeclaration decl = (VariableDeclaration) e;
+			copy = new Assignment(names.get(decl.id), copy(decl.expr));
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			copy = new Assignment(names.get(assign.id), copy(assign.expr));
+		} else if (e instanceof Print) {
+			copy = new Print(copy(((Print) e).expr));
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			copy = new Conditional(copy(cond.condition), copy(cond.ifBlock),
+					cond.elseBlock == null ? null : copy(cond.elseBlock));
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			copy = new WhileLoop(copy(whileLoop.condition), copy(whileLoop.block));
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			copy = new ForLoop(names.get(forLoop.id), copy(forLoop.start), copy(forLoop.end), copy(forLoop.step),
+					copy(forLoop.block));
+		} else {
+			List<Expression> statements = new ArrayList<>();
+
+			for (Expression statement : ((Block) e).getStatements()) {
+				statements.add(copy(statement));
+			}
+			copy = block(statements);
+		}
+
+		copy.staticType = e.staticType;
+		return copy;
+	}
+}
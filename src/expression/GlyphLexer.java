@@ -0,0 +1,300 @@
+package expression;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+import antlr.ExprLexer;
+
+/**
+ * Hand-written replacement for the generated {@link ExprLexer}, which spends
+ * most of its time simulating the ATN on multi-code-point emoji. Keywords and
+ * operators are matched in a trie keyed by code point, built from the
+ * spellings in {@link Keyword}; numbers, identifiers, strings, comments and
+ * whitespace are scanned by hand.
+ *
+ * It produces the same tokens as ExprLexer, with the same types, text and
+ * positions, and reports unrecognized input the same way: the longest
+ * prefix the grammar could still have matched, plus the character that
+ * ended it, is reported and skipped.
+ */
+public class GlyphLexer implements TokenSource {
+	private static final int STR_DLM = Keyword.STR_DELIM.codePointAt(0);
+	private static final int COMMENT = "💭".codePointAt(0);
+	private static final Node KEYWORDS = keywords();
+
+	private final CharStream input;
+	private final Pair<TokenSource, CharStream> source;
+	private TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+	private int line = 1;
+	private int column = 0;
+
+	public GlyphLexer(CharStream input) {
+		this.input = input;
+		this.source = new Pair<>(this, input);
+	}
+
+	// One code point of a keyword; type is set when a keyword ends here
+	private static class Node {
+		int[] keys = new int[0];
+		Node[] children = new Node[0];
+		int type;
+
+		Node child(int codePoint) {
+			int index = Arrays.binarySearch(keys, codePoint);
+			return index >= 0 ? children[index] : null;
+		}
+
+		Node add(int codePoint) {
+			int index = Arrays.binarySearch(keys, codePoint);
+
+			if (index >= 0) {
+				return children[index];
+			}
+
+			index = -index - 1;
+			Node node = new Node();
+			keys = insert(keys, index, codePoint);
+			children = Arrays.copyOf(children, children.length + 1);
+			System.arraycopy(children, index, children, index + 1, children.length - index - 1);
+			children[index] = node;
+			return node;
+		}
+
+		private static int[] insert(int[] keys, int index, int key) {
+			int[] result = new int[keys.length + 1];
+			System.arraycopy(keys, 0, result, 0, index);
+			result[index] = key;
+			System.arraycopy(keys, index, result, index + 1, keys.length - index);
+			return result;
+		}
+	}
+
+	private static Node keywords() {
+		Node root = new Node();
+
+		addKeyword(root, Keyword.SEMICOLON, ExprLexer.SEMICOLON);
+		addKeyword(root, Keyword.COMMA, ExprLexer.COMMA);
+		addKeyword(root, Keyword.ASSIGN, ExprLexer.ASSIGN);
+		addKeyword(root, Keyword.NOT, ExprLexer.NOT);
+		addKeyword(root, Keyword.AND, ExprLexer.AND);
+		addKeyword(root, Keyword.OR, ExprLexer.OR);
+		addKeyword(root, Keyword.PLUS, ExprLexer.PLUS);
+		addKeyword(root, Keyword.MINUS, ExprLexer.MINUS);
+		addKeyword(root, Keyword.TIMES, ExprLexer.MULT);
+		addKeyword(root, Keyword.DIVIDE, ExprLexer.DIV);
+		addKeyword(root, Keyword.MOD, ExprLexer.MOD);
+		addKeyword(root, Keyword.EQ, ExprLexer.EQ);
+		addKeyword(root, Keyword.NEQ, ExprLexer.NEQ);
+		addKeyword(root, Keyword.GT, ExprLexer.GT);
+		addKeyword(root, Keyword.GTE, ExprLexer.GTE);
+		addKeyword(root, Keyword.LT, ExprLexer.LT);
+		addKeyword(root, Keyword.LTE, ExprLexer.LTE);
+		addKeyword(root, Keyword.LPAREN, ExprLexer.LPAREN);
+		addKeyword(root, Keyword.RPAREN, ExprLexer.RPAREN);
+		addKeyword(root, Keyword.LCURLY, ExprLexer.LCURLY);
+		addKeyword(root, Keyword.RCURLY, ExprLexer.RCURLY);
+		addKeyword(root, Keyword.IF, ExprLexer.IF);
+		addKeyword(root, Keyword.ELSE, ExprLexer.ELSE);
+		addKeyword(root, Keyword.FOR, ExprLexer.FOR);
+		addKeyword(root, Keyword.TO, ExprLexer.TO);
+		addKeyword(root, Keyword.STEP, ExprLexer.STEP);
+		addKeyword(root, Keyword.WHILE, ExprLexer.WHILE);
+		addKeyword(root, Keyword.PRINT, ExprLexer.PRINT);
+		addKeyword(root, Keyword.RETURN, ExprLexer.RETURN);
+		addKeyword(root, Keyword.INT_TYPE, ExprLexer.INT_TYPE);
+		addKeyword(root, Keyword.FLOAT_TYPE, ExprLexer.FLOAT_TYPE);
+		addKeyword(root, Keyword.BOOL_TYPE, ExprLexer.BOOL_TYPE);
+		addKeyword(root, Keyword.STRING_TYPE, ExprLexer.STR_TYPE);
+		addKeyword(root, Keyword.FUNC_TYPE, ExprLexer.FUNC_TYPE);
+		addKeyword(root, Keyword.TRUE, ExprLexer.BOOL);
+		addKeyword(root, Keyword.FALSE, ExprLexer.BOOL);
+		addKeyword(root, Keyword.STR_DELIM, ExprLexer.STR_DLM);
+
+		return root;
+	}
+
+	private static void addKeyword(Node root, String text, int type) {
+		Node node = root;
+
+		for (int codePoint : text.codePoints().toArray()) {
+			node = node.add(codePoint);
+		}
+		node.type = type;
+	}
+
+	@Override
+	public Token nextToken() {
+		while (true) {
+			int c = input.LA(1);
+
+			if (c == CharStream.EOF) {
+				int index = input.index();
+				return factory.create(source, Token.EOF, null, Token.DEFAULT_CHANNEL, index, index - 1, line, column);
+			}
+
+			int length;
+			int type;
+
+			if (isWhitespace(c)) {
+				length = 1;
+				while (isWhitespace(input.LA(length + 1))) {
+					length++;
+				}
+				skip(length);
+				continue;
+			} else if (c == COMMENT) {
+				length = 1;
+				while (!isLineEnd(input.LA(length + 1))) {
+					length++;
+				}
+				skip(length);
+				continue;
+			} else if (c >= '0' && c <= '9') {
+				length = 1;
+				if (c != '0') {
+					while (isDigit(input.LA(length + 1))) {
+						length++;
+					}
+				}
+
+				type = ExprLexer.INT;
+				if (input.LA(length + 1) == '.' && isDigit(input.LA(length + 2))) {
+					length += 2;
+					while (isDigit(input.LA(length + 1))) {
+						length++;
+					}
+					type = ExprLexer.FLOAT;
+				}
+			} else if (c >= 'a' && c <= 'z') {
+				length = 1;
+				while (isIdentifierPart(input.LA(length + 1))) {
+					length++;
+				}
+				type = ExprLexer.ID;
+			} else {
+				// The longest keyword wins; walked is how far the trie got
+				Node node = KEYWORDS;
+				int walked = 0;
+				length = 0;
+				type = 0;
+
+				while ((node = node.child(input.LA(walked + 1))) != null) {
+					walked++;
+					if (node.type != 0) {
+						length = walked;
+						type = node.type;
+					}
+				}
+
+				if (type == ExprLexer.STR_DLM) {
+					int end = 2;
+					while (input.LA(end) != STR_DLM && input.LA(end) != CharStream.EOF) {
+						end++;
+					}
+					if (input.LA(end) == STR_DLM) {
+						length = end;
+						type = ExprLexer.STR;
+					}
+				}
+
+				if (type == 0) {
+					recover(walked);
+					continue;
+				}
+			}
+
+			return emit(type, length);
+		}
+	}
+
+	private Token emit(int type, int length) {
+		int start = input.index();
+		int startLine = line;
+		int startColumn = column;
+
+		skip(length);
+		return factory.create(source, type, null, Token.DEFAULT_CHANNEL, start, start + length - 1, startLine,
+				startColumn);
+	}
+
+	// Reports the input that matched no token, including the character that
+	// ended the match, and skips it
+	private void recover(int walked) {
+		int start = input.index();
+		int stop = Math.min(start + walked, input.size() - 1);
+		String text = input.getText(Interval.of(start, stop));
+
+		System.err.println(String.format("line %d:%d token recognition error at: '%s'", line, column,
+				errorDisplay(text)));
+		skip(stop - start + 1);
+	}
+
+	private static String errorDisplay(String text) {
+		return text.replace("\n", "\\n").replace("\t", "\\t").replace("\r", "\\r");
+	}
+
+	private void skip(int length) {
+		for (int i = 0; i < length; i++) {
+			if (input.LA(1) == '\n') {
+				line++;
+				column = 0;
+			} else {
+				column++;
+			}
+			input.consume();
+		}
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private static boolean isLineEnd(int c) {
+		return c == '\n' || c == '\r' || c == CharStream.EOF;
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierPart(int c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '_';
+	}
+
+	@Override
+	public int getLine() {
+		return line;
+	}
+
+	@Override
+	public int getCharPositionInLine() {
+		return column;
+	}
+
+	@Override
+	public CharStream getInputStream() {
+		return input;
+	}
+
+	@Override
+	public String getSourceName() {
+		return input.getSourceName();
+	}
+
+	@Override
+	public void setTokenFactory(TokenFactory<?> factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public TokenFactory<?> getTokenFactory() {
+		return factory;
+	}
+}
@@ -0,0 +1,346 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import antlr.ExprLexer;
+
+/**
+ * Builds a {@link Program} straight from the tokens, without ANTLR's adaptive
+ * prediction or a parse tree: statements are parsed by recursive descent and
+ * binary operators by precedence climbing, with the precedence of Expr.g4.
+ * It accepts the same programs as the grammar and builds the same nodes as
+ * {@link AntlrToExpression}.
+ *
+ * Nothing is reported on bad input: the first unexpected token throws a
+ * ParseCancellationException, and the caller parses the tokens again with
+ * ANTLR to report the syntax errors.
+ */
+public class GlyphParser {
+	private final TokenStream tokens;
+	// AntlrToExpression only finds a consecutive unary minus once the whole
+	// file has parsed, so a later syntax error is reported instead
+	private Error unaryMinusError;
+
+	public GlyphParser(TokenStream tokens) {
+		this.tokens = tokens;
+	}
+
+	public Program parseProgram() {
+		Program prog = new Program();
+
+		do {
+			prog.addExpression(statement(true));
+		} while (tokens.LA(1) != Token.EOF);
+
+		if (unaryMinusError != null) {
+			throw unaryMinusError;
+		}
+		return prog;
+	}
+
+	// Functions are only declared at the top level, and only returned from
+	// inside a block
+	private Expression statement(boolean topLevel) {
+		switch (tokens.LA(1)) {
+			case ExprLexer.IF:
+				return condition();
+			case ExprLexer.FOR:
+				return forLoop();
+			case ExprLexer.WHILE:
+				return whileLoop();
+			case ExprLexer.FUNC_TYPE:
+				if (topLevel) {
+					return function();
+				}
+				throw unexpected();
+			default:
+				Expression statement = simpleStatement(topLevel);
+				expect(ExprLexer.SEMICOLON);
+				return statement;
+		}
+	}
+
+	private Expression simpleStatement(boolean topLevel) {
+		switch (tokens.LA(1)) {
+			case ExprLexer.INT_TYPE:
+			case ExprLexer.FLOAT_TYPE:
+			case ExprLexer.BOOL_TYPE:
+			case ExprLexer.STR_TYPE:
+				String type = next().getText();
+				String id = expect(ExprLexer.ID).getText();
+				expect(ExprLexer.ASSIGN);
+				return new VariableDeclaration(id, type, expr(0));
+			case ExprLexer.PRINT:
+				next();
+				return new Print(parenthesized());
+			case ExprLexer.RETURN:
+				if (topLevel) {
+					throw unexpected();
+				}
+				next();
+				return new Return(expr(0));
+			case ExprLexer.ID:
+				if (tokens.LA(2) == ExprLexer.ASSIGN) {
+					String name = next().getText();
+					next();
+					return new Assignment(name, expr(0));
+				}
+				return expr(0);
+			default:
+				return expr(0);
+		}
+	}
+
+	private Expression condition() {
+		next();
+		Expression condition = parenthesized();
+		Expression ifBlock = block();
+		Expression elseBlock = null;
+
+		if (tokens.LA(1) == ExprLexer.ELSE) {
+			next();
+			elseBlock = block();
+		}
+
+		return new Conditional(condition, ifBlock, elseBlock);
+	}
+
+	private Expression forLoop() {
+		next();
+		expect(ExprLexer.LPAREN);
+		String id = expect(ExprLexer.ID).getText();
+		expect(ExprLexer.ASSIGN);
+		Expression start = expr(0);
+		expect(ExprLexer.TO);
+		Expression end = expr(0);
+		Expression step = new Int(1);
+
+		if (tokens.LA(1) == ExprLexer.STEP) {
+			next();
+			step = expr(0);
+		}
+		expect(ExprLexer.RPAREN);
+
+		return new ForLoop(id, start, end, step, block());
+	}
+
+	private Expression whileLoop() {
+		next();
+		Expression condition = parenthesized();
+		return new WhileLoop(condition, block());
+	}
+
+	private Expression function() {
+		next();
+		String id = expect(ExprLexer.ID).getText();
+		List<String> paramIds = new ArrayList<>();
+		List<String> paramTypes = new ArrayList<>();
+
+		expect(ExprLexer.LPAREN);
+		if (tokens.LA(1) != ExprLexer.RPAREN) {
+			do {
+				paramTypes.add(type().getText());
+				paramIds.add(expect(ExprLexer.ID).getText());
+			} while (accept(ExprLexer.COMMA));
+		}
+		expect(ExprLexer.RPAREN);
+
+		Function function = new Function(id, block());
+		if (!paramIds.isEmpty()) {
+			function.setParams(paramIds, paramTypes);
+		}
+		return function;
+	}
+
+	private Expression block() {
+		Block block = new Block();
+
+		expect(ExprLexer.LCURLY);
+		while (tokens.LA(1) != ExprLexer.RCURLY) {
+			block.addStatement(statement(false));
+		}
+		next();
+
+		return block;
+	}
+
+	private Expression parenthesized() {
+		expect(ExprLexer.LPAREN);
+		Expression expr = expr(0);
+		expect(ExprLexer.RPAREN);
+		return expr;
+	}
+
+	// Parses operators that bind tighter than the given level, all of them
+	// left associative
+	private Expression expr(int level) {
+		Expression left = unary();
+
+		while (precedence(tokens.LA(1)) > level) {
+			Token operator = next();
+			Expression right = expr(precedence(operator.getType()));
+			left = binary(operator, left, right);
+		}
+
+		return left;
+	}
+
+	private static int precedence(int type) {
+		switch (type) {
+			case ExprLexer.OR:
+				return 1;
+			case ExprLexer.AND:
+				return 2;
+			case ExprLexer.EQ:
+			case ExprLexer.NEQ:
+				return 3;
+			case ExprLexer.GT:
+			case ExprLexer.GTE:
+			case ExprLexer.LT:
+			case ExprLexer.LTE:
+				return 4;
+			case ExprLexer.PLUS:
+			case ExprLexer.MINUS:
+				return 5;
+			case ExprLexer.MULT:
+			case ExprLexer.DIV:
+			case ExprLexer.MOD:
+				return 6;
+			default:
+				return 0;
+		}
+	}
+
+	private static Expression binary(Token operator, Expression left, Expression right) {
+		String text = operator.getText();
+
+		switch (operator.getType()) {
+			case ExprLexer.OR:
+				return new Or(left, right);
+			case ExprLexer.AND:
+				return new And(left, right);
+			case ExprLexer.EQ:
+			case ExprLexer.NEQ:
+				return new Equality(left, right, text);
+			case ExprLexer.PLUS:
+			case ExprLexer.MINUS:
+				return new AddSub(left, right, text);
+			case ExprLexer.MULT:
+			case ExprLexer.DIV:
+			case ExprLexer.MOD:
+				return new MultDivMod(left, right, text);
+			default:
+				return new Comparison(left, right, text);
+		}
+	}
+
+	// Prefix operators bind tighter than every binary operator
+	private Expression unary() {
+		Token token = next();
+		String text = token.getText();
+
+		switch (token.getType()) {
+			case ExprLexer.LPAREN:
+				Expression expr = expr(0);
+				expect(ExprLexer.RPAREN);
+				return new Parens(expr);
+			case ExprLexer.MINUS:
+				Expression operand = unary();
+				checkUnaryMinus(token, operand);
+				return new UnaryMinus(operand);
+			case ExprLexer.NOT:
+				return new Not(unary());
+			case ExprLexer.ID:
+				return tokens.LA(1) == ExprLexer.LPAREN ? call(text) : new Variable(text);
+			case ExprLexer.INT:
+				return new Int(Integer.parseInt(text));
+			case ExprLexer.FLOAT:
+				return new Real(Double.parseDouble(text));
+			case ExprLexer.BOOL:
+				return new Bool(text.equals(Keyword.TRUE));
+			case ExprLexer.STR:
+				int delimiter = Keyword.STR_DELIM.length();
+				return new Str(text.substring(delimiter, text.length() - delimiter));
+			default:
+				throw unexpected(token);
+		}
+	}
+
+	private Expression call(String id) {
+		FunctionCall functionCall = new FunctionCall(id);
+		List<Expression> args = new ArrayList<>();
+
+		next();
+		if (tokens.LA(1) != ExprLexer.RPAREN) {
+			do {
+				args.add(expr(0));
+			} while (accept(ExprLexer.COMMA));
+			functionCall.setArgs(args);
+		}
+		expect(ExprLexer.RPAREN);
+
+		return functionCall;
+	}
+
+	private void checkUnaryMinus(Token token, Expression operand) {
+		if (unaryMinusError == null && operand instanceof UnaryMinus) {
+			Expression inner = ((UnaryMinus) operand).expr;
+
+			if (inner instanceof Int || inner instanceof Real || inner instanceof Variable) {
+				unaryMinusError = new Error(String.format("Error: consecutive unary minus not allowed (%d:%d)",
+						token.getLine(), token.getCharPositionInLine() + 1));
+			}
+		}
+	}
+
+	private Token type() {
+		switch (tokens.LA(1)) {
+			case ExprLexer.INT_TYPE:
+			case ExprLexer.FLOAT_TYPE:
+			case ExprLexer.BOOL_TYPE:
+			case ExprLexer.STR_TYPE:
+				return next();
+			default:
+				throw unexpected();
+		}
+	}
+
+	private Token next() {
+		Token token = tokens.LT(1);
+
+		if (token.getType() == Token.EOF) {
+			throw unexpected(token);
+		}
+		tokens.consume();
+		return token;
+	}
+
+	private boolean accept(int type) {
+		if (tokens.LA(1) == type) {
+			tokens.consume();
+			return true;
+		}
+		return false;
+	}
+
+	private Token expect(int type) {
+		if (tokens.LA(1) != type) {
+			throw unexpected();
+		}
+		return next();
+	}
+
+	private ParseCancellationException unexpected() {
+		return unexpected(tokens.LT(1));
+	}
+
+	private static ParseCancellationException unexpected(Token token) {
+		return new ParseCancellationException(String.format("unexpected '%s' (%d:%d)", token.getText(),
+				token.getLine(), token.getCharPositionInLine() + 1));
+	}
+}
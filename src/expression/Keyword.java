@@ -33,7 +33,7 @@ public abstract class Keyword {
     public static final String PRINT = "🖨️";
     public static final String RETURN = "↩️";
     public static final String INT_TYPE = "🧮";
-    public static final String FLOAT_TYPE = "☁️";
+    public static final String FLOAT_TYPE = "🛟";
     public static final String BOOL_TYPE = "✅";
     public static final String STRING_TYPE = "📄";
     public static final String FUNC_TYPE = "🍿";
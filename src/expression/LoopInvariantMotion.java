@@ -0,0 +1,430 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves expressions that give the same value on every iteration of a loop out
+ * of it. Each one is computed once, into a temporary, right before the loop,
+ * and the loop reads the temporary instead. Temporaries are named
+ * {@code _inv0}, {@code _inv1}, and so on, which no Glyph identifier can be.
+ *
+ * An expression is only moved when it cannot fail or have side effects: it
+ * is made of literals, variables the loop never writes and operators whose
+ * operand types are known to be valid. Calls, divisions and modulos stay in
+ * place. Its variables must also be declared wherever the loop starts: the
+ * parameters, declarations at the top of the frame before the loop, and the
+ * variables of enclosing for loops.
+ */
+public class LoopInvariantMotion {
+	static final String PREFIX = "_inv";
+
+	// Number of expressions replaced by a temporary
+	public int hoisted;
+
+	private int temporaries;
+
+	// Declared type of every variable of the frame, or null when it has more
+	// than one
+	private Map<String, String> types;
+	// Temporaries declared before the current top-level statement
+	private List<Expression> declarations;
+
+	// State of the loop being hoisted from
+	private Set<String> available;
+	private Set<String> writes;
+	private Map<String, String> hoistedIds;
+	private List<Expression> computations;
+	private boolean direct;
+
+	public void hoist(Program prog) {
+		hoistFrame(prog.expressions, List.of(), List.of());
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				hoistFrame(((Block) function.block).getStatements(), function.paramIds, function.paramTypes);
+			}
+		}
+	}
+
+	private void hoistFrame(List<Expression> statements, List<String> paramIds, List<String> paramTypes) {
+		types = new HashMap<>();
+
+		for (int i = 0; i < paramIds.size(); i++) {
+			types.put(paramIds.get(i), paramTypes.get(i));
+		}
+		for (Expression e : statements) {
+			if (!(e instanceof Function)) {
+				addTypes(e);
+			}
+		}
+
+		Set<String> declared = new HashSet<>(paramIds);
+
+		for (int i = 0; i < statements.size(); i++) {
+			Expression e = statements.get(i);
+			declarations = new ArrayList<>();
+
+			if (e instanceof Function) {
+				continue;
+			} else if (isLoop(e)) {
+				List<Expression> before = hoistLoop(e, declared, true);
+				statements.addAll(i, before);
+				i += before.size();
+			}
+			hoistNested(e, declared);
+
+			statements.addAll(i, declarations);
+			i += declarations.size();
+
+			if (e instanceof VariableDeclaration) {
+				declared.add(((VariableDeclaration) e).id);
+			}
+		}
+	}
+
+	private void addType(String id, String type) {
+		if (types.containsKey(id) && !type.equals(types.get(id))) {
+			type = null;
+		}
+		types.put(id, type);
+	}
+
+	private void addTypes(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			addType(((VariableDeclaration) e).id, ((VariableDeclaration) e).type);
+		} else if (e instanceof ForLoop) {
+			addType(((ForLoop) e).id, Keyword.INT_TYPE);
+			addTypes(((ForLoop) e).block);
+		} else if (e instanceof WhileLoop) {
+			addTypes(((WhileLoop) e).block);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			addTypes(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				addTypes(cond.elseBlock);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				addTypes(statement);
+			}
+		}
+	}
+
+	private static boolean isLoop(Expression e) {
+		return e instanceof WhileLoop || e instanceof ForLoop;
+	}
+
+	/**
+	 * Hoists from the loops nested in a statement, outermost first, and from
+	 * the loops nested in those.
+	 */
+	private void hoistNested(Expression e, Set<String> declared) {
+		if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			hoistBlock((Block) cond.ifBlock, declared);
+			if (cond.elseBlock != null) {
+				hoistBlock((Block) cond.elseBlock, declared);
+			}
+		} else if (e instanceof WhileLoop) {
+			hoistBlock((Block) ((WhileLoop) e).block, declared);
+		} else if (e instanceof ForLoop) {
+			// The loop variable is set for the whole body
+			Set<String> inner = new HashSet<>(declared);
+			inner.add(((ForLoop) e).id);
+			hoistBlock((Block) ((ForLoop) e).block, inner);
+		}
+	}
+
+	private void hoistBlock(Block block, Set<String> declared) {
+		List<Expression> statements = block.getStatements();
+
+		for (int i = 0; i < statements.size(); i++) {
+			Expression e = statements.get(i);
+
+			if (isLoop(e)) {
+				List<Expression> before = hoistLoop(e, declared, false);
+				statements.addAll(i, before);
+				i += before.size();
+			}
+			hoistNested(e, declared);
+		}
+	}
+
+	/**
+	 * Replaces the invariant expressions of a loop by temporaries and returns
+	 * the statements that compute them, to run right before the loop. A loop
+	 * at the top of its frame declares its temporaries there; a nested loop
+	 * assigns temporaries declared before the enclosing top-level statement.
+	 */
+	private List<Expression> hoistLoop(Expression loop, Set<String> declared, boolean topLevel) {
+		Map<String, Integer> writeCounts = new HashMap<>();
+		ConstantFolder.countWrites(loop, writeCounts);
+
+		available = declared;
+		writes = writeCounts.keySet();
+		hoistedIds = new HashMap<>();
+		computations = new ArrayList<>();
+		direct = topLevel;
+
+		if (loop instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) loop;
+			whileLoop.condition = rewrite(whileLoop.condition);
+			rewriteStatement(whileLoop.block);
+		} else {
+			// The header of a for loop is only evaluated once
+			rewriteStatement(((ForLoop) loop).block);
+		}
+
+		return computations;
+	}
+
+	private void rewriteStatement(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			decl.expr = rewrite(decl.expr);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			assign.expr = rewrite(assign.expr);
+		} else if (e instanceof Print) {
+			Print print = (Print) e;
+			print.expr = rewrite(print.expr);
+		} else if (e instanceof Return) {
+			Return ret = (Return) e;
+			ret.expr = rewrite(ret.expr);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			cond.condition = rewrite(cond.condition);
+			rewriteStatement(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				rewriteStatement(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			whileLoop.condition = rewrite(whileLoop.condition);
+			rewriteStatement(whileLoop.block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			forLoop.start = rewrite(forLoop.start);
+			forLoop.end = rewrite(forLoop.end);
+			forLoop.step = rewrite(forLoop.step);
+			rewriteStatement(forLoop.block);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				rewriteStatement(statement);
+			}
+		}
+	}
+
+	/** Returns the expression with its largest invariant parts replaced. */
+	private Expression rewrite(Expression e) {
+		String type = typeOf(e);
+
+		if (type != null && !isTrivial(e)) {
+			return new Variable(temporaryFor(e, type));
+		}
+
+		if (e instanceof Parens) {
+			Parens parens = (Parens) e;
+			parens.expr = rewrite(parens.expr);
+		} else if (e instanceof UnaryMinus) {
+			UnaryMinus unary = (UnaryMinus) e;
+			unary.expr = rewrite(unary.expr);
+		} else if (e instanceof Not) {
+			Not not = (Not) e;
+			not.expr = rewrite(not.expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			add.left = rewrite(add.left);
+			add.right = rewrite(add.right);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			mult.left = rewrite(mult.left);
+			mult.right = rewrite(mult.right);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			comp.left = rewrite(comp.left);
+			comp.right = rewrite(comp.right);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			eq.left = rewrite(eq.left);
+			eq.right = rewrite(eq.right);
+		} else if (e instanceof And) {
+			And and = (And) e;
+			and.left = rewrite(and.left);
+			and.right = rewrite(and.right);
+		} else if (e instanceof Or) {
+			Or or = (Or) e;
+			or.left = rewrite(or.left);
+			or.right = rewrite(or.right);
+		} else if (e instanceof FunctionCall) {
+			List<Expression> args = ((FunctionCall) e).args;
+
+			for (int i = 0; i < args.size(); i++) {
+				args.set(i, rewrite(args.get(i)));
+			}
+		}
+
+		return e;
+	}
+
+	// Literals and variables are as cheap to read as a temporary
+	private static boolean isTrivial(Expression e) {
+		while (e instanceof Parens) {
+			e = ((Parens) e).expr;
+		}
+		return !(e instanceof AddSub || e instanceof MultDivMod || e instanceof Comparison
+				|| e instanceof Equality || e instanceof And || e instanceof Or || e instanceof Not
+				|| e instanceof UnaryMinus);
+	}
+
+	private String temporaryFor(Expression e, String type) {
+		// The same expression twice in a loop shares one temporary
+		String key = key(e);
+		String id = hoistedIds.get(key);
+		hoisted++;
+
+		if (id != null) {
+			return id;
+		}
+
+		id = PREFIX + temporaries++;
+		hoistedIds.put(key, id);
+		// Set before the loop starts, so nested loops can hoist it further
+		types.put(id, type);
+
+		if (direct) {
+			computations.add(new VariableDeclaration(id, type, e));
+		} else {
+			declarations.add(new VariableDeclaration(id, type, initialValue(type)));
+			computations.add(new Assignment(id, e));
+		}
+		return id;
+	}
+
+	/**
+	 * Encodes an expression that can be hoisted so that only the same
+	 * expression gets the same key. Its variables are never written in the
+	 * loop, so their name is enough.
+	 */
+	private static String key(Expression e) {
+		if (e instanceof Int) {
+			return "i" + ((Int) e).value;
+		} else if (e instanceof Real) {
+			return "r" + Double.doubleToLongBits(((Real) e).value);
+		} else if (e instanceof Str) {
+			return "s" + ((Str) e).value.length() + ":" + ((Str) e).value;
+		} else if (e instanceof Bool) {
+			return "b" + ((Bool) e).value;
+		} else if (e instanceof Variable) {
+			return "v" + ((Variable) e).id;
+		} else if (e instanceof Parens) {
+			return key(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			return "(neg " + key(((UnaryMinus) e).expr) + ")";
+		} else if (e instanceof Not) {
+			return "(not " + key(((Not) e).expr) + ")";
+		} else if (e instanceof And) {
+			return "(and " + key(((And) e).left) + " " + key(((And) e).right) + ")";
+		} else if (e instanceof Or) {
+			return "(or " + key(((Or) e).left) + " " + key(((Or) e).right) + ")";
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			return "(" + add.operator + " " + key(add.left) + " " + key(add.right) + ")";
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			return "(" + mult.operator + " " + key(mult.left) + " " + key(mult.right) + ")";
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			return "(" + comp.operator + " " + key(comp.left) + " " + key(comp.right) + ")";
+		} else {
+			Equality eq = (Equality) e;
+			return "(" + eq.operator + " " + key(eq.left) + " " + key(eq.right) + ")";
+		}
+	}
+
+	static Expression initialValue(String type) {
+		switch (type) {
+			case Keyword.INT_TYPE:
+				return new Int(0);
+			case Keyword.FLOAT_TYPE:
+				return new Real(0);
+			case Keyword.STRING_TYPE:
+				return new Str("");
+			default:
+				return new Bool(false);
+		}
+	}
+
+	private static boolean isNumber(String type) {
+		return Keyword.INT_TYPE.equals(type) || Keyword.FLOAT_TYPE.equals(type);
+	}
+
+	/**
+	 * Returns the type of an expression that can be evaluated before the loop
+	 * without failing, or null if it cannot be hoisted.
+	 */
+	private String typeOf(Expression e) {
+		if (e instanceof Int) {
+			return Keyword.INT_TYPE;
+		} else if (e instanceof Real) {
+			return Keyword.FLOAT_TYPE;
+		} else if (e instanceof Str) {
+			return Keyword.STRING_TYPE;
+		} else if (e instanceof Bool) {
+			return Keyword.BOOL_TYPE;
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+			boolean declared = available.contains(id) || id.startsWith(PREFIX);
+			return declared && !writes.contains(id) ? types.get(id) : null;
+		} else if (e instanceof Parens) {
+			return typeOf(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			String type = typeOf(((UnaryMinus) e).expr);
+			return isNumber(type) ? type : null;
+		} else if (e instanceof Not) {
+			String type = typeOf(((Not) e).expr);
+			return Keyword.BOOL_TYPE.equals(type) ? type : null;
+		} else if (e instanceof And || e instanceof Or) {
+			String left = typeOf(e instanceof And ? ((And) e).left : ((Or) e).left);
+			String right = typeOf(e instanceof And ? ((And) e).right : ((Or) e).right);
+			return Keyword.BOOL_TYPE.equals(left) && Keyword.BOOL_TYPE.equals(right) ? left : null;
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			String left = typeOf(add.left);
+			String right = typeOf(add.right);
+
+			if (isNumber(left) && left.equals(right)) {
+				return left;
+			} else if (add.operator.equals(Keyword.PLUS)
+					&& (Keyword.STRING_TYPE.equals(left) && (Keyword.STRING_TYPE.equals(right) || isNumber(right))
+							|| Keyword.STRING_TYPE.equals(right) && isNumber(left))) {
+				return Keyword.STRING_TYPE;
+			}
+		} else if (e instanceof MultDivMod) {
+			// Dividing may fail, so only products move
+			MultDivMod mult = (MultDivMod) e;
+			String left = typeOf(mult.left);
+			String right = typeOf(mult.right);
+
+			if (mult.operator.equals(Keyword.TIMES) && isNumber(left) && left.equals(right)) {
+				return left;
+			}
+		} else if (e instanceof Comparison) {
+			String left = typeOf(((Comparison) e).left);
+			String right = typeOf(((Comparison) e).right);
+			return isNumber(left) && left.equals(right) ? Keyword.BOOL_TYPE : null;
+		} else if (e instanceof Equality) {
+			String left = typeOf(((Equality) e).left);
+			String right = typeOf(((Equality) e).right);
+			return left != null && right != null ? Keyword.BOOL_TYPE : null;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,30 @@
+package expression;
+
+/**
+ * Decides how calls to pure functions are cached, and counts how often a
+ * cached result was found. Each declaration of a pure function gets its own
+ * {@link ResultCache} when the declaration runs, so redeclaring a function
+ * never returns results of the old body.
+ *
+ * The capacity can be set with the glyph.memo.capacity system property, and
+ * glyph.memo.trace prints the counters to standard error after a run.
+ */
+public class Memoizer {
+	// Results kept per function declaration; 0 turns memoization off
+	public int capacity = Integer.getInteger("glyph.memo.capacity", 256);
+	public boolean trace = Boolean.getBoolean("glyph.memo.trace");
+	// Calls answered from a cache and calls that had to run the function
+	public long hits;
+	public long misses;
+
+	/** Returns a new cache for a pure function, or null when memoization is off. */
+	public ResultCache newCache() {
+		return capacity > 0 ? new ResultCache(this, capacity) : null;
+	}
+
+	public void printCounters() {
+		if (trace) {
+			System.err.println(String.format("memo: %d hits, %d misses", hits, misses));
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package expression;
 
 public class Not extends Expression {
-    Expression expr;
+    public Expression expr;
 
     public Not(Expression expr) {
         this.expr = expr;
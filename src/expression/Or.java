@@ -1,8 +1,8 @@
 package expression;
 
 public class Or extends Expression {
-    Expression left;
-    Expression right;
+    public Expression left;
+    public Expression right;
 
     public Or(Expression left, Expression right) {
         this.left = left;
@@ -3,8 +3,8 @@ package expression;
 import java.util.List;
 
 public class Params extends Expression {
-    List<String> paramIds;
-    List<String> paramTypes;
+    public List<String> paramIds;
+    public List<String> paramTypes;
 
     public Params(List<String> paramIds, List<String> paramTypes) {
         this.paramIds = paramIds;
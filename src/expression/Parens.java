@@ -1,7 +1,7 @@
 package expression;
 
 public class Parens extends Expression {
-    Expression expr;
+    public Expression expr;
 
     public Parens(Expression expr) {
         this.expr = expr;
@@ -0,0 +1,70 @@
+package expression;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import antlr.ExprParser;
+import antlr.ExprParser.ProgramContext;
+
+/**
+ * Builds the program while ANTLR parses it, as a parse listener, so the parse
+ * tree of only one top-level statement is kept at a time. Each statement is
+ * turned into an expression by {@link AntlrToExpression} as soon as it ends,
+ * at its ✋ or at the end of its rule, and then dropped from the program's
+ * context.
+ *
+ * Nothing is built from a rule that failed or once a syntax error has been
+ * reported, as its tree may be incomplete; the program is discarded then.
+ */
+public class ProgramBuilder implements ParseTreeListener {
+	public Program prog = new Program();
+	private final AntlrToExpression exprVisitor = new AntlrToExpression();
+
+	/** Starts over, for a parser that is parsing the tokens again. */
+	public void reset() {
+		prog = new Program();
+	}
+
+	// Statements that end without a ✋. A left-recursive expression reports an
+	// exit for every operator it parses, so the others wait for their ✋
+	@Override
+	public void exitEveryRule(ParserRuleContext ctx) {
+		int rule = ctx.getRuleIndex();
+
+		if (rule == ExprParser.RULE_cond || rule == ExprParser.RULE_forLoop || rule == ExprParser.RULE_whileLoop
+				|| rule == ExprParser.RULE_func) {
+			build(ctx);
+		}
+	}
+
+	@Override
+	public void visitTerminal(TerminalNode node) {
+		ParserRuleContext parent = (ParserRuleContext) node.getParent();
+
+		if (node.getSymbol().getType() == ExprParser.SEMICOLON && parent instanceof ProgramContext
+				&& parent.getChildCount() > 1 && parent.getChild(parent.getChildCount() - 2) instanceof ParserRuleContext) {
+			build((ParserRuleContext) parent.getChild(parent.getChildCount() - 2));
+		}
+	}
+
+	private void build(ParserRuleContext statement) {
+		ParserRuleContext parent = statement.getParent();
+
+		if (!(parent instanceof ProgramContext) || statement.exception != null || SyntaxErrorListener.hasError) {
+			return;
+		}
+
+		prog.addExpression(exprVisitor.visit(statement));
+		parent.children.clear();
+	}
+
+	@Override
+	public void enterEveryRule(ParserRuleContext ctx) {
+	}
+
+	@Override
+	public void visitErrorNode(ErrorNode node) {
+	}
+}
@@ -0,0 +1,202 @@
+package expression;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Gives every variable a slot in the frame of the program or function that
+ * declares it, so the interpreter indexes arrays instead of hashing names.
+ * Functions only see their own parameters and locals, so a slot in the
+ * current frame is the whole address.
+ *
+ * Names that are never declared in their frame, and top-level declarations
+ * that always repeat an earlier one, are reported here instead of at run
+ * time. Only statements the interpreter executes are resolved.
+ */
+public class Resolver {
+	private Map<String, Integer> slots;
+	private Map<String, Integer> functionSlots = new HashMap<>();
+	// Declared types of the current function's parameters and locals
+	private Map<String, String> types;
+	private boolean inFunction;
+
+	/** Resolves a program and returns the slots of its global variables. */
+	public Map<String, Integer> resolve(List<Expression> list) {
+		Map<String, Integer> globals = new HashMap<>();
+		Set<String> declared = new HashSet<>();
+
+		for (Expression e : list) {
+			if (e instanceof Function) {
+				functionSlots.putIfAbsent(((Function) e).id, functionSlots.size());
+			} else {
+				addSlots(e, globals, null);
+			}
+		}
+
+		for (Expression e : list) {
+			if (e instanceof Function) {
+				resolveFunction((Function) e);
+				continue;
+			}
+
+			// Top-level statements always run in order
+			if (e instanceof VariableDeclaration) {
+				String id = ((VariableDeclaration) e).id;
+
+				if (declared.contains(id)) {
+					String error = String.format("variable '%s' already declared", id);
+					throw new Error(error);
+				}
+				declared.add(id);
+			} else if (e instanceof ForLoop && declared.contains(((ForLoop) e).id)) {
+				String error = String.format("Error: variable '%s' already declared", ((ForLoop) e).id);
+				throw new Error(error);
+			}
+
+			slots = globals;
+			inFunction = false;
+			resolveStatement(e);
+		}
+
+		return globals;
+	}
+
+	/** Returns the slots of the program's functions, one per name. */
+	public Map<String, Integer> getFunctionSlots() {
+		return functionSlots;
+	}
+
+	private void resolveFunction(Function function) {
+		slots = new HashMap<>();
+		types = new HashMap<>();
+		inFunction = true;
+
+		for (int i = 0; i < function.paramIds.size(); i++) {
+			slots.putIfAbsent(function.paramIds.get(i), slots.size());
+			types.putIfAbsent(function.paramIds.get(i), function.paramTypes.get(i));
+		}
+		addSlots(function.block, slots, types);
+
+		function.frameSize = slots.size();
+		resolveStatement(function.block);
+		TailCalls.mark(function);
+	}
+
+	private static void addSlots(Expression e, Map<String, Integer> slots, Map<String, String> types) {
+		if (e instanceof VariableDeclaration) {
+			slots.putIfAbsent(((VariableDeclaration) e).id, slots.size());
+			if (types != null) {
+				types.putIfAbsent(((VariableDeclaration) e).id, ((VariableDeclaration) e).type);
+			}
+		} else if (e instanceof ForLoop) {
+			slots.putIfAbsent(((ForLoop) e).id, slots.size());
+			addSlots(((ForLoop) e).block, slots, types);
+		} else if (e instanceof WhileLoop) {
+			addSlots(((WhileLoop) e).block, slots, types);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			addSlots(cond.ifBlock, slots, types);
+			if (cond.elseBlock != null) {
+				addSlots(cond.elseBlock, slots, types);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				addSlots(statement, slots, types);
+			}
+		}
+	}
+
+	private int slotOf(String id, String error) {
+		Integer slot = slots.get(id);
+
+		if (slot == null) {
+			throw new Error(String.format(error, id));
+		}
+		return slot;
+	}
+
+	private void resolveStatement(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			resolveExpression(decl.expr);
+			decl.slot = slots.get(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			resolveExpression(assign.expr);
+			assign.slot = slotOf(assign.id,
+					inFunction ? "Error: variable '%s' not declared" : "variable '%s' not declared");
+			assign.type = inFunction ? types.get(assign.id) : null;
+		} else if (e instanceof Print) {
+			resolveExpression(((Print) e).expr);
+		} else if (e instanceof Return) {
+			// Top-level returns are never evaluated
+			if (inFunction) {
+				resolveExpression(((Return) e).expr);
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			resolveExpression(cond.condition);
+			resolveStatement(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				resolveStatement(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			resolveExpression(whileLoop.condition);
+			resolveStatement(whileLoop.block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			resolveExpression(forLoop.start);
+			resolveExpression(forLoop.end);
+			resolveExpression(forLoop.step);
+			forLoop.slot = slots.get(forLoop.id);
+			resolveStatement(forLoop.block);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				resolveStatement(statement);
+			}
+		}
+	}
+
+	private void resolveExpression(Expression e) {
+		if (e instanceof Variable) {
+			Variable var = (Variable) e;
+			var.slot = slotOf(var.id, "variable '%s' not declared");
+		} else if (e instanceof Parens) {
+			resolveExpression(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			resolveExpression(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			resolveExpression(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			resolveExpression(((AddSub) e).left);
+			resolveExpression(((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			resolveExpression(((MultDivMod) e).left);
+			resolveExpression(((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			resolveExpression(((Comparison) e).left);
+			resolveExpression(((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			resolveExpression(((Equality) e).left);
+			resolveExpression(((Equality) e).right);
+		} else if (e instanceof And) {
+			resolveExpression(((And) e).left);
+			resolveExpression(((And) e).right);
+		} else if (e instanceof Or) {
+			resolveExpression(((Or) e).left);
+			resolveExpression(((Or) e).right);
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+			// Calls to unknown functions fail only when they run
+			call.slot = functionSlots.getOrDefault(call.id, -1);
+
+			for (Expression arg : call.args) {
+				resolveExpression(arg);
+			}
+		}
+	}
+}
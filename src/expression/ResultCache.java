@@ -0,0 +1,71 @@
+package expression;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of earlier calls to one pure function, keyed on the argument values
+ * and evicting the least recently used once full. A function whose arguments
+ * rarely repeat would only pay for the lookups, so the cache turns itself off
+ * when fewer than one in {@link #MIN_HIT_RATIO} of its first lookups hit.
+ */
+public class ResultCache {
+	// Returned by lookup when there is no result for the arguments
+	public static final Object MISSING = new Object();
+	static final int PROBATION_LOOKUPS = 1024;
+	static final int MIN_HIT_RATIO = 16;
+
+	// False once the cache gave up; calls then run the function directly
+	public boolean active = true;
+
+	private final Memoizer memo;
+	private final Map<Object, Object> results;
+	private long lookups;
+	private long hits;
+
+	ResultCache(Memoizer memo, int capacity) {
+		this.memo = memo;
+		this.results = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/** Returns the cached result of a call with these arguments, or {@link #MISSING}. */
+	public Object lookup(Object[] args) {
+		Object key = key(args);
+		Object result = results.getOrDefault(key, MISSING);
+		lookups++;
+
+		if (result != MISSING) {
+			hits++;
+			memo.hits++;
+		} else {
+			memo.misses++;
+		}
+
+		if (lookups == PROBATION_LOOKUPS && hits * MIN_HIT_RATIO < lookups) {
+			active = false;
+			results.clear();
+		}
+		return result;
+	}
+
+	public void store(Object[] args, Object result) {
+		if (active) {
+			results.put(key(args), result);
+		}
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	// A single argument is its own key; boxed values compare by value
+	private static Object key(Object[] args) {
+		return args.length == 1 ? args[0] : Arrays.asList(args);
+	}
+}
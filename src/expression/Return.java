@@ -1,7 +1,10 @@
 package expression;
 
 public class Return extends Expression {
-    Expression expr;
+    public Expression expr;
+    // Whether this returns a call to the enclosing function as its last
+    // action, set by TailCalls
+    public boolean tailCall;
 
     public Return(Expression expr) {
         this.expr = expr;
@@ -0,0 +1,138 @@
+package expression;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rules the tree interpreter follows for statements, which every engine
+ * has to keep:
+ *
+ * - Only declarations, assignments, prints, conditionals, loops, function
+ * declarations and, inside functions, returns run. A statement that is just
+ * an expression, such as a call, is skipped without being evaluated.
+ * - A declaration that finds its variable declared fails at the top level and
+ * anywhere in a function; only in the blocks of top-level code does it assign
+ * the variable instead. Variables declared in a loop body stay declared, so
+ * in a function that declaration fails on the second iteration.
+ * - A return inside a while loop of a function only ends the loop: its value
+ * is dropped and the function carries on after the loop.
+ *
+ * Backends that cannot make these checks at run time reject the functions
+ * that depend on them, as described by {@link #checkedAtRunTime}.
+ */
+public class StatementRules {
+	/** Whether the interpreter runs a statement. */
+	public static boolean runs(Expression statement, boolean inFunction) {
+		if (statement instanceof Return) {
+			return inFunction;
+		}
+
+		return statement instanceof VariableDeclaration || statement instanceof Assignment
+				|| statement instanceof Print || statement instanceof Conditional || statement instanceof WhileLoop
+				|| statement instanceof ForLoop || statement instanceof Function;
+	}
+
+	/**
+	 * Whether a declaration that finds its variable declared fails, rather than
+	 * assigning it. A top-level statement is one of the program's or of a
+	 * function's body, not of a nested block.
+	 */
+	public static boolean redeclarationFails(boolean topLevel, boolean inFunction) {
+		return topLevel || inFunction;
+	}
+
+	/**
+	 * Describes what a function relies on that only a check at run time gets
+	 * right, or returns null when it relies on nothing.
+	 */
+	public static String checkedAtRunTime(Function function) {
+		String redeclared = redeclaredVariable(function);
+
+		if (redeclared != null) {
+			return String.format("'%s' may declare variable '%s' when it already is", function.id, redeclared);
+		} else if (returnsInWhileLoop(function.block, false)) {
+			return String.format("'%s' returns inside a while loop", function.id);
+		}
+		return null;
+	}
+
+	// A variable that a declaration of the function may find declared: one
+	// declared inside a loop, or with another parameter, declaration or loop
+	// variable of the same name
+	private static String redeclaredVariable(Function function) {
+		Map<String, Integer> sites = new HashMap<>();
+
+		for (String id : function.paramIds) {
+			sites.merge(id, 1, Integer::sum);
+		}
+		countSites(function.block, sites);
+
+		return redeclaredVariable(function.block, sites, false);
+	}
+
+	private static void countSites(Expression e, Map<String, Integer> sites) {
+		if (e instanceof VariableDeclaration) {
+			sites.merge(((VariableDeclaration) e).id, 1, Integer::sum);
+		} else if (e instanceof ForLoop) {
+			sites.merge(((ForLoop) e).id, 1, Integer::sum);
+			countSites(((ForLoop) e).block, sites);
+		} else if (e instanceof WhileLoop) {
+			countSites(((WhileLoop) e).block, sites);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			countSites(cond.ifBlock, sites);
+			if (cond.elseBlock != null) {
+				countSites(cond.elseBlock, sites);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				countSites(statement, sites);
+			}
+		}
+	}
+
+	private static String redeclaredVariable(Expression e, Map<String, Integer> sites, boolean inLoop) {
+		if (e instanceof VariableDeclaration) {
+			String id = ((VariableDeclaration) e).id;
+			return inLoop || sites.get(id) > 1 ? id : null;
+		} else if (e instanceof ForLoop) {
+			return redeclaredVariable(((ForLoop) e).block, sites, true);
+		} else if (e instanceof WhileLoop) {
+			return redeclaredVariable(((WhileLoop) e).block, sites, true);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			String id = redeclaredVariable(cond.ifBlock, sites, inLoop);
+			return id != null || cond.elseBlock == null ? id : redeclaredVariable(cond.elseBlock, sites, inLoop);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				String id = redeclaredVariable(statement, sites, inLoop);
+
+				if (id != null) {
+					return id;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean returnsInWhileLoop(Expression e, boolean inLoop) {
+		if (e instanceof Return) {
+			return inLoop;
+		} else if (e instanceof WhileLoop) {
+			return returnsInWhileLoop(((WhileLoop) e).block, true);
+		} else if (e instanceof ForLoop) {
+			return returnsInWhileLoop(((ForLoop) e).block, inLoop);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return returnsInWhileLoop(cond.ifBlock, inLoop)
+					|| cond.elseBlock != null && returnsInWhileLoop(cond.elseBlock, inLoop);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (returnsInWhileLoop(statement, inLoop)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,41 @@
+package expression;
+
+import java.util.List;
+
+/**
+ * Finds the returns of a function that call the function itself as the last
+ * thing it does, so the engines can run them as a jump back to the start of
+ * the body instead of a nested call.
+ *
+ * Only a return that is the last statement of the body, or of either branch
+ * of a conditional in that position, is a tail call. A call that results in
+ * nothing lets the interpreter carry on after the return, and from these
+ * positions it would reach the end of the function anyway. Returns inside
+ * loops are never tail calls.
+ */
+public class TailCalls {
+	/** Marks the self tail calls of a function and returns how many there are. */
+	public static int mark(Function function) {
+		return mark(function.block, function.id);
+	}
+
+	private static int mark(Expression block, String id) {
+		List<Expression> statements = ((Block) block).getStatements();
+
+		if (statements.isEmpty()) {
+			return 0;
+		}
+
+		Expression last = statements.get(statements.size() - 1);
+
+		if (last instanceof Return) {
+			Return ret = (Return) last;
+			ret.tailCall = ret.expr instanceof FunctionCall && ((FunctionCall) ret.expr).id.equals(id);
+			return ret.tailCall ? 1 : 0;
+		} else if (last instanceof Conditional) {
+			Conditional cond = (Conditional) last;
+			return mark(cond.ifBlock, id) + (cond.elseBlock != null ? mark(cond.elseBlock, id) : 0);
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,189 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jit.JvmCompiler;
+
+/**
+ * Decides when the tree interpreter hands a function to the JVM bytecode
+ * compiler. A function is compiled, together with every function it calls,
+ * once it has been interpreted {@link #compileThreshold} times. Compiled code
+ * is thrown away (deoptimized) when a function it calls is redeclared or not
+ * declared yet, and a function deoptimized {@link #maxDeoptimizations} times
+ * stays interpreted. Functions that rely on a rule of {@link StatementRules}
+ * only the interpreter checks at run time, such as redeclaring a variable in
+ * a nested block, are never compiled.
+ *
+ * The defaults can be tuned with the glyph.tier.threshold and
+ * glyph.tier.maxDeopts system properties, and glyph.tier.trace prints every
+ * decision to standard error.
+ */
+public class TierPolicy {
+	// Interpreted calls before a function is compiled; 0 turns tiering off
+	public int compileThreshold = Integer.getInteger("glyph.tier.threshold", 1000);
+	public int maxDeoptimizations = Integer.getInteger("glyph.tier.maxDeopts", 3);
+	public boolean trace = Boolean.getBoolean("glyph.tier.trace");
+	// Every decision made, in order
+	public List<String> decisions = new ArrayList<>();
+
+	void record(String format, Object... args) {
+		String decision = String.format(format, args);
+		decisions.add(decision);
+
+		if (trace) {
+			System.err.println("tier: " + decision);
+		}
+	}
+
+	/**
+	 * Returns the code to run for a function at this call, or null to interpret
+	 * it. Counts the call, and compiles the function when it gets hot.
+	 */
+	CompiledCode codeFor(Function function, Function[] funcs) {
+		CompiledCode code = function.compiled;
+
+		if (code != null) {
+			if (code.isValid(funcs)) {
+				return code;
+			}
+
+			function.compiled = null;
+			function.invocations = 0;
+			function.deoptimizations++;
+			record("deoptimized '%s': a function it calls was redeclared or is not declared yet", function.id);
+
+			if (function.deoptimizations >= maxDeoptimizations) {
+				function.interpretOnly = true;
+				record("keeping '%s' interpreted after %d deoptimizations", function.id, function.deoptimizations);
+			}
+			return null;
+		}
+
+		if (function.interpretOnly || ++function.invocations < compileThreshold) {
+			return null;
+		}
+
+		function.compiled = compile(function, funcs);
+		return function.compiled;
+	}
+
+	private CompiledCode compile(Function function, Function[] funcs) {
+		List<Function> callees = new ArrayList<>();
+		List<Integer> calleeSlots = new ArrayList<>();
+		List<FunctionCall> calls = new ArrayList<>();
+		callees.add(function);
+
+		// The compiled class holds every function reachable from this one
+		for (int i = 0; i < callees.size(); i++) {
+			Function callee = callees.get(i);
+
+			String reason = StatementRules.checkedAtRunTime(callee);
+
+			if (reason != null) {
+				function.interpretOnly = true;
+				record("keeping '%s' interpreted: %s", function.id, reason);
+				return null;
+			}
+
+			calls.clear();
+			collectCalls(callee.block, calls);
+
+			for (FunctionCall call : calls) {
+				Function target = call.slot < 0 ? null : funcs[call.slot];
+
+				if (target == null) {
+					// Try again once the callee has been declared
+					function.invocations = 0;
+					record("not compiling '%s' yet: '%s' is not declared", function.id, call.id);
+					return null;
+				}
+
+				if (!callees.contains(target)) {
+					callees.add(target);
+				}
+				if (!calleeSlots.contains(call.slot)) {
+					calleeSlots.add(call.slot);
+				}
+			}
+		}
+
+		try {
+			CompiledCode code = new CompiledCode(new JvmCompiler().compileFunction(function, callees),
+					calleeSlots.stream().map(slot -> funcs[slot]).toArray(Function[]::new),
+					calleeSlots.stream().mapToInt(Integer::intValue).toArray());
+			record("compiled '%s' after %d calls", function.id, function.invocations);
+			return code;
+		} catch (UnsupportedOperationException e) {
+			function.interpretOnly = true;
+			record("keeping '%s' interpreted: %s", function.id, e.getMessage());
+			return null;
+		}
+	}
+
+	private static void collectCalls(Expression e, List<FunctionCall> calls) {
+		if (e instanceof FunctionCall) {
+			calls.add((FunctionCall) e);
+
+			for (Expression arg : ((FunctionCall) e).args) {
+				collectCalls(arg, calls);
+			}
+		} else if (e instanceof VariableDeclaration) {
+			collectCalls(((VariableDeclaration) e).expr, calls);
+		} else if (e instanceof Assignment) {
+			collectCalls(((Assignment) e).expr, calls);
+		} else if (e instanceof Print) {
+			collectCalls(((Print) e).expr, calls);
+		} else if (e instanceof Return) {
+			collectCalls(((Return) e).expr, calls);
+		} else if (e instanceof Parens) {
+			collectCalls(((Parens) e).expr, calls);
+		} else if (e instanceof UnaryMinus) {
+			collectCalls(((UnaryMinus) e).expr, calls);
+		} else if (e instanceof Not) {
+			collectCalls(((Not) e).expr, calls);
+		} else if (e instanceof AddSub) {
+			collectCalls(((AddSub) e).left, calls);
+			collectCalls(((AddSub) e).right, calls);
+		} else if (e instanceof MultDivMod) {
+			collectCalls(((MultDivMod) e).left, calls);
+			collectCalls(((MultDivMod) e).right, calls);
+		} else if (e instanceof Comparison) {
+			collectCalls(((Comparison) e).left, calls);
+			collectCalls(((Comparison) e).right, calls);
+		} else if (e instanceof Equality) {
+			collectCalls(((Equality) e).left, calls);
+			collectCalls(((Equality) e).right, calls);
+		} else if (e instanceof And) {
+			collectCalls(((And) e).left, calls);
+			collectCalls(((And) e).right, calls);
+		} else if (e instanceof Or) {
+			collectCalls(((Or) e).left, calls);
+			collectCalls(((Or) e).right, calls);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			collectCalls(cond.condition, calls);
+			collectCalls(cond.ifBlock, calls);
+			if (cond.elseBlock != null) {
+				collectCalls(cond.elseBlock, calls);
+			}
+		} else if (e instanceof WhileLoop) {
+			collectCalls(((WhileLoop) e).condition, calls);
+			collectCalls(((WhileLoop) e).block, calls);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			collectCalls(forLoop.start, calls);
+			collectCalls(forLoop.end, calls);
+			collectCalls(forLoop.step, calls);
+			collectCalls(forLoop.block, calls);
+		} else if (e instanceof Block) {
+			// Calls that make up a whole statement never run, and are left
+			// unresolved
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (StatementRules.runs(statement, true)) {
+					collectCalls(statement, calls);
+				}
+			}
+		}
+	}
+}
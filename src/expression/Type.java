@@ -0,0 +1,44 @@
+package expression;
+
+/**
+ * Static type of an expression, as inferred by {@link TypeChecker}.
+ */
+public enum Type {
+	INT(Keyword.INT_TYPE, "int"),
+	FLOAT(Keyword.FLOAT_TYPE, "float"),
+	BOOL(Keyword.BOOL_TYPE, "bool"),
+	STRING(Keyword.STRING_TYPE, "string"),
+	// Only known at run time, like the result of a function that returns
+	// values of different types or falls off its end
+	ANY(null, "any"),
+	// No value yet: the result of a function whose returns are still being
+	// inferred
+	NONE(null, "none");
+
+	public final String keyword;
+	public final String text;
+
+	Type(String keyword, String text) {
+		this.keyword = keyword;
+		this.text = text;
+	}
+
+	public static Type of(String keyword) {
+		for (Type type : values()) {
+			if (keyword.equals(type.keyword)) {
+				return type;
+			}
+		}
+		return ANY;
+	}
+
+	/** Returns the least type that holds values of both types. */
+	public static Type join(Type a, Type b) {
+		if (a == NONE || a == b) {
+			return b;
+		} else if (b == NONE) {
+			return a;
+		}
+		return ANY;
+	}
+}
@@ -0,0 +1,365 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Infers the static type of every expression the interpreter evaluates and
+ * stores it in {@link Expression#staticType}, so the interpreter can skip the
+ * checks the types already prove. Variables keep the type they are first
+ * declared with in their frame; function results are inferred from their
+ * returns, and are {@link Type#ANY} when they return values of different types
+ * or may fall off their end.
+ *
+ * Every type error found is reported before the program runs, in one Error
+ * with a line per problem. Operations on {@link Type#ANY} values are still
+ * checked at run time. Like Resolver, only statements the interpreter
+ * executes are checked.
+ */
+public class TypeChecker {
+	private Map<String, List<Function>> functions = new HashMap<>();
+	private Map<String, Type> returnTypes = new HashMap<>();
+	private Map<String, Type> varTypes;
+	private List<String> errors = new ArrayList<>();
+	// Errors are only reported once return types are known
+	private boolean reporting;
+
+	/** Checks a program that has already been resolved. */
+	public void check(List<Expression> list) {
+		Map<String, Type> globals = new HashMap<>();
+
+		for (Expression e : list) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				functions.computeIfAbsent(function.id, id -> new ArrayList<>()).add(function);
+				returnTypes.put(function.id, Type.NONE);
+			} else {
+				addTypes(e, globals);
+			}
+		}
+
+		// Recursive functions need their return types to settle
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+
+			for (String id : functions.keySet()) {
+				Type type = Type.NONE;
+
+				for (Function function : functions.get(id)) {
+					type = Type.join(type, inferReturnType(function));
+				}
+				if (type != returnTypes.get(id)) {
+					returnTypes.put(id, type);
+					changed = true;
+				}
+			}
+		}
+
+		// Functions that never return a value have nothing to check against
+		returnTypes.replaceAll((id, type) -> type == Type.NONE ? Type.ANY : type);
+
+		reporting = true;
+		for (Expression e : list) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				varTypes = functionTypes(function);
+				checkStatement(function.block, true);
+			} else {
+				varTypes = globals;
+				checkStatement(e, false);
+			}
+		}
+
+		if (!errors.isEmpty()) {
+			throw new Error(String.join("\n", errors));
+		}
+	}
+
+	private static void addTypes(Expression e, Map<String, Type> types) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			types.putIfAbsent(decl.id, Type.of(decl.type));
+		} else if (e instanceof ForLoop) {
+			types.putIfAbsent(((ForLoop) e).id, Type.INT);
+			addTypes(((ForLoop) e).block, types);
+		} else if (e instanceof WhileLoop) {
+			addTypes(((WhileLoop) e).block, types);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			addTypes(cond.ifBlock, types);
+			if (cond.elseBlock != null) {
+				addTypes(cond.elseBlock, types);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				addTypes(statement, types);
+			}
+		}
+	}
+
+	private static Map<String, Type> functionTypes(Function function) {
+		Map<String, Type> types = new HashMap<>();
+
+		for (int i = 0; i < function.paramIds.size(); i++) {
+			types.putIfAbsent(function.paramIds.get(i), Type.of(function.paramTypes.get(i)));
+		}
+		addTypes(function.block, types);
+
+		return types;
+	}
+
+	private Type inferReturnType(Function function) {
+		varTypes = functionTypes(function);
+		Type type = joinReturns(function.block, Type.NONE);
+
+		return alwaysReturns(function.block) ? type : Type.ANY;
+	}
+
+	/** Joins the types of the returns that end a call to the function. */
+	private Type joinReturns(Expression e, Type type) {
+		if (e instanceof Return) {
+			return Type.join(type, typeOf(((Return) e).expr));
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			type = joinReturns(cond.ifBlock, type);
+			return cond.elseBlock != null ? joinReturns(cond.elseBlock, type) : type;
+		} else if (e instanceof ForLoop) {
+			return joinReturns(((ForLoop) e).block, type);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				type = joinReturns(statement, type);
+			}
+		}
+		// A return inside a while loop only leaves the loop
+		return type;
+	}
+
+	private static boolean alwaysReturns(Expression e) {
+		if (e instanceof Return) {
+			return true;
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return cond.elseBlock != null && alwaysReturns(cond.ifBlock) && alwaysReturns(cond.elseBlock);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (alwaysReturns(statement)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void error(String format, Object... args) {
+		if (reporting) {
+			errors.add(String.format(format, args));
+		}
+	}
+
+	private static boolean isNumber(Type type) {
+		return type == Type.INT || type == Type.FLOAT;
+	}
+
+	private void checkValue(Expression expr, String id, Type varType) {
+		Type type = typeOf(expr);
+
+		if (type != Type.ANY && type != varType) {
+			error("cannot assign %s value to variable '%s' of type '%s'", type.text, id, varType.text);
+		}
+	}
+
+	private void checkStatement(Expression e, boolean inFunction) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			checkValue(decl.expr, decl.id, varTypes.get(decl.id));
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			checkValue(assign.expr, assign.id, varTypes.get(assign.id));
+		} else if (e instanceof Print) {
+			typeOf(((Print) e).expr);
+		} else if (e instanceof Return) {
+			// Top-level returns are never evaluated
+			if (inFunction) {
+				typeOf(((Return) e).expr);
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			checkCondition(cond.condition);
+			checkStatement(cond.ifBlock, inFunction);
+			if (cond.elseBlock != null) {
+				checkStatement(cond.elseBlock, inFunction);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			checkCondition(whileLoop.condition);
+			checkStatement(whileLoop.block, inFunction);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			checkBound(forLoop.start);
+			checkBound(forLoop.end);
+			checkBound(forLoop.step);
+			checkStatement(forLoop.block, inFunction);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				checkStatement(statement, inFunction);
+			}
+		}
+	}
+
+	private void checkCondition(Expression e) {
+		Type type = typeOf(e);
+
+		if (type != Type.BOOL && type != Type.ANY) {
+			error("cannot use %s value as a condition", type.text);
+		}
+	}
+
+	private void checkBound(Expression e) {
+		Type type = typeOf(e);
+
+		if (type != Type.INT && type != Type.ANY) {
+			error("cannot use %s value as a loop bound", type.text);
+		}
+	}
+
+	/**
+	 * Infers and records the type of an expression. An expression with an error
+	 * is ANY, which no check rejects, so the mistake is only reported once.
+	 */
+	private Type typeOf(Expression e) {
+		Type type = Type.ANY;
+
+		if (e instanceof Int) {
+			type = Type.INT;
+		} else if (e instanceof Real) {
+			type = Type.FLOAT;
+		} else if (e instanceof Str) {
+			type = Type.STRING;
+		} else if (e instanceof Bool) {
+			type = Type.BOOL;
+		} else if (e instanceof Variable) {
+			type = varTypes.get(((Variable) e).id);
+		} else if (e instanceof Parens) {
+			type = typeOf(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			type = typeOf(((UnaryMinus) e).expr);
+
+			if (!isNumber(type) && type != Type.ANY && type != Type.NONE) {
+				error("cannot apply '-' to non-number");
+				type = Type.ANY;
+			}
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			type = typeOfArithmetic(typeOf(add.left), typeOf(add.right), add.operator);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			type = typeOfArithmetic(typeOf(mult.left), typeOf(mult.right), mult.operator);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			Type left = typeOf(comp.left);
+			Type right = typeOf(comp.right);
+
+			type = Type.BOOL;
+
+			if (!(isNumber(left) || left == Type.ANY || left == Type.NONE)
+					|| !(isNumber(right) || right == Type.ANY || right == Type.NONE)
+					|| isNumber(left) && isNumber(right) && left != right) {
+				error("cannot apply '%s' to non-numbers", comp.operator);
+				type = Type.ANY;
+			}
+		} else if (e instanceof Equality) {
+			typeOf(((Equality) e).left);
+			typeOf(((Equality) e).right);
+			type = Type.BOOL;
+		} else if (e instanceof And) {
+			type = typeOfLogical(typeOf(((And) e).left), typeOf(((And) e).right), "&&");
+		} else if (e instanceof Or) {
+			type = typeOfLogical(typeOf(((Or) e).left), typeOf(((Or) e).right), "||");
+		} else if (e instanceof Not) {
+			type = typeOfLogical(typeOf(((Not) e).expr), Type.BOOL, "!");
+		} else if (e instanceof FunctionCall) {
+			type = typeOfCall((FunctionCall) e);
+		}
+
+		e.staticType = type;
+		return type;
+	}
+
+	private Type typeOfArithmetic(Type left, Type right, String operator) {
+		if (left == Type.NONE || right == Type.NONE) {
+			return Type.NONE;
+		} else if (isNumber(left) && isNumber(right)) {
+			if (left == right) {
+				return left;
+			}
+			error("cannot apply '%s' to non-numbers", operator);
+			return Type.ANY;
+		}
+
+		if (operator.equals(Keyword.PLUS)) {
+			// Strings concatenate with strings and numbers
+			boolean leftText = left == Type.STRING || isNumber(left) || left == Type.ANY;
+			boolean rightText = right == Type.STRING || isNumber(right) || right == Type.ANY;
+
+			if (leftText && rightText) {
+				return left == Type.STRING || right == Type.STRING ? Type.STRING : Type.ANY;
+			}
+		} else if ((isNumber(left) || left == Type.ANY) && (isNumber(right) || right == Type.ANY)) {
+			return Type.ANY;
+		}
+
+		error("cannot apply '%s' to non-numbers", operator);
+		return Type.ANY;
+	}
+
+	private Type typeOfLogical(Type left, Type right, String operator) {
+		boolean valid = (left == Type.BOOL || left == Type.ANY || left == Type.NONE)
+				&& (right == Type.BOOL || right == Type.ANY || right == Type.NONE);
+
+		if (!valid) {
+			error("cannot apply '%s' to non-boolean", operator);
+			return Type.ANY;
+		}
+		return Type.BOOL;
+	}
+
+	private Type typeOfCall(FunctionCall call) {
+		List<Type> argTypes = new ArrayList<>();
+
+		for (Expression arg : call.args) {
+			argTypes.add(typeOf(arg));
+		}
+
+		List<Function> declared = functions.get(call.id);
+
+		if (declared == null) {
+			error("Error: function '%s' not declared", call.id);
+			return Type.ANY;
+		}
+
+		// Arguments are only checked when every declaration agrees
+		if (declared.size() == 1) {
+			Function function = declared.get(0);
+
+			if (argTypes.size() != function.paramIds.size()) {
+				error("Error: wrong number of arguments for function '%s'", call.id);
+			} else {
+				for (int i = 0; i < argTypes.size(); i++) {
+					Type argType = argTypes.get(i);
+					Type paramType = Type.of(function.paramTypes.get(i));
+
+					if (argType != Type.ANY && argType != Type.NONE && argType != paramType) {
+						error("Error: wrong type for argument '%s' of function '%s'", function.paramIds.get(i),
+								call.id);
+					}
+				}
+			}
+		}
+
+		return returnTypes.get(call.id);
+	}
+}
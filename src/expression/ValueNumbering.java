@@ -0,0 +1,468 @@
+package expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes an expression that a block evaluates more than once with the same
+ * values only the first time, into a temporary that later uses read instead.
+ * Temporaries are named {@code _cse0}, {@code _cse1}, and so on, and declared
+ * at the top of their frame.
+ *
+ * Two expressions have the same value number when they apply the same
+ * operators to the same literals and to the same writes of the same
+ * variables: every declaration, assignment or loop that may write a variable
+ * gives it a new number, so a use after a write is never replaced. Calls and
+ * logical operators are never numbered.
+ *
+ * The first evaluation moves right before its statement, so it is only used
+ * when everything its statement evaluates before it cannot fail, and
+ * conditions of while loops, which run on every iteration, only ever reuse
+ * values. A value computed in a branch or a loop body is not reused after it.
+ * Nothing is numbered in programs with errors the resolver or the type checker
+ * would report.
+ */
+public class ValueNumbering {
+	static final String PREFIX = "_cse";
+
+	// Number of evaluations replaced by a read of a temporary
+	public int reused;
+
+	private int temporaries;
+
+	// First evaluation of every value, and the later evaluations that reuse it
+	private Map<Expression, Value> firsts = new IdentityHashMap<>();
+	private Map<Expression, Value> uses = new IdentityHashMap<>();
+
+	// State of the frame being numbered
+	private boolean inFunction;
+	private Set<String> available;
+	private Map<String, Integer> versions;
+	private int clock;
+	private Map<String, Value> values;
+	// Whether everything evaluated so far in the statement cannot fail
+	private boolean safe;
+
+	// Temporaries declared before the current top-level statement
+	private List<Expression> declarations;
+
+	private static class Value {
+		Expression first;
+		String id;
+		boolean reused;
+	}
+
+	public void number(Program prog) {
+		try {
+			new Resolver().resolve(prog.expressions);
+			new TypeChecker().check(prog.expressions);
+		} catch (Error e) {
+			// Left for the engines to report as usual
+			return;
+		}
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function function = (Function) e;
+				List<Expression> body = ((Block) function.block).getStatements();
+				numberFrame(body, function.paramIds, true);
+				rewriteFrame(body);
+			}
+		}
+
+		numberFrame(prog.expressions, List.of(), false);
+		rewriteFrame(prog.expressions);
+	}
+
+	private void numberFrame(List<Expression> statements, List<String> paramIds, boolean inFunction) {
+		this.inFunction = inFunction;
+		available = new HashSet<>(paramIds);
+		versions = new HashMap<>();
+		values = new HashMap<>();
+
+		for (Expression e : statements) {
+			if (!(e instanceof Function)) {
+				numberStatement(e);
+
+				if (e instanceof VariableDeclaration) {
+					available.add(((VariableDeclaration) e).id);
+				}
+			}
+		}
+	}
+
+	private void numberBlock(Expression block) {
+		for (Expression e : ((Block) block).getStatements()) {
+			numberStatement(e);
+		}
+	}
+
+	private void numberStatement(Expression e) {
+		safe = true;
+
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			numberExpression(decl.expr, true);
+			write(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			numberExpression(assign.expr, true);
+			write(assign.id);
+		} else if (e instanceof Print) {
+			numberExpression(((Print) e).expr, true);
+		} else if (e instanceof Return) {
+			// Top-level returns never evaluate their value
+			if (inFunction) {
+				numberExpression(((Return) e).expr, true);
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			numberExpression(cond.condition, true);
+
+			Map<String, Value> before = values;
+			Map<String, Integer> versionsBefore = versions;
+
+			values = new HashMap<>(before);
+			versions = new HashMap<>(versionsBefore);
+			numberBlock(cond.ifBlock);
+
+			if (cond.elseBlock != null) {
+				values = new HashMap<>(before);
+				versions = new HashMap<>(versionsBefore);
+				numberBlock(cond.elseBlock);
+			}
+
+			values = before;
+			versions = versionsBefore;
+			writeAll(e);
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			Map<String, Value> before = values;
+
+			// Values the loop may change are different on every iteration
+			writeAll(e);
+			values = new HashMap<>(before);
+			numberExpression(whileLoop.condition, false);
+			numberBlock(whileLoop.block);
+
+			values = before;
+			writeAll(e);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			numberExpression(forLoop.start, true);
+			numberExpression(forLoop.end, true);
+			numberExpression(forLoop.step, true);
+
+			Map<String, Value> before = values;
+			Set<String> outer = available;
+
+			writeAll(e);
+			values = new HashMap<>(before);
+			available = new HashSet<>(available);
+			available.add(forLoop.id);
+			numberBlock(forLoop.block);
+
+			values = before;
+			available = outer;
+			writeAll(e);
+		} else if (!(e instanceof Function)) {
+			numberExpression(e, true);
+		}
+	}
+
+	private void write(String id) {
+		versions.put(id, ++clock);
+	}
+
+	// Gives a new number to every variable a statement may write
+	private void writeAll(Expression e) {
+		Map<String, Integer> writes = new HashMap<>();
+		ConstantFolder.countWrites(e, writes);
+
+		for (String id : writes.keySet()) {
+			write(id);
+		}
+	}
+
+	/**
+	 * Numbers an expression and its operands in the order they are evaluated.
+	 * Values are only first computed here when {@code define} is set.
+	 */
+	private void numberExpression(Expression e, boolean define) {
+		String key = isNumbered(e) ? key(e) : null;
+		Value value = key != null ? values.get(key) : null;
+
+		if (value != null) {
+			// Its operands are never evaluated again
+			uses.put(e, value);
+			value.reused = true;
+			return;
+		}
+
+		boolean first = define && safe;
+
+		if (e instanceof And || e instanceof Or) {
+			// Logical operators may skip their right operand
+			for (Expression operand : operands(e)) {
+				numberExpression(operand, false);
+			}
+		} else {
+			for (Expression operand : operands(e)) {
+				numberExpression(operand, define);
+			}
+		}
+
+		if (key != null && first) {
+			value = new Value();
+			value.first = e;
+			values.put(key, value);
+			firsts.put(e, value);
+		}
+
+		safe &= cannotFail(e);
+	}
+
+	private boolean cannotFail(Expression e) {
+		if (e instanceof Variable) {
+			return available.contains(((Variable) e).id);
+		} else if (e instanceof FunctionCall) {
+			return false;
+		} else if (e instanceof MultDivMod && !((MultDivMod) e).operator.equals(Keyword.TIMES)) {
+			// Dividing by zero fails
+			return false;
+		}
+
+		for (Expression operand : operands(e)) {
+			if (!isKnown(operand)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isKnown(Expression e) {
+		return e.staticType != null && e.staticType.keyword != null;
+	}
+
+	private static boolean isNumbered(Expression e) {
+		return isKnown(e) && (e instanceof AddSub || e instanceof MultDivMod || e instanceof Comparison
+				|| e instanceof Equality || e instanceof UnaryMinus || e instanceof Not);
+	}
+
+	/**
+	 * Returns the value number of an expression, or null when it reads
+	 * something that is not numbered.
+	 */
+	private String key(Expression e) {
+		if (e instanceof Int) {
+			return "i" + ((Int) e).value;
+		} else if (e instanceof Real) {
+			return "r" + Double.doubleToLongBits(((Real) e).value);
+		} else if (e instanceof Str) {
+			return "s" + ((Str) e).value.length() + ":" + ((Str) e).value;
+		} else if (e instanceof Bool) {
+			return "b" + ((Bool) e).value;
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+			return "v" + id + "#" + versions.getOrDefault(id, 0);
+		} else if (e instanceof Parens) {
+			return key(((Parens) e).expr);
+		} else if (!isNumbered(e)) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder("(").append(operator(e));
+
+		for (Expression operand : operands(e)) {
+			String key = key(operand);
+
+			if (key == null) {
+				return null;
+			}
+			sb.append(' ').append(key);
+		}
+		return sb.append(')').toString();
+	}
+
+	private static String operator(Expression e) {
+		if (e instanceof AddSub) {
+			return ((AddSub) e).operator;
+		} else if (e instanceof MultDivMod) {
+			return ((MultDivMod) e).operator;
+		} else if (e instanceof Comparison) {
+			return ((Comparison) e).operator;
+		} else if (e instanceof Equality) {
+			return ((Equality) e).operator;
+		}
+		return e instanceof UnaryMinus ? "neg" : "not";
+	}
+
+	private static List<Expression> operands(Expression e) {
+		if (e instanceof Parens) {
+			return List.of(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			return List.of(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			return List.of(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			return List.of(((AddSub) e).left, ((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			return List.of(((MultDivMod) e).left, ((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			return List.of(((Comparison) e).left, ((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			return List.of(((Equality) e).left, ((Equality) e).right);
+		} else if (e instanceof And) {
+			return List.of(((And) e).left, ((And) e).right);
+		} else if (e instanceof Or) {
+			return List.of(((Or) e).left, ((Or) e).right);
+		} else if (e instanceof FunctionCall) {
+			return ((FunctionCall) e).args;
+		}
+		return List.of();
+	}
+
+	private void rewriteFrame(List<Expression> statements) {
+		for (int i = 0; i < statements.size(); i++) {
+			declarations = new ArrayList<>();
+			List<Expression> before = rewriteStatement(statements.get(i));
+			before.addAll(0, declarations);
+			statements.addAll(i, before);
+			i += before.size();
+		}
+	}
+
+	private void rewriteBlock(Expression block) {
+		List<Expression> statements = ((Block) block).getStatements();
+
+		for (int i = 0; i < statements.size(); i++) {
+			List<Expression> before = rewriteStatement(statements.get(i));
+			statements.addAll(i, before);
+			i += before.size();
+		}
+	}
+
+	/**
+	 * Replaces reused values in a statement by their temporaries, and returns
+	 * the assignments of the values first computed in it.
+	 */
+	private List<Expression> rewriteStatement(Expression e) {
+		List<Expression> before = new ArrayList<>();
+
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			decl.expr = rewrite(decl.expr, before);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			assign.expr = rewrite(assign.expr, before);
+		} else if (e instanceof Print) {
+			Print print = (Print) e;
+			print.expr = rewrite(print.expr, before);
+		} else if (e instanceof Return) {
+			Return ret = (Return) e;
+			ret.expr = rewrite(ret.expr, before);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			cond.condition = rewrite(cond.condition, before);
+			rewriteBlock(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				rewriteBlock(cond.elseBlock);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			whileLoop.condition = rewrite(whileLoop.condition, before);
+			rewriteBlock(whileLoop.block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			forLoop.start = rewrite(forLoop.start, before);
+			forLoop.end = rewrite(forLoop.end, before);
+			forLoop.step = rewrite(forLoop.step, before);
+			rewriteBlock(forLoop.block);
+		} else if (e instanceof FunctionCall) {
+			rewrite(e, before);
+		}
+
+		return before;
+	}
+
+	/**
+	 * Returns the expression with its reused values replaced, adding the
+	 * assignments of values it computes first to {@code before}, operands
+	 * first.
+	 */
+	private Expression rewrite(Expression e, List<Expression> before) {
+		Value use = uses.get(e);
+
+		if (use != null) {
+			reused++;
+			return read(use);
+		}
+
+		if (e instanceof Parens) {
+			Parens parens = (Parens) e;
+			parens.expr = rewrite(parens.expr, before);
+		} else if (e instanceof UnaryMinus) {
+			UnaryMinus unary = (UnaryMinus) e;
+			unary.expr = rewrite(unary.expr, before);
+		} else if (e instanceof Not) {
+			Not not = (Not) e;
+			not.expr = rewrite(not.expr, before);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			add.left = rewrite(add.left, before);
+			add.right = rewrite(add.right, before);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+			mult.left = rewrite(mult.left, before);
+			mult.right = rewrite(mult.right, before);
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			comp.left = rewrite(comp.left, before);
+			comp.right = rewrite(comp.right, before);
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			eq.left = rewrite(eq.left, before);
+			eq.right = rewrite(eq.right, before);
+		} else if (e instanceof And) {
+			And and = (And) e;
+			and.left = rewrite(and.left, before);
+			and.right = rewrite(and.right, before);
+		} else if (e instanceof Or) {
+			Or or = (Or) e;
+			or.left = rewrite(or.left, before);
+			or.right = rewrite(or.right, before);
+		} else if (e instanceof FunctionCall) {
+			List<Expression> args = ((FunctionCall) e).args;
+
+			for (int i = 0; i < args.size(); i++) {
+				args.set(i, rewrite(args.get(i), before));
+			}
+		}
+
+		Value first = firsts.get(e);
+
+		if (first != null && first.reused) {
+			Variable temporary = read(first);
+			String type = e.staticType.keyword;
+			declarations.add(new VariableDeclaration(temporary.id, type, LoopInvariantMotion.initialValue(type)));
+			before.add(new Assignment(temporary.id, e));
+			return temporary;
+		}
+		return e;
+	}
+
+	private Variable read(Value value) {
+		if (value.id == null) {
+			value.id = PREFIX + temporaries++;
+		}
+
+		Variable variable = new Variable(value.id);
+		variable.staticType = value.first.staticType;
+		return variable;
+	}
+}
@@ -1,7 +1,9 @@
 package expression;
 
 public class Variable extends Expression {
-	String id;
+	public String id;
+	// Frame slot, set by Resolver
+	public int slot = -1;
 	
 	public Variable(String id) {
 		this.id = id;
@@ -4,6 +4,8 @@ public class VariableDeclaration extends Expression {
 	public String id;
 	public String type;
 	public Expression expr;
+	// Frame slot, set by Resolver
+	public int slot = -1;
 
 	public VariableDeclaration(String id, String type, Expression expr) {
 		this.id = id;
@@ -0,0 +1,109 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A straight-line sequence of instructions: phis first, then the rest, and a
+ * terminator last that jumps to the successors.
+ */
+public class BasicBlock {
+	public final IrFunction function;
+	public final int id;
+	public List<Instruction> instructions = new ArrayList<>();
+	public List<BasicBlock> predecessors = new ArrayList<>();
+	public List<BasicBlock> successors = new ArrayList<>();
+
+	BasicBlock(IrFunction function, int id) {
+		this.function = function;
+		this.id = id;
+	}
+
+	/** Appends an instruction, before the terminator if the block already has one. */
+	public Instruction add(Instruction instruction) {
+		int index = instructions.size();
+
+		if (terminator() != null && !instruction.op.terminator) {
+			index--;
+		}
+		return insert(index, instruction);
+	}
+
+	public Instruction insert(int index, Instruction instruction) {
+		instruction.block = this;
+
+		if (instruction.id < 0) {
+			instruction.id = function.nextId++;
+		}
+
+		instructions.add(index, instruction);
+		return instruction;
+	}
+
+	public Instruction addPhi(Instruction phi) {
+		int index = 0;
+
+		while (index < instructions.size() && instructions.get(index).op == Op.PHI) {
+			index++;
+		}
+		return insert(index, phi);
+	}
+
+	public List<Instruction> phis() {
+		List<Instruction> phis = new ArrayList<>();
+
+		for (Instruction instruction : instructions) {
+			if (instruction.op == Op.PHI) {
+				phis.add(instruction);
+			}
+		}
+		return phis;
+	}
+
+	public Instruction terminator() {
+		Instruction last = instructions.isEmpty() ? null : instructions.get(instructions.size() - 1);
+		return last != null && last.op.terminator ? last : null;
+	}
+
+	public void addSuccessor(BasicBlock successor) {
+		successors.add(successor);
+		successor.predecessors.add(this);
+	}
+
+	/** Removes the edge to a successor, along with the operands its phis take from this block. */
+	public void removeSuccessor(BasicBlock successor) {
+		successors.remove(successor);
+		int index = successor.predecessors.indexOf(this);
+
+		if (index >= 0) {
+			successor.predecessors.remove(index);
+
+			for (Instruction phi : successor.phis()) {
+				phi.operands.remove(index);
+			}
+		}
+	}
+
+	public String label() {
+		return "b" + id;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(label()).append(':');
+
+		if (!predecessors.isEmpty()) {
+			sb.append("    ; from");
+			for (BasicBlock predecessor : predecessors) {
+				sb.append(' ').append(predecessor.label());
+			}
+		}
+
+		for (Instruction instruction : instructions) {
+			sb.append("\n    ").append(instruction);
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package ir;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immediate dominators of the reachable blocks of a function, computed with
+ * the iterative algorithm of Cooper, Harvey and Kennedy over reverse
+ * postorder.
+ */
+public class Dominators {
+	private final Map<BasicBlock, BasicBlock> idom = new HashMap<>();
+	private final Map<BasicBlock, Integer> order = new HashMap<>();
+
+	public Dominators(IrFunction function) {
+		List<BasicBlock> blocks = function.reversePostorder();
+		BasicBlock entry = function.entry();
+
+		for (int i = 0; i < blocks.size(); i++) {
+			order.put(blocks.get(i), i);
+		}
+		idom.put(entry, entry);
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (BasicBlock block : blocks) {
+				if (block == entry) {
+					continue;
+				}
+
+				BasicBlock dominator = null;
+				for (BasicBlock predecessor : block.predecessors) {
+					if (idom.containsKey(predecessor)) {
+						dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+					}
+				}
+
+				if (dominator != null && dominator != idom.get(block)) {
+					idom.put(block, dominator);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+		while (a != b) {
+			while (order.get(a) > order.get(b)) {
+				a = idom.get(a);
+			}
+			while (order.get(b) > order.get(a)) {
+				b = idom.get(b);
+			}
+		}
+		return a;
+	}
+
+	public boolean isReachable(BasicBlock block) {
+		return idom.containsKey(block);
+	}
+
+	/** Whether every path from the entry to b goes through a; a block dominates itself. */
+	public boolean dominates(BasicBlock a, BasicBlock b) {
+		if (!idom.containsKey(a) || !idom.containsKey(b)) {
+			return false;
+		}
+
+		while (b != a) {
+			BasicBlock parent = idom.get(b);
+
+			if (parent == b) {
+				return false;
+			}
+			b = parent;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+package ir;
+
+import java.util.ArrayList;
+
+import compiler.Operators;
+
+/**
+ * Computes the operations whose operands are all literals, with the same
+ * operators the interpreters use, and replaces them by the result. An
+ * operation that would fail, like a division by zero, is left for run time.
+ * A branch on a literal becomes a jump, and the blocks only the other side
+ * reached are removed.
+ */
+public class FoldConstants implements Pass {
+	@Override
+	public String name() {
+		return "fold-constants";
+	}
+
+	@Override
+	public int run(IrFunction function) {
+		int folded = 0;
+
+		for (BasicBlock block : function.reversePostorder()) {
+			for (Instruction instruction : new ArrayList<>(block.instructions)) {
+				Object value = evaluate(instruction);
+
+				if (value != null) {
+					function.replaceAllUses(instruction, function.constant(value));
+					block.instructions.remove(instruction);
+					folded++;
+				}
+			}
+
+			Instruction terminator = block.terminator();
+			if (terminator.op == Op.BRANCH && terminator.operands.get(0).constant instanceof Boolean) {
+				boolean condition = (boolean) terminator.operands.get(0).constant;
+				block.removeSuccessor(block.successors.get(condition ? 1 : 0));
+				terminator.op = Op.JUMP;
+				terminator.operands.clear();
+				folded++;
+			}
+		}
+
+		function.removeUnreachableBlocks();
+		return folded;
+	}
+
+	// The result of an operation on literals, or null when it has none
+	private static Object evaluate(Instruction instruction) {
+		for (Instruction operand : instruction.operands) {
+			if (operand.op != Op.CONST) {
+				return null;
+			}
+		}
+
+		Object left = instruction.operands.isEmpty() ? null : instruction.operands.get(0).constant;
+		Object right = instruction.operands.size() < 2 ? null : instruction.operands.get(1).constant;
+
+		try {
+			switch (instruction.op) {
+				case ADD:
+					return Operators.add(left, right);
+				case SUB:
+					return Operators.sub(left, right);
+				case MUL:
+					return Operators.mul(left, right);
+				case DIV:
+					return Operators.div(left, right);
+				case MOD:
+					return Operators.mod(left, right);
+				case NEG:
+					return Operators.negate(left);
+				case LT:
+					return Operators.lt(left, right);
+				case GT:
+					return Operators.gt(left, right);
+				case LTE:
+					return Operators.lte(left, right);
+				case GTE:
+					return Operators.gte(left, right);
+				case EQ:
+					return left.equals(right);
+				case NEQ:
+					return !left.equals(right);
+				case NOT:
+					return Operators.not(left);
+				default:
+					return null;
+			}
+		} catch (RuntimeException | Error e) {
+			// Fails when the program runs, as it would without folding
+			return null;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import expression.Type;
+
+/**
+ * One operation of a {@link BasicBlock}, and the SSA value it defines. Every
+ * value is defined exactly once and read through {@link #operands}; the
+ * operands of a phi line up with the predecessors of its block.
+ */
+public class Instruction {
+	public Op op;
+	// Static type of the value; null for instructions without one
+	public Type type;
+	public List<Instruction> operands;
+	// Value of a const, index of a param, function of a define
+	public Object constant;
+	// Variable a phi or check belongs to, function a call or define names,
+	// operator a tobool checks an operand of
+	public String name;
+	public BasicBlock block;
+	public int id = -1;
+
+	public Instruction(Op op, Type type, Instruction... operands) {
+		this.op = op;
+		this.type = type;
+		this.operands = new ArrayList<>(Arrays.asList(operands));
+	}
+
+	/** Whether removing the instruction when its value is unused keeps the program's behaviour. */
+	public boolean isRemovable() {
+		switch (op) {
+			case CONST:
+			case PHI:
+			case UNDEF:
+			case NEXT:
+				return true;
+			case DIV:
+			case MOD:
+				return false;
+			default:
+				// Operations on values of unknown type may fail
+				return !op.effects && type != Type.ANY;
+		}
+	}
+
+	public void replaceOperand(Instruction value, Instruction replacement) {
+		for (int i = 0; i < operands.size(); i++) {
+			if (operands.get(i) == value) {
+				operands.set(i, replacement);
+			}
+		}
+	}
+
+	public String reference() {
+		return "v" + id;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		if (op.hasValue()) {
+			sb.append(reference()).append(" = ");
+		}
+		sb.append(op.text);
+
+		if (op == Op.CONST) {
+			sb.append(' ').append(constant instanceof String ? "\"" + constant + "\"" : constant);
+		} else if (op == Op.PARAM) {
+			sb.append(' ').append(constant).append(' ').append(name);
+		} else if (name != null && op != Op.PHI) {
+			sb.append(' ').append(name);
+		}
+
+		for (int i = 0; i < operands.size(); i++) {
+			sb.append(i == 0 ? " " : ", ").append(operands.get(i).reference());
+
+			if (op == Op.PHI && i < block.predecessors.size()) {
+				sb.append(" from ").append(block.predecessors.get(i).label());
+			}
+		}
+
+		if (op.terminator) {
+			for (BasicBlock successor : block.successors) {
+				sb.append(operands.isEmpty() && successor == block.successors.get(0) ? " " : ", ");
+				sb.append(successor.label());
+			}
+		}
+
+		if (type != null) {
+			sb.append(" : ").append(type.text);
+		}
+		if (op == Op.PHI && name != null) {
+			sb.append("    ; ").append(name);
+		}
+
+		return sb.toString();
+	}
+}
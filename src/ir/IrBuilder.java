@@ -0,0 +1,723 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.Comparison;
+import expression.Conditional;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Resolver;
+import expression.Return;
+import expression.StatementRules;
+import expression.Str;
+import expression.Type;
+import expression.TypeChecker;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Translates a {@link Program} into SSA form. Variables stop existing: every
+ * write defines a new value, and a phi merges the values that reach a block
+ * from different predecessors. Phis are built on demand as in Braun et al.,
+ * "Simple and Efficient Construction of Static Single Assignment Form": a
+ * read looks for the variable's value in its block and then in the
+ * predecessors, and the phis of a loop header are completed once the loop's
+ * back edge is known.
+ *
+ * For loops count down the iterations fixed before the body first runs, and
+ * a self tail call jumps back to the start of its function with the new
+ * arguments as the parameters' values. Like the JVM backend, programs that
+ * rely on checks the interpreters make at run time (reading a variable that
+ * may not be declared, redeclaring one, declaring a name with two types,
+ * returning inside a while loop) are rejected with an
+ * UnsupportedOperationException.
+ */
+public class IrBuilder {
+	// Hidden variables of for loops; the names are not valid identifiers
+	private static final String COUNTER = "#counter";
+	private static final String LEFT = "#left";
+
+	private Map<Function, IrFunction> built;
+	private Map<String, Integer> declarations;
+
+	// State of the function being built
+	private IrFunction function;
+	private Function source;
+	private boolean inFunction;
+	// Block after the entry, where self tail calls jump back to
+	private BasicBlock start;
+	private BasicBlock current;
+	private Map<String, Type> varTypes;
+	private Set<String> declared;
+	private Set<String> possiblyDeclared;
+	private int loops;
+	private Map<BasicBlock, Map<String, Instruction>> definitions;
+	private Map<BasicBlock, Map<String, Instruction>> incompletePhis;
+	private Set<BasicBlock> sealed;
+
+	public IrProgram build(Program prog) {
+		try {
+			new Resolver().resolve(prog.expressions);
+			new TypeChecker().check(prog.expressions);
+		} catch (Error e) {
+			throw unsupported("the program has errors");
+		}
+
+		built = new IdentityHashMap<>();
+		declarations = new HashMap<>();
+		List<IrFunction> functions = new ArrayList<>();
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function declaration = (Function) e;
+				List<Type> paramTypes = new ArrayList<>();
+
+				for (String type : declaration.paramTypes) {
+					paramTypes.add(Type.of(type));
+				}
+
+				String reason = StatementRules.checkedAtRunTime(declaration);
+				if (reason != null) {
+					throw unsupported(reason);
+				}
+
+				IrFunction irFunction = new IrFunction(declaration.id, declaration.paramIds, paramTypes);
+				built.put(declaration, irFunction);
+				functions.add(irFunction);
+				declarations.merge(declaration.id, 1, Integer::sum);
+			}
+		}
+
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				Function declaration = (Function) e;
+				List<Expression> body = ((Block) declaration.block).getStatements();
+				startFunction(built.get(declaration), declaration, body);
+				buildStatements(body, true);
+				finishFunction();
+			}
+		}
+
+		startFunction(new IrFunction("main", List.of(), List.of()), null, prog.expressions);
+		buildStatements(prog.expressions, true);
+		finishFunction();
+
+		return new IrProgram(functions, function);
+	}
+
+	static UnsupportedOperationException unsupported(String reason) {
+		return new UnsupportedOperationException("cannot build SSA form: " + reason);
+	}
+
+	private void startFunction(IrFunction function, Function source, List<Expression> body) {
+		this.function = function;
+		this.source = source;
+		inFunction = source != null;
+		varTypes = new HashMap<>();
+		declared = new HashSet<>();
+		possiblyDeclared = new HashSet<>();
+		loops = 0;
+		definitions = new HashMap<>();
+		incompletePhis = new HashMap<>();
+		sealed = new HashSet<>();
+
+		BasicBlock entry = function.newBlock();
+		sealed.add(entry);
+
+		for (int i = 0; i < function.paramNames.size(); i++) {
+			String id = function.paramNames.get(i);
+			Instruction param = new Instruction(Op.PARAM, function.paramTypes.get(i));
+			param.constant = i;
+			param.name = id;
+			entry.add(param);
+
+			addVar(id, function.paramTypes.get(i));
+			write(id, entry, param);
+			declared.add(id);
+			possiblyDeclared.add(id);
+		}
+
+		for (Expression e : body) {
+			scanDeclarations(e);
+		}
+
+		// Sealed once every self tail call is known
+		start = function.newBlock();
+		entry.add(new Instruction(Op.JUMP, null));
+		entry.addSuccessor(start);
+		current = start;
+	}
+
+	private void finishFunction() {
+		current.add(new Instruction(Op.RETURN, null));
+		seal(start);
+		function.removeUnreachableBlocks();
+	}
+
+	private void addVar(String id, Type type) {
+		Type known = varTypes.get(id);
+
+		if (type.keyword == null) {
+			throw unsupported(String.format("variable '%s' has an unknown type", id));
+		} else if (known == null) {
+			varTypes.put(id, type);
+		} else if (known != type) {
+			throw unsupported(String.format("variable '%s' declared with different types", id));
+		}
+	}
+
+	private void scanDeclarations(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			addVar(decl.id, Type.of(decl.type));
+		} else if (e instanceof ForLoop) {
+			addVar(((ForLoop) e).id, Type.INT);
+			scanDeclarations(((ForLoop) e).block);
+		} else if (e instanceof WhileLoop) {
+			scanDeclarations(((WhileLoop) e).block);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			scanDeclarations(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				scanDeclarations(cond.elseBlock);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				scanDeclarations(statement);
+			}
+		}
+	}
+
+	// Names a statement may leave declared; loop variables are cleared again
+	private static void declaredIn(Expression e, Set<String> names) {
+		if (e instanceof VariableDeclaration) {
+			names.add(((VariableDeclaration) e).id);
+		} else if (e instanceof ForLoop) {
+			Set<String> inner = new HashSet<>();
+			declaredIn(((ForLoop) e).block, inner);
+			inner.remove(((ForLoop) e).id);
+			names.addAll(inner);
+		} else if (e instanceof WhileLoop) {
+			declaredIn(((WhileLoop) e).block, names);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			declaredIn(cond.ifBlock, names);
+			if (cond.elseBlock != null) {
+				declaredIn(cond.elseBlock, names);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				declaredIn(statement, names);
+			}
+		}
+	}
+
+	private void write(String id, BasicBlock block, Instruction value) {
+		definitions.computeIfAbsent(block, b -> new HashMap<>()).put(id, value);
+	}
+
+	private Instruction read(String id, BasicBlock block) {
+		Map<String, Instruction> values = definitions.get(block);
+		Instruction value = values == null ? null : values.get(id);
+
+		return value != null ? value : readFromPredecessors(id, block);
+	}
+
+	private Instruction readFromPredecessors(String id, BasicBlock block) {
+		Instruction value;
+
+		if (!sealed.contains(block)) {
+			// More predecessors may follow; the phi gets its operands on sealing
+			value = block.addPhi(newPhi(id));
+			incompletePhis.computeIfAbsent(block, b -> new LinkedHashMap<>()).put(id, value);
+		} else if (block.predecessors.isEmpty()) {
+			value = function.undef();
+		} else if (block.predecessors.size() == 1) {
+			value = read(id, block.predecessors.get(0));
+		} else {
+			// Written before reading the predecessors, so a cycle ends at the phi
+			value = block.addPhi(newPhi(id));
+			write(id, block, value);
+			addPhiOperands(id, value);
+		}
+
+		write(id, block, value);
+		return value;
+	}
+
+	private Instruction newPhi(String id) {
+		Instruction phi = new Instruction(Op.PHI, varTypes.get(id));
+		phi.name = id;
+		return phi;
+	}
+
+	private void addPhiOperands(String id, Instruction phi) {
+		for (BasicBlock predecessor : phi.block.predecessors) {
+			phi.operands.add(read(id, predecessor));
+		}
+	}
+
+	// Called once every predecessor of the block is known
+	private void seal(BasicBlock block) {
+		Map<String, Instruction> phis = incompletePhis.remove(block);
+		sealed.add(block);
+
+		if (phis != null) {
+			for (Map.Entry<String, Instruction> phi : phis.entrySet()) {
+				addPhiOperands(phi.getKey(), phi.getValue());
+			}
+		}
+	}
+
+	private BasicBlock newSealedBlock() {
+		BasicBlock block = function.newBlock();
+		sealed.add(block);
+		return block;
+	}
+
+	private Instruction add(Instruction instruction) {
+		return current.add(instruction);
+	}
+
+	private void jump(BasicBlock target) {
+		add(new Instruction(Op.JUMP, null));
+		current.addSuccessor(target);
+	}
+
+	private void buildStatements(List<Expression> statements, boolean topLevel) {
+		for (Expression e : statements) {
+			if (StatementRules.runs(e, inFunction)) {
+				buildStatement(e, topLevel);
+			}
+		}
+	}
+
+	private void buildBlock(Expression block) {
+		Set<String> outer = new HashSet<>(declared);
+		buildStatements(((Block) block).getStatements(), false);
+		declared = outer;
+	}
+
+	private void buildStatement(Expression e, boolean topLevel) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+
+			if (topLevel && possiblyDeclared.contains(decl.id)) {
+				throw unsupported(String.format("variable '%s' may be declared twice", decl.id));
+			}
+
+			// In the blocks of top-level code a redeclaration reassigns the
+			// variable; functions that may redeclare one are never built
+			store(decl.id, decl.expr);
+			declared.add(decl.id);
+			possiblyDeclared.add(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+
+			if (!declared.contains(assign.id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", assign.id));
+			}
+
+			store(assign.id, assign.expr);
+		} else if (e instanceof Print) {
+			add(new Instruction(Op.PRINT, null, value(((Print) e).expr)));
+		} else if (e instanceof Conditional) {
+			buildConditional((Conditional) e);
+		} else if (e instanceof WhileLoop) {
+			buildWhileLoop((WhileLoop) e);
+		} else if (e instanceof ForLoop) {
+			buildForLoop((ForLoop) e);
+		} else if (e instanceof Return) {
+			buildReturn((Return) e);
+		} else {
+			Function declaration = (Function) e;
+
+			// VmCompiler checks that no global of its name is declared
+			if (possiblyDeclared.contains(declaration.id)) {
+				throw unsupported(String.format("function '%s' may be declared after a variable of its name",
+						declaration.id));
+			}
+
+			Instruction define = new Instruction(Op.DEFINE, null);
+			define.name = declaration.id;
+			define.constant = built.get(declaration);
+			add(define);
+		}
+	}
+
+	private void store(String id, Expression expr) {
+		Type type = varTypes.get(id);
+		Instruction value = value(expr);
+
+		if (value.type != type) {
+			value = add(new Instruction(Op.CHECK, type, value));
+			value.name = id;
+		}
+
+		write(id, current, value);
+	}
+
+	private void buildConditional(Conditional cond) {
+		BasicBlock ifBlock = function.newBlock();
+		BasicBlock join = function.newBlock();
+		BasicBlock elseBlock = cond.elseBlock != null ? function.newBlock() : join;
+
+		branch(cond.condition, ifBlock, elseBlock);
+		seal(ifBlock);
+
+		Set<String> before = new HashSet<>(possiblyDeclared);
+		current = ifBlock;
+		buildBlock(cond.ifBlock);
+		jump(join);
+
+		if (cond.elseBlock != null) {
+			seal(elseBlock);
+
+			Set<String> afterIf = possiblyDeclared;
+			possiblyDeclared = before;
+			current = elseBlock;
+			buildBlock(cond.elseBlock);
+			possiblyDeclared.addAll(afterIf);
+			jump(join);
+		}
+
+		seal(join);
+		current = join;
+	}
+
+	private void buildWhileLoop(WhileLoop whileLoop) {
+		BasicBlock header = function.newBlock();
+		jump(header);
+		declaredIn(whileLoop.block, possiblyDeclared);
+
+		current = header;
+		BasicBlock body = function.newBlock();
+		BasicBlock exit = function.newBlock();
+		branch(whileLoop.condition, body, exit);
+		seal(body);
+		seal(exit);
+
+		current = body;
+		buildBlock(whileLoop.block);
+		jump(header);
+
+		seal(header);
+		current = exit;
+	}
+
+	private void buildForLoop(ForLoop forLoop) {
+		if (possiblyDeclared.contains(forLoop.id)) {
+			throw unsupported(String.format("loop variable '%s' may already be declared", forLoop.id));
+		}
+
+		String counter = COUNTER + loops;
+		String left = LEFT + loops;
+		loops++;
+		varTypes.put(counter, Type.INT);
+		// A long, which no Glyph type holds
+		varTypes.put(left, Type.ANY);
+
+		Instruction start = intValue(forLoop.start);
+		Instruction end = intValue(forLoop.end);
+		Instruction step = intValue(forLoop.step);
+		// The number of iterations is fixed before the body first runs
+		Instruction iterations = add(new Instruction(Op.ITERATIONS, Type.ANY, start, end, step));
+		iterations.name = forLoop.id;
+		write(counter, current, start);
+		write(left, current, iterations);
+
+		declaredIn(forLoop.block, possiblyDeclared);
+		possiblyDeclared.add(forLoop.id);
+
+		BasicBlock header = function.newBlock();
+		jump(header);
+		current = header;
+		Instruction remaining = read(left, header);
+		add(new Instruction(Op.FORLOOP, null, remaining));
+		BasicBlock body = newSealedBlock();
+		BasicBlock exit = newSealedBlock();
+		header.addSuccessor(body);
+		header.addSuccessor(exit);
+
+		current = body;
+		write(left, body, add(new Instruction(Op.NEXT, Type.ANY, remaining)));
+		Instruction value = read(counter, body);
+		write(forLoop.id, body, value);
+
+		Set<String> outer = new HashSet<>(declared);
+		declared.add(forLoop.id);
+		buildBlock(forLoop.block);
+		declared = outer;
+
+		write(counter, current, add(new Instruction(Op.ADD, Type.INT, value, step)));
+		jump(header);
+		seal(header);
+		current = exit;
+
+		// The loop variable is undeclared again once the loop ends
+		possiblyDeclared.remove(forLoop.id);
+	}
+
+	private void buildReturn(Return ret) {
+		Expression expr = ret.expr;
+
+		if (ret.tailCall && ((FunctionCall) expr).id.equals(source.id) && declarations.get(source.id) == 1) {
+			FunctionCall call = (FunctionCall) expr;
+			List<Instruction> args = arguments(call);
+
+			if (argumentsMatch(args)) {
+				// The parameters take the new values at the start of the function
+				for (int i = 0; i < args.size(); i++) {
+					write(function.paramNames.get(i), current, args.get(i));
+				}
+				jump(start);
+			} else {
+				add(new Instruction(Op.RETURN, null, call(call, args)));
+			}
+		} else {
+			add(new Instruction(Op.RETURN, null, value(expr)));
+		}
+
+		// Whatever follows in the same block never runs
+		current = newSealedBlock();
+	}
+
+	private boolean argumentsMatch(List<Instruction> args) {
+		if (args.size() != function.paramTypes.size()) {
+			return false;
+		}
+
+		for (int i = 0; i < args.size(); i++) {
+			if (args.get(i).type != function.paramTypes.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Instruction intValue(Expression e) {
+		Instruction value = value(e);
+		return value.type == Type.INT ? value : add(new Instruction(Op.TOINT, Type.INT, value));
+	}
+
+	private List<Instruction> arguments(FunctionCall call) {
+		List<Instruction> args = new ArrayList<>();
+
+		for (Expression arg : call.args) {
+			args.add(value(arg));
+		}
+		return args;
+	}
+
+	private Instruction call(FunctionCall call, List<Instruction> args) {
+		Type type = call.staticType != null && call.staticType.keyword != null ? call.staticType : Type.ANY;
+		Instruction instruction = new Instruction(Op.CALL, type, args.toArray(new Instruction[0]));
+		instruction.name = call.id;
+		return add(instruction);
+	}
+
+	private Instruction value(Expression e) {
+		if (e instanceof Int) {
+			return function.constant(((Int) e).value);
+		} else if (e instanceof Real) {
+			return function.constant(((Real) e).value);
+		} else if (e instanceof Str) {
+			return function.constant(((Str) e).value);
+		} else if (e instanceof Bool) {
+			return function.constant(((Bool) e).value);
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+
+			if (!declared.contains(id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", id));
+			}
+			return read(id, current);
+		} else if (e instanceof Parens) {
+			return value(((Parens) e).expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			return binary(add.operator.equals(Keyword.PLUS) ? Op.ADD : Op.SUB, add.left, add.right);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return binary(Op.MUL, mult.left, mult.right);
+				case Keyword.DIVIDE:
+					return binary(Op.DIV, mult.left, mult.right);
+				default:
+					return binary(Op.MOD, mult.left, mult.right);
+			}
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+
+			switch (comp.operator) {
+				case Keyword.LT:
+					return binary(Op.LT, comp.left, comp.right);
+				case Keyword.GT:
+					return binary(Op.GT, comp.left, comp.right);
+				case Keyword.LTE:
+					return binary(Op.LTE, comp.left, comp.right);
+				default:
+					return binary(Op.GTE, comp.left, comp.right);
+			}
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+			return binary(eq.operator.equals(Keyword.EQ) ? Op.EQ : Op.NEQ, eq.left, eq.right);
+		} else if (e instanceof And || e instanceof Or) {
+			return logical(e);
+		} else if (e instanceof UnaryMinus) {
+			Instruction operand = value(((UnaryMinus) e).expr);
+			return add(new Instruction(Op.NEG, resultType(Op.NEG, operand.type, null), operand));
+		} else if (e instanceof Not) {
+			Instruction operand = value(((Not) e).expr);
+			return add(new Instruction(Op.NOT, resultType(Op.NOT, operand.type, null), operand));
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+			return call(call, arguments(call));
+		}
+
+		throw unsupported(String.format("'%s'", e));
+	}
+
+	/**
+	 * Ends the current block with branches to ifTrue or ifFalse, depending on
+	 * condition. '&&' and '||' branch on each operand in a block of its own, so
+	 * the right one only runs when the left one does not decide the result.
+	 * The targets are left unsealed, as more branches may lead to them.
+	 */
+	private void branch(Expression condition, BasicBlock ifTrue, BasicBlock ifFalse) {
+		while (condition instanceof Parens) {
+			condition = ((Parens) condition).expr;
+		}
+
+		if (condition instanceof And) {
+			BasicBlock right = newSealedBlock();
+			operand(((And) condition).left, right, ifFalse, "&&");
+			current = right;
+			operand(((And) condition).right, ifTrue, ifFalse, "&&");
+		} else if (condition instanceof Or) {
+			BasicBlock right = newSealedBlock();
+			operand(((Or) condition).left, ifTrue, right, "||");
+			current = right;
+			operand(((Or) condition).right, ifTrue, ifFalse, "||");
+		} else if (condition instanceof Not) {
+			operand(((Not) condition).expr, ifFalse, ifTrue, "!");
+		} else {
+			branchOn(value(condition), ifTrue, ifFalse);
+		}
+	}
+
+	// Operands of logical operators have to be booleans
+	private void operand(Expression e, BasicBlock ifTrue, BasicBlock ifFalse, String operator) {
+		while (e instanceof Parens) {
+			e = ((Parens) e).expr;
+		}
+
+		if (e instanceof And || e instanceof Or || e instanceof Not) {
+			branch(e, ifTrue, ifFalse);
+			return;
+		}
+
+		Instruction value = value(e);
+
+		if (value.type != Type.BOOL) {
+			value = add(new Instruction(Op.TOBOOL, Type.BOOL, value));
+			value.name = operator;
+		}
+		branchOn(value, ifTrue, ifFalse);
+	}
+
+	private void branchOn(Instruction value, BasicBlock ifTrue, BasicBlock ifFalse) {
+		add(new Instruction(Op.BRANCH, null, value));
+		current.addSuccessor(ifTrue);
+		current.addSuccessor(ifFalse);
+	}
+
+	// The outcome of a logical operator merges the two ends of its branches
+	private Instruction logical(Expression e) {
+		BasicBlock ifTrue = function.newBlock();
+		BasicBlock ifFalse = function.newBlock();
+		BasicBlock join = newSealedBlock();
+
+		branch(e, ifTrue, ifFalse);
+		seal(ifTrue);
+		seal(ifFalse);
+
+		current = ifTrue;
+		jump(join);
+		current = ifFalse;
+		jump(join);
+
+		current = join;
+		return join.addPhi(new Instruction(Op.PHI, Type.BOOL, function.constant(true), function.constant(false)));
+	}
+
+	private Instruction binary(Op op, Expression leftExpr, Expression rightExpr) {
+		Instruction left = value(leftExpr);
+		Instruction right = value(rightExpr);
+		return add(new Instruction(op, resultType(op, left.type, right.type), left, right));
+	}
+
+	/** Type of an operation's result, or {@link Type#ANY} when it is only known at run time. */
+	static Type resultType(Op op, Type left, Type right) {
+		boolean numbers = left == right && (left == Type.INT || left == Type.FLOAT);
+
+		switch (op) {
+			case ADD:
+				if (left == Type.STRING && isPrintable(right) || right == Type.STRING && isPrintable(left)) {
+					return Type.STRING;
+				}
+				return numbers ? left : Type.ANY;
+			case SUB:
+			case MUL:
+			case DIV:
+			case MOD:
+				return numbers ? left : Type.ANY;
+			case LT:
+			case GT:
+			case LTE:
+			case GTE:
+				return numbers ? Type.BOOL : Type.ANY;
+			case EQ:
+			case NEQ:
+				return Type.BOOL;
+			case NOT:
+				return left == Type.BOOL ? Type.BOOL : Type.ANY;
+			case NEG:
+				return left == Type.INT || left == Type.FLOAT ? left : Type.ANY;
+			default:
+				return Type.ANY;
+		}
+	}
+
+	private static boolean isPrintable(Type type) {
+		return type == Type.STRING || type == Type.INT || type == Type.FLOAT;
+	}
+}
@@ -0,0 +1,166 @@
+package ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import expression.Type;
+
+/**
+ * Control-flow graph of one function, or of the top-level code. The first
+ * block is the entry: it holds the parameters, the literals and the undefined
+ * value, and has no predecessors.
+ */
+public class IrFunction {
+	public String name;
+	public List<String> paramNames;
+	public List<Type> paramTypes;
+	public List<BasicBlock> blocks = new ArrayList<>();
+	int nextId;
+	private int nextBlock;
+
+	public IrFunction(String name, List<String> paramNames, List<Type> paramTypes) {
+		this.name = name;
+		this.paramNames = paramNames;
+		this.paramTypes = paramTypes;
+	}
+
+	public BasicBlock entry() {
+		return blocks.get(0);
+	}
+
+	public BasicBlock newBlock() {
+		BasicBlock block = new BasicBlock(this, nextBlock++);
+		blocks.add(block);
+		return block;
+	}
+
+	/** Returns the entry block's value for a literal, adding it if needed. */
+	public Instruction constant(Object value) {
+		for (Instruction instruction : entry().instructions) {
+			if (instruction.op == Op.CONST && instruction.constant.equals(value)) {
+				return instruction;
+			}
+		}
+
+		Instruction constant = new Instruction(Op.CONST, typeOf(value));
+		constant.constant = value;
+		return entry().add(constant);
+	}
+
+	/** Returns the value of a variable read where it was never written. */
+	public Instruction undef() {
+		for (Instruction instruction : entry().instructions) {
+			if (instruction.op == Op.UNDEF) {
+				return instruction;
+			}
+		}
+		return entry().add(new Instruction(Op.UNDEF, Type.ANY));
+	}
+
+	static Type typeOf(Object value) {
+		if (value instanceof Integer) {
+			return Type.INT;
+		} else if (value instanceof Double) {
+			return Type.FLOAT;
+		} else if (value instanceof String) {
+			return Type.STRING;
+		} else if (value instanceof Boolean) {
+			return Type.BOOL;
+		}
+		return Type.ANY;
+	}
+
+	public List<Instruction> instructions() {
+		List<Instruction> all = new ArrayList<>();
+
+		for (BasicBlock block : blocks) {
+			all.addAll(block.instructions);
+		}
+		return all;
+	}
+
+	public void replaceAllUses(Instruction value, Instruction replacement) {
+		for (BasicBlock block : blocks) {
+			for (Instruction instruction : block.instructions) {
+				instruction.replaceOperand(value, replacement);
+			}
+		}
+	}
+
+	/**
+	 * Blocks reachable from the entry, each one before its successors except
+	 * along back edges. A block's first successor comes as early as possible,
+	 * so it can usually be reached by falling through.
+	 */
+	public List<BasicBlock> reversePostorder() {
+		List<BasicBlock> order = new ArrayList<>();
+		Set<BasicBlock> visited = new HashSet<>();
+		Deque<BasicBlock> blockStack = new ArrayDeque<>();
+		Deque<Integer> nextSuccessor = new ArrayDeque<>();
+
+		visited.add(entry());
+		blockStack.push(entry());
+		nextSuccessor.push(0);
+
+		while (!blockStack.isEmpty()) {
+			BasicBlock block = blockStack.peek();
+			int index = nextSuccessor.pop();
+
+			if (index < block.successors.size()) {
+				nextSuccessor.push(index + 1);
+				BasicBlock successor = block.successors.get(block.successors.size() - 1 - index);
+
+				if (visited.add(successor)) {
+					blockStack.push(successor);
+					nextSuccessor.push(0);
+				}
+			} else {
+				blockStack.pop();
+				order.add(block);
+			}
+		}
+
+		Collections.reverse(order);
+		return order;
+	}
+
+	/** Removes the blocks no path from the entry reaches and returns how many there were. */
+	public int removeUnreachableBlocks() {
+		Set<BasicBlock> reachable = new HashSet<>(reversePostorder());
+		int removed = 0;
+
+		for (BasicBlock block : new ArrayList<>(blocks)) {
+			if (!reachable.contains(block)) {
+				for (BasicBlock successor : new ArrayList<>(block.successors)) {
+					block.removeSuccessor(successor);
+				}
+				blocks.remove(block);
+				removed++;
+			}
+		}
+
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("function ").append(name).append('(');
+
+		for (int i = 0; i < paramNames.size(); i++) {
+			sb.append(i == 0 ? "" : ", ").append(paramNames.get(i)).append(": ").append(paramTypes.get(i).text);
+		}
+		sb.append(')');
+
+		for (BasicBlock block : blocks) {
+			sb.append('\n').append(block);
+		}
+
+		return sb.toString();
+	}
+}
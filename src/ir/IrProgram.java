@@ -0,0 +1,36 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A program in SSA form: one {@link IrFunction} per function declaration, in
+ * source order, and one for the top-level code.
+ */
+public class IrProgram {
+	public List<IrFunction> functions;
+	public IrFunction main;
+
+	public IrProgram(List<IrFunction> functions, IrFunction main) {
+		this.functions = functions;
+		this.main = main;
+	}
+
+	/** The functions followed by the top-level code. */
+	public List<IrFunction> all() {
+		List<IrFunction> all = new ArrayList<>(functions);
+		all.add(main);
+		return all;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		for (IrFunction function : all()) {
+			sb.append(function).append("\n\n");
+		}
+
+		return sb.toString().trim();
+	}
+}
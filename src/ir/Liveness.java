@@ -0,0 +1,112 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which values of a function are still needed at each point. A phi reads its
+ * operand at the end of the predecessor it comes from, and all phis of a
+ * block are defined at once when the block starts.
+ */
+public class Liveness {
+	private final Map<BasicBlock, Set<Instruction>> liveIn = new HashMap<>();
+	private final Map<BasicBlock, Set<Instruction>> liveOut = new HashMap<>();
+	private final Map<Instruction, Set<Instruction>> liveAt = new HashMap<>();
+
+	public Liveness(IrFunction function) {
+		List<BasicBlock> order = function.reversePostorder();
+		Collections.reverse(order);
+
+		for (BasicBlock block : order) {
+			liveIn.put(block, new HashSet<>());
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (BasicBlock block : order) {
+				Set<Instruction> out = new HashSet<>();
+
+				for (BasicBlock successor : block.successors) {
+					out.addAll(liveIn.get(successor));
+					out.addAll(phiOperands(block, successor));
+				}
+
+				liveOut.put(block, out);
+				Set<Instruction> in = scan(block, out, false);
+
+				if (!in.equals(liveIn.get(block))) {
+					liveIn.put(block, in);
+					changed = true;
+				}
+			}
+		}
+
+		for (BasicBlock block : order) {
+			scan(block, liveOut.get(block), true);
+		}
+	}
+
+	private static List<Instruction> phiOperands(BasicBlock from, BasicBlock to) {
+		List<Instruction> operands = new ArrayList<>();
+		int index = to.predecessors.indexOf(from);
+
+		for (Instruction phi : to.phis()) {
+			operands.add(phi.operands.get(index));
+		}
+		return operands;
+	}
+
+	// Walks a block backwards from what is live at its end and returns what is
+	// live at its start, once its phis are defined
+	private Set<Instruction> scan(BasicBlock block, Set<Instruction> out, boolean record) {
+		Set<Instruction> live = new HashSet<>(out);
+		List<Instruction> phis = block.phis();
+
+		for (int i = block.instructions.size() - 1; i >= phis.size(); i--) {
+			Instruction instruction = block.instructions.get(i);
+
+			if (record && instruction.op.hasValue()) {
+				liveAt.put(instruction, new HashSet<>(live));
+			}
+			live.remove(instruction);
+			live.addAll(instruction.operands);
+		}
+
+		if (record) {
+			Set<Instruction> atStart = new HashSet<>(live);
+			atStart.addAll(phis);
+
+			for (Instruction phi : phis) {
+				liveAt.put(phi, atStart);
+			}
+		}
+
+		live.removeAll(phis);
+		return live;
+	}
+
+	public Set<Instruction> liveIn(BasicBlock block) {
+		return liveIn.get(block);
+	}
+
+	public Set<Instruction> liveOut(BasicBlock block) {
+		return liveOut.get(block);
+	}
+
+	/** Values needed right after the instruction defines its value. */
+	public Set<Instruction> liveAt(Instruction value) {
+		return liveAt.getOrDefault(value, Set.of());
+	}
+
+	/** Whether two values are ever needed at the same time, so they cannot share a register. */
+	public boolean interfere(Instruction a, Instruction b) {
+		return liveAt(a).contains(b) || liveAt(b).contains(a);
+	}
+}
@@ -0,0 +1,63 @@
+package ir;
+
+/**
+ * Operation of an {@link Instruction}. A terminator ends its block and decides
+ * which successor runs next; an operation with effects is kept even when
+ * nothing uses its value.
+ */
+public enum Op {
+	// Values that need no code: literals, parameters, merges, unset variables
+	CONST("const", false, false),
+	PARAM("param", false, true),
+	PHI("phi", false, false),
+	UNDEF("undef", false, false),
+	ADD("add", false, false),
+	SUB("sub", false, false),
+	MUL("mul", false, false),
+	DIV("div", false, false),
+	MOD("mod", false, false),
+	NEG("neg", false, false),
+	LT("lt", false, false),
+	GT("gt", false, false),
+	LTE("lte", false, false),
+	GTE("gte", false, false),
+	EQ("eq", false, false),
+	NEQ("neq", false, false),
+	NOT("not", false, false),
+	// Fails unless the value has the type of the variable it is stored in
+	CHECK("check", false, true),
+	// Fails unless the value is an int, like the bounds of a for loop
+	TOINT("toint", false, true),
+	// Fails unless the value is a boolean, like the operands of && and ||;
+	// logical operators themselves become branches
+	TOBOOL("tobool", false, true),
+	// Number of iterations of a for loop, failing on a zero step
+	ITERATIONS("iterations", false, true),
+	// Iterations left once the current one is done; only starts the body of a
+	// forloop
+	NEXT("next", false, false),
+	CALL("call", false, true),
+	PRINT("print", false, true),
+	// Makes a function callable once its declaration is reached
+	DEFINE("define", false, true),
+	JUMP("jump", true, true),
+	// Continues with the first successor when the value is true
+	BRANCH("branch", true, true),
+	// Continues with the first successor while iterations are left
+	FORLOOP("forloop", true, true),
+	RETURN("return", true, true);
+
+	public final String text;
+	public final boolean terminator;
+	public final boolean effects;
+
+	Op(String text, boolean terminator, boolean effects) {
+		this.text = text;
+		this.terminator = terminator;
+		this.effects = effects;
+	}
+
+	public boolean hasValue() {
+		return !terminator && this != PRINT && this != DEFINE;
+	}
+}
@@ -0,0 +1,13 @@
+package ir;
+
+/**
+ * A transformation of one {@link IrFunction}, run by a {@link PassManager}.
+ * A pass must leave the function valid SSA.
+ */
+public interface Pass {
+	/** Name that selects the pass in the glyph.ir.passes system property. */
+	String name();
+
+	/** Transforms the function in place and returns how many changes were made. */
+	int run(IrFunction function);
+}
@@ -0,0 +1,77 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a sequence of {@link Pass}es over every function of an
+ * {@link IrProgram}, and verifies the IR before the first pass and after each
+ * one so a broken pass is caught where it broke.
+ *
+ * The glyph.ir.passes system property lists the passes to run, by name and
+ * separated by commas (an empty list runs none); glyph.ir.trace prints how
+ * many changes each pass made and glyph.ir.dump prints the IR they leave.
+ */
+public class PassManager {
+	public static final String DEFAULT_PASSES = "fold-constants,simplify-phis,remove-dead-code";
+
+	public boolean trace = Boolean.getBoolean("glyph.ir.trace");
+	public boolean dump = Boolean.getBoolean("glyph.ir.dump");
+
+	private final List<Pass> passes = new ArrayList<>();
+
+	/** Returns a pass manager with the passes glyph.ir.passes selects. */
+	public static PassManager configured() {
+		PassManager manager = new PassManager();
+
+		for (String name : System.getProperty("glyph.ir.passes", DEFAULT_PASSES).split(",")) {
+			if (!name.isBlank()) {
+				manager.add(pass(name.trim()));
+			}
+		}
+
+		return manager;
+	}
+
+	public static Pass pass(String name) {
+		switch (name) {
+			case "fold-constants":
+				return new FoldConstants();
+			case "simplify-phis":
+				return new SimplifyPhis();
+			case "remove-dead-code":
+				return new RemoveDeadCode();
+			default:
+				String error = String.format("Error: unknown IR pass '%s'", name);
+				throw new Error(error);
+		}
+	}
+
+	public PassManager add(Pass pass) {
+		passes.add(pass);
+		return this;
+	}
+
+	public void run(IrProgram program) {
+		for (IrFunction function : program.all()) {
+			Verifier.verify(function);
+		}
+
+		for (Pass pass : passes) {
+			int changes = 0;
+
+			for (IrFunction function : program.all()) {
+				changes += pass.run(function);
+				Verifier.verify(function);
+			}
+
+			if (trace) {
+				System.err.println(String.format("ir: %s made %d changes", pass.name(), changes));
+			}
+		}
+
+		if (dump) {
+			System.err.println(program);
+		}
+	}
+}
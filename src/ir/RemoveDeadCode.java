@@ -0,0 +1,48 @@
+package ir;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Removes the instructions whose values nothing with an effect depends on.
+ * Starting from the instructions that must run (terminators, prints, calls
+ * and anything that may fail), every operand they read is marked live; the
+ * rest is removed, including cycles of phis that only feed each other.
+ */
+public class RemoveDeadCode implements Pass {
+	@Override
+	public String name() {
+		return "remove-dead-code";
+	}
+
+	@Override
+	public int run(IrFunction function) {
+		Set<Instruction> live = new HashSet<>();
+		Deque<Instruction> work = new ArrayDeque<>();
+
+		for (Instruction instruction : function.instructions()) {
+			if (!instruction.isRemovable() && live.add(instruction)) {
+				work.push(instruction);
+			}
+		}
+
+		while (!work.isEmpty()) {
+			for (Instruction operand : work.pop().operands) {
+				if (live.add(operand)) {
+					work.push(operand);
+				}
+			}
+		}
+
+		int removed = 0;
+		for (BasicBlock block : function.blocks) {
+			int size = block.instructions.size();
+			block.instructions.removeIf(instruction -> !live.contains(instruction));
+			removed += size - block.instructions.size();
+		}
+
+		return removed;
+	}
+}
@@ -0,0 +1,57 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * Removes the phis that merge a single value, possibly with themselves, such
+ * as the phi of a variable a loop only reads. Uses of the phi read the value
+ * instead, which may make other phis trivial in turn.
+ */
+public class SimplifyPhis implements Pass {
+	@Override
+	public String name() {
+		return "simplify-phis";
+	}
+
+	@Override
+	public int run(IrFunction function) {
+		int removed = 0;
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+
+			for (BasicBlock block : function.blocks) {
+				for (Instruction phi : new ArrayList<>(block.phis())) {
+					Instruction value = onlyValue(phi);
+
+					if (value != null) {
+						function.replaceAllUses(phi, value);
+						block.instructions.remove(phi);
+						removed++;
+						changed = true;
+					}
+				}
+			}
+		}
+
+		return removed;
+	}
+
+	// The value all operands other than the phi itself agree on, or null
+	private static Instruction onlyValue(Instruction phi) {
+		Instruction value = null;
+
+		for (Instruction operand : phi.operands) {
+			if (operand == phi || operand == value) {
+				continue;
+			} else if (value != null) {
+				return null;
+			}
+			value = operand;
+		}
+
+		// A phi that only merges itself is never reached without a value
+		return value != null ? value : phi.block.function.undef();
+	}
+}
@@ -0,0 +1,139 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that a function is well-formed SSA: every block is reachable and
+ * ends in exactly one terminator, edges are recorded on both ends, phis come
+ * first and have one operand per predecessor, and every value is defined
+ * before each of its uses on every path. Broken IR is a bug in the builder or
+ * a pass, so problems are reported with an IllegalStateException.
+ */
+public class Verifier {
+	public static void verify(IrFunction function) {
+		List<String> problems = new ArrayList<>();
+		Dominators dominators = new Dominators(function);
+		Set<Instruction> defined = new HashSet<>(function.instructions());
+
+		if (!function.entry().predecessors.isEmpty()) {
+			problems.add("the entry block has predecessors");
+		}
+
+		for (BasicBlock block : function.blocks) {
+			String where = block.label();
+
+			if (!dominators.isReachable(block)) {
+				problems.add(where + " is unreachable");
+				continue;
+			}
+
+			checkEdges(block, problems);
+
+			boolean phisDone = false;
+			for (int i = 0; i < block.instructions.size(); i++) {
+				Instruction instruction = block.instructions.get(i);
+				String at = where + " " + instruction.reference();
+
+				if (instruction.block != block) {
+					problems.add(at + " belongs to another block");
+				}
+				if (instruction.op.terminator != (i == block.instructions.size() - 1)) {
+					problems.add(at + (instruction.op.terminator ? " ends the block early" : " is not a terminator"));
+				}
+
+				if (instruction.op == Op.PHI) {
+					if (phisDone) {
+						problems.add(at + " follows other instructions");
+					}
+					if (instruction.operands.size() != block.predecessors.size()) {
+						problems.add(String.format("%s has %d operands for %d predecessors", at,
+								instruction.operands.size(), block.predecessors.size()));
+					}
+				} else {
+					phisDone = true;
+				}
+
+				for (int j = 0; j < instruction.operands.size(); j++) {
+					Instruction operand = instruction.operands.get(j);
+
+					if (operand == null || !defined.contains(operand)) {
+						problems.add(at + " uses a value defined in no block");
+					} else if (instruction.op == Op.PHI) {
+						// A phi operand only has to be available at the end of its predecessor
+						if (j < block.predecessors.size()
+								&& !dominators.dominates(operand.block, block.predecessors.get(j))) {
+							problems.add(String.format("%s uses %s, which does not reach %s", at, operand.reference(),
+									block.predecessors.get(j).label()));
+						}
+					} else if (!definedBefore(operand, instruction, dominators)) {
+						problems.add(String.format("%s uses %s before it is defined", at, operand.reference()));
+					}
+				}
+			}
+
+			checkForLoop(block, problems);
+		}
+
+		if (!problems.isEmpty()) {
+			throw new IllegalStateException(String.format("invalid IR in '%s':\n%s\n%s", function.name,
+					String.join("\n", problems), function));
+		}
+	}
+
+	private static void checkEdges(BasicBlock block, List<String> problems) {
+		String where = block.label();
+		Instruction terminator = block.terminator();
+
+		for (BasicBlock successor : block.successors) {
+			if (!successor.predecessors.contains(block)) {
+				problems.add(String.format("%s jumps to %s, which does not list it", where, successor.label()));
+			}
+		}
+		for (BasicBlock predecessor : block.predecessors) {
+			if (!predecessor.successors.contains(block)) {
+				problems.add(String.format("%s lists %s, which does not jump to it", where, predecessor.label()));
+			}
+		}
+
+		if (terminator == null) {
+			problems.add(where + " has no terminator");
+			return;
+		}
+
+		int expected = terminator.op == Op.JUMP ? 1 : terminator.op == Op.RETURN ? 0 : 2;
+		if (block.successors.size() != expected) {
+			problems.add(String.format("%s %s has %d successors", where, terminator.op.text,
+					block.successors.size()));
+		} else if (expected == 2 && block.successors.get(0) == block.successors.get(1)) {
+			problems.add(String.format("%s %s has the same successor twice", where, terminator.op.text));
+		}
+	}
+
+	// The backend decrements the forloop's counter in place, so its next value
+	// has to start the body
+	private static void checkForLoop(BasicBlock block, List<String> problems) {
+		for (Instruction instruction : block.instructions) {
+			if (instruction.op != Op.NEXT) {
+				continue;
+			}
+
+			Instruction loop = block.predecessors.size() == 1 ? block.predecessors.get(0).terminator() : null;
+			boolean first = block.instructions.indexOf(instruction) == block.phis().size();
+
+			if (!first || loop == null || loop.op != Op.FORLOOP || loop.block.successors.get(0) != block
+					|| loop.operands.get(0) != instruction.operands.get(0)) {
+				problems.add(block.label() + " " + instruction.reference() + " does not start the body of its forloop");
+			}
+		}
+	}
+
+	private static boolean definedBefore(Instruction value, Instruction user, Dominators dominators) {
+		if (value.block == user.block) {
+			return value.block.instructions.indexOf(value) < user.block.instructions.indexOf(user);
+		}
+		return dominators.dominates(value.block, user.block);
+	}
+}
@@ -0,0 +1,557 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.Keyword;
+import expression.Type;
+import vm.CodeObject;
+import vm.Module;
+import vm.Opcode;
+
+/**
+ * Lowers an {@link IrProgram} to register bytecode for the
+ * {@link vm.VirtualMachine}. Literals are loaded on entry, and phis become
+ * moves at the end of each predecessor, unless the phi and its operand were
+ * given the same register; a move that only one side of a branch needs goes
+ * in a stub jumped to from that side. An int comparison used only by the branch that
+ * follows it becomes a single compare-and-jump.
+ */
+public class VmLowering {
+	private List<Object> constants;
+	private Map<Object, Integer> constantIndex;
+	private List<String> functionNames;
+	private Map<String, Integer> functionIndex;
+	private Map<IrFunction, Integer> codeIndex;
+
+	// State of the code object being lowered
+	private boolean isMain;
+	private int[] code;
+	private int size;
+	private Map<Instruction, Integer> registers;
+	private int argumentBase;
+	private int copyBase;
+	private Set<Instruction> fused;
+	private Map<BasicBlock, Integer> starts;
+	private List<Integer> jumps;
+	private List<BasicBlock> targets;
+
+	public Module lower(IrProgram program) {
+		constants = new ArrayList<>();
+		constantIndex = new HashMap<>();
+		functionNames = new ArrayList<>();
+		functionIndex = new HashMap<>();
+		codeIndex = new IdentityHashMap<>();
+
+		for (IrFunction function : program.functions) {
+			codeIndex.put(function, codeIndex.size());
+		}
+
+		List<CodeObject> functions = new ArrayList<>();
+		for (IrFunction function : program.functions) {
+			functions.add(lowerFunction(function, false));
+		}
+		CodeObject main = lowerFunction(program.main, true);
+
+		return new Module(constants.toArray(), functionNames.toArray(new String[0]),
+				functions.toArray(new CodeObject[0]), main);
+	}
+
+	private CodeObject lowerFunction(IrFunction function, boolean isMain) {
+		this.isMain = isMain;
+		code = new int[64];
+		size = 0;
+		starts = new IdentityHashMap<>();
+		jumps = new ArrayList<>();
+		targets = new ArrayList<>();
+
+		int numRegisters = allocateRegisters(function);
+		findFusedComparisons(function);
+
+		List<BasicBlock> order = function.reversePostorder();
+		for (int i = 0; i < order.size(); i++) {
+			BasicBlock block = order.get(i);
+			starts.put(block, size);
+			lowerBlock(block, i + 1 < order.size() ? order.get(i + 1) : null);
+		}
+
+		for (int i = 0; i < jumps.size(); i++) {
+			code[jumps.get(i)] = starts.get(targets.get(i));
+		}
+
+		int count = function.paramNames.size();
+		int[] paramTypes = new int[count];
+		for (int i = 0; i < count; i++) {
+			paramTypes[i] = typeCode(function.paramTypes.get(i));
+		}
+
+		List<Integer> pairs = new ArrayList<>();
+		for (Instruction instruction : function.entry().instructions) {
+			if (instruction.op == Op.CONST) {
+				pairs.add(registers.get(instruction));
+				pairs.add(constant(instruction.constant));
+			}
+		}
+
+		return new CodeObject(function.name, function.paramNames.toArray(new String[count]), paramTypes,
+				numRegisters, pairs.stream().mapToInt(Integer::intValue).toArray(), Arrays.copyOf(code, size));
+	}
+
+	// Values coalesced with each other share a register and parameters keep
+	// the registers calls pass them in; arguments of calls and phi moves that
+	// would overwrite each other get scratch registers at the top
+	private int allocateRegisters(IrFunction function) {
+		Map<Instruction, List<Instruction>> classes = coalesce(function);
+		Map<List<Instruction>, Integer> classRegisters = new IdentityHashMap<>();
+		registers = new IdentityHashMap<>();
+		int next = function.paramNames.size();
+		int maxArguments = 0;
+		int maxPhis = 0;
+
+		for (Instruction instruction : function.instructions()) {
+			if (instruction.op == Op.PARAM) {
+				classRegisters.put(classes.get(instruction), (int) instruction.constant);
+			}
+		}
+
+		for (BasicBlock block : function.blocks) {
+			maxPhis = Math.max(maxPhis, block.phis().size());
+
+			for (Instruction instruction : block.instructions) {
+				if (instruction.op.hasValue()) {
+					List<Instruction> members = classes.get(instruction);
+					Integer register = classRegisters.get(members);
+
+					if (register == null) {
+						register = next++;
+						classRegisters.put(members, register);
+					}
+					registers.put(instruction, register);
+				}
+
+				if (instruction.op == Op.CALL) {
+					maxArguments = Math.max(maxArguments, instruction.operands.size());
+				}
+			}
+		}
+
+		argumentBase = next;
+		copyBase = argumentBase + maxArguments;
+		return copyBase + maxPhis;
+	}
+
+	// Puts a phi in the same class as its operands where no two values of the
+	// merged classes are ever live at once, so the move between them goes away.
+	// Literals are loaded once on entry and never share their register.
+	private static Map<Instruction, List<Instruction>> coalesce(IrFunction function) {
+		Map<Instruction, List<Instruction>> classes = new IdentityHashMap<>();
+		Liveness liveness = new Liveness(function);
+
+		for (Instruction instruction : function.instructions()) {
+			if (instruction.op.hasValue()) {
+				classes.put(instruction, new ArrayList<>(List.of(instruction)));
+			}
+		}
+
+		// The forloop instruction counts down in place
+		for (Instruction instruction : function.instructions()) {
+			if (instruction.op == Op.NEXT) {
+				merge(classes, instruction, instruction.operands.get(0));
+			}
+		}
+
+		for (BasicBlock block : function.blocks) {
+			for (Instruction phi : block.phis()) {
+				for (Instruction operand : phi.operands) {
+					if (operand.op != Op.CONST && operand.op != Op.UNDEF
+							&& canMerge(classes.get(phi), classes.get(operand), liveness)) {
+						merge(classes, phi, operand);
+					}
+				}
+			}
+		}
+
+		return classes;
+	}
+
+	private static boolean canMerge(List<Instruction> a, List<Instruction> b, Liveness liveness) {
+		if (a == b) {
+			return false;
+		}
+
+		boolean param = false;
+		for (Instruction value : a) {
+			param |= value.op == Op.PARAM;
+		}
+
+		for (Instruction value : b) {
+			if (value.op == Op.PARAM && param) {
+				return false;
+			}
+			for (Instruction other : a) {
+				if (liveness.interfere(value, other)) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private static void merge(Map<Instruction, List<Instruction>> classes, Instruction a, Instruction b) {
+		List<Instruction> into = classes.get(a);
+
+		for (Instruction value : classes.get(b)) {
+			into.add(value);
+			classes.put(value, into);
+		}
+	}
+
+	private void findFusedComparisons(IrFunction function) {
+		Map<Instruction, Integer> uses = new IdentityHashMap<>();
+		fused = new HashSet<>();
+
+		for (Instruction instruction : function.instructions()) {
+			for (Instruction operand : instruction.operands) {
+				uses.merge(operand, 1, Integer::sum);
+			}
+		}
+
+		for (BasicBlock block : function.blocks) {
+			Instruction terminator = block.terminator();
+
+			if (terminator.op == Op.BRANCH) {
+				Instruction condition = terminator.operands.get(0);
+
+				if (condition.block == block && uses.get(condition) == 1 && jumpIfFalse(condition) >= 0) {
+					fused.add(condition);
+				}
+			}
+		}
+	}
+
+	// The compare-and-jump taken when an int comparison is false, or -1
+	private static int jumpIfFalse(Instruction comparison) {
+		if (comparison.operands.size() != 2 || comparison.operands.get(0).type != Type.INT
+				|| comparison.operands.get(1).type != Type.INT) {
+			return -1;
+		}
+
+		switch (comparison.op) {
+			case LT:
+				return Opcode.JGE_II;
+			case GT:
+				return Opcode.JLE_II;
+			case LTE:
+				return Opcode.JGT_II;
+			case GTE:
+				return Opcode.JLT_II;
+			case EQ:
+				return Opcode.JNE_II;
+			case NEQ:
+				return Opcode.JEQ_II;
+			default:
+				return -1;
+		}
+	}
+
+	// The compare-and-jump taken in the opposite case
+	private static int opposite(int jump) {
+		switch (jump) {
+			case Opcode.JGE_II:
+				return Opcode.JLT_II;
+			case Opcode.JLT_II:
+				return Opcode.JGE_II;
+			case Opcode.JLE_II:
+				return Opcode.JGT_II;
+			case Opcode.JGT_II:
+				return Opcode.JLE_II;
+			case Opcode.JNE_II:
+				return Opcode.JEQ_II;
+			default:
+				return Opcode.JNE_II;
+		}
+	}
+
+	private static int typeCode(Type type) {
+		switch (type) {
+			case INT:
+				return Opcode.TYPE_INT;
+			case FLOAT:
+				return Opcode.TYPE_FLOAT;
+			case STRING:
+				return Opcode.TYPE_STRING;
+			case BOOL:
+				return Opcode.TYPE_BOOL;
+			default:
+				return Opcode.TYPE_UNKNOWN;
+		}
+	}
+
+	private void emit(int... words) {
+		if (size + words.length > code.length) {
+			code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+		}
+
+		for (int word : words) {
+			code[size++] = word;
+		}
+	}
+
+	// The last word emitted is the address of a block, filled in once every
+	// block has been placed
+	private void jumpTo(BasicBlock target) {
+		jumps.add(size - 1);
+		targets.add(target);
+	}
+
+	private int constant(Object value) {
+		Integer index = constantIndex.get(value);
+
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+
+		return index;
+	}
+
+	private int function(String id) {
+		Integer index = functionIndex.get(id);
+
+		if (index == null) {
+			index = functionNames.size();
+			functionNames.add(id);
+			functionIndex.put(id, index);
+		}
+
+		return index;
+	}
+
+	private int register(Instruction value) {
+		return registers.get(value);
+	}
+
+	private void lowerBlock(BasicBlock block, BasicBlock next) {
+		for (Instruction instruction : block.instructions) {
+			if (instruction.op.terminator) {
+				lowerTerminator(instruction, next);
+			} else if (!fused.contains(instruction)) {
+				lowerInstruction(instruction);
+			}
+		}
+	}
+
+	private void lowerInstruction(Instruction instruction) {
+		List<Instruction> operands = instruction.operands;
+
+		switch (instruction.op) {
+			case ADD:
+				binary(instruction, Opcode.ADD, Opcode.ADD_II, Opcode.ADD_DD);
+				break;
+			case SUB:
+				binary(instruction, Opcode.SUB, Opcode.SUB_II, Opcode.SUB_DD);
+				break;
+			case MUL:
+				binary(instruction, Opcode.MUL, Opcode.MUL_II, Opcode.MUL_DD);
+				break;
+			case DIV:
+				binary(instruction, Opcode.DIV, Opcode.DIV_II, Opcode.DIV_DD);
+				break;
+			case MOD:
+				binary(instruction, Opcode.MOD, Opcode.MOD_II, Opcode.MOD_DD);
+				break;
+			case LT:
+				binary(instruction, Opcode.LT, Opcode.LT_II, Opcode.LT);
+				break;
+			case GT:
+				binary(instruction, Opcode.GT, Opcode.GT_II, Opcode.GT);
+				break;
+			case LTE:
+				binary(instruction, Opcode.LTE, Opcode.LTE_II, Opcode.LTE);
+				break;
+			case GTE:
+				binary(instruction, Opcode.GTE, Opcode.GTE_II, Opcode.GTE);
+				break;
+			case EQ:
+				binary(instruction, Opcode.EQ, Opcode.EQ_II, Opcode.EQ);
+				break;
+			case NEQ:
+				binary(instruction, Opcode.NEQ, Opcode.NEQ_II, Opcode.NEQ);
+				break;
+			case NEG:
+				emit(Opcode.NEG, register(instruction), register(operands.get(0)));
+				break;
+			case NOT:
+				emit(Opcode.NOT, register(instruction), register(operands.get(0)));
+				break;
+			case CHECK: {
+				int value = register(operands.get(0));
+				String textType = Keyword.translated.get(instruction.type.keyword);
+				emit(Opcode.CHECKTYPE, value, typeCode(instruction.type), constant(instruction.name),
+						textType == null ? -1 : constant(textType));
+				emit(Opcode.MOVE, register(instruction), value);
+				break;
+			}
+			case TOINT:
+				emit(Opcode.MOVE, register(instruction), register(operands.get(0)));
+				emit(Opcode.CASTINT, register(instruction));
+				break;
+			case TOBOOL:
+				emit(Opcode.CHECKBOOL, register(operands.get(0)), constant(instruction.name));
+				emit(Opcode.MOVE, register(instruction), register(operands.get(0)));
+				break;
+			case ITERATIONS:
+				emit(Opcode.FORPREP, register(instruction), register(operands.get(0)), register(operands.get(1)),
+						register(operands.get(2)), constant(instruction.name));
+				break;
+			case CALL:
+				for (int i = 0; i < operands.size(); i++) {
+					emit(Opcode.MOVE, argumentBase + i, register(operands.get(i)));
+				}
+				emit(Opcode.CALL, register(instruction), function(instruction.name), argumentBase, operands.size());
+				break;
+			case PRINT:
+				emit(Opcode.PRINT, register(operands.get(0)));
+				break;
+			case DEFINE:
+				emit(Opcode.DEFFUNC, function(instruction.name), codeIndex.get((IrFunction) instruction.constant));
+				break;
+			default:
+				// Constants, parameters, phis and the like need no code
+		}
+	}
+
+	private void binary(Instruction instruction, int generic, int ints, int doubles) {
+		Type left = instruction.operands.get(0).type;
+		Type right = instruction.operands.get(1).type;
+		int op = generic;
+
+		if (left == Type.INT && right == Type.INT) {
+			op = ints;
+		} else if (left == Type.FLOAT && right == Type.FLOAT) {
+			op = doubles;
+		}
+
+		emit(op, register(instruction), register(instruction.operands.get(0)),
+				register(instruction.operands.get(1)));
+	}
+
+	private void lowerTerminator(Instruction terminator, BasicBlock next) {
+		BasicBlock block = terminator.block;
+
+		switch (terminator.op) {
+			case JUMP:
+				lowerEdge(block, block.successors.get(0), next);
+				break;
+			case RETURN:
+				if (isMain) {
+					emit(Opcode.HALT);
+				} else if (terminator.operands.isEmpty()) {
+					emit(Opcode.RETNULL);
+				} else {
+					emit(Opcode.RET, register(terminator.operands.get(0)));
+				}
+				break;
+			default:
+				lowerBranch(terminator, next);
+		}
+	}
+
+	// Branches and forloops fall through to their first successor and jump to
+	// the second, through a stub when that edge needs moves
+	private void lowerBranch(Instruction terminator, BasicBlock next) {
+		BasicBlock block = terminator.block;
+		BasicBlock first = block.successors.get(0);
+		BasicBlock second = block.successors.get(1);
+		Instruction operand = terminator.operands.get(0);
+
+		// A branch whose second successor comes next jumps to the first one on
+		// the opposite condition instead, as the blocks of && and || often do
+		if (terminator.op == Op.BRANCH && second == next && moves(block, first).isEmpty()) {
+			if (fused.contains(operand)) {
+				emit(opposite(jumpIfFalse(operand)), register(operand.operands.get(0)),
+						register(operand.operands.get(1)), 0);
+			} else {
+				emit(Opcode.JMPT, register(operand), 0);
+			}
+			jumpTo(first);
+			lowerEdge(block, second, next);
+			return;
+		}
+
+		if (terminator.op == Op.FORLOOP) {
+			emit(Opcode.FORLOOP, register(operand), 0);
+		} else if (fused.contains(operand)) {
+			emit(jumpIfFalse(operand), register(operand.operands.get(0)), register(operand.operands.get(1)), 0);
+		} else {
+			emit(Opcode.JMPF, register(operand), 0);
+		}
+
+		int toSecond = size - 1;
+		boolean stub = !moves(block, second).isEmpty();
+
+		if (stub) {
+			lowerEdge(block, first, null);
+			code[toSecond] = size;
+			lowerEdge(block, second, next);
+		} else {
+			jumpTo(second);
+			lowerEdge(block, first, next);
+		}
+	}
+
+	private void lowerEdge(BasicBlock from, BasicBlock to, BasicBlock next) {
+		List<int[]> moves = moves(from, to);
+		boolean overlap = false;
+
+		for (int[] move : moves) {
+			for (int[] other : moves) {
+				overlap |= move[1] == other[0];
+			}
+		}
+
+		// Phis read their operands all at once, so a move must not clobber a
+		// register another one still reads
+		if (overlap) {
+			for (int i = 0; i < moves.size(); i++) {
+				emit(Opcode.MOVE, copyBase + i, moves.get(i)[1]);
+			}
+			for (int i = 0; i < moves.size(); i++) {
+				emit(Opcode.MOVE, moves.get(i)[0], copyBase + i);
+			}
+		} else {
+			for (int[] move : moves) {
+				emit(Opcode.MOVE, move[0], move[1]);
+			}
+		}
+
+		if (to != next) {
+			emit(Opcode.JMP, 0);
+			jumpTo(to);
+		}
+	}
+
+	// (destination, source) register pairs of the phis of an edge
+	private List<int[]> moves(BasicBlock from, BasicBlock to) {
+		List<int[]> moves = new ArrayList<>();
+		int index = to.predecessors.indexOf(from);
+
+		for (Instruction phi : to.phis()) {
+			Instruction value = phi.operands.get(index);
+
+			if (value.op != Op.UNDEF && register(phi) != register(value)) {
+				moves.add(new int[] { register(phi), register(value) });
+			}
+		}
+
+		return moves;
+	}
+}
@@ -0,0 +1,173 @@
+package jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a minimal class file: a constant pool and public static methods with
+ * a Code attribute. Classes use major version 49, which the JVM verifies by
+ * type inference, so no StackMapTable has to be computed.
+ */
+public class ClassFileWriter {
+	static final int MAJOR_VERSION = 49;
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int CONSTANT_UTF8 = 1;
+	static final int CONSTANT_INTEGER = 3;
+	static final int CONSTANT_DOUBLE = 6;
+	static final int CONSTANT_CLASS = 7;
+	static final int CONSTANT_STRING = 8;
+	static final int CONSTANT_FIELDREF = 9;
+	static final int CONSTANT_METHODREF = 10;
+	static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private final String className;
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+	private final List<byte[]> methods = new ArrayList<>();
+
+	public ClassFileWriter(String className) {
+		this.className = className;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	private int entry(String key, int tag, Object... values) {
+		Integer index = poolIndex.get(key);
+
+		if (index != null) {
+			return index;
+		}
+
+		try {
+			pool.writeByte(tag);
+
+			for (Object value : values) {
+				if (value instanceof String) {
+					pool.writeUTF((String) value);
+				} else if (value instanceof Double) {
+					pool.writeDouble((Double) value);
+				} else if (tag == CONSTANT_INTEGER) {
+					pool.writeInt((Integer) value);
+				} else {
+					pool.writeShort((Integer) value);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		index = poolCount;
+		poolCount += tag == CONSTANT_DOUBLE ? 2 : 1;
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	public int utf8(String value) {
+		return entry("U" + value, CONSTANT_UTF8, value);
+	}
+
+	public int classRef(String internalName) {
+		int name = utf8(internalName);
+		return entry("C" + internalName, CONSTANT_CLASS, name);
+	}
+
+	public int string(String value) {
+		int utf = utf8(value);
+		return entry("S" + value, CONSTANT_STRING, utf);
+	}
+
+	public int integer(int value) {
+		return entry("I" + value, CONSTANT_INTEGER, value);
+	}
+
+	public int doubleConstant(double value) {
+		return entry("D" + Double.doubleToRawLongBits(value), CONSTANT_DOUBLE, value);
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		return entry("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+	}
+
+	public int methodRef(String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nat = nameAndType(name, descriptor);
+		return entry("M" + owner + "." + name + descriptor, CONSTANT_METHODREF, ownerIndex, nat);
+	}
+
+	public int fieldRef(String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nat = nameAndType(name, descriptor);
+		return entry("F" + owner + "." + name + descriptor, CONSTANT_FIELDREF, ownerIndex, nat);
+	}
+
+	public void addStaticMethod(String name, String descriptor, CodeBuilder code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] body = code.toByteArray();
+
+		try {
+			out.writeShort(ACC_PUBLIC | ACC_STATIC);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + body.length);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		methods.add(bytes.toByteArray());
+	}
+
+	public byte[] toByteArray() {
+		int thisClass = classRef(className);
+		int superClass = classRef("java/lang/Object");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolCount);
+			out.write(poolBytes.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+}
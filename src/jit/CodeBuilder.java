@@ -0,0 +1,194 @@
+package jit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assembles the code of one method. Callers pass the stack effect of every
+ * instruction, which is how max_stack is computed; branch targets are labels
+ * resolved when the code is finished.
+ */
+public class CodeBuilder {
+	public static final int ACONST_NULL = 1;
+	public static final int ICONST_0 = 3;
+	public static final int ICONST_1 = 4;
+	public static final int LCONST_0 = 9;
+	public static final int LCONST_1 = 10;
+	public static final int DCONST_0 = 14;
+	public static final int BIPUSH = 16;
+	public static final int SIPUSH = 17;
+	public static final int LDC_W = 19;
+	public static final int LDC2_W = 20;
+	public static final int ILOAD = 21;
+	public static final int LLOAD = 22;
+	public static final int DLOAD = 24;
+	public static final int ALOAD = 25;
+	public static final int ISTORE = 54;
+	public static final int LSTORE = 55;
+	public static final int DSTORE = 57;
+	public static final int ASTORE = 58;
+	public static final int POP = 87;
+	public static final int POP2 = 88;
+	public static final int IADD = 96;
+	public static final int DADD = 99;
+	public static final int ISUB = 100;
+	public static final int LSUB = 101;
+	public static final int DSUB = 103;
+	public static final int IMUL = 104;
+	public static final int DMUL = 107;
+	public static final int IREM = 112;
+	public static final int DREM = 115;
+	public static final int INEG = 116;
+	public static final int DNEG = 119;
+	public static final int IAND = 126;
+	public static final int IOR = 128;
+	public static final int IXOR = 130;
+	public static final int LCMP = 148;
+	public static final int DCMPL = 151;
+	public static final int DCMPG = 152;
+	public static final int IFEQ = 153;
+	public static final int IFNE = 154;
+	public static final int IFLT = 155;
+	public static final int IFGE = 156;
+	public static final int IFGT = 157;
+	public static final int IFLE = 158;
+	public static final int IF_ICMPEQ = 159;
+	public static final int IF_ICMPNE = 160;
+	public static final int IF_ICMPLT = 161;
+	public static final int IF_ICMPGE = 162;
+	public static final int IF_ICMPGT = 163;
+	public static final int IF_ICMPLE = 164;
+	public static final int GOTO = 167;
+	public static final int IRETURN = 172;
+	public static final int DRETURN = 175;
+	public static final int ARETURN = 176;
+	public static final int RETURN = 177;
+	public static final int GETSTATIC = 178;
+	public static final int INVOKEVIRTUAL = 182;
+	public static final int INVOKESTATIC = 184;
+	public static final int ATHROW = 191;
+	public static final int CHECKCAST = 192;
+	static final int WIDE = 196;
+
+	private byte[] code = new byte[256];
+	private int size;
+	private int depth;
+	private int maxStack;
+	private int maxLocals;
+	private final List<Integer> labels = new ArrayList<>();
+	// (offset of the branch instruction, offset of its operand, label)
+	private final List<int[]> branches = new ArrayList<>();
+
+	public CodeBuilder(int maxLocals) {
+		this.maxLocals = maxLocals;
+	}
+
+	public int getMaxStack() {
+		return maxStack;
+	}
+
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void put(int value) {
+		if (size == code.length) {
+			code = Arrays.copyOf(code, size * 2);
+		}
+		code[size++] = (byte) value;
+	}
+
+	private void adjust(int delta) {
+		depth += delta;
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	/** Sets the stack depth, for code reached only by a jump. */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void op(int opcode, int delta) {
+		put(opcode);
+		adjust(delta);
+	}
+
+	public void opShort(int opcode, int operand, int delta) {
+		put(opcode);
+		put(operand >> 8);
+		put(operand);
+		adjust(delta);
+	}
+
+	public void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value, 1);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			put(BIPUSH);
+			put(value);
+			adjust(1);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			opShort(SIPUSH, value, 1);
+		} else {
+			throw new IllegalArgumentException("use ldc for large ints");
+		}
+	}
+
+	public void local(int opcode, int index, int delta) {
+		if (index > 255) {
+			put(WIDE);
+			opShort(opcode, index, delta);
+		} else {
+			put(opcode);
+			put(index);
+			adjust(delta);
+		}
+	}
+
+	public void reserveLocals(int count) {
+		maxLocals = Math.max(maxLocals, count);
+	}
+
+	public int newLabel() {
+		labels.add(-1);
+		return labels.size() - 1;
+	}
+
+	public void placeLabel(int label) {
+		labels.set(label, size);
+	}
+
+	public void jump(int opcode, int label, int delta) {
+		branches.add(new int[] { size, size + 1, label });
+		opShort(opcode, 0, delta);
+	}
+
+	public byte[] toByteArray() {
+		for (int[] branch : branches) {
+			int target = labels.get(branch[2]);
+			int offset = target - branch[0];
+
+			if (target < 0 || offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("branch out of range");
+			}
+
+			code[branch[1]] = (byte) (offset >> 8);
+			code[branch[1] + 1] = (byte) offset;
+		}
+
+		if (size > 65535) {
+			throw new IllegalArgumentException("method too large");
+		}
+
+		return Arrays.copyOf(code, size);
+	}
+}
@@ -0,0 +1,165 @@
+package jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import expression.Program;
+
+/**
+ * Compiles programs with {@link JavaTranspiler} and javac, in memory, and
+ * keeps the resulting classes in a directory keyed by a hash of the script.
+ * A cached script is loaded without parsing it again.
+ */
+public class JavaClassCache {
+	public static final String DEFAULT_DIRECTORY = ".glyph-cache";
+
+	// Changing the generated code must change the keys of cached classes
+	static final String VERSION = "9";
+	static final String CLASS_PREFIX = "Glyph_";
+
+	private final Path directory;
+
+	public JavaClassCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/** Returns the cache key of a script's source. */
+	public static String key(byte[] source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+
+			for (byte b : digest.digest(source)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Path classFile(String key) {
+		return directory.resolve(CLASS_PREFIX + key + ".class");
+	}
+
+	/** Loads a cached program, or returns null if the key is not cached. */
+	public JvmProgram load(String key) throws IOException {
+		Path path = classFile(key);
+
+		if (!Files.exists(path)) {
+			return null;
+		}
+		return define(CLASS_PREFIX + key, Files.readAllBytes(path));
+	}
+
+	/**
+	 * Compiles a program and stores it under the given key. Throws
+	 * UnsupportedOperationException if the program cannot be translated or no
+	 * Java compiler is available.
+	 */
+	public JvmProgram compile(String key, Program prog) throws IOException {
+		String className = CLASS_PREFIX + key;
+		String source = new JavaTranspiler().translate(prog, className);
+		byte[] bytes = javac(className, source);
+
+		Files.createDirectories(directory);
+		Files.write(classFile(key), bytes);
+
+		return define(className, bytes);
+	}
+
+	private static byte[] javac(String className, String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+		if (compiler == null) {
+			throw new UnsupportedOperationException("no Java compiler available");
+		}
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+		StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+
+		JavaFileManager fileManager = new ForwardingJavaFileManager<>(standard) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+					FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						classes.put(name, out);
+						return out;
+					}
+				};
+			}
+		};
+
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("mem:///" + className + ".java"),
+				JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-proc:none", "-nowarn");
+		boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null, List.of(file)).call();
+
+		if (!ok || !classes.containsKey(className)) {
+			StringBuilder sb = new StringBuilder("generated Java failed to compile");
+
+			for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+				sb.append(System.lineSeparator()).append(d.getLineNumber()).append(": ").append(d.getMessage(null));
+			}
+			throw new IllegalStateException(sb.toString());
+		}
+
+		return classes.get(className).toByteArray();
+	}
+
+	private static JvmProgram define(String className, byte[] bytes) {
+		try {
+			Class<?> c = new ScriptClassLoader().define(className, bytes);
+			MethodHandle main = MethodHandles.publicLookup().findStatic(c, JavaTranspiler.MAIN,
+					MethodType.methodType(void.class));
+			return new JvmProgram(main);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new IllegalStateException("cached class failed to load", e);
+		}
+	}
+
+	private static class ScriptClassLoader extends ClassLoader {
+		ScriptClassLoader() {
+			super(JavaClassCache.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
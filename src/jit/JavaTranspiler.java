@@ -0,0 +1,581 @@
+package jit;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.Comparison;
+import expression.Conditional;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Return;
+import expression.StatementRules;
+import expression.TailCalls;
+import expression.Str;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Translates a {@link Program} to the source of a Java class. Operators are
+ * spelled as in {@link Keyword#translated}, functions become static methods
+ * named {@code f_<id>}, variables become typed locals named {@code v_<id>} and
+ * the top-level code becomes {@code run()}.
+ */
+public class JavaTranspiler extends TypedCompiler {
+	static final String MAIN = "run";
+	static final String SUPPORT = "jit.JitSupport";
+	static final String OPERATORS = "compiler.Operators";
+
+	private StringBuilder out;
+	private int indent;
+	private int loops;
+	// Function being translated, for self tail calls
+	private Function currentFunction;
+
+	public String translate(Program prog, String className) {
+		analyze(prog);
+
+		out = new StringBuilder();
+		indent = 0;
+		line("public final class %s {", className);
+		indent++;
+
+		for (Function function : functions.values()) {
+			translateFunction(function);
+		}
+		translateMain(prog.expressions);
+
+		indent--;
+		line("}");
+		return out.toString();
+	}
+
+	private void line(String format, Object... args) {
+		if (!format.isEmpty()) {
+			out.append("\t".repeat(indent)).append(String.format(format, args));
+		}
+		out.append('\n');
+	}
+
+	private static String javaType(int type) {
+		switch (type) {
+			case TYPE_INT:
+				return "int";
+			case TYPE_FLOAT:
+				return "double";
+			case TYPE_BOOL:
+				return "boolean";
+			case TYPE_STRING:
+				return "String";
+			default:
+				return "Object";
+		}
+	}
+
+	private void translateFunction(Function function) {
+		startFrame(function);
+		scanDeclarations(function.block);
+		inFunction = true;
+		returnType = returnTypes.get(function.id);
+
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < function.paramIds.size(); i++) {
+			int type = JitSupport.typeOf(function.paramTypes.get(i));
+
+			if (type == TYPE_OBJECT) {
+				throw unsupported(String.format("parameter '%s' has an unknown type", function.paramIds.get(i)));
+			}
+
+			params.append(i > 0 ? ", " : "").append(javaType(type)).append(" v_").append(function.paramIds.get(i));
+		}
+
+		line("static %s f_%s(%s) {", javaType(returnType), function.id, params);
+		indent++;
+		declareLocals(function.paramIds);
+
+		currentFunction = function;
+		boolean tailCalls = TailCalls.mark(function) > 0;
+
+		// Self tail calls rebind the parameters and continue this loop
+		if (tailCalls) {
+			line("body: while (true) {");
+			indent++;
+		}
+
+		List<Expression> body = ((Block) function.block).getStatements();
+		translateStatements(body, true);
+
+		// Falling off the end returns nothing, like the interpreter
+		if (!alwaysReturns(body)) {
+			line("return null;");
+		}
+
+		if (tailCalls) {
+			indent--;
+			line("}");
+		}
+
+		indent--;
+		line("}");
+		line("");
+	}
+
+	private void translateMain(List<Expression> statements) {
+		startFrame(null);
+		for (Expression e : statements) {
+			if (!(e instanceof Function)) {
+				scanDeclarations(e);
+			}
+		}
+		inFunction = false;
+
+		line("public static void %s() {", MAIN);
+		indent++;
+		declareLocals(List.of());
+		translateStatements(statements, true);
+		indent--;
+		line("}");
+	}
+
+	// Java rejects reads of unassigned locals; the declaration checks
+	// guarantee Glyph code never observes these values
+	private void declareLocals(List<String> params) {
+		for (Map.Entry<String, Integer> var : varTypes.entrySet()) {
+			if (params.contains(var.getKey())) {
+				continue;
+			}
+
+			switch (var.getValue()) {
+				case TYPE_FLOAT:
+					line("double v_%s = 0;", var.getKey());
+					break;
+				case TYPE_STRING:
+					line("String v_%s = null;", var.getKey());
+					break;
+				case TYPE_BOOL:
+					line("boolean v_%s = false;", var.getKey());
+					break;
+				default:
+					line("int v_%s = 0;", var.getKey());
+			}
+		}
+	}
+
+	private void translateStatements(List<Expression> statements, boolean topLevel) {
+		for (Expression e : statements) {
+			if (!StatementRules.runs(e, inFunction)) {
+				continue;
+			}
+
+			translateStatement(e, topLevel);
+
+			// Java rejects unreachable statements, and they never run anyway
+			if (inFunction && alwaysReturns(List.of(e))) {
+				break;
+			}
+		}
+	}
+
+	private void translateBlock(Expression block) {
+		Set<String> outer = new HashSet<>(declared);
+		indent++;
+		translateStatements(((Block) block).getStatements(), false);
+		indent--;
+		declared = outer;
+	}
+
+	private void translateStatement(Expression e, boolean topLevel) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+
+			if (topLevel && possiblyDeclared.contains(decl.id)) {
+				throw unsupported(String.format("variable '%s' may be declared twice", decl.id));
+			}
+
+			// In the blocks of top-level code a redeclaration reassigns the
+			// variable; functions that may redeclare one are never translated
+			line("v_%s = %s;", decl.id, stored(decl.id, decl.expr));
+			declared.add(decl.id);
+			possiblyDeclared.add(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+
+			if (!declared.contains(assign.id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", assign.id));
+			}
+
+			line("v_%s = %s;", assign.id, stored(assign.id, assign.expr));
+		} else if (e instanceof Print) {
+			Expression expr = ((Print) e).expr;
+
+			if (typeOf(expr) == TYPE_OBJECT) {
+				line("%s.print(%s);", SUPPORT, expression(expr));
+			} else {
+				line("System.out.println(%s);", expression(expr));
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+
+			line("if (%s) {", condition(cond.condition));
+			Set<String> before = new HashSet<>(possiblyDeclared);
+			translateBlock(cond.ifBlock);
+
+			if (cond.elseBlock != null) {
+				line("} else {");
+				Set<String> afterIf = possiblyDeclared;
+				possiblyDeclared = before;
+				translateBlock(cond.elseBlock);
+				possiblyDeclared.addAll(afterIf);
+			}
+			line("}");
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			String condition = condition(whileLoop.condition);
+
+			declaredIn(whileLoop.block, possiblyDeclared);
+
+			// A constant true condition would make the code after the loop
+			// unreachable to javac, so it is hidden behind a call
+			if (!containsVariableOrCall(whileLoop.condition)) {
+				condition = "Boolean.valueOf(" + condition + ")";
+			}
+
+			line("while (%s) {", condition);
+			translateBlock(whileLoop.block);
+			line("}");
+		} else if (e instanceof ForLoop) {
+			translateForLoop((ForLoop) e);
+		} else if (e instanceof Return) {
+			Expression expr = ((Return) e).expr;
+
+			if (((Return) e).tailCall && ((FunctionCall) expr).id.equals(currentFunction.id)) {
+				translateTailCall((FunctionCall) expr);
+				return;
+			}
+
+			String value = expression(expr);
+			line("return %s;", returnType == TYPE_OBJECT ? boxed(typeOf(expr), value) : value);
+		} else if (e instanceof Function) {
+			// Functions are linked statically, so declaring one never fails
+			String id = ((Function) e).id;
+
+			if (possiblyDeclared.contains(id)) {
+				throw unsupported(String.format("function '%s' may be declared after a variable of its name", id));
+			}
+		}
+	}
+
+	private void translateForLoop(ForLoop forLoop) {
+		if (possiblyDeclared.contains(forLoop.id)) {
+			throw unsupported(String.format("loop variable '%s' may already be declared", forLoop.id));
+		}
+
+		int n = loops++;
+		String start = coerced(typeOf(forLoop.start), TYPE_INT, expression(forLoop.start));
+		String end = coerced(typeOf(forLoop.end), TYPE_INT, expression(forLoop.end));
+		String step = coerced(typeOf(forLoop.step), TYPE_INT, expression(forLoop.step));
+
+		declaredIn(forLoop.block, possiblyDeclared);
+		possiblyDeclared.add(forLoop.id);
+
+		line("int i%d = %s, end%d = %s, step%d = %s;", n, start, n, end, n, step);
+		line("for (long left%d = %s.iterations(i%d, end%d, step%d, \"%s\"); left%d > 0; left%d--, i%d += step%d) {", n,
+				SUPPORT, n, n, n, forLoop.id, n, n, n, n);
+		indent++;
+		line("v_%s = i%d;", forLoop.id, n);
+		indent--;
+
+		Set<String> outer = new HashSet<>(declared);
+		declared.add(forLoop.id);
+		translateBlock(forLoop.block);
+		declared = outer;
+
+		line("}");
+
+		// The loop variable is undeclared again once the loop ends
+		possiblyDeclared.remove(forLoop.id);
+	}
+
+	private static boolean containsVariableOrCall(Expression e) {
+		if (e instanceof Variable || e instanceof FunctionCall) {
+			return true;
+		} else if (e instanceof Parens) {
+			return containsVariableOrCall(((Parens) e).expr);
+		} else if (e instanceof Not) {
+			return containsVariableOrCall(((Not) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			return containsVariableOrCall(((UnaryMinus) e).expr);
+		} else if (e instanceof AddSub) {
+			return containsVariableOrCall(((AddSub) e).left) || containsVariableOrCall(((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			return containsVariableOrCall(((MultDivMod) e).left) || containsVariableOrCall(((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			return containsVariableOrCall(((Comparison) e).left) || containsVariableOrCall(((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			return containsVariableOrCall(((Equality) e).left) || containsVariableOrCall(((Equality) e).right);
+		} else if (e instanceof And) {
+			return containsVariableOrCall(((And) e).left) || containsVariableOrCall(((And) e).right);
+		} else if (e instanceof Or) {
+			return containsVariableOrCall(((Or) e).left) || containsVariableOrCall(((Or) e).right);
+		}
+		return false;
+	}
+
+	private String stored(String id, Expression expr) {
+		int varType = varTypes.get(id);
+		int type = typeOf(expr);
+		String value = expression(expr);
+
+		if (type == varType) {
+			return value;
+		}
+
+		// A static mismatch fails inside checkAssign with the interpreter's error
+		String checked = String.format("%s.checkAssign(%s, %d, \"%s\")", SUPPORT, boxed(type, value), varType, id);
+		return unboxed(varType, checked);
+	}
+
+	private String condition(Expression condition) {
+		return coerced(typeOf(condition), TYPE_BOOL, expression(condition));
+	}
+
+	private static String coerced(int from, int to, String value) {
+		return from == to ? value : unboxed(to, boxed(from, value));
+	}
+
+	private static String boxed(int type, String value) {
+		return type == TYPE_OBJECT ? value : "(Object) " + value;
+	}
+
+	private static String unboxed(int type, String value) {
+		switch (type) {
+			case TYPE_INT:
+				return "((int) (Integer) " + value + ")";
+			case TYPE_FLOAT:
+				return "((double) (Double) " + value + ")";
+			case TYPE_BOOL:
+				return "((boolean) (Boolean) " + value + ")";
+			case TYPE_STRING:
+				return "((String) " + value + ")";
+			default:
+				return value;
+		}
+	}
+
+	private static String literal(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+
+		return sb.append('"').toString();
+	}
+
+	// Every expression is parenthesized so Java's precedence never applies
+	private String expression(Expression e) {
+		if (e instanceof Int) {
+			return Integer.toString(((Int) e).value);
+		} else if (e instanceof Real) {
+			double value = ((Real) e).value;
+			return Double.isInfinite(value) ? "Double.POSITIVE_INFINITY" : Double.toString(value);
+		} else if (e instanceof Str) {
+			return literal(((Str) e).value);
+		} else if (e instanceof Bool) {
+			return Boolean.toString(((Bool) e).value);
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+
+			if (!declared.contains(id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", id));
+			}
+			return "v_" + id;
+		} else if (e instanceof Parens) {
+			return expression(((Parens) e).expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			return arithmetic(e, add.left, add.right, add.operator, add.operator.equals(Keyword.PLUS) ? "add" : "sub");
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return arithmetic(e, mult.left, mult.right, mult.operator, "mul");
+				case Keyword.DIVIDE:
+					return arithmetic(e, mult.left, mult.right, mult.operator, "div");
+				default:
+					return arithmetic(e, mult.left, mult.right, mult.operator, "mod");
+			}
+		} else if (e instanceof UnaryMinus) {
+			Expression expr = ((UnaryMinus) e).expr;
+			int type = typeOf(expr);
+
+			if (type == TYPE_INT || type == TYPE_FLOAT) {
+				return "(-" + expression(expr) + ")";
+			}
+			return String.format("%s.negate(%s)", OPERATORS, boxed(type, expression(expr)));
+		} else if (e instanceof Not) {
+			Expression expr = ((Not) e).expr;
+			int type = typeOf(expr);
+
+			if (type == TYPE_BOOL) {
+				return "(!" + expression(expr) + ")";
+			}
+			return String.format("%s.not(%s)", OPERATORS, boxed(type, expression(expr)));
+		} else if (e instanceof And) {
+			And and = (And) e;
+			return logical(and.left, and.right, "&&");
+		} else if (e instanceof Or) {
+			Or or = (Or) e;
+			return logical(or.left, or.right, "||");
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+			return binary(comp.left, comp.right, comp.operator, typeOf(e) == TYPE_BOOL, comparisonName(comp.operator));
+		} else if (e instanceof Equality) {
+			return equality((Equality) e);
+		} else if (e instanceof FunctionCall) {
+			return functionCall((FunctionCall) e);
+		}
+
+		throw unsupported(String.format("'%s'", e));
+	}
+
+	private static String comparisonName(String operator) {
+		switch (operator) {
+			case Keyword.LT:
+				return "lt";
+			case Keyword.GT:
+				return "gt";
+			case Keyword.LTE:
+				return "lte";
+			default:
+				return "gte";
+		}
+	}
+
+	private String arithmetic(Expression e, Expression left, Expression right, String operator, String generic) {
+		int type = typeOf(e);
+
+		if (operator.equals(Keyword.DIVIDE) && (type == TYPE_INT || type == TYPE_FLOAT)) {
+			return String.format("%s.divide(%s, %s)", SUPPORT, expression(left), expression(right));
+		}
+
+		// String concatenation is only typed when both sides are printable
+		return binary(left, right, operator, type != TYPE_OBJECT, generic);
+	}
+
+	// && and || skip the right side once the left one decides the result, like
+	// the interpreter
+	private String logical(Expression left, Expression right, String operator) {
+		return String.format("(%s %s %s)", operand(left, operator), operator, operand(right, operator));
+	}
+
+	private String operand(Expression e, String operator) {
+		int type = typeOf(e);
+
+		if (type == TYPE_BOOL) {
+			return expression(e);
+		}
+		return String.format("%s.logicalOperand(%s, %s)", OPERATORS, boxed(type, expression(e)), literal(operator));
+	}
+
+	private String binary(Expression left, Expression right, String operator, boolean typed, String generic) {
+		if (typed) {
+			return String.format("(%s %s %s)", expression(left), Keyword.translated.get(operator), expression(right));
+		}
+		return String.format("%s.%s(%s, %s)", OPERATORS, generic, boxed(typeOf(left), expression(left)),
+				boxed(typeOf(right), expression(right)));
+	}
+
+	private String equality(Equality eq) {
+		int left = typeOf(eq.left);
+		int right = typeOf(eq.right);
+		String result;
+
+		if (left == right && (left == TYPE_INT || left == TYPE_BOOL)) {
+			return String.format("(%s %s %s)", expression(eq.left), Keyword.translated.get(eq.operator),
+					expression(eq.right));
+		} else if (left == TYPE_FLOAT && right == TYPE_FLOAT) {
+			// Double.compare matches Double.equals, which the interpreter uses
+			result = String.format("Double.compare(%s, %s) == 0", expression(eq.left), expression(eq.right));
+		} else {
+			result = String.format("%s.equal(%s, %s)", SUPPORT, boxed(left, expression(eq.left)),
+					boxed(right, expression(eq.right)));
+		}
+
+		return eq.operator.equals(Keyword.EQ) ? "(" + result + ")" : "(!(" + result + "))";
+	}
+
+	private String functionCall(FunctionCall call) {
+		return String.format("f_%s(%s)", call.id, String.join(", ", arguments(call)));
+	}
+
+	// Every argument is evaluated before any parameter changes, since the
+	// arguments may read the parameters
+	private void translateTailCall(FunctionCall call) {
+		List<String> args = arguments(call);
+
+		line("{");
+		indent++;
+		for (int i = 0; i < args.size(); i++) {
+			int type = JitSupport.typeOf(currentFunction.paramTypes.get(i));
+			line("%s arg%d = %s;", javaType(type), i, args.get(i));
+		}
+		for (int i = 0; i < args.size(); i++) {
+			line("v_%s = arg%d;", currentFunction.paramIds.get(i), i);
+		}
+		line("continue body;");
+		indent--;
+		line("}");
+	}
+
+	// The arguments of a call, converted to the parameter types
+	private List<String> arguments(FunctionCall call) {
+		Function function = functions.get(call.id);
+		List<String> args = new ArrayList<>();
+
+		typeOf(call);
+
+		for (int i = 0; i < call.args.size(); i++) {
+			Expression arg = call.args.get(i);
+			int argType = typeOf(arg);
+			int paramType = JitSupport.typeOf(function.paramTypes.get(i));
+			String value = expression(arg);
+
+			if (argType != paramType) {
+				value = unboxed(paramType, String.format("%s.checkArgument(%s, %d, \"%s\", \"%s\")", SUPPORT,
+						boxed(argType, value), paramType, function.paramIds.get(i), function.id));
+			}
+
+			args.add(value);
+		}
+		return args;
+	}
+}
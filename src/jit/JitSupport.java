@@ -0,0 +1,102 @@
+package jit;
+
+import expression.ForLoop;
+import expression.Keyword;
+
+/**
+ * Helpers called from generated code where a check or an error message is
+ * needed. They keep the exact errors of the interpreters.
+ */
+public abstract class JitSupport {
+	public static final int TYPE_OBJECT = -1;
+	public static final int TYPE_INT = 0;
+	public static final int TYPE_FLOAT = 1;
+	public static final int TYPE_STRING = 2;
+	public static final int TYPE_BOOL = 3;
+
+	public static int divide(int left, int right) {
+		if (right == 0) {
+			throw new IllegalArgumentException("division by zero");
+		}
+		return left / right;
+	}
+
+	public static double divide(double left, double right) {
+		if (right == 0) {
+			throw new IllegalArgumentException("division by zero");
+		}
+		return left / right;
+	}
+
+	public static long iterations(int start, int end, int step, String id) {
+		return ForLoop.iterations(id, start, end, step);
+	}
+
+	public static boolean equal(Object left, Object right) {
+		return left.equals(right);
+	}
+
+	public static void print(Object value) {
+		System.out.println(value.toString());
+	}
+
+	public static Object checkAssign(Object value, int type, String id) {
+		if (!hasType(value, type)) {
+			String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", value, id,
+					Keyword.translated.get(typeKeyword(type)));
+			throw new Error(error);
+		}
+		return value;
+	}
+
+	public static Object checkArgument(Object value, int type, String paramId, String id) {
+		if (!hasType(value, type)) {
+			String error = String.format("Error: wrong type for argument '%s' of function '%s'", paramId, id);
+			throw new Error(error);
+		}
+		return value;
+	}
+
+	static boolean hasType(Object value, int type) {
+		switch (type) {
+			case TYPE_INT:
+				return value instanceof Integer;
+			case TYPE_FLOAT:
+				return value instanceof Double;
+			case TYPE_STRING:
+				return value instanceof String;
+			case TYPE_BOOL:
+				return value instanceof Boolean;
+			default:
+				return true;
+		}
+	}
+
+	static String typeKeyword(int type) {
+		switch (type) {
+			case TYPE_INT:
+				return Keyword.INT_TYPE;
+			case TYPE_FLOAT:
+				return Keyword.FLOAT_TYPE;
+			case TYPE_STRING:
+				return Keyword.STRING_TYPE;
+			default:
+				return Keyword.BOOL_TYPE;
+		}
+	}
+
+	static int typeOf(String keyword) {
+		switch (keyword) {
+			case Keyword.INT_TYPE:
+				return TYPE_INT;
+			case Keyword.FLOAT_TYPE:
+				return TYPE_FLOAT;
+			case Keyword.STRING_TYPE:
+				return TYPE_STRING;
+			case Keyword.BOOL_TYPE:
+				return TYPE_BOOL;
+			default:
+				return TYPE_OBJECT;
+		}
+	}
+}
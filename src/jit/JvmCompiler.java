@@ -0,0 +1,892 @@
+package jit;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.Comparison;
+import expression.Conditional;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Return;
+import expression.StatementRules;
+import expression.TailCalls;
+import expression.Str;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Compiles a {@link Program} to JVM bytecode and loads it as a hidden class.
+ * Every Glyph function becomes a static method and the top-level code becomes
+ * {@code main}. Variables declared 🧮, 🛟 and ✅ live in int, double and
+ * boolean locals, calls are direct invokestatic instructions, and only values
+ * whose type is not known statically (such as the result of a function that
+ * returns different types) are boxed.
+ */
+public class JvmCompiler extends TypedCompiler {
+	static final String CLASS_NAME = "jit/GlyphProgram";
+	static final String SUPPORT = "jit/JitSupport";
+	static final String OPERATORS = "compiler/Operators";
+	static final String MAIN = "main";
+	static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+	static final String UNARY = "(Ljava/lang/Object;)Ljava/lang/Object;";
+
+	private ClassFileWriter classFile;
+
+	// Locals of the method being compiled
+	private Map<String, Integer> slots;
+	private int nextLocal;
+	private CodeBuilder code;
+	// Function being compiled and where its body starts, for self tail calls
+	private Function currentFunction;
+	private int bodyStart;
+
+	public JvmProgram compile(Program prog) {
+		MethodHandles.Lookup lookup = define(prog);
+
+		try {
+			MethodHandle main = lookup.findStatic(lookup.lookupClass(), MAIN, MethodType.methodType(void.class));
+			return new JvmProgram(main);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("generated class failed to load", e);
+		}
+	}
+
+	/**
+	 * Compiles a function and the functions it calls into a class of their
+	 * own, for the interpreter to run once the function is hot. The returned
+	 * handle takes the arguments boxed in an array and returns a boxed result.
+	 */
+	public MethodHandle compileFunction(Function function, List<Function> callees) {
+		Program prog = new Program();
+		prog.addExpression(function);
+
+		for (Function callee : callees) {
+			if (callee != function) {
+				prog.addExpression(callee);
+			}
+		}
+
+		MethodHandles.Lookup lookup = define(prog);
+
+		try {
+			MethodType type = MethodType.fromMethodDescriptorString(methodDescriptor(function), null);
+			MethodHandle handle = lookup.findStatic(lookup.lookupClass(), "f_" + function.id, type);
+
+			return handle.asSpreader(Object[].class, function.paramIds.size())
+					.asType(MethodType.methodType(Object.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("generated class failed to load", e);
+		}
+	}
+
+	private MethodHandles.Lookup define(Program prog) {
+		analyze(prog);
+
+		classFile = new ClassFileWriter(CLASS_NAME);
+
+		for (Function function : functions.values()) {
+			compileFunction(function);
+		}
+		compileMain(prog.expressions);
+
+		try {
+			return MethodHandles.lookup().defineHiddenClass(classFile.toByteArray(), true);
+		} catch (IllegalAccessException | LinkageError e) {
+			throw new IllegalStateException("generated class failed to load", e);
+		}
+	}
+
+	private static String descriptor(int type) {
+		switch (type) {
+			case TYPE_INT:
+				return "I";
+			case TYPE_FLOAT:
+				return "D";
+			case TYPE_BOOL:
+				return "Z";
+			case TYPE_STRING:
+				return "Ljava/lang/String;";
+			default:
+				return "Ljava/lang/Object;";
+		}
+	}
+
+	private static int width(int type) {
+		return type == TYPE_FLOAT ? 2 : 1;
+	}
+
+	private String methodDescriptor(Function function) {
+		StringBuilder sb = new StringBuilder("(");
+
+		for (String type : function.paramTypes) {
+			sb.append(descriptor(JitSupport.typeOf(type)));
+		}
+
+		return sb.append(')').append(descriptor(returnTypes.get(function.id))).toString();
+	}
+
+	private void compileFunction(Function function) {
+		startFrame(function);
+		scanDeclarations(function.block);
+		assignSlots();
+		inFunction = true;
+		returnType = returnTypes.get(function.id);
+
+		code = new CodeBuilder(nextLocal);
+		initializeLocals(function.paramIds);
+
+		currentFunction = function;
+		bodyStart = code.newLabel();
+		TailCalls.mark(function);
+		code.placeLabel(bodyStart);
+		compileStatements(((Block) function.block).getStatements(), true);
+
+		if (returnType == TYPE_OBJECT) {
+			// Falling off the end returns nothing, like the interpreter
+			code.op(CodeBuilder.ACONST_NULL, 1);
+			code.op(CodeBuilder.ARETURN, -1);
+		} else {
+			// Unreachable: every path returns
+			code.op(CodeBuilder.ACONST_NULL, 1);
+			code.op(CodeBuilder.ATHROW, -1);
+		}
+
+		classFile.addStaticMethod("f_" + function.id, methodDescriptor(function), code);
+	}
+
+	private void compileMain(List<Expression> statements) {
+		startFrame(null);
+		for (Expression e : statements) {
+			if (!(e instanceof Function)) {
+				scanDeclarations(e);
+			}
+		}
+		assignSlots();
+		inFunction = false;
+
+		code = new CodeBuilder(nextLocal);
+		initializeLocals(List.of());
+		currentFunction = null;
+		compileStatements(statements, true);
+		code.op(CodeBuilder.RETURN, 0);
+
+		classFile.addStaticMethod(MAIN, "()V", code);
+	}
+
+	// Parameters come first in varTypes, matching the JVM calling convention
+	private void assignSlots() {
+		slots = new HashMap<>();
+		nextLocal = 0;
+
+		for (Map.Entry<String, Integer> var : varTypes.entrySet()) {
+			slots.put(var.getKey(), nextLocal);
+			nextLocal += width(var.getValue());
+		}
+	}
+
+	// Gives every local a value up front so the verifier never sees a read of
+	// an unassigned local; the declaration checks above guarantee Glyph code
+	// never observes these values
+	private void initializeLocals(List<String> params) {
+		for (Map.Entry<String, Integer> var : varTypes.entrySet()) {
+			if (params.contains(var.getKey())) {
+				continue;
+			}
+
+			int slot = slots.get(var.getKey());
+
+			switch (var.getValue()) {
+				case TYPE_FLOAT:
+					code.op(CodeBuilder.DCONST_0, 2);
+					code.local(CodeBuilder.DSTORE, slot, -2);
+					break;
+				case TYPE_STRING:
+					code.op(CodeBuilder.ACONST_NULL, 1);
+					code.local(CodeBuilder.ASTORE, slot, -1);
+					break;
+				default:
+					code.op(CodeBuilder.ICONST_0, 1);
+					code.local(CodeBuilder.ISTORE, slot, -1);
+			}
+		}
+	}
+
+	private int newLocal(int type) {
+		int slot = nextLocal;
+		nextLocal += width(type);
+		code.reserveLocals(nextLocal);
+		return slot;
+	}
+
+	private void compileStatements(List<Expression> statements, boolean topLevel) {
+		for (Expression e : statements) {
+			if (StatementRules.runs(e, inFunction)) {
+				compileStatement(e, topLevel);
+			}
+		}
+	}
+
+	private void compileBlock(Expression block) {
+		Set<String> outer = new HashSet<>(declared);
+		compileStatements(((Block) block).getStatements(), false);
+		declared = outer;
+	}
+
+	private void compileStatement(Expression e, boolean topLevel) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+
+			if (topLevel && possiblyDeclared.contains(decl.id)) {
+				throw unsupported(String.format("variable '%s' may be declared twice", decl.id));
+			}
+
+			// In the blocks of top-level code a redeclaration reassigns the
+			// variable; functions that may redeclare one are never compiled
+			compileStore(decl.id, decl.expr);
+			declared.add(decl.id);
+			possiblyDeclared.add(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+
+			if (!declared.contains(assign.id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", assign.id));
+			}
+
+			compileStore(assign.id, assign.expr);
+		} else if (e instanceof Print) {
+			Expression expr = ((Print) e).expr;
+			int type = typeOf(expr);
+
+			if (type == TYPE_OBJECT) {
+				compileExpression(expr);
+				code.opShort(CodeBuilder.INVOKESTATIC,
+						classFile.methodRef(SUPPORT, "print", "(Ljava/lang/Object;)V"), -1);
+			} else {
+				code.opShort(CodeBuilder.GETSTATIC,
+						classFile.fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"), 1);
+				compileExpression(expr);
+				code.opShort(CodeBuilder.INVOKEVIRTUAL, classFile.methodRef("java/io/PrintStream", "println",
+						"(" + descriptor(type) + ")V"), -1 - width(type));
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			int toElse = code.newLabel();
+			int toEnd = code.newLabel();
+
+			compileBranch(cond.condition, false, toElse);
+
+			Set<String> before = new HashSet<>(possiblyDeclared);
+			compileBlock(cond.ifBlock);
+
+			if (cond.elseBlock != null) {
+				code.jump(CodeBuilder.GOTO, toEnd, 0);
+				code.placeLabel(toElse);
+
+				Set<String> afterIf = possiblyDeclared;
+				possiblyDeclared = before;
+				compileBlock(cond.elseBlock);
+				possiblyDeclared.addAll(afterIf);
+
+				code.placeLabel(toEnd);
+			} else {
+				code.placeLabel(toElse);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			int top = code.newLabel();
+			int toEnd = code.newLabel();
+
+			declaredIn(whileLoop.block, possiblyDeclared);
+
+			code.placeLabel(top);
+			compileBranch(whileLoop.condition, false, toEnd);
+			compileBlock(whileLoop.block);
+			code.jump(CodeBuilder.GOTO, top, 0);
+			code.placeLabel(toEnd);
+		} else if (e instanceof ForLoop) {
+			compileForLoop((ForLoop) e);
+		} else if (e instanceof Return) {
+			Expression expr = ((Return) e).expr;
+
+			if (((Return) e).tailCall && ((FunctionCall) expr).id.equals(currentFunction.id)) {
+				compileTailCall((FunctionCall) expr);
+				return;
+			}
+
+			int type = typeOf(expr);
+			compileExpression(expr);
+
+			if (returnType == TYPE_OBJECT) {
+				box(type);
+				code.op(CodeBuilder.ARETURN, -1);
+			} else if (returnType == TYPE_FLOAT) {
+				code.op(CodeBuilder.DRETURN, -2);
+			} else if (returnType == TYPE_STRING) {
+				code.op(CodeBuilder.ARETURN, -1);
+			} else {
+				code.op(CodeBuilder.IRETURN, -1);
+			}
+		} else if (e instanceof Function) {
+			// Functions are linked statically, so declaring one never fails
+			String id = ((Function) e).id;
+
+			if (possiblyDeclared.contains(id)) {
+				throw unsupported(String.format("function '%s' may be declared after a variable of its name", id));
+			}
+		}
+	}
+
+	private void compileStore(String id, Expression expr) {
+		int varType = varTypes.get(id);
+		int type = typeOf(expr);
+		compileExpression(expr);
+
+		if (type != varType) {
+			// Only reached when the value's type is unknown; a static mismatch
+			// fails inside checkAssign with the interpreter's error
+			box(type);
+			code.pushInt(varType);
+			code.opShort(CodeBuilder.LDC_W, classFile.string(id), 1);
+			code.opShort(CodeBuilder.INVOKESTATIC, classFile.methodRef(SUPPORT, "checkAssign",
+					"(Ljava/lang/Object;ILjava/lang/String;)Ljava/lang/Object;"), -2);
+			unbox(varType);
+		}
+
+		store(id);
+	}
+
+	private void store(String id) {
+		int type = varTypes.get(id);
+		int slot = slots.get(id);
+
+		if (type == TYPE_FLOAT) {
+			code.local(CodeBuilder.DSTORE, slot, -2);
+		} else if (type == TYPE_STRING) {
+			code.local(CodeBuilder.ASTORE, slot, -1);
+		} else {
+			code.local(CodeBuilder.ISTORE, slot, -1);
+		}
+	}
+
+	/**
+	 * Jumps to target when condition evaluates to when. Comparisons jump on
+	 * their operands, and '&&' and '||' jump past their right operand once the
+	 * left one decides the result, so no 0 or 1 is pushed on the way.
+	 */
+	private void compileBranch(Expression condition, boolean when, int target) {
+		while (condition instanceof Parens) {
+			condition = ((Parens) condition).expr;
+		}
+
+		if (condition instanceof And || condition instanceof Or) {
+			boolean isAnd = condition instanceof And;
+			Expression left = isAnd ? ((And) condition).left : ((Or) condition).left;
+			Expression right = isAnd ? ((And) condition).right : ((Or) condition).right;
+			String operator = isAnd ? "&&" : "||";
+
+			if (when != isAnd) {
+				compileOperand(left, when, target, operator);
+				compileOperand(right, when, target, operator);
+			} else {
+				// A left operand that decides the result skips the right one
+				int decided = code.newLabel();
+				compileOperand(left, !when, decided, operator);
+				compileOperand(right, when, target, operator);
+				code.placeLabel(decided);
+			}
+			return;
+		} else if (condition instanceof Not) {
+			compileOperand(((Not) condition).expr, !when, target, "!");
+			return;
+		}
+
+		int jumpIfFalse = -1;
+
+		if (condition instanceof Comparison) {
+			jumpIfFalse = compileComparisonJump((Comparison) condition);
+		} else if (condition instanceof Equality) {
+			jumpIfFalse = compileEqualityJump((Equality) condition);
+		} else {
+			compileCondition(condition);
+		}
+
+		if (jumpIfFalse < 0) {
+			code.jump(when ? CodeBuilder.IFNE : CodeBuilder.IFEQ, target, -1);
+		} else {
+			int jump = when ? inverse(jumpIfFalse) : jumpIfFalse;
+			code.jump(jump, target, jumpDelta(jump));
+		}
+	}
+
+	// Operands of logical operators have to be booleans
+	private void compileOperand(Expression operand, boolean when, int target, String operator) {
+		int type = typeOf(operand);
+
+		if (type == TYPE_BOOL) {
+			compileBranch(operand, when, target);
+			return;
+		}
+
+		compileExpression(operand);
+		box(type);
+		code.opShort(CodeBuilder.LDC_W, classFile.string(operator), 1);
+		invokeStatic(OPERATORS, "logicalOperand", "(Ljava/lang/Object;Ljava/lang/String;)Z", -1);
+		code.jump(when ? CodeBuilder.IFNE : CodeBuilder.IFEQ, target, -1);
+	}
+
+	// Pushes a condition as a 0 or 1
+	private void compileCondition(Expression condition) {
+		int type = typeOf(condition);
+		compileExpression(condition);
+
+		if (type != TYPE_BOOL) {
+			box(type);
+			unbox(TYPE_BOOL);
+		}
+	}
+
+	// Conditional jumps come in pairs of opposite conditions: IFEQ and IFNE,
+	// IFLT and IFGE, and so on
+	private static int inverse(int jump) {
+		return CodeBuilder.IFEQ + ((jump - CodeBuilder.IFEQ) ^ 1);
+	}
+
+	// The IF_ICMP jumps pop two ints, the others one
+	private static int jumpDelta(int jump) {
+		return jump >= CodeBuilder.IF_ICMPEQ ? -2 : -1;
+	}
+
+	private void compileInt(Expression e) {
+		int type = typeOf(e);
+		compileExpression(e);
+
+		if (type != TYPE_INT) {
+			box(type);
+			unbox(TYPE_INT);
+		}
+	}
+
+	private void compileForLoop(ForLoop forLoop) {
+		if (possiblyDeclared.contains(forLoop.id)) {
+			throw unsupported(String.format("loop variable '%s' may already be declared", forLoop.id));
+		}
+
+		int counter = newLocal(TYPE_INT);
+		int step = newLocal(TYPE_INT);
+		// Iterations left: a long, two slots wide like a float
+		int left = newLocal(TYPE_FLOAT);
+		int top = code.newLabel();
+		int toEnd = code.newLabel();
+
+		compileInt(forLoop.start);
+		code.local(CodeBuilder.ISTORE, counter, -1);
+		code.local(CodeBuilder.ILOAD, counter, 1);
+		compileInt(forLoop.end);
+		compileInt(forLoop.step);
+		code.local(CodeBuilder.ISTORE, step, -1);
+		code.local(CodeBuilder.ILOAD, step, 1);
+		code.opShort(CodeBuilder.LDC_W, classFile.string(forLoop.id), 1);
+		invokeStatic(SUPPORT, "iterations", "(IIILjava/lang/String;)J", -2);
+		code.local(CodeBuilder.LSTORE, left, -2);
+
+		declaredIn(forLoop.block, possiblyDeclared);
+		possiblyDeclared.add(forLoop.id);
+
+		code.placeLabel(top);
+		code.local(CodeBuilder.LLOAD, left, 2);
+		code.op(CodeBuilder.LCONST_0, 2);
+		code.op(CodeBuilder.LCMP, -3);
+		code.jump(CodeBuilder.IFEQ, toEnd, -1);
+		code.local(CodeBuilder.LLOAD, left, 2);
+		code.op(CodeBuilder.LCONST_1, 2);
+		code.op(CodeBuilder.LSUB, -2);
+		code.local(CodeBuilder.LSTORE, left, -2);
+		code.local(CodeBuilder.ILOAD, counter, 1);
+		store(forLoop.id);
+
+		Set<String> outer = new HashSet<>(declared);
+		declared.add(forLoop.id);
+		compileBlock(forLoop.block);
+		declared = outer;
+
+		code.local(CodeBuilder.ILOAD, counter, 1);
+		code.local(CodeBuilder.ILOAD, step, 1);
+		code.op(CodeBuilder.IADD, -1);
+		code.local(CodeBuilder.ISTORE, counter, -1);
+		code.jump(CodeBuilder.GOTO, top, 0);
+		code.placeLabel(toEnd);
+
+		// The loop variable is undeclared again once the loop ends
+		possiblyDeclared.remove(forLoop.id);
+	}
+
+	private void box(int type) {
+		switch (type) {
+			case TYPE_INT:
+				invokeStatic("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", 0);
+				break;
+			case TYPE_FLOAT:
+				invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+				break;
+			case TYPE_BOOL:
+				invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+				break;
+		}
+	}
+
+	private void unbox(int type) {
+		switch (type) {
+			case TYPE_INT:
+				code.opShort(CodeBuilder.CHECKCAST, classFile.classRef("java/lang/Integer"), 0);
+				code.opShort(CodeBuilder.INVOKEVIRTUAL, classFile.methodRef("java/lang/Integer", "intValue", "()I"), 0);
+				break;
+			case TYPE_FLOAT:
+				code.opShort(CodeBuilder.CHECKCAST, classFile.classRef("java/lang/Double"), 0);
+				code.opShort(CodeBuilder.INVOKEVIRTUAL,
+						classFile.methodRef("java/lang/Double", "doubleValue", "()D"), 1);
+				break;
+			case TYPE_BOOL:
+				code.opShort(CodeBuilder.CHECKCAST, classFile.classRef("java/lang/Boolean"), 0);
+				code.opShort(CodeBuilder.INVOKEVIRTUAL,
+						classFile.methodRef("java/lang/Boolean", "booleanValue", "()Z"), 0);
+				break;
+			case TYPE_STRING:
+				code.opShort(CodeBuilder.CHECKCAST, classFile.classRef("java/lang/String"), 0);
+				break;
+		}
+	}
+
+	private void invokeStatic(String owner, String name, String descriptor, int delta) {
+		code.opShort(CodeBuilder.INVOKESTATIC, classFile.methodRef(owner, name, descriptor), delta);
+	}
+
+	private void compileExpression(Expression e) {
+		if (e instanceof Int) {
+			int value = ((Int) e).value;
+
+			if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.pushInt(value);
+			} else {
+				code.opShort(CodeBuilder.LDC_W, classFile.integer(value), 1);
+			}
+		} else if (e instanceof Real) {
+			code.opShort(CodeBuilder.LDC2_W, classFile.doubleConstant(((Real) e).value), 2);
+		} else if (e instanceof Str) {
+			code.opShort(CodeBuilder.LDC_W, classFile.string(((Str) e).value), 1);
+		} else if (e instanceof Bool) {
+			code.pushInt(((Bool) e).value ? 1 : 0);
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+
+			if (!declared.contains(id)) {
+				throw unsupported(String.format("variable '%s' may not be declared", id));
+			}
+
+			int type = varTypes.get(id);
+			int slot = slots.get(id);
+
+			if (type == TYPE_FLOAT) {
+				code.local(CodeBuilder.DLOAD, slot, 2);
+			} else if (type == TYPE_STRING) {
+				code.local(CodeBuilder.ALOAD, slot, 1);
+			} else {
+				code.local(CodeBuilder.ILOAD, slot, 1);
+			}
+		} else if (e instanceof Parens) {
+			compileExpression(((Parens) e).expr);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+
+			if (add.operator.equals(Keyword.PLUS)) {
+				compileArithmetic(e, add.left, add.right, CodeBuilder.IADD, CodeBuilder.DADD, "add");
+			} else {
+				compileArithmetic(e, add.left, add.right, CodeBuilder.ISUB, CodeBuilder.DSUB, "sub");
+			}
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					compileArithmetic(e, mult.left, mult.right, CodeBuilder.IMUL, CodeBuilder.DMUL, "mul");
+					break;
+				case Keyword.DIVIDE:
+					compileArithmetic(e, mult.left, mult.right, -1, -1, "div");
+					break;
+				default:
+					compileArithmetic(e, mult.left, mult.right, CodeBuilder.IREM, CodeBuilder.DREM, "mod");
+			}
+		} else if (e instanceof UnaryMinus) {
+			Expression expr = ((UnaryMinus) e).expr;
+			int type = typeOf(expr);
+			compileExpression(expr);
+
+			if (type == TYPE_INT) {
+				code.op(CodeBuilder.INEG, 0);
+			} else if (type == TYPE_FLOAT) {
+				code.op(CodeBuilder.DNEG, 0);
+			} else {
+				box(type);
+				invokeStatic(OPERATORS, "negate", UNARY, 0);
+			}
+		} else if (e instanceof Not) {
+			Expression expr = ((Not) e).expr;
+			int type = typeOf(expr);
+			compileExpression(expr);
+
+			if (type == TYPE_BOOL) {
+				code.op(CodeBuilder.ICONST_1, 1);
+				code.op(CodeBuilder.IXOR, -1);
+			} else {
+				box(type);
+				invokeStatic(OPERATORS, "not", UNARY, 0);
+			}
+		} else if (e instanceof And || e instanceof Or) {
+			int isFalse = code.newLabel();
+			compileBranch(e, false, isFalse);
+			pushOutcome(isFalse);
+		} else if (e instanceof Comparison) {
+			int jumpIfFalse = compileComparisonJump((Comparison) e);
+
+			if (jumpIfFalse >= 0) {
+				pushBoolean(jumpIfFalse);
+			}
+		} else if (e instanceof Equality) {
+			pushBoolean(compileEqualityJump((Equality) e));
+		} else if (e instanceof FunctionCall) {
+			compileFunctionCall((FunctionCall) e);
+		} else {
+			throw unsupported(String.format("'%s'", e));
+		}
+	}
+
+	private void compileArithmetic(Expression e, Expression leftExpr, Expression rightExpr, int intOp, int doubleOp,
+			String generic) {
+		int left = typeOf(leftExpr);
+		int right = typeOf(rightExpr);
+		int type = typeOf(e);
+
+		compileExpression(leftExpr);
+		if (type != left || type == TYPE_STRING) {
+			box(left);
+		}
+		compileExpression(rightExpr);
+		if (type != right || type == TYPE_STRING) {
+			box(right);
+		}
+
+		if (type == TYPE_INT) {
+			if (intOp < 0) {
+				invokeStatic(SUPPORT, "divide", "(II)I", -1);
+			} else {
+				code.op(intOp, -1);
+			}
+		} else if (type == TYPE_FLOAT) {
+			if (doubleOp < 0) {
+				invokeStatic(SUPPORT, "divide", "(DD)D", -2);
+			} else {
+				code.op(doubleOp, -2);
+			}
+		} else {
+			invokeStatic(OPERATORS, generic, BINARY, -1);
+
+			if (type == TYPE_STRING) {
+				unbox(TYPE_STRING);
+			}
+		}
+	}
+
+	/**
+	 * Pushes the operands of a comparison and returns the jump taken when it is
+	 * false, or -1 when the operands are not both numbers of one type and the
+	 * outcome was pushed as an object instead.
+	 */
+	private int compileComparisonJump(Comparison comp) {
+		int left = typeOf(comp.left);
+		int right = typeOf(comp.right);
+
+		compileExpression(comp.left);
+		if (left != right || left != TYPE_INT && left != TYPE_FLOAT) {
+			box(left);
+			compileExpression(comp.right);
+			box(right);
+
+			switch (comp.operator) {
+				case Keyword.LT:
+					invokeStatic(OPERATORS, "lt", BINARY, -1);
+					break;
+				case Keyword.GT:
+					invokeStatic(OPERATORS, "gt", BINARY, -1);
+					break;
+				case Keyword.LTE:
+					invokeStatic(OPERATORS, "lte", BINARY, -1);
+					break;
+				default:
+					invokeStatic(OPERATORS, "gte", BINARY, -1);
+			}
+			return -1;
+		}
+
+		compileExpression(comp.right);
+		int jumpIfFalse;
+
+		if (left == TYPE_INT) {
+			switch (comp.operator) {
+				case Keyword.LT:
+					jumpIfFalse = CodeBuilder.IF_ICMPGE;
+					break;
+				case Keyword.GT:
+					jumpIfFalse = CodeBuilder.IF_ICMPLE;
+					break;
+				case Keyword.LTE:
+					jumpIfFalse = CodeBuilder.IF_ICMPGT;
+					break;
+				default:
+					jumpIfFalse = CodeBuilder.IF_ICMPLT;
+			}
+			return jumpIfFalse;
+		}
+
+		// NaN compares false, as in Java
+		switch (comp.operator) {
+			case Keyword.LT:
+				code.op(CodeBuilder.DCMPG, -3);
+				jumpIfFalse = CodeBuilder.IFGE;
+				break;
+			case Keyword.GT:
+				code.op(CodeBuilder.DCMPL, -3);
+				jumpIfFalse = CodeBuilder.IFLE;
+				break;
+			case Keyword.LTE:
+				code.op(CodeBuilder.DCMPG, -3);
+				jumpIfFalse = CodeBuilder.IFGT;
+				break;
+			default:
+				code.op(CodeBuilder.DCMPL, -3);
+				jumpIfFalse = CodeBuilder.IFLT;
+		}
+		return jumpIfFalse;
+	}
+
+	// Pushes the operands of an equality and returns the jump taken when it is
+	// false
+	private int compileEqualityJump(Equality eq) {
+		int left = typeOf(eq.left);
+		int right = typeOf(eq.right);
+		boolean isEq = eq.operator.equals(Keyword.EQ);
+
+		compileExpression(eq.left);
+
+		if (left == right && (left == TYPE_INT || left == TYPE_BOOL)) {
+			compileExpression(eq.right);
+			return isEq ? CodeBuilder.IF_ICMPNE : CodeBuilder.IF_ICMPEQ;
+		} else if (left == TYPE_FLOAT && right == TYPE_FLOAT) {
+			// Double.compare matches Double.equals, which the interpreter uses
+			compileExpression(eq.right);
+			invokeStatic("java/lang/Double", "compare", "(DD)I", -3);
+			return isEq ? CodeBuilder.IFNE : CodeBuilder.IFEQ;
+		}
+
+		box(left);
+		compileExpression(eq.right);
+		box(right);
+		invokeStatic(SUPPORT, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Z", -1);
+		return isEq ? CodeBuilder.IFEQ : CodeBuilder.IFNE;
+	}
+
+	// Turns a conditional jump into a 0 or 1 on the stack
+	private void pushBoolean(int jumpIfFalse) {
+		int isFalse = code.newLabel();
+		code.jump(jumpIfFalse, isFalse, jumpDelta(jumpIfFalse));
+		pushOutcome(isFalse);
+	}
+
+	// Pushes 1, or 0 when control comes from a jump to isFalse
+	private void pushOutcome(int isFalse) {
+		int end = code.newLabel();
+		int depth = code.getDepth();
+		code.op(CodeBuilder.ICONST_1, 1);
+		code.jump(CodeBuilder.GOTO, end, 0);
+		code.placeLabel(isFalse);
+		code.setDepth(depth);
+		code.op(CodeBuilder.ICONST_0, 1);
+		code.placeLabel(end);
+	}
+
+	private void compileFunctionCall(FunctionCall call) {
+		Function function = functions.get(call.id);
+		int delta = compileArguments(call, function);
+
+		int returnType = returnTypes.get(function.id);
+		delta += width(returnType);
+		invokeStatic(CLASS_NAME, "f_" + function.id, methodDescriptor(function), delta);
+	}
+
+	// Stores the arguments in the parameters and jumps back to the start of
+	// the body, so self tail calls never grow the stack
+	private void compileTailCall(FunctionCall call) {
+		compileArguments(call, currentFunction);
+
+		for (int i = currentFunction.paramIds.size() - 1; i >= 0; i--) {
+			store(currentFunction.paramIds.get(i));
+		}
+		code.jump(CodeBuilder.GOTO, bodyStart, 0);
+	}
+
+	// Pushes the arguments of a call, converted to the parameter types, and
+	// returns the change in stack depth
+	private int compileArguments(FunctionCall call, Function function) {
+		int delta = 0;
+
+		typeOf(call);
+
+		for (int i = 0; i < call.args.size(); i++) {
+			Expression arg = call.args.get(i);
+			int argType = typeOf(arg);
+			int paramType = JitSupport.typeOf(function.paramTypes.get(i));
+
+			if (paramType == TYPE_OBJECT) {
+				throw unsupported(String.format("parameter '%s' has an unknown type", function.paramIds.get(i)));
+			}
+
+			compileExpression(arg);
+
+			if (argType != paramType) {
+				box(argType);
+				code.pushInt(paramType);
+				code.opShort(CodeBuilder.LDC_W, classFile.string(function.paramIds.get(i)), 1);
+				code.opShort(CodeBuilder.LDC_W, classFile.string(function.id), 1);
+				invokeStatic(SUPPORT, "checkArgument",
+						"(Ljava/lang/Object;ILjava/lang/String;Ljava/lang/String;)Ljava/lang/Object;", -3);
+				unbox(paramType);
+			}
+
+			delta -= width(paramType);
+		}
+		return delta;
+	}
+}
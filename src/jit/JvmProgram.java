@@ -0,0 +1,25 @@
+package jit;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A program compiled to a JVM class. Running it invokes the class's static
+ * method holding the top-level code.
+ */
+public class JvmProgram {
+	private final MethodHandle main;
+
+	public JvmProgram(MethodHandle main) {
+		this.main = main;
+	}
+
+	public void run() {
+		try {
+			main.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
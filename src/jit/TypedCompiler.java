@@ -0,0 +1,401 @@
+package jit;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.Comparison;
+import expression.Conditional;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Return;
+import expression.StatementRules;
+import expression.Str;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Static typing shared by the backends that compile a {@link Program} to
+ * typed Java code. Variables take the type they are declared with, functions
+ * take the join of the types they return, and anything only known at run time
+ * is {@link #TYPE_OBJECT}.
+ *
+ * Programs whose behaviour depends on checks the interpreters make at run time
+ * (reading a variable that may not be declared, redeclaring one, calling a
+ * function before its declaration has run, returning inside a while loop) are
+ * rejected with an UnsupportedOperationException so the caller can use
+ * another engine.
+ */
+abstract class TypedCompiler {
+	// Return type of a function whose returns have not been typed yet
+	static final int TYPE_BOTTOM = -2;
+	static final int TYPE_OBJECT = JitSupport.TYPE_OBJECT;
+	static final int TYPE_INT = JitSupport.TYPE_INT;
+	static final int TYPE_FLOAT = JitSupport.TYPE_FLOAT;
+	static final int TYPE_STRING = JitSupport.TYPE_STRING;
+	static final int TYPE_BOOL = JitSupport.TYPE_BOOL;
+
+	Map<String, Function> functions;
+	Map<String, Integer> returnTypes;
+
+	// State of the function being compiled
+	Map<String, Integer> varTypes;
+	Set<String> declared;
+	Set<String> possiblyDeclared;
+	boolean inFunction;
+	int returnType;
+
+	/** Collects the functions of a program and types their results. */
+	void analyze(Program prog) {
+		collectFunctions(prog);
+		inferReturnTypes();
+	}
+
+	static UnsupportedOperationException unsupported(String reason) {
+		return new UnsupportedOperationException("cannot compile to JVM bytecode: " + reason);
+	}
+
+	void collectFunctions(Program prog) {
+		functions = new LinkedHashMap<>();
+		int lastFunction = -1;
+
+		for (int i = 0; i < prog.expressions.size(); i++) {
+			Expression e = prog.expressions.get(i);
+
+			if (e instanceof Function) {
+				Function function = (Function) e;
+
+				if (functions.put(function.id, function) != null) {
+					throw unsupported(String.format("function '%s' declared twice", function.id));
+				}
+
+				String reason = StatementRules.checkedAtRunTime(function);
+				if (reason != null) {
+					throw unsupported(reason);
+				}
+
+				lastFunction = i;
+			}
+		}
+
+		// Calls are linked statically, so no call may run before every function
+		// declaration has been reached
+		for (int i = 0; i < lastFunction; i++) {
+			Expression e = prog.expressions.get(i);
+
+			if (!(e instanceof Function) && containsCall(e)) {
+				throw unsupported("function called before all functions are declared");
+			}
+		}
+	}
+
+	static boolean containsCall(Expression e) {
+		if (e instanceof FunctionCall) {
+			return true;
+		} else if (e instanceof VariableDeclaration) {
+			return containsCall(((VariableDeclaration) e).expr);
+		} else if (e instanceof Assignment) {
+			return containsCall(((Assignment) e).expr);
+		} else if (e instanceof Print) {
+			return containsCall(((Print) e).expr);
+		} else if (e instanceof Return) {
+			return containsCall(((Return) e).expr);
+		} else if (e instanceof Parens) {
+			return containsCall(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			return containsCall(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			return containsCall(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			return containsCall(((AddSub) e).left) || containsCall(((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			return containsCall(((MultDivMod) e).left) || containsCall(((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			return containsCall(((Comparison) e).left) || containsCall(((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			return containsCall(((Equality) e).left) || containsCall(((Equality) e).right);
+		} else if (e instanceof And) {
+			return containsCall(((And) e).left) || containsCall(((And) e).right);
+		} else if (e instanceof Or) {
+			return containsCall(((Or) e).left) || containsCall(((Or) e).right);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return containsCall(cond.condition) || containsCall(cond.ifBlock)
+					|| cond.elseBlock != null && containsCall(cond.elseBlock);
+		} else if (e instanceof WhileLoop) {
+			return containsCall(((WhileLoop) e).condition) || containsCall(((WhileLoop) e).block);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			return containsCall(forLoop.start) || containsCall(forLoop.end) || containsCall(forLoop.step)
+					|| containsCall(forLoop.block);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (containsCall(statement)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	// Functions have no declared return type: iterate until the types of their
+	// return statements stop changing. Recursive calls start out as bottom.
+	void inferReturnTypes() {
+		returnTypes = new HashMap<>();
+
+		for (String id : functions.keySet()) {
+			returnTypes.put(id, TYPE_BOTTOM);
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (Function function : functions.values()) {
+				startFrame(function);
+				scanDeclarations(function.block);
+
+				List<Expression> body = ((Block) function.block).getStatements();
+				int type = alwaysReturns(body) ? TYPE_BOTTOM : TYPE_OBJECT;
+				type = joinReturns(function.block, type);
+
+				if (type != returnTypes.get(function.id)) {
+					returnTypes.put(function.id, type);
+					changed = true;
+				}
+			}
+		}
+
+		for (Map.Entry<String, Integer> entry : returnTypes.entrySet()) {
+			if (entry.getValue() == TYPE_BOTTOM) {
+				entry.setValue(TYPE_OBJECT);
+			}
+		}
+	}
+
+	int joinReturns(Expression e, int type) {
+		if (e instanceof Return) {
+			return join(type, typeOf(((Return) e).expr));
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				type = joinReturns(statement, type);
+			}
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			type = joinReturns(cond.ifBlock, type);
+			if (cond.elseBlock != null) {
+				type = joinReturns(cond.elseBlock, type);
+			}
+		} else if (e instanceof WhileLoop) {
+			type = joinReturns(((WhileLoop) e).block, type);
+		} else if (e instanceof ForLoop) {
+			type = joinReturns(((ForLoop) e).block, type);
+		}
+
+		return type;
+	}
+
+	static int join(int a, int b) {
+		if (a == TYPE_BOTTOM) {
+			return b;
+		} else if (b == TYPE_BOTTOM || a == b) {
+			return a;
+		}
+		return TYPE_OBJECT;
+	}
+
+	static boolean alwaysReturns(List<Expression> statements) {
+		for (Expression e : statements) {
+			if (e instanceof Return) {
+				return true;
+			} else if (e instanceof Conditional) {
+				Conditional cond = (Conditional) e;
+
+				if (cond.elseBlock != null && alwaysReturns(((Block) cond.ifBlock).getStatements())
+						&& alwaysReturns(((Block) cond.elseBlock).getStatements())) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	void startFrame(Function function) {
+		varTypes = new LinkedHashMap<>();
+		declared = new HashSet<>();
+		possiblyDeclared = new HashSet<>();
+
+		if (function != null) {
+			for (int i = 0; i < function.paramIds.size(); i++) {
+				String id = function.paramIds.get(i);
+				addVar(id, JitSupport.typeOf(function.paramTypes.get(i)));
+				declared.add(id);
+				possiblyDeclared.add(id);
+			}
+		}
+	}
+
+	void addVar(String id, int type) {
+		if (type == TYPE_OBJECT) {
+			throw unsupported(String.format("variable '%s' has an unknown type", id));
+		}
+
+		Integer known = varTypes.get(id);
+
+		if (known == null) {
+			varTypes.put(id, type);
+		} else if (known != type) {
+			throw unsupported(String.format("variable '%s' declared with different types", id));
+		}
+	}
+
+	void scanDeclarations(Expression e) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			addVar(decl.id, JitSupport.typeOf(decl.type));
+		} else if (e instanceof ForLoop) {
+			addVar(((ForLoop) e).id, TYPE_INT);
+			scanDeclarations(((ForLoop) e).block);
+		} else if (e instanceof WhileLoop) {
+			scanDeclarations(((WhileLoop) e).block);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			scanDeclarations(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				scanDeclarations(cond.elseBlock);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				scanDeclarations(statement);
+			}
+		}
+	}
+
+	// Names a statement may leave declared; loop variables are cleared again
+	static void declaredIn(Expression e, Set<String> names) {
+		if (e instanceof VariableDeclaration) {
+			names.add(((VariableDeclaration) e).id);
+		} else if (e instanceof ForLoop) {
+			Set<String> inner = new HashSet<>();
+			declaredIn(((ForLoop) e).block, inner);
+			inner.remove(((ForLoop) e).id);
+			names.addAll(inner);
+		} else if (e instanceof WhileLoop) {
+			declaredIn(((WhileLoop) e).block, names);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			declaredIn(cond.ifBlock, names);
+			if (cond.elseBlock != null) {
+				declaredIn(cond.elseBlock, names);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				declaredIn(statement, names);
+			}
+		}
+	}
+
+	int typeOf(Expression e) {
+		if (e instanceof Int) {
+			return TYPE_INT;
+		} else if (e instanceof Real) {
+			return TYPE_FLOAT;
+		} else if (e instanceof Str) {
+			return TYPE_STRING;
+		} else if (e instanceof Bool) {
+			return TYPE_BOOL;
+		} else if (e instanceof Variable) {
+			Integer type = varTypes.get(((Variable) e).id);
+
+			if (type == null) {
+				throw unsupported(String.format("variable '%s' is never declared", ((Variable) e).id));
+			}
+			return type;
+		} else if (e instanceof Parens) {
+			return typeOf(((Parens) e).expr);
+		} else if (e instanceof AddSub || e instanceof MultDivMod) {
+			Expression leftExpr = e instanceof AddSub ? ((AddSub) e).left : ((MultDivMod) e).left;
+			Expression rightExpr = e instanceof AddSub ? ((AddSub) e).right : ((MultDivMod) e).right;
+			int left = typeOf(leftExpr);
+			int right = typeOf(rightExpr);
+
+			if (left == TYPE_BOTTOM || right == TYPE_BOTTOM) {
+				return TYPE_BOTTOM;
+			} else if (left == right && (left == TYPE_INT || left == TYPE_FLOAT)) {
+				return left;
+			} else if (e instanceof AddSub && ((AddSub) e).operator.equals(Keyword.PLUS)
+					&& (left == TYPE_STRING && isPrintable(right) || right == TYPE_STRING && isPrintable(left))) {
+				return TYPE_STRING;
+			}
+			return TYPE_OBJECT;
+		} else if (e instanceof UnaryMinus) {
+			int type = typeOf(((UnaryMinus) e).expr);
+			return type == TYPE_INT || type == TYPE_FLOAT || type == TYPE_BOTTOM ? type : TYPE_OBJECT;
+		} else if (e instanceof Comparison) {
+			int left = typeOf(((Comparison) e).left);
+			int right = typeOf(((Comparison) e).right);
+
+			if (left == TYPE_BOTTOM || right == TYPE_BOTTOM) {
+				return TYPE_BOTTOM;
+			}
+			return left == right && (left == TYPE_INT || left == TYPE_FLOAT) ? TYPE_BOOL : TYPE_OBJECT;
+		} else if (e instanceof Equality) {
+			typeOf(((Equality) e).left);
+			typeOf(((Equality) e).right);
+			return TYPE_BOOL;
+		} else if (e instanceof And || e instanceof Or) {
+			int left = typeOf(e instanceof And ? ((And) e).left : ((Or) e).left);
+			int right = typeOf(e instanceof And ? ((And) e).right : ((Or) e).right);
+
+			// Each operand is checked to be a boolean, so the outcome always is one
+			return left == TYPE_BOTTOM || right == TYPE_BOTTOM ? TYPE_BOTTOM : TYPE_BOOL;
+		} else if (e instanceof Not) {
+			int type = typeOf(((Not) e).expr);
+			return type == TYPE_BOOL || type == TYPE_BOTTOM ? type : TYPE_OBJECT;
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+			Function function = functions.get(call.id);
+
+			if (function == null) {
+				throw unsupported(String.format("function '%s' not declared", call.id));
+			} else if (function.paramIds.size() != call.args.size()) {
+				throw unsupported(String.format("wrong number of arguments for function '%s'", call.id));
+			}
+
+			for (Expression arg : call.args) {
+				typeOf(arg);
+			}
+			return returnTypes.get(call.id);
+		}
+
+		throw unsupported(String.format("'%s'", e));
+	}
+
+	static boolean isPrintable(int type) {
+		return type == TYPE_STRING || type == TYPE_INT || type == TYPE_FLOAT;
+	}
+}
@@ -6,4 +6,5 @@
  */
 module SeaSharp {
 	requires antlr;
+	requires java.compiler;
 }
\ No newline at end of file
@@ -0,0 +1,53 @@
+package vm;
+
+/**
+ * Bytecode of one function, or of the top-level program body.
+ * constantRegisters holds (register, constant) pairs that are loaded on entry,
+ * so literals never cost an instruction.
+ */
+public class CodeObject {
+	public String name;
+	public String[] paramNames;
+	public int[] paramTypes;
+	public int numRegisters;
+	public int[] constantRegisters;
+	public int[] code;
+
+	public CodeObject(String name, String[] paramNames, int[] paramTypes, int numRegisters, int[] constantRegisters,
+			int[] code) {
+		this.name = name;
+		this.paramNames = paramNames;
+		this.paramTypes = paramTypes;
+		this.numRegisters = numRegisters;
+		this.constantRegisters = constantRegisters;
+		this.code = code;
+	}
+
+	public String disassemble(Object[] constants) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s (%d params, %d registers)\n", name, paramNames.length, numRegisters));
+
+		for (int i = 0; i < constantRegisters.length; i += 2) {
+			sb.append(String.format("       r%d = %s\n", constantRegisters[i], constants[constantRegisters[i + 1]]));
+		}
+
+		int pc = 0;
+		while (pc < code.length) {
+			int op = code[pc];
+			sb.append(String.format("%5d  %-9s", pc, Opcode.NAMES[op]));
+
+			for (int i = 1; i <= Opcode.OPERANDS[op]; i++) {
+				sb.append(' ').append(code[pc + i]);
+			}
+
+			if (op == Opcode.LOADK) {
+				sb.append("    ; ").append(constants[code[pc + 2]]);
+			}
+
+			sb.append('\n');
+			pc += 1 + Opcode.OPERANDS[op];
+		}
+
+		return sb.toString();
+	}
+}
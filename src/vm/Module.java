@@ -0,0 +1,214 @@
+package vm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compiled Glyph program: the constant pool, the names of every called or
+ * declared function, the function code objects and the top-level code.
+ *
+ * Modules are stored in .glyb files, which can be run without parsing the
+ * source again. All numbers are big-endian:
+ *
+ * <pre>
+ * magic "GLYB", u2 version
+ * u4 constant count, then per constant a tag byte (I, D, S or Z) and its value
+ * u4 function name count, then the names
+ * u4 code object count, then the code objects, the top-level code last
+ * </pre>
+ *
+ * A code object is its name, u4 parameter count, the parameter names and type
+ * codes, u4 register count, u4 constant register count and the (register,
+ * constant) pairs, u4 code length and the code.
+ *
+ * Strings, names included, are a u4 byte count and their UTF-8 bytes, so
+ * they can be longer than writeUTF allows.
+ */
+public class Module {
+	public static final String EXTENSION = ".glyb";
+	static final int MAGIC = 0x474C5942;
+	static final int VERSION = 5;
+
+	public Object[] constants;
+	public String[] functionNames;
+	public CodeObject[] functions;
+	public CodeObject main;
+
+	public Module(Object[] constants, String[] functionNames, CodeObject[] functions, CodeObject main) {
+		this.constants = constants;
+		this.functionNames = functionNames;
+		this.functions = functions;
+		this.main = main;
+	}
+
+	public void write(String fileName) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+
+			out.writeInt(constants.length);
+			for (Object constant : constants) {
+				if (constant instanceof Integer) {
+					out.writeByte('I');
+					out.writeInt((int) constant);
+				} else if (constant instanceof Double) {
+					out.writeByte('D');
+					out.writeDouble((double) constant);
+				} else if (constant instanceof String) {
+					out.writeByte('S');
+					writeString(out, (String) constant);
+				} else {
+					out.writeByte('Z');
+					out.writeBoolean((boolean) constant);
+				}
+			}
+
+			out.writeInt(functionNames.length);
+			for (String name : functionNames) {
+				writeString(out, name);
+			}
+
+			out.writeInt(functions.length + 1);
+			for (CodeObject function : functions) {
+				writeCode(out, function);
+			}
+			writeCode(out, main);
+		}
+	}
+
+	private static void writeCode(DataOutputStream out, CodeObject code) throws IOException {
+		writeString(out, code.name);
+
+		out.writeInt(code.paramNames.length);
+		for (int i = 0; i < code.paramNames.length; i++) {
+			writeString(out, code.paramNames[i]);
+			out.writeInt(code.paramTypes[i]);
+		}
+
+		out.writeInt(code.numRegisters);
+		out.writeInt(code.constantRegisters.length / 2);
+		for (int word : code.constantRegisters) {
+			out.writeInt(word);
+		}
+
+		out.writeInt(code.code.length);
+		for (int word : code.code) {
+			out.writeInt(word);
+		}
+	}
+
+	public static Module read(String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			if (in.readInt() != MAGIC) {
+				String error = String.format("Error: '%s' is not a Glyph bytecode file", fileName);
+				throw new IOException(error);
+			}
+
+			int version = in.readUnsignedShort();
+			if (version != VERSION) {
+				String error = String.format("Error: unsupported bytecode version %d in '%s'", version, fileName);
+				throw new IOException(error);
+			}
+
+			Object[] constants = new Object[in.readInt()];
+			for (int i = 0; i < constants.length; i++) {
+				int tag = in.readUnsignedByte();
+
+				switch (tag) {
+					case 'I':
+						constants[i] = in.readInt();
+						break;
+					case 'D':
+						constants[i] = in.readDouble();
+						break;
+					case 'S':
+						constants[i] = readString(in, fileName);
+						break;
+					case 'Z':
+						constants[i] = in.readBoolean();
+						break;
+					default:
+						String error = String.format("Error: bad constant tag %d in '%s'", tag, fileName);
+						throw new IOException(error);
+				}
+			}
+
+			String[] functionNames = new String[in.readInt()];
+			for (int i = 0; i < functionNames.length; i++) {
+				functionNames[i] = readString(in, fileName);
+			}
+
+			CodeObject[] functions = new CodeObject[in.readInt() - 1];
+			for (int i = 0; i < functions.length; i++) {
+				functions[i] = readCode(in, fileName);
+			}
+			CodeObject main = readCode(in, fileName);
+
+			return new Module(constants, functionNames, functions, main);
+		}
+	}
+
+	private static CodeObject readCode(DataInputStream in, String fileName) throws IOException {
+		String name = readString(in, fileName);
+
+		int count = in.readInt();
+		String[] paramNames = new String[count];
+		int[] paramTypes = new int[count];
+		for (int i = 0; i < count; i++) {
+			paramNames[i] = readString(in, fileName);
+			paramTypes[i] = in.readInt();
+		}
+
+		int numRegisters = in.readInt();
+		int[] constantRegisters = new int[in.readInt() * 2];
+		for (int i = 0; i < constantRegisters.length; i++) {
+			constantRegisters[i] = in.readInt();
+		}
+
+		int[] code = new int[in.readInt()];
+		for (int i = 0; i < code.length; i++) {
+			code[i] = in.readInt();
+		}
+
+		return new CodeObject(name, paramNames, paramTypes, numRegisters, constantRegisters, code);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in, String fileName) throws IOException {
+		int length = in.readInt();
+
+		if (length < 0) {
+			String error = String.format("Error: bad string length %d in '%s'", length, fileName);
+			throw new IOException(error);
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public String disassemble() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < constants.length; i++) {
+			sb.append(String.format("k%d = %s\n", i, constants[i]));
+		}
+		for (CodeObject function : functions) {
+			sb.append('\n').append(function.disassemble(constants));
+		}
+		sb.append('\n').append(main.disassemble(constants));
+
+		return sb.toString();
+	}
+}
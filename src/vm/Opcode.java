@@ -0,0 +1,86 @@
+package vm;
+
+/**
+ * Instruction set of the register VM. Every instruction is an opcode followed
+ * by a fixed number of int operands, listed next to each opcode. Registers are
+ * written as a, b, c; k is a constant pool index and n a name (string
+ * constant) index. Jump targets are absolute code offsets.
+ */
+public abstract class Opcode {
+	public static final int HALT = 0; //
+	public static final int LOADK = 1; // a k: a = k
+	public static final int MOVE = 2; // a b: a = b
+	public static final int CHECKVAR = 3; // a n: fail if a is not declared
+	public static final int CHECKDECL = 4; // a n: fail if a is already declared
+	public static final int CHECKFOR = 5; // a n: fail if loop or function variable a is already declared
+	public static final int CHECKTYPE = 6; // a t n k: fail if a is not of type t (k is the type's name)
+	public static final int CLEAR = 7; // a: undeclare a
+	public static final int CASTINT = 8; // a: fail unless a holds an int
+	public static final int ADD = 9; // a b c: a = b + c
+	public static final int SUB = 10;
+	public static final int MUL = 11;
+	public static final int DIV = 12;
+	public static final int MOD = 13;
+	public static final int ADD_II = 14; // a b c: int operands known statically
+	public static final int SUB_II = 15;
+	public static final int MUL_II = 16;
+	public static final int DIV_II = 17;
+	public static final int MOD_II = 18;
+	public static final int ADD_DD = 19; // a b c: float operands known statically
+	public static final int SUB_DD = 20;
+	public static final int MUL_DD = 21;
+	public static final int DIV_DD = 22;
+	public static final int MOD_DD = 23;
+	public static final int LT = 24; // a b c: a = b < c
+	public static final int GT = 25;
+	public static final int LTE = 26;
+	public static final int GTE = 27;
+	public static final int LT_II = 28;
+	public static final int GT_II = 29;
+	public static final int LTE_II = 30;
+	public static final int GTE_II = 31;
+	public static final int EQ = 32;
+	public static final int NEQ = 33;
+	public static final int EQ_II = 34;
+	public static final int NEQ_II = 35;
+	public static final int AND = 36;
+	public static final int OR = 37;
+	public static final int NOT = 38; // a b: a = !b
+	public static final int NEG = 39; // a b: a = -b
+	public static final int JMP = 40; // t
+	public static final int JMPF = 41; // a t: jump to t if a is false
+	public static final int JGT_II = 42; // a b t: jump to t if a > b
+	public static final int CALL = 43; // a f b c: a = f(b, ..., b + c - 1)
+	public static final int RET = 44; // a
+	public static final int RETNULL = 45;
+	public static final int PRINT = 46; // a
+	public static final int DEFFUNC = 47; // f i: bind function name f to code object i
+	public static final int JLT_II = 48; // a b t: jump to t if a < b
+	public static final int JLE_II = 49; // a b t: jump to t if a <= b
+	public static final int JGE_II = 50; // a b t: jump to t if a >= b
+	public static final int JEQ_II = 51; // a b t: jump to t if a == b
+	public static final int JNE_II = 52; // a b t: jump to t if a != b
+	public static final int FORPREP = 53; // a b c d n: a = iterations of loop n from b to c by d
+	public static final int FORLOOP = 54; // a t: jump to t if a is 0, else decrement a
+	public static final int TAILCALL = 55; // f b c: return f(b, ..., b + c - 1), reusing the frame if f is running
+	public static final int JMPT = 56; // a t: jump to t if a is true
+	public static final int CHECKBOOL = 57; // a k: fail unless a is a boolean (k is the operator using it)
+	public static final int CHECKFUNC = 58; // a n: fail if a, the global named like function n, is declared
+
+	public static final String[] NAMES = { "HALT", "LOADK", "MOVE", "CHECKVAR", "CHECKDECL", "CHECKFOR",
+			"CHECKTYPE", "CLEAR", "CASTINT", "ADD", "SUB", "MUL", "DIV", "MOD", "ADD_II", "SUB_II", "MUL_II",
+			"DIV_II", "MOD_II", "ADD_DD", "SUB_DD", "MUL_DD", "DIV_DD", "MOD_DD", "LT", "GT", "LTE", "GTE",
+			"LT_II", "GT_II", "LTE_II", "GTE_II", "EQ", "NEQ", "EQ_II", "NEQ_II", "AND", "OR", "NOT", "NEG",
+			"JMP", "JMPF", "JGT_II", "CALL", "RET", "RETNULL", "PRINT", "DEFFUNC", "JLT_II", "JLE_II", "JGE_II",
+			"JEQ_II", "JNE_II", "FORPREP", "FORLOOP", "TAILCALL", "JMPT", "CHECKBOOL", "CHECKFUNC" };
+
+	public static final int[] OPERANDS = { 0, 2, 2, 2, 2, 2, 4, 1, 1, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+			3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2, 1, 2, 3, 4, 1, 0, 1, 2, 3, 3, 3, 3, 3, 5, 2, 3, 2, 2, 2 };
+
+	// Static types, as used by CHECKTYPE and function parameters
+	public static final int TYPE_UNKNOWN = -1;
+	public static final int TYPE_INT = 0;
+	public static final int TYPE_FLOAT = 1;
+	public static final int TYPE_STRING = 2;
+	public static final int TYPE_BOOL = 3;
+}
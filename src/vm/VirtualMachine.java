@@ -0,0 +1,366 @@
+package vm;
+
+import java.util.Arrays;
+
+import compiler.Operators;
+import expression.ForLoop;
+
+/**
+ * Runs a {@link Module}. Each call gets its own register file; the dispatch
+ * loop decodes one instruction per iteration.
+ */
+public class VirtualMachine {
+	private final Module module;
+	private final Object[] constants;
+	private final CodeObject[] bound;
+
+	public VirtualMachine(Module module) {
+		this.module = module;
+		this.constants = module.constants;
+		this.bound = new CodeObject[module.functionNames.length];
+	}
+
+	public void run() {
+		// Functions become callable only once their declaration is reached
+		for (int i = 0; i < bound.length; i++) {
+			bound[i] = null;
+		}
+
+		execute(module.main, new Object[module.main.numRegisters]);
+	}
+
+	private Object execute(CodeObject function, Object[] regs) {
+		int[] code = function.code;
+		Object[] k = constants;
+		int pc = 0;
+
+		int[] constantRegisters = function.constantRegisters;
+		for (int i = 0; i < constantRegisters.length; i += 2) {
+			regs[constantRegisters[i]] = k[constantRegisters[i + 1]];
+		}
+
+		while (true) {
+			switch (code[pc]) {
+				case Opcode.HALT:
+					return null;
+				case Opcode.LOADK:
+					regs[code[pc + 1]] = k[code[pc + 2]];
+					pc += 3;
+					break;
+				case Opcode.MOVE:
+					regs[code[pc + 1]] = regs[code[pc + 2]];
+					pc += 3;
+					break;
+				case Opcode.CHECKVAR:
+					if (regs[code[pc + 1]] == null) {
+						String error = String.format("variable '%s' not declared", k[code[pc + 2]]);
+						throw new Error(error);
+					}
+					pc += 3;
+					break;
+				case Opcode.CHECKDECL:
+					if (regs[code[pc + 1]] != null) {
+						String error = String.format("variable '%s' already declared", k[code[pc + 2]]);
+						throw new Error(error);
+					}
+					pc += 3;
+					break;
+				case Opcode.CHECKFOR:
+					if (regs[code[pc + 1]] != null) {
+						String error = String.format("Error: variable '%s' already declared", k[code[pc + 2]]);
+						throw new Error(error);
+					}
+					pc += 3;
+					break;
+				case Opcode.CHECKTYPE: {
+					Object value = regs[code[pc + 1]];
+
+					if (!hasType(value, code[pc + 2])) {
+						int textType = code[pc + 4];
+						String error = String.format("cannot assign '%s' to variable '%s' of type '%s'", value,
+								k[code[pc + 3]], textType < 0 ? null : k[textType]);
+						throw new Error(error);
+					}
+					pc += 5;
+					break;
+				}
+				case Opcode.CLEAR:
+					regs[code[pc + 1]] = null;
+					pc += 2;
+					break;
+				case Opcode.CASTINT:
+					regs[code[pc + 1]] = (Integer) regs[code[pc + 1]];
+					pc += 2;
+					break;
+				case Opcode.ADD:
+					regs[code[pc + 1]] = Operators.add(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.SUB:
+					regs[code[pc + 1]] = Operators.sub(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.MUL:
+					regs[code[pc + 1]] = Operators.mul(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.DIV:
+					regs[code[pc + 1]] = Operators.div(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.MOD:
+					regs[code[pc + 1]] = Operators.mod(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.ADD_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] + (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.SUB_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] - (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.MUL_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] * (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.DIV_II: {
+					int divisor = (int) regs[code[pc + 3]];
+					if (divisor == 0) {
+						throw new IllegalArgumentException("division by zero");
+					}
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] / divisor;
+					pc += 4;
+					break;
+				}
+				case Opcode.MOD_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] % (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.ADD_DD:
+					regs[code[pc + 1]] = (double) regs[code[pc + 2]] + (double) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.SUB_DD:
+					regs[code[pc + 1]] = (double) regs[code[pc + 2]] - (double) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.MUL_DD:
+					regs[code[pc + 1]] = (double) regs[code[pc + 2]] * (double) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.DIV_DD: {
+					double divisor = (double) regs[code[pc + 3]];
+					if (divisor == 0) {
+						throw new IllegalArgumentException("division by zero");
+					}
+					regs[code[pc + 1]] = (double) regs[code[pc + 2]] / divisor;
+					pc += 4;
+					break;
+				}
+				case Opcode.MOD_DD:
+					regs[code[pc + 1]] = (double) regs[code[pc + 2]] % (double) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.LT:
+					regs[code[pc + 1]] = Operators.lt(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.GT:
+					regs[code[pc + 1]] = Operators.gt(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.LTE:
+					regs[code[pc + 1]] = Operators.lte(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.GTE:
+					regs[code[pc + 1]] = Operators.gte(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.LT_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] < (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.GT_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] > (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.LTE_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] <= (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.GTE_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] >= (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.EQ:
+					regs[code[pc + 1]] = regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.NEQ:
+					regs[code[pc + 1]] = !regs[code[pc + 2]].equals(regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.EQ_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] == (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.NEQ_II:
+					regs[code[pc + 1]] = (int) regs[code[pc + 2]] != (int) regs[code[pc + 3]];
+					pc += 4;
+					break;
+				case Opcode.AND:
+					regs[code[pc + 1]] = Operators.and(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.OR:
+					regs[code[pc + 1]] = Operators.or(regs[code[pc + 2]], regs[code[pc + 3]]);
+					pc += 4;
+					break;
+				case Opcode.NOT:
+					regs[code[pc + 1]] = Operators.not(regs[code[pc + 2]]);
+					pc += 3;
+					break;
+				case Opcode.NEG:
+					regs[code[pc + 1]] = Operators.negate(regs[code[pc + 2]]);
+					pc += 3;
+					break;
+				case Opcode.JMP:
+					pc = code[pc + 1];
+					break;
+				case Opcode.JMPF:
+					pc = (boolean) regs[code[pc + 1]] ? pc + 3 : code[pc + 2];
+					break;
+				case Opcode.JMPT:
+					pc = (boolean) regs[code[pc + 1]] ? code[pc + 2] : pc + 3;
+					break;
+				case Opcode.CHECKBOOL:
+					Operators.logicalOperand(regs[code[pc + 1]], (String) k[code[pc + 2]]);
+					pc += 3;
+					break;
+				case Opcode.JLT_II:
+					pc = (int) regs[code[pc + 1]] < (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.JLE_II:
+					pc = (int) regs[code[pc + 1]] <= (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.JGT_II:
+					pc = (int) regs[code[pc + 1]] > (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.JGE_II:
+					pc = (int) regs[code[pc + 1]] >= (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.JEQ_II:
+					pc = (int) regs[code[pc + 1]] == (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.JNE_II:
+					pc = (int) regs[code[pc + 1]] != (int) regs[code[pc + 2]] ? code[pc + 3] : pc + 4;
+					break;
+				case Opcode.FORPREP:
+					regs[code[pc + 1]] = ForLoop.iterations((String) k[code[pc + 5]], (int) regs[code[pc + 2]],
+							(int) regs[code[pc + 3]], (int) regs[code[pc + 4]]);
+					pc += 6;
+					break;
+				case Opcode.FORLOOP: {
+					long left = (long) regs[code[pc + 1]];
+
+					if (left == 0) {
+						pc = code[pc + 2];
+					} else {
+						regs[code[pc + 1]] = left - 1;
+						pc += 3;
+					}
+					break;
+				}
+				case Opcode.CALL:
+					regs[code[pc + 1]] = call(code[pc + 2], regs, code[pc + 3], code[pc + 4]);
+					pc += 5;
+					break;
+				case Opcode.TAILCALL:
+					// Calling the running function again starts over in the same frame
+					if (bound[code[pc + 1]] != function) {
+						return call(code[pc + 1], regs, code[pc + 2], code[pc + 3]);
+					}
+
+					checkArguments(function, regs, code[pc + 2], code[pc + 3]);
+					System.arraycopy(regs, code[pc + 2], regs, 0, code[pc + 3]);
+					Arrays.fill(regs, code[pc + 3], regs.length, null);
+
+					for (int i = 0; i < constantRegisters.length; i += 2) {
+						regs[constantRegisters[i]] = k[constantRegisters[i + 1]];
+					}
+					pc = 0;
+					break;
+				case Opcode.RET:
+					return regs[code[pc + 1]];
+				case Opcode.RETNULL:
+					return null;
+				case Opcode.PRINT:
+					System.out.println(regs[code[pc + 1]].toString());
+					pc += 2;
+					break;
+				case Opcode.CHECKFUNC:
+					if (regs[code[pc + 1]] != null) {
+						String error = String.format("Error: function '%s' already declared", k[code[pc + 2]]);
+						throw new Error(error);
+					}
+					pc += 3;
+					break;
+				case Opcode.DEFFUNC:
+					bound[code[pc + 1]] = module.functions[code[pc + 2]];
+					pc += 3;
+					break;
+				default:
+					String error = String.format("Error: bad opcode %d at %d in '%s'", code[pc], pc, function.name);
+					throw new Error(error);
+			}
+		}
+	}
+
+	private Object call(int nameIndex, Object[] regs, int argBase, int argCount) {
+		CodeObject function = bound[nameIndex];
+
+		if (function == null) {
+			String error = String.format("Error: function '%s' not declared", module.functionNames[nameIndex]);
+			throw new Error(error);
+		}
+
+		checkArguments(function, regs, argBase, argCount);
+
+		Object[] frame = new Object[function.numRegisters];
+		System.arraycopy(regs, argBase, frame, 0, argCount);
+
+		return execute(function, frame);
+	}
+
+	private static void checkArguments(CodeObject function, Object[] regs, int argBase, int argCount) {
+		if (argCount != function.paramNames.length) {
+			String error = String.format("Error: wrong number of arguments for function '%s'", function.name);
+			throw new Error(error);
+		}
+
+		for (int i = 0; i < argCount; i++) {
+			if (!hasType(regs[argBase + i], function.paramTypes[i])) {
+				String error = String.format("Error: wrong type for argument '%s' of function '%s'",
+						function.paramNames[i], function.name);
+				throw new Error(error);
+			}
+		}
+	}
+
+	private static boolean hasType(Object value, int type) {
+		switch (type) {
+			case Opcode.TYPE_INT:
+				return value instanceof Integer;
+			case Opcode.TYPE_FLOAT:
+				return value instanceof Double;
+			case Opcode.TYPE_STRING:
+				return value instanceof String;
+			case Opcode.TYPE_BOOL:
+				return value instanceof Boolean;
+			default:
+				return false;
+		}
+	}
+}
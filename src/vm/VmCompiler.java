@@ -0,0 +1,842 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import expression.AddSub;
+import expression.And;
+import expression.Assignment;
+import expression.Block;
+import expression.Bool;
+import expression.Comparison;
+import expression.Conditional;
+import expression.Equality;
+import expression.Expression;
+import expression.ForLoop;
+import expression.Function;
+import expression.FunctionCall;
+import expression.Int;
+import expression.Keyword;
+import expression.MultDivMod;
+import expression.Not;
+import expression.Or;
+import expression.Parens;
+import expression.Print;
+import expression.Program;
+import expression.Real;
+import expression.Return;
+import expression.StatementRules;
+import expression.Str;
+import expression.TailCalls;
+import expression.UnaryMinus;
+import expression.Variable;
+import expression.VariableDeclaration;
+import expression.WhileLoop;
+
+/**
+ * Compiles a {@link Program} to register bytecode. Every variable and literal
+ * of a function (or of the top-level code) owns a register, temporaries are
+ * allocated above them. Operand types that are known statically select the
+ * typed int and float instructions, int comparisons used as conditions become
+ * a single compare-and-jump, and declaration checks that can be proven to pass
+ * are left out.
+ */
+public class VmCompiler {
+	private List<Object> constants;
+	private Map<Object, Integer> constantIndex;
+	private List<String> functionNames;
+	private Map<String, Integer> functionIndex;
+	private Map<Function, Integer> codeIndex;
+
+	// State of the code object being compiled
+	private int[] code;
+	private int size;
+	private Map<String, Integer> vars;
+	private Map<Object, Integer> literals;
+	private Map<String, String> firstTypes;
+	private Map<String, Integer> staticTypes;
+	private Set<String> declared;
+	private Set<String> possiblyDeclared;
+	private int nextTemp;
+	private int maxRegisters;
+	private boolean inFunction;
+	// Loops around the statement being compiled
+	private int loopDepth;
+	// Jumps out of the innermost while loop, taken by the returns inside it,
+	// and the variables of the for loops they leave on the way
+	private List<Integer> whileExits;
+	private List<Integer> forVariables;
+
+	public Module compile(Program prog) {
+		constants = new ArrayList<>();
+		constantIndex = new HashMap<>();
+		functionNames = new ArrayList<>();
+		functionIndex = new HashMap<>();
+		codeIndex = new IdentityHashMap<>();
+
+		List<CodeObject> functions = new ArrayList<>();
+		for (Expression e : prog.expressions) {
+			if (e instanceof Function) {
+				codeIndex.put((Function) e, functions.size());
+				functions.add(compileFunction((Function) e));
+			}
+		}
+
+		startCode(false);
+		for (Expression e : prog.expressions) {
+			scan(e);
+		}
+		allocateLiterals();
+
+		compileStatements(prog.expressions, true);
+		emit(Opcode.HALT);
+
+		CodeObject main = new CodeObject("main", new String[0], new int[0], maxRegisters, constantRegisters(),
+				Arrays.copyOf(code, size));
+
+		return new Module(constants.toArray(), functionNames.toArray(new String[0]),
+				functions.toArray(new CodeObject[0]), main);
+	}
+
+	private CodeObject compileFunction(Function function) {
+		startCode(true);
+
+		int count = function.paramIds.size();
+		String[] paramNames = function.paramIds.toArray(new String[count]);
+		int[] paramTypes = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			addVar(paramNames[i], function.paramTypes.get(i));
+			paramTypes[i] = typeCode(function.paramTypes.get(i));
+			declared.add(paramNames[i]);
+			possiblyDeclared.add(paramNames[i]);
+		}
+
+		scan(function.block);
+		allocateLiterals();
+
+		TailCalls.mark(function);
+		compileStatements(((Block) function.block).getStatements(), true);
+		emit(Opcode.RETNULL);
+
+		return new CodeObject(function.id, paramNames, paramTypes, maxRegisters, constantRegisters(),
+				Arrays.copyOf(code, size));
+	}
+
+	private void startCode(boolean inFunction) {
+		this.inFunction = inFunction;
+		code = new int[64];
+		size = 0;
+		vars = new HashMap<>();
+		literals = new HashMap<>();
+		firstTypes = new HashMap<>();
+		staticTypes = new HashMap<>();
+		declared = new HashSet<>();
+		possiblyDeclared = new HashSet<>();
+		loopDepth = 0;
+		whileExits = null;
+		forVariables = null;
+	}
+
+	// Assigns registers to every name used in a function body before any code
+	// is emitted, so temporaries never collide with variables
+	private void scan(Expression e) {
+		if (e instanceof Int) {
+			literals.putIfAbsent(((Int) e).value, -1);
+		} else if (e instanceof Real) {
+			literals.putIfAbsent(((Real) e).value, -1);
+		} else if (e instanceof Str) {
+			literals.putIfAbsent(((Str) e).value, -1);
+		} else if (e instanceof Bool) {
+			literals.putIfAbsent(((Bool) e).value, -1);
+		} else if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+			addVar(decl.id, decl.type);
+			scan(decl.expr);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+			addVar(assign.id, null);
+			scan(assign.expr);
+		} else if (e instanceof ForLoop) {
+			ForLoop forLoop = (ForLoop) e;
+			addVar(forLoop.id, Keyword.INT_TYPE);
+			scan(forLoop.start);
+			scan(forLoop.end);
+			scan(forLoop.step);
+			scan(forLoop.block);
+		} else if (e instanceof WhileLoop) {
+			scan(((WhileLoop) e).condition);
+			scan(((WhileLoop) e).block);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			scan(cond.condition);
+			scan(cond.ifBlock);
+			if (cond.elseBlock != null) {
+				scan(cond.elseBlock);
+			}
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				scan(statement);
+			}
+		} else if (e instanceof Variable) {
+			addVar(((Variable) e).id, null);
+		} else if (e instanceof Print) {
+			scan(((Print) e).expr);
+		} else if (e instanceof Return) {
+			scan(((Return) e).expr);
+		} else if (e instanceof Parens) {
+			scan(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			scan(((UnaryMinus) e).expr);
+		} else if (e instanceof Not) {
+			scan(((Not) e).expr);
+		} else if (e instanceof AddSub) {
+			scan(((AddSub) e).left);
+			scan(((AddSub) e).right);
+		} else if (e instanceof MultDivMod) {
+			scan(((MultDivMod) e).left);
+			scan(((MultDivMod) e).right);
+		} else if (e instanceof Comparison) {
+			scan(((Comparison) e).left);
+			scan(((Comparison) e).right);
+		} else if (e instanceof Equality) {
+			scan(((Equality) e).left);
+			scan(((Equality) e).right);
+		} else if (e instanceof And) {
+			scan(((And) e).left);
+			scan(((And) e).right);
+		} else if (e instanceof Or) {
+			scan(((Or) e).left);
+			scan(((Or) e).right);
+		} else if (e instanceof FunctionCall) {
+			for (Expression arg : ((FunctionCall) e).args) {
+				scan(arg);
+			}
+		}
+	}
+
+	private void allocateLiterals() {
+		int register = vars.size();
+
+		for (Map.Entry<Object, Integer> literal : literals.entrySet()) {
+			literal.setValue(register++);
+		}
+
+		nextTemp = register;
+		maxRegisters = register;
+	}
+
+	private int[] constantRegisters() {
+		int[] pairs = new int[literals.size() * 2];
+		int i = 0;
+
+		for (Map.Entry<Object, Integer> literal : literals.entrySet()) {
+			pairs[i++] = literal.getValue();
+			pairs[i++] = constant(literal.getKey());
+		}
+
+		return pairs;
+	}
+
+	private void addVar(String id, String type) {
+		if (!vars.containsKey(id)) {
+			vars.put(id, vars.size());
+		}
+
+		if (type != null) {
+			firstTypes.putIfAbsent(id, type);
+
+			// A name declared with different types has no static type
+			Integer known = staticTypes.get(id);
+			if (known == null) {
+				staticTypes.put(id, typeCode(type));
+			} else if (known != typeCode(type)) {
+				staticTypes.put(id, Opcode.TYPE_UNKNOWN);
+			}
+		}
+	}
+
+	private static int typeCode(String type) {
+		switch (type) {
+			case Keyword.INT_TYPE:
+				return Opcode.TYPE_INT;
+			case Keyword.FLOAT_TYPE:
+				return Opcode.TYPE_FLOAT;
+			case Keyword.STRING_TYPE:
+				return Opcode.TYPE_STRING;
+			case Keyword.BOOL_TYPE:
+				return Opcode.TYPE_BOOL;
+			default:
+				return Opcode.TYPE_UNKNOWN;
+		}
+	}
+
+	private int staticType(Expression e) {
+		if (e instanceof Int) {
+			return Opcode.TYPE_INT;
+		} else if (e instanceof Real) {
+			return Opcode.TYPE_FLOAT;
+		} else if (e instanceof Str) {
+			return Opcode.TYPE_STRING;
+		} else if (e instanceof Bool) {
+			return Opcode.TYPE_BOOL;
+		} else if (e instanceof Variable) {
+			return staticTypes.getOrDefault(((Variable) e).id, Opcode.TYPE_UNKNOWN);
+		} else if (e instanceof Parens) {
+			return staticType(((Parens) e).expr);
+		} else if (e instanceof UnaryMinus) {
+			int type = staticType(((UnaryMinus) e).expr);
+			return type == Opcode.TYPE_INT || type == Opcode.TYPE_FLOAT ? type : Opcode.TYPE_UNKNOWN;
+		} else if (e instanceof AddSub || e instanceof MultDivMod) {
+			Expression leftExpr = e instanceof AddSub ? ((AddSub) e).left : ((MultDivMod) e).left;
+			Expression rightExpr = e instanceof AddSub ? ((AddSub) e).right : ((MultDivMod) e).right;
+			int left = staticType(leftExpr);
+			int right = staticType(rightExpr);
+
+			if (left == right && (left == Opcode.TYPE_INT || left == Opcode.TYPE_FLOAT)) {
+				return left;
+			}
+
+			boolean isPlus = e instanceof AddSub && ((AddSub) e).operator.equals(Keyword.PLUS);
+			if (isPlus && (left == Opcode.TYPE_STRING && isPrintable(right)
+					|| right == Opcode.TYPE_STRING && isPrintable(left))) {
+				return Opcode.TYPE_STRING;
+			}
+		} else if (e instanceof Comparison) {
+			int left = staticType(((Comparison) e).left);
+			int right = staticType(((Comparison) e).right);
+
+			if (left == right && (left == Opcode.TYPE_INT || left == Opcode.TYPE_FLOAT)) {
+				return Opcode.TYPE_BOOL;
+			}
+		} else if (e instanceof Equality) {
+			return Opcode.TYPE_BOOL;
+		} else if (e instanceof And || e instanceof Or || e instanceof Not) {
+			// Each operand is checked to be a boolean, so the outcome always is one
+			return Opcode.TYPE_BOOL;
+		}
+
+		return Opcode.TYPE_UNKNOWN;
+	}
+
+	private static boolean isPrintable(int type) {
+		return type == Opcode.TYPE_STRING || type == Opcode.TYPE_INT || type == Opcode.TYPE_FLOAT;
+	}
+
+	private void emit(int... words) {
+		if (size + words.length > code.length) {
+			code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+		}
+
+		for (int word : words) {
+			code[size++] = word;
+		}
+	}
+
+	private void patch(int position) {
+		code[position] = size;
+	}
+
+	private void patchAll(List<Integer> positions) {
+		for (int position : positions) {
+			patch(position);
+		}
+	}
+
+	private int constant(Object value) {
+		Integer index = constantIndex.get(value);
+
+		if (index == null) {
+			index = constants.size();
+			constants.add(value);
+			constantIndex.put(value, index);
+		}
+
+		return index;
+	}
+
+	private int function(String id) {
+		Integer index = functionIndex.get(id);
+
+		if (index == null) {
+			index = functionNames.size();
+			functionNames.add(id);
+			functionIndex.put(id, index);
+		}
+
+		return index;
+	}
+
+	private int newTemp() {
+		int register = nextTemp++;
+		maxRegisters = Math.max(maxRegisters, nextTemp);
+		return register;
+	}
+
+	private void compileStatements(List<Expression> list, boolean topLevel) {
+		for (Expression e : list) {
+			if (!StatementRules.runs(e, inFunction)) {
+				continue;
+			}
+
+			int mark = nextTemp;
+			compileStatement(e, topLevel);
+			nextTemp = mark;
+		}
+	}
+
+	private void compileBlock(Expression block) {
+		Set<String> outer = new HashSet<>(declared);
+		compileStatements(((Block) block).getStatements(), false);
+		declared = outer;
+	}
+
+	private void compileStatement(Expression e, boolean topLevel) {
+		if (e instanceof VariableDeclaration) {
+			VariableDeclaration decl = (VariableDeclaration) e;
+
+			// A declaration in a loop finds its variable declared from the
+			// second iteration on; functions report it like loop variables
+			if (StatementRules.redeclarationFails(topLevel, inFunction)
+					&& (possiblyDeclared.contains(decl.id) || loopDepth > 0)) {
+				emit(inFunction ? Opcode.CHECKFOR : Opcode.CHECKDECL, vars.get(decl.id), constant(decl.id));
+			}
+
+			// In the blocks of top-level code a redeclaration reassigns the
+			// variable
+			compileStore(decl.id, decl.expr, decl.type);
+			declared.add(decl.id);
+			possiblyDeclared.add(decl.id);
+		} else if (e instanceof Assignment) {
+			Assignment assign = (Assignment) e;
+
+			if (!declared.contains(assign.id)) {
+				emit(Opcode.CHECKVAR, vars.get(assign.id), constant(assign.id));
+			}
+
+			compileStore(assign.id, assign.expr, firstTypes.get(assign.id));
+		} else if (e instanceof Print) {
+			emit(Opcode.PRINT, compileExpression(((Print) e).expr, -1));
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			List<Integer> toElse = new ArrayList<>();
+			compileBranch(cond.condition, false, toElse);
+
+			compileBlock(cond.ifBlock);
+
+			if (cond.elseBlock != null) {
+				emit(Opcode.JMP, 0);
+				int toEnd = size - 1;
+				patchAll(toElse);
+				compileBlock(cond.elseBlock);
+				patch(toEnd);
+			} else {
+				patchAll(toElse);
+			}
+		} else if (e instanceof WhileLoop) {
+			WhileLoop whileLoop = (WhileLoop) e;
+			int top = size;
+			List<Integer> toEnd = new ArrayList<>();
+			compileBranch(whileLoop.condition, false, toEnd);
+
+			List<Integer> outerExits = whileExits;
+			List<Integer> outerVariables = forVariables;
+			whileExits = toEnd;
+			forVariables = new ArrayList<>();
+			loopDepth++;
+			compileBlock(whileLoop.block);
+			loopDepth--;
+			whileExits = outerExits;
+			forVariables = outerVariables;
+
+			emit(Opcode.JMP, top);
+			patchAll(toEnd);
+		} else if (e instanceof ForLoop) {
+			compileForLoop((ForLoop) e);
+		} else if (e instanceof Return) {
+			if (((Return) e).tailCall) {
+				FunctionCall call = (FunctionCall) ((Return) e).expr;
+				int mark = compileArguments(call);
+				emit(Opcode.TAILCALL, function(call.id), mark, call.args.size());
+			} else if (whileExits != null) {
+				// A return inside a while loop only ends the loop, and drops
+				// its value
+				compileExpression(((Return) e).expr, -1);
+
+				for (int var : forVariables) {
+					emit(Opcode.CLEAR, var);
+				}
+				emit(Opcode.JMP, 0);
+				whileExits.add(size - 1);
+			} else {
+				emit(Opcode.RET, compileExpression(((Return) e).expr, -1));
+			}
+		} else {
+			Function function = (Function) e;
+
+			// A function cannot take the name of a declared global
+			if (possiblyDeclared.contains(function.id)) {
+				emit(Opcode.CHECKFUNC, vars.get(function.id), constant(function.id));
+			}
+			emit(Opcode.DEFFUNC, function(function.id), codeIndex.get(function));
+		}
+	}
+
+	/**
+	 * Emits the jumps taken when condition evaluates to when, and adds the
+	 * positions of their targets to exits, to be patched. '&&' and '||' jump
+	 * past their right operand once the left one decides the result.
+	 */
+	private void compileBranch(Expression condition, boolean when, List<Integer> exits) {
+		while (condition instanceof Parens) {
+			condition = ((Parens) condition).expr;
+		}
+
+		if (condition instanceof And || condition instanceof Or) {
+			boolean isAnd = condition instanceof And;
+			Expression leftExpr = isAnd ? ((And) condition).left : ((Or) condition).left;
+			Expression rightExpr = isAnd ? ((And) condition).right : ((Or) condition).right;
+			String operator = isAnd ? "&&" : "||";
+
+			if (when != isAnd) {
+				compileOperand(leftExpr, when, exits, operator);
+				compileOperand(rightExpr, when, exits, operator);
+			} else {
+				// A left operand that decides the result skips the right one
+				List<Integer> decided = new ArrayList<>();
+				compileOperand(leftExpr, !when, decided, operator);
+				compileOperand(rightExpr, when, exits, operator);
+				patchAll(decided);
+			}
+			return;
+		} else if (condition instanceof Not) {
+			compileOperand(((Not) condition).expr, !when, exits, "!");
+			return;
+		}
+
+		int mark = nextTemp;
+		int op = -1;
+		Expression leftExpr = null;
+		Expression rightExpr = null;
+
+		if (condition instanceof Comparison) {
+			Comparison comp = (Comparison) condition;
+			leftExpr = comp.left;
+			rightExpr = comp.right;
+
+			switch (comp.operator) {
+				case Keyword.LT:
+					op = when ? Opcode.JLT_II : Opcode.JGE_II;
+					break;
+				case Keyword.GT:
+					op = when ? Opcode.JGT_II : Opcode.JLE_II;
+					break;
+				case Keyword.LTE:
+					op = when ? Opcode.JLE_II : Opcode.JGT_II;
+					break;
+				default:
+					op = when ? Opcode.JGE_II : Opcode.JLT_II;
+			}
+		} else if (condition instanceof Equality) {
+			Equality eq = (Equality) condition;
+			leftExpr = eq.left;
+			rightExpr = eq.right;
+			op = eq.operator.equals(Keyword.EQ) == when ? Opcode.JEQ_II : Opcode.JNE_II;
+		}
+
+		if (op >= 0 && staticType(leftExpr) == Opcode.TYPE_INT && staticType(rightExpr) == Opcode.TYPE_INT) {
+			int left = compileExpression(leftExpr, -1);
+			int right = compileExpression(rightExpr, -1);
+			emit(op, left, right, 0);
+		} else {
+			emit(when ? Opcode.JMPT : Opcode.JMPF, compileExpression(condition, -1), 0);
+		}
+
+		nextTemp = mark;
+		exits.add(size - 1);
+	}
+
+	// Operands of logical operators have to be booleans
+	private void compileOperand(Expression operand, boolean when, List<Integer> exits, String operator) {
+		if (staticType(operand) == Opcode.TYPE_BOOL) {
+			compileBranch(operand, when, exits);
+			return;
+		}
+
+		int mark = nextTemp;
+		int value = compileExpression(operand, -1);
+		emit(Opcode.CHECKBOOL, value, constant(operator));
+		emit(when ? Opcode.JMPT : Opcode.JMPF, value, 0);
+		nextTemp = mark;
+		exits.add(size - 1);
+	}
+
+	// Branches on a logical operator and loads its outcome
+	private int compileLogical(Expression e, int target) {
+		int mark = nextTemp;
+		List<Integer> toFalse = new ArrayList<>();
+		compileBranch(e, false, toFalse);
+		nextTemp = mark;
+
+		int result = target >= 0 ? target : newTemp();
+		emit(Opcode.LOADK, result, constant(true));
+		emit(Opcode.JMP, 0);
+		int toEnd = size - 1;
+		patchAll(toFalse);
+		emit(Opcode.LOADK, result, constant(false));
+		patch(toEnd);
+		return result;
+	}
+
+	private void compileStore(String id, Expression expr, String type) {
+		int var = vars.get(id);
+		int typeCode = type == null ? Opcode.TYPE_UNKNOWN : typeCode(type);
+
+		if (typeCode != Opcode.TYPE_UNKNOWN && staticType(expr) == typeCode) {
+			compileExpression(expr, var);
+			return;
+		}
+
+		String textType = type == null ? null : Keyword.translated.get(type);
+		int result = compileExpression(expr, -1);
+		emit(Opcode.CHECKTYPE, result, typeCode, constant(id), textType == null ? -1 : constant(textType));
+
+		if (result != var) {
+			emit(Opcode.MOVE, var, result);
+		}
+	}
+
+	private void compileForLoop(ForLoop forLoop) {
+		int var = vars.get(forLoop.id);
+
+		if (possiblyDeclared.contains(forLoop.id)) {
+			emit(Opcode.CHECKFOR, var, constant(forLoop.id));
+		}
+
+		// When the body never writes the loop variable, it doubles as the counter
+		boolean separateCounter = writes(forLoop.block, forLoop.id);
+		int counter = separateCounter ? newTemp() : var;
+		int start = separateCounter ? counter : newTemp();
+		int end = newTemp();
+		int step = newTemp();
+		int left = newTemp();
+
+		compileInt(forLoop.start, start);
+		compileInt(forLoop.end, end);
+		compileInt(forLoop.step, step);
+		// The number of iterations is fixed before the body first runs
+		emit(Opcode.FORPREP, left, start, end, step, constant(forLoop.id));
+		possiblyDeclared.add(forLoop.id);
+
+		if (!separateCounter) {
+			emit(Opcode.MOVE, counter, start);
+		}
+
+		int top = size;
+		emit(Opcode.FORLOOP, left, 0);
+		int toEnd = size - 1;
+
+		if (separateCounter) {
+			emit(Opcode.MOVE, var, counter);
+		}
+
+		Set<String> outer = new HashSet<>(declared);
+		declared.add(forLoop.id);
+		if (forVariables != null) {
+			forVariables.add(var);
+		}
+		loopDepth++;
+		compileBlock(forLoop.block);
+		loopDepth--;
+		if (forVariables != null) {
+			forVariables.remove(forVariables.size() - 1);
+		}
+		declared = outer;
+
+		if (separateCounter) {
+			emit(Opcode.CLEAR, var);
+		}
+		emit(Opcode.ADD_II, counter, counter, step);
+		emit(Opcode.JMP, top);
+		patch(toEnd);
+		emit(Opcode.CLEAR, var);
+	}
+
+	private static boolean writes(Expression e, String id) {
+		if (e instanceof VariableDeclaration) {
+			return ((VariableDeclaration) e).id.equals(id);
+		} else if (e instanceof Assignment) {
+			return ((Assignment) e).id.equals(id);
+		} else if (e instanceof ForLoop) {
+			return ((ForLoop) e).id.equals(id) || writes(((ForLoop) e).block, id);
+		} else if (e instanceof WhileLoop) {
+			return writes(((WhileLoop) e).block, id);
+		} else if (e instanceof Conditional) {
+			Conditional cond = (Conditional) e;
+			return writes(cond.ifBlock, id) || cond.elseBlock != null && writes(cond.elseBlock, id);
+		} else if (e instanceof Block) {
+			for (Expression statement : ((Block) e).getStatements()) {
+				if (writes(statement, id)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private void compileInt(Expression e, int target) {
+		compileExpression(e, target);
+
+		if (staticType(e) != Opcode.TYPE_INT) {
+			emit(Opcode.CASTINT, target);
+		}
+	}
+
+	/**
+	 * Emits code computing e and returns the register holding the result. When
+	 * target is not negative the result is placed in that register.
+	 */
+	private int compileExpression(Expression e, int target) {
+		if (e instanceof Parens) {
+			return compileExpression(((Parens) e).expr, target);
+		} else if (e instanceof Variable) {
+			String id = ((Variable) e).id;
+			int var = vars.get(id);
+
+			if (!declared.contains(id)) {
+				emit(Opcode.CHECKVAR, var, constant(id));
+			}
+
+			if (target >= 0 && target != var) {
+				emit(Opcode.MOVE, target, var);
+				return target;
+			}
+
+			return var;
+		} else if (e instanceof Int) {
+			return compileConstant(((Int) e).value, target);
+		} else if (e instanceof Real) {
+			return compileConstant(((Real) e).value, target);
+		} else if (e instanceof Str) {
+			return compileConstant(((Str) e).value, target);
+		} else if (e instanceof Bool) {
+			return compileConstant(((Bool) e).value, target);
+		} else if (e instanceof AddSub) {
+			AddSub add = (AddSub) e;
+			boolean isPlus = add.operator.equals(Keyword.PLUS);
+			return compileBinary(add.left, add.right, target, isPlus ? Opcode.ADD : Opcode.SUB,
+					isPlus ? Opcode.ADD_II : Opcode.SUB_II, isPlus ? Opcode.ADD_DD : Opcode.SUB_DD);
+		} else if (e instanceof MultDivMod) {
+			MultDivMod mult = (MultDivMod) e;
+
+			switch (mult.operator) {
+				case Keyword.TIMES:
+					return compileBinary(mult.left, mult.right, target, Opcode.MUL, Opcode.MUL_II, Opcode.MUL_DD);
+				case Keyword.DIVIDE:
+					return compileBinary(mult.left, mult.right, target, Opcode.DIV, Opcode.DIV_II, Opcode.DIV_DD);
+				default:
+					return compileBinary(mult.left, mult.right, target, Opcode.MOD, Opcode.MOD_II, Opcode.MOD_DD);
+			}
+		} else if (e instanceof Comparison) {
+			Comparison comp = (Comparison) e;
+
+			switch (comp.operator) {
+				case Keyword.LT:
+					return compileBinary(comp.left, comp.right, target, Opcode.LT, Opcode.LT_II, Opcode.LT);
+				case Keyword.GT:
+					return compileBinary(comp.left, comp.right, target, Opcode.GT, Opcode.GT_II, Opcode.GT);
+				case Keyword.LTE:
+					return compileBinary(comp.left, comp.right, target, Opcode.LTE, Opcode.LTE_II, Opcode.LTE);
+				default:
+					return compileBinary(comp.left, comp.right, target, Opcode.GTE, Opcode.GTE_II, Opcode.GTE);
+			}
+		} else if (e instanceof Equality) {
+			Equality eq = (Equality) e;
+
+			if (eq.operator.equals(Keyword.EQ)) {
+				return compileBinary(eq.left, eq.right, target, Opcode.EQ, Opcode.EQ_II, Opcode.EQ);
+			}
+			return compileBinary(eq.left, eq.right, target, Opcode.NEQ, Opcode.NEQ_II, Opcode.NEQ);
+		} else if (e instanceof And || e instanceof Or) {
+			return compileLogical(e, target);
+		} else if (e instanceof UnaryMinus) {
+			return compileUnary(((UnaryMinus) e).expr, target, Opcode.NEG);
+		} else if (e instanceof Not) {
+			return compileUnary(((Not) e).expr, target, Opcode.NOT);
+		} else if (e instanceof FunctionCall) {
+			FunctionCall call = (FunctionCall) e;
+			int mark = compileArguments(call);
+			int result = target >= 0 ? target : newTemp();
+			emit(Opcode.CALL, result, function(call.id), mark, call.args.size());
+			return result;
+		}
+
+		String error = String.format("cannot compile '%s'", e);
+		throw new Error(error);
+	}
+
+	// Puts the arguments of a call in consecutive temporaries and returns the
+	// first one
+	private int compileArguments(FunctionCall call) {
+		int mark = nextTemp;
+
+		for (Expression arg : call.args) {
+			int register = newTemp();
+			compileExpression(arg, register);
+			nextTemp = register + 1;
+		}
+
+		nextTemp = mark;
+		return mark;
+	}
+
+	private int compileConstant(Object value, int target) {
+		int register = literals.get(value);
+
+		if (target >= 0 && target != register) {
+			emit(Opcode.MOVE, target, register);
+			return target;
+		}
+
+		return register;
+	}
+
+	private int compileBinary(Expression leftExpr, Expression rightExpr, int target, int generic, int ints,
+			int doubles) {
+		int leftType = staticType(leftExpr);
+		int rightType = staticType(rightExpr);
+		int op = generic;
+
+		if (leftType == Opcode.TYPE_INT && rightType == Opcode.TYPE_INT) {
+			op = ints;
+		} else if (leftType == Opcode.TYPE_FLOAT && rightType == Opcode.TYPE_FLOAT) {
+			op = doubles;
+		}
+
+		int mark = nextTemp;
+		int left = compileExpression(leftExpr, -1);
+		int right = compileExpression(rightExpr, -1);
+		nextTemp = mark;
+
+		int result = target >= 0 ? target : newTemp();
+		emit(op, result, left, right);
+		return result;
+	}
+
+	private int compileUnary(Expression expr, int target, int op) {
+		int mark = nextTemp;
+		int operand = compileExpression(expr, -1);
+		nextTemp = mark;
+
+		int result = target >= 0 ? target : newTemp();
+		emit(op, result, operand);
+		return result;
+	}
+}